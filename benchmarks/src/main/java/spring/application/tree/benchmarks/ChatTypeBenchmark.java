@@ -0,0 +1,24 @@
+package spring.application.tree.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import spring.application.tree.data.chats.attributes.ChatType;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatTypeBenchmark {
+    @Param({"DIALOGUE", "GROUP", "PERSONAL"})
+    private ChatType chatType;
+    private int membersCount = 1;
+
+    @Benchmark
+    public boolean isUserAddingAllowed() throws InvalidAttributesException {
+        return chatType.isUserAddingAllowed(membersCount);
+    }
+}
@@ -0,0 +1,38 @@
+package spring.application.tree.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import spring.application.tree.data.utility.converting.DateConvertingUtility;
+
+import java.text.ParseException;
+import java.time.ZonedDateTime;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DateConvertingBenchmark {
+    private final DateConvertingUtility dateConvertingUtility = new DateConvertingUtility();
+    private final TimeZone timeZone = TimeZone.getTimeZone("Europe/Kiev");
+    private final Date date = new Date();
+    private ZonedDateTime zonedDateTime;
+
+    @Setup
+    public void setup() throws ParseException {
+        zonedDateTime = dateConvertingUtility.convertDate(timeZone, date);
+    }
+
+    @Benchmark
+    public ZonedDateTime convertDate() throws ParseException {
+        return dateConvertingUtility.convertDate(timeZone, date);
+    }
+
+    @Benchmark
+    public String format() {
+        return dateConvertingUtility.format(zonedDateTime, "dd.MM.yyyy HH:mm:ssXXX");
+    }
+}
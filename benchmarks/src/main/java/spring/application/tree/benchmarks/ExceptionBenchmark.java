@@ -0,0 +1,79 @@
+package spring.application.tree.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpStatus;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.NotAllowedException;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of validation failure as DAOs and services report it, stack depth is raised to be closer to request handling thread.
+ * Previous reporting is thread stack trace with debug enabled, default one is caller with debug disabled
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExceptionBenchmark {
+    private static final NotAllowedException SHARED_EXCEPTION = new NotAllowedException("Chats data forbidden, no authorization detected", HttpStatus.FORBIDDEN);
+    @Param({"0", "100"})
+    private int stackDepth;
+    @Param({"false", "true"})
+    private boolean debug;
+    private int chatId = -1;
+
+    @Setup
+    public void setup() {
+        ExceptionTrace.setDebug(debug);
+    }
+
+    @Benchmark
+    public InvalidAttributesException constructWithThreadStackTrace() {
+        return constructWithThreadStackTrace(stackDepth);
+    }
+
+    @Benchmark
+    public InvalidAttributesException constructWithCaller() {
+        return constructWithCaller(stackDepth);
+    }
+
+    @Benchmark
+    public NotAllowedException throwSharedException() {
+        try {
+            return throwShared(stackDepth);
+        } catch (NotAllowedException e) {
+            return e;
+        }
+    }
+
+    private InvalidAttributesException constructWithThreadStackTrace(int depth) {
+        if (depth > 0) {
+            return constructWithThreadStackTrace(depth - 1);
+        }
+        return new InvalidAttributesException(String.format("Chat ID is invalid: %s", chatId),
+                                              Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                              LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+    }
+
+    private InvalidAttributesException constructWithCaller(int depth) {
+        if (depth > 0) {
+            return constructWithCaller(depth - 1);
+        }
+        return new InvalidAttributesException(String.format("Chat ID is invalid: %s", chatId),
+                                              ExceptionTrace.caller(),
+                                              LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+    }
+
+    private NotAllowedException throwShared(int depth) throws NotAllowedException {
+        if (depth > 0) {
+            return throwShared(depth - 1);
+        }
+        throw SHARED_EXCEPTION;
+    }
+}
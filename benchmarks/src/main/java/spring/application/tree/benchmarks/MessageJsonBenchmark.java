@@ -0,0 +1,49 @@
+package spring.application.tree.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.*;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of single message and of one history page, as controllers return them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageJsonBenchmark {
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final ObjectWriter writer = mapper.writer();
+    private AbstractMessageModel message;
+    private List<AbstractMessageModel> page;
+
+    @Setup
+    public void setup() {
+        message = new AbstractMessageModel(1, "Benchmark message with some ordinary text in it", new Date(), 1, 1, MessageType.CREATED);
+        page = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            page.add(new AbstractMessageModel(i, "Benchmark message number " + i, new Date(), i % 5, 1, MessageType.CREATED));
+        }
+    }
+
+    @Benchmark
+    public byte[] renderMessage() throws JsonProcessingException {
+        return writer.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public byte[] renderHistoryPage() throws JsonProcessingException {
+        return writer.writeValueAsBytes(page);
+    }
+}
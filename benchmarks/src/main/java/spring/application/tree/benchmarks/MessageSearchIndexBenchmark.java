@@ -0,0 +1,97 @@
+package spring.application.tree.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.cache.MessageSearchIndex;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageCursor;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * As you type queries over one indexed chat with synthetic vocabulary, scan is the same search done by substring matching
+ * over every message, the way chat would be searched without index
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageSearchIndexBenchmark {
+    private static final int CHAT_ID = 1;
+    private static final int VOCABULARY_SIZE = 20000;
+    private static final int WORDS_PER_MESSAGE = 12;
+    @Param({"10000", "100000"})
+    private int messagesCount;
+    private MessageSearchIndex messageSearchIndex;
+    private List<AbstractMessageModel> messages;
+    private String[] queries;
+    private int query;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        String[] vocabulary = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < vocabulary.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int length = 3 + random.nextInt(7); word.length() < length; ) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            vocabulary[i] = word.toString();
+        }
+        messages = new ArrayList<>(messagesCount);
+        List<MessageCursor> cursors = new ArrayList<>(messagesCount);
+        long start = System.currentTimeMillis() - messagesCount * 1000L;
+        for (int id = 1; id <= messagesCount; id++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < WORDS_PER_MESSAGE; i++) {
+                int rank = (int) Math.min(VOCABULARY_SIZE - 1, Math.abs(random.nextGaussian()) * VOCABULARY_SIZE / 6);
+                text.append(i == 0 ? "" : " ").append(vocabulary[rank]);
+            }
+            Timestamp sentAt = new Timestamp(start + id * 1000L);
+            messages.add(new AbstractMessageModel(id, text.toString(), sentAt, 1, CHAT_ID, MessageType.SENT));
+            cursors.add(new MessageCursor(sentAt, id));
+        }
+        messageSearchIndex = new MessageSearchIndex(new CacheInvalidationBus());
+        ReflectionTestUtils.setField(messageSearchIndex, "memoryBudget", Long.MAX_VALUE);
+        ReflectionTestUtils.setField(messageSearchIndex, "maxChatMessages", messagesCount);
+        messageSearchIndex.putChat(CHAT_ID, messages, cursors, messageSearchIndex.getWriteStamp(CHAT_ID));
+        queries = new String[64];
+        for (int i = 0; i < queries.length; i++) {
+            String first = vocabulary[random.nextInt(200)];
+            String second = vocabulary[random.nextInt(2000)];
+            queries[i] = first + " " + second.substring(0, Math.min(2, second.length()));
+        }
+    }
+
+    @Benchmark
+    public List<AbstractMessageModel> indexSearch() {
+        return messageSearchIndex.search(CHAT_ID, nextQuery(), 20);
+    }
+
+    @Benchmark
+    public List<AbstractMessageModel> scanSearch() {
+        List<String> tokens = MessageSearchIndex.tokenize(nextQuery());
+        List<AbstractMessageModel> found = new ArrayList<>();
+        for (int i = messages.size() - 1; i >= 0 && found.size() < 20; i--) {
+            String text = messages.get(i).getMessage().toLowerCase(Locale.ROOT);
+            if (tokens.stream().allMatch(text::contains)) {
+                found.add(messages.get(i));
+            }
+        }
+        return found;
+    }
+
+    private String nextQuery() {
+        query = (query + 1) % queries.length;
+        return queries[query];
+    }
+}
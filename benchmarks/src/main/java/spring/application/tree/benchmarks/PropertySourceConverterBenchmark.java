@@ -0,0 +1,28 @@
+package spring.application.tree.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import spring.application.tree.data.utility.properties.CustomPropertyDataLoader;
+import spring.application.tree.data.utility.properties.CustomPropertySourceConverter;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropertySourceConverterBenchmark {
+    private String content;
+
+    @Setup
+    public void setup() {
+        content = CustomPropertyDataLoader.getResourceContent("classpath:mail.properties");
+    }
+
+    @Benchmark
+    public Map<String, String> convertToKeyValueFormat() {
+        return CustomPropertySourceConverter.convertToKeyValueFormat(content);
+    }
+}
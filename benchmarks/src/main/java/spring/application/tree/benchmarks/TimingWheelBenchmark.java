@@ -0,0 +1,60 @@
+package spring.application.tree.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import spring.application.tree.data.scheduling.wheel.HierarchicalTimingWheel;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling and cancelling of one time tasks while many other timers are pending, as confirmation
+ * and rollback tasks are used. Executor is configured as ScheduleService configured it before timing wheel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimingWheelBenchmark {
+    private static final Runnable TASK = () -> { };
+    @Param({"wheel", "executor"})
+    private String implementation;
+    @Param({"0", "100000"})
+    private int pendingTimers;
+    private HierarchicalTimingWheel wheel;
+    private ScheduledExecutorService executor;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newScheduledThreadPool(8);
+        if ("wheel".equals(implementation)) {
+            wheel = new HierarchicalTimingWheel(10, 512, executor);
+        }
+        for (int i = 0; i < pendingTimers; i++) {
+            schedule(TimeUnit.MINUTES.toMillis(10) + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (wheel != null) {
+            wheel.shutdown();
+        }
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean scheduleAndCancel() {
+        ScheduledFuture<?> future = schedule(ThreadLocalRandom.current().nextLong(1000, 600000));
+        return future.cancel(false);
+    }
+
+    private ScheduledFuture<?> schedule(long delay) {
+        return wheel == null ? executor.schedule(TASK, delay, TimeUnit.MILLISECONDS) : wheel.schedule(TASK, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,60 @@
+package spring.application.tree.benchmarks;
+
+import io.jsonwebtoken.Claims;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.test.util.ReflectionTestUtils;
+import spring.application.tree.data.users.security.token.AuthorizationTokenUtility;
+import spring.application.tree.data.users.security.token.TokenRevocationStore;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache size 0 makes every validation parse and verify token, as it was before verified tokens were cached
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenBenchmark {
+    @Param({"0", "10000"})
+    private int cacheSize;
+    private AuthorizationTokenUtility tokenUtility;
+    private UserDetails userDetails;
+    private MockHttpServletRequest request;
+    private String token;
+
+    @Setup
+    public void setup() {
+        tokenUtility = new AuthorizationTokenUtility(new TokenRevocationStore(null));
+        ReflectionTestUtils.setField(tokenUtility, "tokenValidityDuration", 3600);
+        ReflectionTestUtils.setField(tokenUtility, "verifiedTokensCacheSize", cacheSize);
+        ReflectionTestUtils.invokeMethod(tokenUtility, "initializeVerifiedTokensCache");
+        userDetails = new User("benchmark", "password", Collections.emptyList());
+        request = new MockHttpServletRequest();
+        request.addHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) benchmark");
+        request.setRemoteAddr("10.0.0.1");
+        token = tokenUtility.generateToken(userDetails, request);
+    }
+
+    @Benchmark
+    public String generateToken() {
+        return tokenUtility.generateToken(userDetails, request);
+    }
+
+    @Benchmark
+    public boolean validateToken() {
+        return tokenUtility.validateToken(token, userDetails, request);
+    }
+
+    @Benchmark
+    public boolean extractClaimsAndValidateToken() {
+        Claims claims = tokenUtility.getAllClaimsFromToken(token);
+        return tokenUtility.validateToken(token, claims, userDetails, request);
+    }
+}
@@ -0,0 +1,86 @@
+package spring.application.tree.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.web.webscoket.fanout.LocalWebSocketFanOut;
+import spring.application.tree.web.webscoket.fanout.WebSocketFanOutMetrics;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
+import spring.application.tree.web.webscoket.service.WebSocketService;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Message is published through simple broker to subscribers of one chat, every operation is one chat message,
+ * outbound channel only counts frames, so result shows cost of serialization and broker fan out without network
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebSocketFanOutBenchmark {
+    @Param({"1", "100", "1000"})
+    private int subscribers;
+    private final LongAdder deliveredFrames = new LongAdder();
+    private SimpleBrokerMessageHandler broker;
+    private WebSocketService webSocketService;
+    private AbstractMessageModel message;
+
+    @Setup
+    public void setup() throws Exception {
+        ExecutorSubscribableChannel clientInboundChannel = new ExecutorSubscribableChannel();
+        ExecutorSubscribableChannel brokerChannel = new ExecutorSubscribableChannel();
+        MessageChannel clientOutboundChannel = new MessageChannel() {
+            @Override
+            public boolean send(Message<?> frame, long timeout) {
+                deliveredFrames.increment();
+                return true;
+            }
+        };
+        broker = new SimpleBrokerMessageHandler(clientInboundChannel, clientOutboundChannel, brokerChannel, Collections.singletonList("/topic"));
+        broker.start();
+        for (int i = 0; i < subscribers; i++) {
+            SimpMessageHeaderAccessor connectHeaderAccessor = SimpMessageHeaderAccessor.create(SimpMessageType.CONNECT);
+            connectHeaderAccessor.setSessionId("session-" + i);
+            broker.handleMessage(MessageBuilder.createMessage(new byte[0], connectHeaderAccessor.getMessageHeaders()));
+            SimpMessageHeaderAccessor headerAccessor = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+            headerAccessor.setSessionId("session-" + i);
+            headerAccessor.setSubscriptionId("subscription-" + i);
+            headerAccessor.setDestination("/topic/chat/1");
+            broker.handleMessage(MessageBuilder.createMessage(new byte[0], headerAccessor.getMessageHeaders()));
+        }
+        deliveredFrames.reset();
+        SimpMessagingTemplate messagingTemplate = new SimpMessagingTemplate(brokerChannel);
+        webSocketService = new WebSocketService(messagingTemplate, new LocalWebSocketFanOut(messagingTemplate, new WebSocketFanOutMetrics()));
+        ReflectionTestUtils.setField(webSocketService, "timeout", "1000");
+        ReflectionTestUtils.invokeMethod(webSocketService, "setup");
+        message = new AbstractMessageModel(1, "Benchmark message with some ordinary text in it", new Date(), 1, 1, MessageType.CREATED);
+    }
+
+    @TearDown
+    public void tearDown() {
+        broker.stop();
+        if (deliveredFrames.sum() < subscribers) {
+            throw new IllegalStateException("No frames were delivered to subscribers");
+        }
+    }
+
+    @Benchmark
+    public void publishToChat() throws Exception {
+        webSocketService.sendMessage(message, "/topic/chat/1", WebSocketEvent.SENDING_MESSAGE);
+    }
+}
@@ -0,0 +1,67 @@
+package spring.application.tree.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
+import spring.application.tree.web.webscoket.models.WebSocketMessage;
+import spring.application.tree.web.webscoket.service.WebSocketService;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares single serialization through shared writer with conversion of payload by message converter of template
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebSocketSerializationBenchmark {
+    private WebSocketService webSocketService;
+    private SimpMessagingTemplate convertingTemplate;
+    private AbstractMessageModel message;
+    private volatile Object lastPayload;
+
+    @Setup
+    public void setup() throws Exception {
+        MessageChannel channel = new MessageChannel() {
+            @Override
+            public boolean send(Message<?> sentMessage, long timeout) {
+                lastPayload = sentMessage.getPayload();
+                return true;
+            }
+        };
+        SimpMessagingTemplate messagingTemplate = new SimpMessagingTemplate(channel);
+        webSocketService = new WebSocketService(messagingTemplate, (destination, payload) -> lastPayload = payload);
+        ReflectionTestUtils.setField(webSocketService, "timeout", "1000");
+        ReflectionTestUtils.invokeMethod(webSocketService, "setup");
+        convertingTemplate = new SimpMessagingTemplate(channel);
+        MappingJackson2MessageConverter converter = new MappingJackson2MessageConverter();
+        converter.setObjectMapper(new ObjectMapper().registerModule(new JavaTimeModule()));
+        convertingTemplate.setMessageConverter(converter);
+        message = new AbstractMessageModel(1, "Benchmark message with some ordinary text in it", new Date(), 1, 1, MessageType.CREATED);
+    }
+
+    @Benchmark
+    public Object sendThroughWebSocketService() throws JsonProcessingException {
+        webSocketService.sendMessage(message, "/topic/chat/1", WebSocketEvent.SENDING_MESSAGE);
+        return lastPayload;
+    }
+
+    @Benchmark
+    public Object convertAndSend() {
+        convertingTemplate.convertAndSend("/topic/chat/1", new WebSocketMessage(message, WebSocketEvent.SENDING_MESSAGE));
+        return lastPayload;
+    }
+}
@@ -0,0 +1,305 @@
+package spring.application.tree.benchmarks.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.messaging.converter.SimpleMessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates chatters of one node: synthetic users are signed up, enabled in database and logged in,
+ * every user keeps STOMP connection subscribed to its chat while senders create and send messages at target rate.
+ * Latency is measured from time message was planned to be sent until it is received by subscriber,
+ * so senders falling behind the rate show up in latency instead of hiding it.
+ * Run: mvn -f benchmarks/pom.xml compile exec:java -Dexec.args="--embedded --connections=200 --rate=500"
+ */
+public class LoadTest {
+    private static final String USER_AGENT = "messenger-load-test";
+    private static final int SUBSCRIPTION_TIMEOUT = 2;
+    private final LoadTestOptions options;
+    private final String baseUrl;
+    private final JdbcTemplate jdbcTemplate;
+    private final RestTemplate restTemplate = new RestTemplate();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    /**
+     * Message ID -> planned sending time in nanoseconds
+     */
+    private final Map<Integer, Long> sentMessages = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> chatSubscribers = new ConcurrentHashMap<>();
+    private final Recorder deliveryLatency = new Recorder(TimeUnit.SECONDS.toMicros(60), 3);
+    private final Recorder requestLatency = new Recorder(TimeUnit.SECONDS.toMicros(60), 3);
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong expectedDeliveries = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile long measurementStart;
+
+    public LoadTest(LoadTestOptions options, String baseUrl, JdbcTemplate jdbcTemplate) {
+        this.options = options;
+        this.baseUrl = baseUrl;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        try (LoadTestEnvironment environment = LoadTestEnvironment.start(options)) {
+            new LoadTest(options, environment.getBaseUrl(), new JdbcTemplate(environment.getDataSource())).run();
+        }
+        // Scheduler pool of embedded application is not daemon and outlives closed context
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        System.out.printf("Load test against %s, %s%n", baseUrl, options);
+        List<SyntheticUser> users = signUpUsers();
+        List<Integer> chats = createChats(users);
+        WebSocketStompClient stompClient = createStompClient();
+        List<StompSession> sessions = connect(stompClient, users);
+        System.out.printf("%d users connected to %d chats%n", sessions.size(), chats.size());
+        long start = System.nanoTime();
+        measurementStart = start + TimeUnit.SECONDS.toNanos(options.getWarmup());
+        long end = measurementStart + TimeUnit.SECONDS.toNanos(options.getDuration());
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < options.getSenders(); i++) {
+            int senderIndex = i;
+            Thread sender = new Thread(() -> send(users, senderIndex, start, end), "load-test-sender-" + i);
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (deliveries.get() < expectedDeliveries.get() && System.nanoTime() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        report(System.nanoTime() - measurementStart);
+        sessions.forEach(StompSession::disconnect);
+        stompClient.stop();
+    }
+
+    private List<SyntheticUser> signUpUsers() {
+        List<SyntheticUser> users = new ArrayList<>();
+        for (int i = 0; i < options.getConnections(); i++) {
+            SyntheticUser user = new SyntheticUser(String.format("load_%s_%d", runId, i));
+            Map<String, Object> account = new HashMap<>();
+            account.put("username", user.username);
+            account.put("email", user.username + "@load.test");
+            account.put("password", user.password);
+            account.put("timezone", "UTC");
+            restTemplate.exchange(baseUrl + "/api/user/account/create", HttpMethod.POST, new HttpEntity<>(account, headers(null)), String.class);
+            users.add(user);
+        }
+        jdbcTemplate.update("UPDATE users SET status = 'ENABLED' WHERE username LIKE ?;", String.format("load\\_%s\\_%%", runId));
+        for (SyntheticUser user : users) {
+            MultiValueMap<String, String> credentials = new LinkedMultiValueMap<>();
+            credentials.add("username", user.username);
+            credentials.add("password", user.password);
+            HttpHeaders headers = headers(null);
+            headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+            JsonNode login = read(restTemplate.exchange(baseUrl + "/login", HttpMethod.POST, new HttpEntity<>(credentials, headers), String.class).getBody());
+            user.token = login.path("token").asText();
+            JsonNode account = read(restTemplate.exchange(baseUrl + "/api/user/account/read", HttpMethod.GET, new HttpEntity<>(headers(user)), String.class).getBody());
+            user.id = account.path("id").asInt();
+        }
+        return users;
+    }
+
+    /**
+     * Users are spread over chats round robin, first user of every chat creates it and others join
+     */
+    private List<Integer> createChats(List<SyntheticUser> users) {
+        List<Integer> chats = new ArrayList<>();
+        int chatsCount = Math.min(options.getChats(), users.size());
+        for (int i = 0; i < users.size(); i++) {
+            SyntheticUser user = users.get(i);
+            if (i < chatsCount) {
+                Map<String, Object> chat = new HashMap<>();
+                chat.put("title", String.format("Load test %s %d", runId, i));
+                chat.put("description", "Load test chat");
+                chat.put("authorId", user.id);
+                chat.put("chatType", "GROUP");
+                JsonNode created = read(restTemplate.exchange(baseUrl + "/api/user/chat/create", HttpMethod.POST, new HttpEntity<>(chat, headers(user)), String.class).getBody());
+                chats.add(created.path("chat_id").asInt());
+            } else {
+                restTemplate.exchange(baseUrl + "/api/user/chat/join?chat_id=" + chats.get(i % chatsCount), HttpMethod.POST, new HttpEntity<>(headers(user)), String.class);
+            }
+            user.chatId = chats.get(i % chatsCount);
+        }
+        return chats;
+    }
+
+    private WebSocketStompClient createStompClient() {
+        WebSocketStompClient stompClient = new WebSocketStompClient(new StandardWebSocketClient());
+        stompClient.setMessageConverter(new SimpleMessageConverter());
+        ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+        taskScheduler.setDaemon(true);
+        taskScheduler.initialize();
+        stompClient.setTaskScheduler(taskScheduler);
+        return stompClient;
+    }
+
+    private List<StompSession> connect(WebSocketStompClient stompClient, List<SyntheticUser> users) throws Exception {
+        String stompUrl = baseUrl.replaceFirst("^http", "ws") + "/stomp";
+        WebSocketHttpHeaders headers = new WebSocketHttpHeaders();
+        headers.setOrigin(options.getOrigin());
+        List<StompSession> sessions = new ArrayList<>();
+        CountDownLatch subscribed = new CountDownLatch(users.size());
+        for (SyntheticUser user : users) {
+            StompSession session = stompClient.connect(stompUrl, headers, new StompSessionHandlerAdapter() { }).get(10, TimeUnit.SECONDS);
+            StompHeaders subscription = new StompHeaders();
+            subscription.setDestination("/topic/chat/" + user.chatId);
+            subscription.setReceipt("subscribed-" + user.id);
+            session.setAutoReceipt(false);
+            StompSession.Subscription stompSubscription = session.subscribe(subscription, new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders stompHeaders) {
+                    return byte[].class;
+                }
+
+                @Override
+                public void handleFrame(StompHeaders stompHeaders, Object payload) {
+                    receive((byte[]) payload);
+                }
+            });
+            stompSubscription.addReceiptTask(subscribed::countDown);
+            stompSubscription.addReceiptLostTask(subscribed::countDown);
+            chatSubscribers.merge(user.chatId, 1, Integer::sum);
+            sessions.add(session);
+        }
+        if (!subscribed.await(SUBSCRIPTION_TIMEOUT, TimeUnit.SECONDS)) {
+            System.out.printf("Subscriptions of %d users were not confirmed, in memory broker does not send receipts%n", subscribed.getCount());
+        }
+        return sessions;
+    }
+
+    /**
+     * Every sender serves its share of users and keeps its share of rate, plan is not moved when sender falls behind
+     */
+    private void send(List<SyntheticUser> users, int senderIndex, long start, long end) {
+        long interval = TimeUnit.SECONDS.toNanos(1) * options.getSenders() / Math.max(options.getRate(), 1);
+        long plannedTime = start + interval * senderIndex / options.getSenders();
+        int userIndex = senderIndex;
+        while (plannedTime < end) {
+            long delay = plannedTime - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            SyntheticUser user = users.get(userIndex % users.size());
+            userIndex += options.getSenders();
+            try {
+                Map<String, Object> message = new HashMap<>();
+                message.put("message", "Load test message " + plannedTime);
+                message.put("authorId", user.id);
+                message.put("chatId", user.chatId);
+                JsonNode created = read(restTemplate.exchange(baseUrl + "/api/user/message/create", HttpMethod.POST, new HttpEntity<>(message, headers(user)), String.class).getBody());
+                int messageId = created.path("message_id").asInt();
+                sentMessages.put(messageId, plannedTime);
+                if (plannedTime >= measurementStart) {
+                    expectedDeliveries.addAndGet(chatSubscribers.getOrDefault(user.chatId, 0));
+                }
+                restTemplate.exchange(baseUrl + "/api/user/message/send?message_id=" + messageId, HttpMethod.POST, new HttpEntity<>(headers(user)), String.class);
+                if (plannedTime >= measurementStart) {
+                    sent.incrementAndGet();
+                    requestLatency.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - plannedTime), TimeUnit.SECONDS.toMicros(60)));
+                }
+            } catch (RestClientException e) {
+                errors.incrementAndGet();
+            }
+            plannedTime += interval;
+        }
+    }
+
+    private void receive(byte[] payload) {
+        long receivedAt = System.nanoTime();
+        int messageId = read(payload).path("payload").path("id").asInt();
+        Long plannedTime = sentMessages.get(messageId);
+        if (plannedTime == null || plannedTime < measurementStart) {
+            return;
+        }
+        deliveries.incrementAndGet();
+        deliveryLatency.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(receivedAt - plannedTime), TimeUnit.SECONDS.toMicros(60)));
+    }
+
+    private void report(long measuredNanos) {
+        double seconds = measuredNanos / 1e9;
+        Histogram delivery = deliveryLatency.getIntervalHistogram();
+        Histogram request = requestLatency.getIntervalHistogram();
+        System.out.printf("Messages sent: %d (%.1f/s), errors: %d%n", sent.get(), sent.get() / seconds, errors.get());
+        System.out.printf("Deliveries: %d of %d expected (%.1f/s)%n", deliveries.get(), expectedDeliveries.get(), deliveries.get() / seconds);
+        System.out.printf("Delivery latency ms: p50 %.2f, p99 %.2f, p999 %.2f, max %.2f%n",
+                          delivery.getValueAtPercentile(50) / 1000.0, delivery.getValueAtPercentile(99) / 1000.0,
+                          delivery.getValueAtPercentile(99.9) / 1000.0, delivery.getMaxValue() / 1000.0);
+        System.out.printf("Create and send latency ms: p50 %.2f, p99 %.2f, p999 %.2f, max %.2f%n",
+                          request.getValueAtPercentile(50) / 1000.0, request.getValueAtPercentile(99) / 1000.0,
+                          request.getValueAtPercentile(99.9) / 1000.0, request.getMaxValue() / 1000.0);
+    }
+
+    private HttpHeaders headers(SyntheticUser user) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.USER_AGENT, USER_AGENT);
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        if (user != null) {
+            headers.setBearerAuth(user.token);
+        }
+        return headers;
+    }
+
+    private JsonNode read(String json) {
+        try {
+            return mapper.readTree(json);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Response could not be read: %s", json), e);
+        }
+    }
+
+    private JsonNode read(byte[] json) {
+        try {
+            return mapper.readTree(json);
+        } catch (IOException e) {
+            throw new IllegalStateException("Frame could not be read", e);
+        }
+    }
+
+    private static class SyntheticUser {
+        private final String username;
+        private final String password = "Load-test-password-1";
+        private String token;
+        private int id;
+        private int chatId;
+
+        private SyntheticUser(String username) {
+            this.username = username;
+        }
+    }
+}
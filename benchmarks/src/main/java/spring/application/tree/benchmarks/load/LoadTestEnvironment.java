@@ -0,0 +1,66 @@
+package spring.application.tree.benchmarks.load;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import spring.application.tree.ApplicationRunner;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+
+/**
+ * Either running node with its database or embedded Postgres with application started in this process on random port
+ */
+public class LoadTestEnvironment implements AutoCloseable {
+    private final String baseUrl;
+    private final DataSource dataSource;
+    private final EmbeddedPostgres embeddedPostgres;
+    private final ConfigurableApplicationContext applicationContext;
+
+    private LoadTestEnvironment(String baseUrl, DataSource dataSource, EmbeddedPostgres embeddedPostgres, ConfigurableApplicationContext applicationContext) {
+        this.baseUrl = baseUrl;
+        this.dataSource = dataSource;
+        this.embeddedPostgres = embeddedPostgres;
+        this.applicationContext = applicationContext;
+    }
+
+    public static LoadTestEnvironment start(LoadTestOptions options) throws IOException {
+        if (!options.isEmbedded()) {
+            DriverManagerDataSource dataSource = new DriverManagerDataSource(options.getDatabaseUrl(), options.getDatabaseUsername(), options.getDatabasePassword());
+            return new LoadTestEnvironment(options.getUrl(), dataSource, null, null);
+        }
+        EmbeddedPostgres embeddedPostgres = EmbeddedPostgres.builder().start();
+        String databaseUrl = embeddedPostgres.getJdbcUrl("postgres", "postgres");
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        // Application properties refer to environment variables, defaults fill them without overriding anything else
+        ConfigurableApplicationContext applicationContext = new SpringApplicationBuilder(ApplicationRunner.class)
+                .properties("DB_URL=" + databaseUrl,
+                            "DB_USERNAME=postgres",
+                            "DB_PASSWORD=postgres",
+                            "MAIL=load-test@localhost",
+                            "AUTH_CODE=")
+                .run("--server.port=0", "--logging.level.root=WARN");
+        int port = ((ServletWebServerApplicationContext) applicationContext).getWebServer().getPort();
+        return new LoadTestEnvironment(String.format("http://localhost:%d", port), embeddedPostgres.getPostgresDatabase(), embeddedPostgres, applicationContext);
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (applicationContext != null) {
+            applicationContext.close();
+        }
+        if (embeddedPostgres != null) {
+            embeddedPostgres.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package spring.application.tree.benchmarks.load;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options are passed as --name=value, every option has default suitable for quick run on developer machine
+ */
+public class LoadTestOptions {
+    private final Map<String, String> options = new HashMap<>();
+
+    public static LoadTestOptions parse(String[] args) {
+        LoadTestOptions loadTestOptions = new LoadTestOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException(String.format("Option has to start with --: %s", arg));
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                loadTestOptions.options.put(arg.substring(2), "true");
+            } else {
+                loadTestOptions.options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+        return loadTestOptions;
+    }
+
+    /**
+     * Start embedded Postgres and application in this process instead of using running node
+     */
+    public boolean isEmbedded() {
+        return Boolean.parseBoolean(options.getOrDefault("embedded", "false"));
+    }
+
+    public String getUrl() {
+        return options.getOrDefault("url", "http://localhost:8080");
+    }
+
+    /**
+     * Database of running node, synthetic users are enabled directly in it instead of confirmation by email
+     */
+    public String getDatabaseUrl() {
+        return options.getOrDefault("db-url", System.getenv("DB_URL"));
+    }
+
+    public String getDatabaseUsername() {
+        return options.getOrDefault("db-username", System.getenv("DB_USERNAME"));
+    }
+
+    public String getDatabasePassword() {
+        return options.getOrDefault("db-password", System.getenv("DB_PASSWORD"));
+    }
+
+    public String getOrigin() {
+        return options.getOrDefault("origin", "http://localhost:9000");
+    }
+
+    /**
+     * Number of synthetic users, every user opens one STOMP connection
+     */
+    public int getConnections() {
+        return Integer.parseInt(options.getOrDefault("connections", "100"));
+    }
+
+    public int getChats() {
+        return Integer.parseInt(options.getOrDefault("chats", "10"));
+    }
+
+    /**
+     * Target number of sent messages per second for all senders
+     */
+    public int getRate() {
+        return Integer.parseInt(options.getOrDefault("rate", "100"));
+    }
+
+    public int getSenders() {
+        return Integer.parseInt(options.getOrDefault("senders", "8"));
+    }
+
+    public int getDuration() {
+        return Integer.parseInt(options.getOrDefault("duration", "30"));
+    }
+
+    public int getWarmup() {
+        return Integer.parseInt(options.getOrDefault("warmup", "5"));
+    }
+
+    /**
+     * Number of synthetic messages seeded by partitioning benchmark
+     */
+    public long getRows() {
+        return Long.parseLong(options.getOrDefault("rows", "2000000"));
+    }
+
+    /**
+     * Months of history synthetic messages are spread over
+     */
+    public int getMonths() {
+        return Integer.parseInt(options.getOrDefault("months", "24"));
+    }
+
+    public int getQueries() {
+        return Integer.parseInt(options.getOrDefault("queries", "2000"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connections: %d, chats: %d, rate: %d/s, senders: %d, duration: %d s, warmup: %d s",
+                             getConnections(), getChats(), getRate(), getSenders(), getDuration(), getWarmup());
+    }
+}
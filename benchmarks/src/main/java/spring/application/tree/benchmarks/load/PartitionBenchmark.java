@@ -0,0 +1,167 @@
+package spring.application.tree.benchmarks.load;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import spring.application.tree.data.messages.repository.MessagePartitionDataAccessObject;
+
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares partitioned messages table with unpartitioned copy of the same synthetic history:
+ * the latest page read at once and recent months first, page before cursor deep in history, chat deletion and removal of the oldest month.
+ * Messages are spread evenly over given months and chats, history queries are the ones of message repository.
+ * Everything runs over one connection, as queries of application run over warm pooled connections.
+ * Seeds database it is connected to, so it is meant for embedded Postgres or disposable database.
+ * Run: mvn -f benchmarks/pom.xml compile exec:java -Dexec.mainClass=spring.application.tree.benchmarks.load.PartitionBenchmark
+ *      -Dexec.args="--embedded --rows=10000000 --months=24 --chats=10000"
+ */
+public class PartitionBenchmark {
+    private static final int SEED_BATCH = 1000000;
+    private static final int PAGE_SIZE = 50;
+    private static final int DELETED_CHATS = 20;
+    private static final String HEAP_TABLE = "messages_unpartitioned_benchmark";
+    private final LoadTestOptions options;
+    private final JdbcTemplate jdbcTemplate;
+    private final Random random = new Random(42);
+    private long historyStart;
+    private long historyEnd;
+    private int firstChat;
+
+    public PartitionBenchmark(LoadTestOptions options, JdbcTemplate jdbcTemplate) {
+        this.options = options;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        try (LoadTestEnvironment environment = LoadTestEnvironment.start(options)) {
+            SingleConnectionDataSource dataSource = new SingleConnectionDataSource(environment.getDataSource().getConnection(), true);
+            new PartitionBenchmark(options, new JdbcTemplate(dataSource)).run();
+        }
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        seed();
+        System.out.printf("%-30s %12s %12s%n", "operation, ms", "partitioned", "heap");
+        compare("latest page p50/p99", this::latestPage, this::latestPage);
+        compare("latest page recent first", this::latestPageRecentFirst, this::latestPage);
+        compare("page before cursor p50/p99", this::pageBefore, this::pageBefore);
+        long partitionedDelete = 0;
+        long heapDelete = 0;
+        for (int i = 0; i < DELETED_CHATS; i++) {
+            int chatId = firstChat + random.nextInt(options.getChats());
+            partitionedDelete += timed(() -> jdbcTemplate.update("DELETE FROM messages WHERE chat_id = ?;", chatId));
+            heapDelete += timed(() -> jdbcTemplate.update("DELETE FROM " + HEAP_TABLE + " WHERE chat_id = ?;", chatId));
+        }
+        System.out.printf("%-30s %12.1f %12.1f%n", "chat deletion avg", partitionedDelete / 1e6 / DELETED_CHATS, heapDelete / 1e6 / DELETED_CHATS);
+        MessagePartitionDataAccessObject partitions = new MessagePartitionDataAccessObject(jdbcTemplate);
+        YearMonth oldest = partitions.getPartitions().get(0);
+        Timestamp oldestEnd = Timestamp.from(oldest.plusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC));
+        long detach = timed(() -> {
+            partitions.detachPartition(oldest);
+            jdbcTemplate.execute("DROP TABLE messages_" + oldest.toString().replace('-', '_') + ";");
+            return 0;
+        });
+        long delete = timed(() -> jdbcTemplate.update("DELETE FROM " + HEAP_TABLE + " WHERE sent_at < ?;", oldestEnd));
+        System.out.printf("%-30s %12.1f %12.1f%n", "oldest month removal", detach / 1e6, delete / 1e6);
+        jdbcTemplate.execute("DROP TABLE " + HEAP_TABLE + ";");
+    }
+
+    /**
+     * History ends now, so the latest months fall into partitions created at startup
+     */
+    private void seed() throws Exception {
+        long rows = options.getRows();
+        int chats = options.getChats();
+        YearMonth currentMonth = YearMonth.now(ZoneOffset.UTC);
+        MessagePartitionDataAccessObject partitions = new MessagePartitionDataAccessObject(jdbcTemplate);
+        for (int month = 1; month < options.getMonths(); month++) {
+            partitions.createPartition(currentMonth.minusMonths(month));
+        }
+        historyEnd = System.currentTimeMillis();
+        historyStart = currentMonth.minusMonths(options.getMonths() - 1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+        long start = System.nanoTime();
+        jdbcTemplate.update("INSERT INTO chats(title, chat_type) SELECT 'partition benchmark ' || g, 'GROUP' FROM generate_series(1, ?) g;", chats);
+        Integer firstChatId = jdbcTemplate.queryForObject("SELECT MIN(id) FROM chats WHERE title LIKE 'partition benchmark %';", Integer.class);
+        firstChat = firstChatId == null ? 0 : firstChatId;
+        for (long from = 1; from <= rows; from += SEED_BATCH) {
+            long to = Math.min(rows, from + SEED_BATCH - 1);
+            jdbcTemplate.update("INSERT INTO messages(message, sent_at, chat_id, type) " +
+                                "SELECT 'synthetic message ' || g, to_timestamp((? + (? - ?) * g / ?) / 1000.0), ? + g % ?, 'SENT' " +
+                                "FROM generate_series(?, ?) g;",
+                                historyStart, historyEnd, historyStart, rows, firstChat, chats, from, to);
+        }
+        jdbcTemplate.execute("CREATE TABLE " + HEAP_TABLE + " AS SELECT id, message, sent_at, author_id, chat_id, type FROM messages;");
+        jdbcTemplate.execute("CREATE INDEX ON " + HEAP_TABLE + "(chat_id, sent_at DESC, id DESC);");
+        jdbcTemplate.execute("ANALYZE messages;");
+        jdbcTemplate.execute("ANALYZE " + HEAP_TABLE + ";");
+        System.out.printf("Seeded %d messages over %d months and %d chats in %d s%n",
+                          rows, options.getMonths(), chats, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    }
+
+    /**
+     * Both tables are queried with the same random chats and cursors, alternating to share cache warmness
+     */
+    private void compare(String operation, PageQuery partitionedQuery, PageQuery heapQuery) throws Exception {
+        Histogram partitioned = new Histogram(TimeUnit.SECONDS.toNanos(60), 3);
+        Histogram heap = new Histogram(TimeUnit.SECONDS.toNanos(60), 3);
+        for (int i = 0; i < options.getQueries(); i++) {
+            int chatId = firstChat + random.nextInt(options.getChats());
+            Timestamp before = new Timestamp(historyStart + (long) (random.nextDouble() * (historyEnd - historyStart)));
+            partitioned.recordValue(timed(() -> partitionedQuery.run("messages", chatId, before)));
+            heap.recordValue(timed(() -> heapQuery.run(HEAP_TABLE, chatId, before)));
+        }
+        System.out.printf("%-30s %5.2f/%6.2f %5.2f/%6.2f%n", operation,
+                          partitioned.getValueAtPercentile(50) / 1e6, partitioned.getValueAtPercentile(99) / 1e6,
+                          heap.getValueAtPercentile(50) / 1e6, heap.getValueAtPercentile(99) / 1e6);
+    }
+
+    private Object latestPage(String table, int chatId, Timestamp before) {
+        return jdbcTemplate.queryForList("SELECT id, message, sent_at, author_id, type FROM " + table + " " +
+                                         "WHERE chat_id = ? ORDER BY sent_at DESC, id DESC LIMIT ?;", chatId, PAGE_SIZE + 1);
+    }
+
+    /**
+     * The latest page as message repository reads it: recent months first, older partitions only when page is not filled
+     */
+    private Object latestPageRecentFirst(String table, int chatId, Timestamp before) {
+        Timestamp recentStart = Timestamp.from(YearMonth.now(ZoneOffset.UTC).minusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC));
+        List<Map<String, Object>> page = jdbcTemplate.queryForList("SELECT id, message, sent_at, author_id, type FROM " + table + " " +
+                                                                   "WHERE chat_id = ? AND sent_at >= ? ORDER BY sent_at DESC, id DESC LIMIT ?;",
+                                                                   chatId, recentStart, PAGE_SIZE + 1);
+        if (page.size() <= PAGE_SIZE) {
+            page.addAll(jdbcTemplate.queryForList("SELECT id, message, sent_at, author_id, type FROM " + table + " " +
+                                                  "WHERE chat_id = ? AND sent_at < ? ORDER BY sent_at DESC, id DESC LIMIT ?;",
+                                                  chatId, recentStart, PAGE_SIZE + 1 - page.size()));
+        }
+        return page;
+    }
+
+    private Object pageBefore(String table, int chatId, Timestamp before) {
+        return jdbcTemplate.queryForList("SELECT id, message, sent_at, author_id, type FROM " + table + " " +
+                                         "WHERE chat_id = ? AND sent_at <= ? AND (sent_at, id) < (?, ?) ORDER BY sent_at DESC, id DESC LIMIT ?;",
+                                         chatId, before, before, Long.MAX_VALUE, PAGE_SIZE + 1);
+    }
+
+    private static long timed(Operation operation) throws Exception {
+        long start = System.nanoTime();
+        operation.run();
+        return System.nanoTime() - start;
+    }
+
+    private interface Operation {
+        Object run() throws Exception;
+    }
+
+    private interface PageQuery {
+        Object run(String table, int chatId, Timestamp before) throws Exception;
+    }
+}
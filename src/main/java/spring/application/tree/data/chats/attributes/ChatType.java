@@ -1,6 +1,7 @@
 package spring.application.tree.data.chats.attributes;
 
 import org.springframework.http.HttpStatus;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
 
 import java.time.LocalDateTime;
@@ -12,7 +13,7 @@ public enum ChatType {
     public boolean isUserAddingAllowed(int membersCount) throws InvalidAttributesException {
         if (membersCount < 0) {
             throw new InvalidAttributesException(String.format("Members count value is invalid: %s", membersCount),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         if (Arrays.asList(GROUP, CHANNEL).contains(this)) {
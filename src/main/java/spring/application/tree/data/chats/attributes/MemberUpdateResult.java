@@ -0,0 +1,5 @@
+package spring.application.tree.data.chats.attributes;
+
+public enum MemberUpdateResult {
+    ADDED, ALREADY_MEMBER, REMOVED, NOT_MEMBER, USER_NOT_FOUND, DECLINED
+}
@@ -0,0 +1,243 @@
+package spring.application.tree.data.chats.cache;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.chats.attributes.ChatType;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+import spring.application.tree.data.utility.transactions.TransactionCallbackUtility;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps chat types and member IDs of recently checked chats, so membership checks do not touch database.
+ * Chats are loaded lazily, changes are applied after transaction commit,
+ * chats touched by rolled back transaction are dropped and loaded again on demand.
+ * Changed chats are invalidated on other nodes by invalidation bus, chats live no longer than time to live,
+ * which bounds staleness when invalidation is lost or not passed
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:chat.properties")
+public class ChatMembershipCache {
+    private static final String CACHE_NAME = "chat.membership";
+    private static final String ALL_CHATS = "*";
+    private final JdbcTemplate jdbcTemplate;
+    private final CacheInvalidationBus cacheInvalidationBus;
+    @Value("${chat.membership.cache.size}")
+    private int maxChats;
+    @Value("${chat.membership.cache.ttl}")
+    private long timeToLive;
+    /**
+     * Key - chat ID, value - chat type, sorted IDs of chat members and time in milliseconds when chat was loaded
+     */
+    private final Map<Integer, ChatMembership> chats = new ConcurrentHashMap<>();
+    /**
+     * Incremented on every change, loads started before it are not cached
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @PostConstruct
+    private void initializeInvalidation() {
+        cacheInvalidationBus.subscribe(CACHE_NAME, key -> {
+            generation.incrementAndGet();
+            if (ALL_CHATS.equals(key)) {
+                chats.clear();
+            } else {
+                chats.remove(Integer.valueOf(key));
+            }
+        });
+    }
+
+    /**
+     * Returns null if chat does not exist
+     */
+    public Boolean isMember(int userId, int chatId) {
+        ChatMembership membership = getMembership(chatId);
+        return membership == null ? null : membership.contains(userId);
+    }
+
+    /**
+     * Returns null if chat does not exist
+     */
+    public ChatType getChatType(int chatId) {
+        ChatMembership membership = getMembership(chatId);
+        return membership == null ? null : membership.chatType;
+    }
+
+    /**
+     * Returns null if chat does not exist
+     */
+    public Integer countMembers(int chatId) {
+        ChatMembership membership = getMembership(chatId);
+        return membership == null ? null : membership.members.length;
+    }
+
+    public void addMember(int chatId, int userId) {
+        changeAfterCompletion(chatId, membership -> membership.with(userId));
+    }
+
+    public void removeMember(int chatId, int userId) {
+        changeAfterCompletion(chatId, membership -> membership.without(userId));
+    }
+
+    public void addMembers(int chatId, int[] userIds) {
+        changeAfterCompletion(chatId, membership -> membership.withAll(userIds));
+    }
+
+    public void removeMembers(int chatId, int[] userIds) {
+        changeAfterCompletion(chatId, membership -> membership.withoutAll(userIds));
+    }
+
+    public void removeUser(int userId) {
+        TransactionCallbackUtility.runAfterCompletion(() -> {
+            generation.incrementAndGet();
+            chats.replaceAll((id, membership) -> membership.without(userId));
+        }, () -> {
+            generation.incrementAndGet();
+            chats.clear();
+        });
+        cacheInvalidationBus.publish(CACHE_NAME, ALL_CHATS);
+    }
+
+    public void removeChat(int chatId) {
+        Runnable removal = () -> {
+            generation.incrementAndGet();
+            chats.remove(chatId);
+        };
+        TransactionCallbackUtility.runAfterCompletion(removal, removal);
+        cacheInvalidationBus.publish(CACHE_NAME, String.valueOf(chatId));
+    }
+
+    private void changeAfterCompletion(int chatId, UnaryOperator<ChatMembership> change) {
+        TransactionCallbackUtility.runAfterCompletion(() -> {
+            generation.incrementAndGet();
+            chats.computeIfPresent(chatId, (id, membership) -> change.apply(membership));
+        }, () -> {
+            generation.incrementAndGet();
+            chats.remove(chatId);
+        });
+        cacheInvalidationBus.publish(CACHE_NAME, String.valueOf(chatId));
+    }
+
+    /**
+     * Chat is loaded outside of map, so slow load does not block other chats, loaded chat is cached only
+     * if no change happened since loading started
+     */
+    private ChatMembership getMembership(int chatId) {
+        long now = System.currentTimeMillis();
+        ChatMembership membership = chats.get(chatId);
+        if (membership != null) {
+            if (membership.loadedAt + timeToLive >= now) {
+                return membership;
+            }
+            chats.remove(chatId, membership);
+        }
+        long loadGeneration = generation.get();
+        ChatMembership loaded = loadMembership(chatId, now);
+        if (loaded == null || generation.get() != loadGeneration) {
+            return loaded;
+        }
+        ChatMembership cached = chats.putIfAbsent(chatId, loaded);
+        if (cached != null) {
+            return cached;
+        }
+        if (generation.get() != loadGeneration) {
+            chats.remove(chatId, loaded);
+        }
+        evictIfNeeded(chatId);
+        return loaded;
+    }
+
+    private ChatMembership loadMembership(int chatId, long loadedAt) {
+        final String chatTypeQuery = "SELECT chat_type FROM chats WHERE id = ?;";
+        final String membersQuery = "SELECT user_id FROM users_to_chats WHERE chat_id = ?;";
+        List<String> chatTypes = jdbcTemplate.queryForList(chatTypeQuery, String.class, chatId);
+        if (chatTypes.isEmpty()) {
+            return null;
+        }
+        int[] members = jdbcTemplate.queryForList(membersQuery, Integer.class, chatId).stream()
+                                    .mapToInt(Integer::intValue).sorted().distinct().toArray();
+        log.debug("Membership of chat '{}' loaded, members: {}", chatId, members.length);
+        return new ChatMembership(ChatType.valueOf(chatTypes.get(0)), members, loadedAt);
+    }
+
+    /**
+     * Removes arbitrary chats except the just loaded one, until cache fits its size
+     */
+    private void evictIfNeeded(int loadedChatId) {
+        Iterator<Integer> iterator = chats.keySet().iterator();
+        while (chats.size() > maxChats && iterator.hasNext()) {
+            Integer chatId = iterator.next();
+            if (chatId != loadedChatId) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class ChatMembership {
+        private final ChatType chatType;
+        private final int[] members;
+        /**
+         * Changed chat keeps time of loading, so time to live bounds staleness of every entry
+         */
+        private final long loadedAt;
+
+        private ChatMembership(ChatType chatType, int[] members, long loadedAt) {
+            this.chatType = chatType;
+            this.members = members;
+            this.loadedAt = loadedAt;
+        }
+
+        private boolean contains(int userId) {
+            return Arrays.binarySearch(members, userId) >= 0;
+        }
+
+        private ChatMembership with(int userId) {
+            int position = Arrays.binarySearch(members, userId);
+            if (position >= 0) {
+                return this;
+            }
+            int insertion = -position - 1;
+            int[] updated = new int[members.length + 1];
+            System.arraycopy(members, 0, updated, 0, insertion);
+            updated[insertion] = userId;
+            System.arraycopy(members, insertion, updated, insertion + 1, members.length - insertion);
+            return new ChatMembership(chatType, updated, loadedAt);
+        }
+
+        private ChatMembership without(int userId) {
+            int position = Arrays.binarySearch(members, userId);
+            if (position < 0) {
+                return this;
+            }
+            int[] updated = new int[members.length - 1];
+            System.arraycopy(members, 0, updated, 0, position);
+            System.arraycopy(members, position + 1, updated, position, members.length - position - 1);
+            return new ChatMembership(chatType, updated, loadedAt);
+        }
+
+        private ChatMembership withAll(int[] userIds) {
+            int[] updated = IntStream.concat(Arrays.stream(members), Arrays.stream(userIds)).sorted().distinct().toArray();
+            return new ChatMembership(chatType, updated, loadedAt);
+        }
+
+        private ChatMembership withoutAll(int[] userIds) {
+            int[] removed = Arrays.stream(userIds).sorted().toArray();
+            int[] updated = Arrays.stream(members).filter(member -> Arrays.binarySearch(removed, member) < 0).toArray();
+            return new ChatMembership(chatType, updated, loadedAt);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package spring.application.tree.data.chats.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.http.HttpStatus;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+/**
+ * Position of chat in inbox, ordering is done by last activity time and chat ID,
+ * token representation is opaque for clients
+ */
+@Data
+@AllArgsConstructor
+public class ChatInboxCursor {
+    private Timestamp lastActivity;
+    private int chatId;
+
+    public String encode() {
+        long seconds = Math.floorDiv(lastActivity.getTime(), 1000L);
+        String raw = String.format("%d:%d:%d", seconds, lastActivity.getNanos(), chatId);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static ChatInboxCursor decode(String token) throws InvalidAttributesException {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException(token);
+            }
+            Timestamp lastActivity = new Timestamp(Long.parseLong(parts[0]) * 1000L);
+            lastActivity.setNanos(Integer.parseInt(parts[1]));
+            int chatId = Integer.parseInt(parts[2]);
+            if (chatId <= 0) {
+                throw new IllegalArgumentException(token);
+            }
+            return new ChatInboxCursor(lastActivity, chatId);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAttributesException(String.format("Chat inbox cursor is invalid: %s", token),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+    }
+}
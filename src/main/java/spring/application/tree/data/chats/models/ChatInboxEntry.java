@@ -0,0 +1,31 @@
+package spring.application.tree.data.chats.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+
+import java.util.Date;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatInboxEntry {
+    private AbstractChatModel chat;
+    /**
+     * Null if chat has no messages
+     */
+    @JsonProperty("last_message")
+    private AbstractMessageModel lastMessage;
+    /**
+     * Sending date of last message, epoch start if chat has no messages
+     */
+    @JsonProperty("last_activity")
+    private Date lastActivity;
+    /**
+     * Messages of other members after read marker of user, counting stops at configured maximum
+     */
+    @JsonProperty("unread_count")
+    private int unreadCount;
+}
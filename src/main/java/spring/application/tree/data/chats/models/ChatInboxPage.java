@@ -0,0 +1,23 @@
+package spring.application.tree.data.chats.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatInboxPage {
+    /**
+     * Chats ordered from the most to the least recently active one
+     */
+    private List<ChatInboxEntry> chats;
+    /**
+     * Cursor for reading less active chats, passed as 'before', null if inbox end is reached
+     */
+    @JsonProperty("next_cursor")
+    private String nextCursor;
+}
@@ -0,0 +1,18 @@
+package spring.application.tree.data.chats.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Members added to or removed from chat by one operation, sent as single event
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatMembersModel {
+    private int chatId;
+    private List<Integer> userIds;
+}
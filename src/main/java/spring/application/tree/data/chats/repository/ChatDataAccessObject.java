@@ -8,14 +8,25 @@ import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
 import spring.application.tree.data.chats.attributes.ChatType;
+import spring.application.tree.data.chats.cache.ChatMembershipCache;
 import spring.application.tree.data.chats.models.AbstractChatModel;
+import spring.application.tree.data.chats.models.ChatInboxCursor;
+import spring.application.tree.data.chats.models.ChatInboxEntry;
+import spring.application.tree.data.chats.models.ChatInboxPage;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.messages.archive.MessageArchive;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.cache.MessageHistoryCache;
+import spring.application.tree.data.messages.cache.MessageSearchIndex;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
 import spring.application.tree.data.users.service.UserService;
+import spring.application.tree.data.utility.transactions.TransactionCallbackUtility;
 
 import java.sql.PreparedStatement;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -24,11 +35,15 @@ import java.util.Objects;
 @RequiredArgsConstructor
 public class ChatDataAccessObject {
     private final JdbcTemplate jdbcTemplate;
+    private final MessageHistoryCache messageHistoryCache;
+    private final MessageSearchIndex messageSearchIndex;
+    private final ChatMembershipCache chatMembershipCache;
+    private final MessageArchive messageArchive;
 
     public List<AbstractChatModel> getChats(int memberId) throws InvalidAttributesException {
         if (memberId <= 0) {
             throw new InvalidAttributesException(String.format("Member ID is invalid: %s", memberId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "SELECT chats.id, chats.title, chats.description, chats.private, chats.password, chats.author_id, chats.chat_type " +
@@ -49,6 +64,92 @@ public class ChatDataAccessObject {
         return chats;
     }
 
+    /**
+     * Chats of member with last message and unread count, ordered by last activity.
+     * Last message is taken by lateral join over chat history index, unread messages are counted
+     * only for chats of returned page and counting stops at given maximum. Only sent messages are taken,
+     * scheduled and not yet sent ones are visible to their author only
+     */
+    public ChatInboxPage getChatInbox(int memberId, ChatInboxCursor before, int limit, int maxUnreadCount) throws InvalidAttributesException {
+        if (memberId <= 0 || limit <= 0 || maxUnreadCount <= 0) {
+            throw new InvalidAttributesException(String.format("Member ID: %s, limit: %s or unread count maximum: %s is invalid", memberId, limit, maxUnreadCount),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = "SELECT page.*, unread.unread_count FROM (" +
+                             "SELECT chats.id, chats.title, chats.description, chats.private, chats.author_id, chats.chat_type, " +
+                             "last_message.id AS message_id, last_message.message, last_message.sent_at, " +
+                             "last_message.author_id AS message_author_id, last_message.type, " +
+                             "COALESCE(last_message.sent_at, to_timestamp(0)) AS last_activity " +
+                             "FROM users_to_chats " +
+                             "INNER JOIN chats ON chats.id = users_to_chats.chat_id " +
+                             "LEFT JOIN LATERAL (SELECT id, message, sent_at, author_id, type FROM messages " +
+                             "WHERE messages.chat_id = chats.id AND messages.type = 'SENT' ORDER BY sent_at DESC, id DESC LIMIT 1) last_message ON TRUE " +
+                             "WHERE users_to_chats.user_id = ? " +
+                             (before == null ? "" : "AND (COALESCE(last_message.sent_at, to_timestamp(0)), chats.id) < (?, ?) ") +
+                             "ORDER BY last_activity DESC, chats.id DESC LIMIT ?) page " +
+                             "LEFT JOIN chat_read_markers markers ON markers.user_id = ? AND markers.chat_id = page.id " +
+                             "CROSS JOIN LATERAL (SELECT COUNT(*) AS unread_count FROM (SELECT 1 FROM messages " +
+                             "WHERE messages.chat_id = page.id AND messages.type = 'SENT' AND messages.author_id IS DISTINCT FROM ? " +
+                             "AND messages.sent_at >= COALESCE(markers.sent_at, '-infinity') " +
+                             "AND (markers.sent_at IS NULL OR (messages.sent_at, messages.id) > (markers.sent_at, markers.message_id)) " +
+                             "LIMIT ?) unread_messages) unread " +
+                             "ORDER BY page.last_activity DESC, page.id DESC;";
+        final Object[] params = before == null ?
+                                new Object[] {memberId, limit + 1, memberId, memberId, maxUnreadCount} :
+                                new Object[] {memberId, before.getLastActivity(), before.getChatId(), limit + 1, memberId, memberId, maxUnreadCount};
+        List<ChatInboxEntry> entries = new ArrayList<>();
+        List<ChatInboxCursor> cursors = new ArrayList<>();
+        jdbcTemplate.query(query, resultSet -> {
+            int id = resultSet.getInt("id");
+            String title = resultSet.getString("title");
+            String description = resultSet.getString("description");
+            boolean isPrivate = resultSet.getBoolean("private");
+            int authorId = resultSet.getInt("author_id");
+            ChatType chatType = ChatType.valueOf(resultSet.getString("chat_type"));
+            AbstractChatModel chat = new AbstractChatModel(id, title, description, isPrivate, null, authorId, chatType);
+            AbstractMessageModel lastMessage = null;
+            Timestamp sendingDate = resultSet.getTimestamp("sent_at");
+            if (sendingDate != null) {
+                lastMessage = new AbstractMessageModel(resultSet.getInt("message_id"), resultSet.getString("message"), sendingDate,
+                                                       resultSet.getInt("message_author_id"), id, MessageType.valueOf(resultSet.getString("type")));
+            }
+            Timestamp lastActivity = resultSet.getTimestamp("last_activity");
+            entries.add(new ChatInboxEntry(chat, lastMessage, lastActivity, resultSet.getInt("unread_count")));
+            cursors.add(new ChatInboxCursor(lastActivity, id));
+        }, params);
+        boolean hasMore = entries.size() > limit;
+        while (entries.size() > limit) {
+            entries.remove(entries.size() - 1);
+            cursors.remove(cursors.size() - 1);
+        }
+        return new ChatInboxPage(entries, hasMore ? cursors.get(cursors.size() - 1).encode() : null);
+    }
+
+    /**
+     * Moves read marker of member to given message of chat, or to the last message if message ID is null.
+     * Marker never moves back, unknown message leaves it unchanged
+     */
+    public void markChatRead(int memberId, int chatId, Integer messageId) throws InvalidAttributesException {
+        if (memberId <= 0 || chatId <= 0 || (messageId != null && messageId <= 0)) {
+            throw new InvalidAttributesException(String.format("Member ID: %s, chat ID: %s or message ID: %s is invalid", memberId, chatId, messageId),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = "INSERT INTO chat_read_markers(user_id, chat_id, sent_at, message_id) " +
+                             "SELECT ?, chat_id, sent_at, id FROM messages " +
+                             (messageId == null ?
+                              "WHERE chat_id = ? AND type = 'SENT' ORDER BY sent_at DESC, id DESC LIMIT 1 " :
+                              "WHERE chat_id = ? AND id = ? ") +
+                             "ON CONFLICT (user_id, chat_id) DO UPDATE SET sent_at = EXCLUDED.sent_at, message_id = EXCLUDED.message_id " +
+                             "WHERE (chat_read_markers.sent_at, chat_read_markers.message_id) < (EXCLUDED.sent_at, EXCLUDED.message_id);";
+        if (messageId == null) {
+            jdbcTemplate.update(query, memberId, chatId);
+        } else {
+            jdbcTemplate.update(query, memberId, chatId, messageId);
+        }
+    }
+
     public int addChat(AbstractChatModel abstractChatModel) throws InvalidAttributesException {
         validateChatModel(abstractChatModel);
         final String query = "INSERT INTO chats(title, description, private, password, author_id, chat_type) VALUES(?, ?, ?, ?, ?, ?) RETURNING id;";
@@ -67,6 +168,7 @@ public class ChatDataAccessObject {
         }, keyHolder);
         int chatId = Objects.requireNonNull(keyHolder.getKey()).intValue();
         jdbcTemplate.update(queryUsersToChatAssociationUpdate, userId, chatId);
+        chatMembershipCache.addMember(chatId, userId);
         return chatId;
     }
 
@@ -77,24 +179,32 @@ public class ChatDataAccessObject {
                                    abstractChatModel.isPrivate(), abstractChatModel.getPassword(), abstractChatModel.getId());
     }
 
-    public void deleteChat(int chatId) throws InvalidAttributesException {
+    /**
+     * @return IDs of users who were members of deleted chat
+     */
+    public List<Integer> deleteChat(int chatId) throws InvalidAttributesException {
         if (chatId <= 0) {
             throw new InvalidAttributesException(String.format("Chat ID is invalid: %s", chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "DELETE FROM chats WHERE id = ?;";
-        final String queryUsersToChatAssociationUpdate = "DELETE FROM users_to_chats WHERE chat_id = ?;";
+        final String queryUsersToChatAssociationUpdate = "DELETE FROM users_to_chats WHERE chat_id = ? RETURNING user_id;";
         final String queryMessagesToChatAssociationUpdate = "DELETE FROM messages WHERE chat_id = ?;";
         jdbcTemplate.update(queryMessagesToChatAssociationUpdate, chatId);
-        jdbcTemplate.update(queryUsersToChatAssociationUpdate, chatId);
+        List<Integer> memberIds = jdbcTemplate.queryForList(queryUsersToChatAssociationUpdate, Integer.class, chatId);
         jdbcTemplate.update(query, chatId);
+        messageHistoryCache.removeChat(chatId);
+        messageSearchIndex.removeChat(chatId);
+        chatMembershipCache.removeChat(chatId);
+        TransactionCallbackUtility.runAfterCommit(() -> messageArchive.removeChat(chatId));
+        return memberIds;
     }
 
     public void changeChatOwner(int chatId, int newAuthorId) throws InvalidAttributesException {
         if (chatId <= 0 || newAuthorId <= 0) {
             throw new InvalidAttributesException(String.format("Chat ID: %s or new author ID is invalid: %s", chatId, newAuthorId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "UPDATE chats SET author_id = ? WHERE id = ?;";
@@ -104,7 +214,7 @@ public class ChatDataAccessObject {
     public List<Integer> getChatIdsOwnedByUser(int authorId) throws InvalidAttributesException {
         if (authorId <= 0) {
             throw new InvalidAttributesException(String.format("Author ID is invalid: %s", authorId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "SELECT id FROM chats WHERE author_id = ?;";
@@ -119,18 +229,16 @@ public class ChatDataAccessObject {
     public boolean checkUserPresenceInChat(int userId, int chatId) throws InvalidAttributesException {
         if (userId <= 0 || chatId <= 0) {
             throw new InvalidAttributesException(String.format("User ID: %s or chat ID: %s is invalid", userId, chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        final String query = "SELECT COUNT(*) FROM users_to_chats WHERE user_id = ? AND chat_id = ?;";
-        Integer count = jdbcTemplate.queryForObject(query, Integer.class, userId, chatId);
-        return (count == null ? 0 : count) == 1;
+        return Boolean.TRUE.equals(chatMembershipCache.isMember(userId, chatId));
     }
 
     public String getChatPassword(int chatId) throws InvalidAttributesException {
         if (chatId <= 0) {
             throw new InvalidAttributesException(String.format("Chat ID: %s is invalid", chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "SELECT password FROM chats WHERE id = ?";
@@ -140,9 +248,13 @@ public class ChatDataAccessObject {
     public ChatType getChatType(int chatId) throws InvalidAttributesException {
         if (chatId <= 0) {
             throw new InvalidAttributesException(String.format("Chat ID: %s is invalid", chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
+        ChatType chatType = chatMembershipCache.getChatType(chatId);
+        if (chatType != null) {
+            return chatType;
+        }
         final String query = "SELECT chat_type FROM chats WHERE id = ?";
         return ChatType.valueOf(jdbcTemplate.queryForObject(query, String.class, chatId));
     }
@@ -163,7 +275,7 @@ public class ChatDataAccessObject {
         }
         if (!exceptionText.toString().isEmpty()) {
             throw new InvalidAttributesException(exceptionText.toString(),
-                    Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                    ExceptionTrace.caller(),
                     LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
     }
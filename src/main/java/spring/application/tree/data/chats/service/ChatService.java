@@ -2,26 +2,42 @@ package spring.application.tree.data.chats.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import spring.application.tree.data.chats.attributes.ChatType;
 import spring.application.tree.data.chats.models.AbstractChatModel;
+import spring.application.tree.data.chats.models.ChatInboxCursor;
+import spring.application.tree.data.chats.models.ChatInboxPage;
 import spring.application.tree.data.chats.repository.ChatDataAccessObject;
+import spring.application.tree.data.events.service.ChatEventService;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
 import spring.application.tree.data.exceptions.NotAllowedException;
 import spring.application.tree.data.users.service.UserService;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
 
 import java.time.LocalDateTime;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 @Service
 @Slf4j
 @RequiredArgsConstructor
+@PropertySource("classpath:chat.properties")
 public class ChatService {
+    private static final NotAllowedException CHATS_NOT_AUTHORIZED = new NotAllowedException("Chats data forbidden, no authorization detected", HttpStatus.FORBIDDEN);
     private final ChatDataAccessObject chatDataAccessObject;
+    private final ChatEventService chatEventService;
+    @Value("${chat.inbox.page.size.default}")
+    private int defaultInboxPageSize;
+    @Value("${chat.inbox.page.size.max}")
+    private int maxInboxPageSize;
+    @Value("${chat.inbox.unread.count.max}")
+    private int maxUnreadCount;
 
     public List<AbstractChatModel> getChats(int memberId) throws InvalidAttributesException {
         return chatDataAccessObject.getChats(memberId);
@@ -30,26 +46,50 @@ public class ChatService {
     public List<AbstractChatModel> getChatsForCurrentUser() throws InvalidAttributesException, NotAllowedException {
         Integer userId = UserService.getIdOfCurrentlyAuthenticatedUser();
         if (userId == null) {
-            throw new NotAllowedException("Chats data forbidden, no authorization detected",
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
-                                          LocalDateTime.now(), HttpStatus.FORBIDDEN);
+            throw CHATS_NOT_AUTHORIZED;
         }
         return chatDataAccessObject.getChats(userId);
     }
 
+    public ChatInboxPage getChatInboxForCurrentUser(String before, Integer limit) throws InvalidAttributesException, NotAllowedException {
+        Integer userId = UserService.getIdOfCurrentlyAuthenticatedUser();
+        if (userId == null) {
+            throw CHATS_NOT_AUTHORIZED;
+        }
+        int pageSize = limit == null || limit <= 0 ? defaultInboxPageSize : Math.min(limit, maxInboxPageSize);
+        return chatDataAccessObject.getChatInbox(userId, ChatInboxCursor.decode(before), pageSize, maxUnreadCount);
+    }
+
+    public void markChatReadForCurrentUser(int chatId, Integer messageId) throws InvalidAttributesException, NotAllowedException {
+        Integer userId = UserService.getIdOfCurrentlyAuthenticatedUser();
+        if (userId == null || !checkUserPresenceInChat(userId, chatId)) {
+            throw new NotAllowedException(String.format("User with ID: %s is not participating chat with ID: %s, marking chat as read is forbidden", userId, chatId),
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.FORBIDDEN);
+        }
+        chatDataAccessObject.markChatRead(userId, chatId, messageId);
+    }
+
     @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     public int addChat(AbstractChatModel abstractChatModel) throws InvalidAttributesException {
-        return chatDataAccessObject.addChat(abstractChatModel);
+        int chatId = chatDataAccessObject.addChat(abstractChatModel);
+        Integer userId = UserService.getIdOfCurrentlyAuthenticatedUser();
+        if (userId != null) {
+            chatEventService.appendMembersEvent(chatId, WebSocketEvent.NEW_USER_IN_CHAT, Collections.singletonList(userId));
+        }
+        return chatId;
     }
 
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     public void updateChat(AbstractChatModel abstractChatModel) throws InvalidAttributesException, NotAllowedException {
         Integer currentUserId = UserService.getIdOfCurrentlyAuthenticatedUser();
         if (currentUserId == null || abstractChatModel.getAuthorId() != currentUserId) {
             throw new NotAllowedException(String.format("User`s ID does not match chat`s author ID: %s", abstractChatModel.getAuthorId()),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         chatDataAccessObject.updateChat(abstractChatModel);
+        chatEventService.appendChatEvent(abstractChatModel.getId(), WebSocketEvent.UPDATING_CHAT);
     }
 
     @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
@@ -57,20 +97,22 @@ public class ChatService {
         Integer currentUserId = UserService.getIdOfCurrentlyAuthenticatedUser();
         if (currentUserId == null || authorId != currentUserId) {
             throw new NotAllowedException(String.format("User`s ID does not match chat`s author ID: %s", authorId),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        chatDataAccessObject.deleteChat(chatId);
+        List<Integer> memberIds = chatDataAccessObject.deleteChat(chatId);
+        chatEventService.appendMembersEvent(chatId, WebSocketEvent.DELETING_CHAT, memberIds);
     }
 
     public void passChatOwnerRightsToUserWithId(int chatId, int newAuthorId) throws NotAllowedException, InvalidAttributesException {
         Integer currentUserId = UserService.getIdOfCurrentlyAuthenticatedUser();
         if (currentUserId == null || newAuthorId == currentUserId) {
             throw new NotAllowedException(String.format("New owner ID matches current chat owner: %s", newAuthorId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         chatDataAccessObject.changeChatOwner(chatId, newAuthorId);
+        chatEventService.appendChatEvent(chatId, WebSocketEvent.UPDATING_CHAT);
     }
 
     public List<Integer> getChatIdsOwnedByUser(int authorId) throws InvalidAttributesException {
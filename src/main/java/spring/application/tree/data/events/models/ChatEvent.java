@@ -0,0 +1,36 @@
+package spring.application.tree.data.events.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
+
+import java.util.Date;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatEvent {
+    private long sequence;
+    @JsonProperty("chat_id")
+    private int chatId;
+    private WebSocketEvent event;
+    /**
+     * Set for message events only
+     */
+    @JsonProperty("message_id")
+    private Integer messageId;
+    /**
+     * Member who joined or left chat, for chat deletion member whose chat was deleted
+     */
+    @JsonProperty("user_id")
+    private Integer userId;
+    @JsonProperty("created_at")
+    private Date createdAt;
+    /**
+     * Current state of message for sending and updating events, null if message was deleted afterwards
+     */
+    private AbstractMessageModel message;
+}
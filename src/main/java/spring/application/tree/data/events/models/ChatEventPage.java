@@ -0,0 +1,30 @@
+package spring.application.tree.data.events.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatEventPage {
+    /**
+     * Events ordered by sequence
+     */
+    private List<ChatEvent> events;
+    /**
+     * Sequence of the last returned event, passed as 'after' by the next request, equals to requested one if there are no events
+     */
+    @JsonProperty("last_sequence")
+    private long lastSequence;
+    @JsonProperty("has_more")
+    private boolean hasMore;
+    /**
+     * Events after requested sequence were already removed by retention, client has to reload chats and histories
+     */
+    @JsonProperty("resync_required")
+    private boolean resyncRequired;
+}
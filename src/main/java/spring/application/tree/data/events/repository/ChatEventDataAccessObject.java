@@ -0,0 +1,187 @@
+package spring.application.tree.data.events.repository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import spring.application.tree.data.events.models.ChatEvent;
+import spring.application.tree.data.events.models.ChatEventPage;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Append only feed of chat changes. Appending transactions are serialized by transaction level advisory lock,
+ * which is taken before sequence value is drawn and held until commit, so events become visible in sequence order
+ * and reader never passes over event committed later with lower sequence.
+ * Lock is global, as one page of reader spans all chats of member and per chat lock would let sequences of different chats
+ * commit out of order. So event appending transactions are limited to one at a time per cluster, ceiling is about
+ * one over time from append to commit, events are appended by the last statement of transaction to keep that time short
+ */
+@Repository
+@Slf4j
+@RequiredArgsConstructor
+public class ChatEventDataAccessObject {
+    private static final long APPEND_LOCK_KEY = 0x63686174L;
+    private static final String APPEND_LOCK = "WITH append_lock AS (SELECT pg_advisory_xact_lock(" + APPEND_LOCK_KEY + ")) ";
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Event is appended only for sent messages, created and scheduled ones are not known to clients yet
+     */
+    public void appendMessageEvent(int messageId, WebSocketEvent event) throws InvalidAttributesException {
+        if (messageId <= 0 || event == null) {
+            throw new InvalidAttributesException(String.format("Message ID: %s or event: %s is invalid", messageId, event),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = APPEND_LOCK +
+                             "INSERT INTO chat_events(chat_id, event, message_id) " +
+                             "SELECT messages.chat_id, CAST(? AS VARCHAR), messages.id FROM append_lock, messages " +
+                             "WHERE messages.id = ? AND messages.type = ?;";
+        jdbcTemplate.update(query, event.name(), messageId, MessageType.SENT.name());
+    }
+
+    /**
+     * Event of message which is known to be sent, message itself is not read, so it may be already deleted
+     */
+    public void appendMessageEvent(int chatId, int messageId, WebSocketEvent event) throws InvalidAttributesException {
+        if (chatId <= 0 || messageId <= 0 || event == null) {
+            throw new InvalidAttributesException(String.format("Chat ID: %s, message ID: %s or event: %s is invalid", chatId, messageId, event),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = APPEND_LOCK +
+                             "INSERT INTO chat_events(chat_id, event, message_id) SELECT CAST(? AS INT8), CAST(? AS VARCHAR), CAST(? AS INT8) FROM append_lock;";
+        jdbcTemplate.update(query, chatId, event.name(), messageId);
+    }
+
+    public void appendChatEvent(int chatId, WebSocketEvent event) throws InvalidAttributesException {
+        if (chatId <= 0 || event == null) {
+            throw new InvalidAttributesException(String.format("Chat ID: %s or event: %s is invalid", chatId, event),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = APPEND_LOCK +
+                             "INSERT INTO chat_events(chat_id, event) SELECT CAST(? AS INT8), CAST(? AS VARCHAR) FROM append_lock;";
+        jdbcTemplate.update(query, chatId, event.name());
+    }
+
+    /**
+     * Appends one event per given member, so every member receives it even after leaving chat
+     */
+    public void appendMembersEvent(int chatId, WebSocketEvent event, Collection<Integer> userIds) throws InvalidAttributesException {
+        if (chatId <= 0 || event == null || userIds == null || userIds.stream().anyMatch(userId -> userId == null || userId <= 0)) {
+            throw new InvalidAttributesException(String.format("Chat ID: %s, event: %s or user IDs: %s is invalid", chatId, event, userIds),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        if (userIds.isEmpty()) {
+            return;
+        }
+        final String query = APPEND_LOCK +
+                             "INSERT INTO chat_events(chat_id, event, user_id) " +
+                             "SELECT CAST(? AS INT8), CAST(? AS VARCHAR), unnest(?) FROM append_lock;";
+        jdbcTemplate.update(connection -> {
+            PreparedStatement preparedStatement = connection.prepareStatement(query);
+            preparedStatement.setInt(1, chatId);
+            preparedStatement.setString(2, event.name());
+            preparedStatement.setArray(3, connection.createArrayOf("int4", userIds.toArray()));
+            return preparedStatement;
+        });
+    }
+
+    /**
+     * Events after given sequence of chats member is participating and events addressed to member.
+     * Message events carry current state of message
+     */
+    public ChatEventPage getChatEvents(int memberId, long after, int limit) throws InvalidAttributesException {
+        if (memberId <= 0 || after < 0 || limit <= 0) {
+            throw new InvalidAttributesException(String.format("Member ID: %s, sequence: %s or limit: %s is invalid", memberId, after, limit),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = "SELECT chat_events.sequence, chat_events.chat_id, chat_events.event, chat_events.message_id, " +
+                             "chat_events.user_id, chat_events.created_at, " +
+                             "messages.message, messages.sent_at, messages.author_id, messages.type " +
+                             "FROM chat_events " +
+                             "LEFT JOIN messages ON messages.id = chat_events.message_id " +
+                             "WHERE chat_events.sequence > ? AND (chat_events.user_id = ? " +
+                             "OR chat_events.chat_id IN (SELECT chat_id FROM users_to_chats WHERE user_id = ?)) " +
+                             "ORDER BY chat_events.sequence LIMIT ?;";
+        List<ChatEvent> events = new ArrayList<>();
+        jdbcTemplate.query(query, resultSet -> {
+            int chatId = resultSet.getInt("chat_id");
+            Integer messageId = resultSet.getObject("message_id") == null ? null : resultSet.getInt("message_id");
+            Integer userId = resultSet.getObject("user_id") == null ? null : resultSet.getInt("user_id");
+            AbstractMessageModel message = null;
+            Timestamp sendingDate = resultSet.getTimestamp("sent_at");
+            if (messageId != null && sendingDate != null) {
+                message = new AbstractMessageModel(messageId, resultSet.getString("message"), sendingDate,
+                                                   resultSet.getInt("author_id"), chatId, MessageType.valueOf(resultSet.getString("type")));
+            }
+            events.add(new ChatEvent(resultSet.getLong("sequence"), chatId, WebSocketEvent.valueOf(resultSet.getString("event")),
+                                     messageId, userId, resultSet.getTimestamp("created_at"), message));
+        }, after, memberId, memberId, limit + 1);
+        boolean hasMore = events.size() > limit;
+        while (events.size() > limit) {
+            events.remove(events.size() - 1);
+        }
+        long lastSequence = events.isEmpty() ? after : events.get(events.size() - 1).getSequence();
+        return new ChatEventPage(events, lastSequence, hasMore, false);
+    }
+
+    /**
+     * Users who may see events with sequence in given range: members of changed chats and users events are addressed to
+     */
+    public Set<Integer> getAffectedUsers(long after, long upTo) {
+        final String query = "SELECT user_id FROM chat_events WHERE sequence > ? AND sequence <= ? AND user_id IS NOT NULL " +
+                             "UNION SELECT users_to_chats.user_id FROM chat_events " +
+                             "INNER JOIN users_to_chats ON users_to_chats.chat_id = chat_events.chat_id " +
+                             "WHERE chat_events.sequence > ? AND chat_events.sequence <= ?;";
+        Set<Integer> userIds = new HashSet<>();
+        jdbcTemplate.query(query, resultSet -> {
+            userIds.add(resultSet.getInt("user_id"));
+        }, after, upTo, after, upTo);
+        return userIds;
+    }
+
+    /**
+     * @return sequence of the last committed event, 0 if there are no events
+     */
+    public long getLastSequence() {
+        final String query = "SELECT COALESCE(MAX(sequence), 0) FROM chat_events;";
+        Long sequence = jdbcTemplate.queryForObject(query, Long.class);
+        return sequence == null ? 0 : sequence;
+    }
+
+    /**
+     * @return sequence of the oldest retained event, 0 if there are no events
+     */
+    public long getFirstSequence() {
+        final String query = "SELECT COALESCE(MIN(sequence), 0) FROM chat_events;";
+        Long sequence = jdbcTemplate.queryForObject(query, Long.class);
+        return sequence == null ? 0 : sequence;
+    }
+
+    /**
+     * @return count of removed events
+     */
+    public int deleteEventsOlderThan(int days) throws InvalidAttributesException {
+        if (days <= 0) {
+            throw new InvalidAttributesException(String.format("Retention days count is invalid: %s", days),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = "DELETE FROM chat_events WHERE created_at < now() - make_interval(days => ?);";
+        return jdbcTemplate.update(query, days);
+    }
+}
@@ -0,0 +1,212 @@
+package spring.application.tree.data.events.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.async.DeferredResult;
+import spring.application.tree.data.events.models.ChatEventPage;
+import spring.application.tree.data.events.repository.ChatEventDataAccessObject;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.NotAllowedException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.users.service.UserService;
+import spring.application.tree.data.utility.transactions.TransactionCallbackUtility;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Change feed for reconnecting clients. Events are appended by services in transaction of change itself,
+ * appends are deferred to the end of transaction, so global append lock is held only from the last statements to commit.
+ * Clients read events after their last known sequence by pages or hold request until new events appear.
+ * Held requests are checked after local appends are committed and periodically, so appends of other nodes are noticed too
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:chat.properties")
+public class ChatEventService {
+    private static final NotAllowedException EVENTS_NOT_AUTHORIZED = new NotAllowedException("Chat events forbidden, no authorization detected", HttpStatus.FORBIDDEN);
+    private final ChatEventDataAccessObject chatEventDataAccessObject;
+    private final ScheduleService scheduleService;
+    @Value("${chat.events.page.size.default}")
+    private int defaultPageSize;
+    @Value("${chat.events.page.size.max}")
+    private int maxPageSize;
+    @Value("${chat.events.wait.max}")
+    private int maxWait;
+    @Value("${chat.events.poll.interval}")
+    private int pollInterval;
+    @Value("${chat.events.retention}")
+    private int retention;
+    private final Set<EventWaiter> waiters = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean checkRequested = new AtomicBoolean();
+    /**
+     * Last sequence waiters were checked for, -1 if waiters were not checked since there were no waiters
+     */
+    private long checkedSequence = -1;
+
+    @PostConstruct
+    private void initializeChecking() throws InvalidAttributesException {
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::checkWaiters, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::deleteExpiredEvents, 1, 24, TimeUnit.HOURS);
+    }
+
+    /**
+     * Message has to exist until commit, event is appended only if message is sent by then
+     */
+    public void appendMessageEvent(int messageId, WebSocketEvent event) {
+        append(() -> chatEventDataAccessObject.appendMessageEvent(messageId, event));
+    }
+
+    /**
+     * Event of message which is known to be sent, used when message is deleted by the same transaction
+     */
+    public void appendMessageEvent(int chatId, int messageId, WebSocketEvent event) {
+        append(() -> chatEventDataAccessObject.appendMessageEvent(chatId, messageId, event));
+    }
+
+    public void appendChatEvent(int chatId, WebSocketEvent event) {
+        append(() -> chatEventDataAccessObject.appendChatEvent(chatId, event));
+    }
+
+    public void appendMembersEvent(int chatId, WebSocketEvent event, Collection<Integer> userIds) {
+        append(() -> chatEventDataAccessObject.appendMembersEvent(chatId, event, userIds));
+    }
+
+    private void append(EventAppend eventAppend) {
+        TransactionCallbackUtility.runBeforeCommit(() -> {
+            try {
+                eventAppend.append();
+            } catch (InvalidAttributesException e) {
+                throw new IllegalStateException(e.getException(), e);
+            }
+        });
+        TransactionCallbackUtility.runAfterCommit(this::requestCheck);
+    }
+
+    /**
+     * Page of events after given sequence, if there are none and wait is positive result is set when events appear
+     * or when wait is over, in the last case with empty page
+     *
+     * @param wait seconds to hold request, limited by configured maximum
+     */
+    public DeferredResult<ChatEventPage> getChatEventsForCurrentUser(long after, Integer limit, Integer wait) throws InvalidAttributesException, NotAllowedException {
+        Integer userId = UserService.getIdOfCurrentlyAuthenticatedUser();
+        if (userId == null) {
+            throw EVENTS_NOT_AUTHORIZED;
+        }
+        int pageSize = limit == null || limit <= 0 ? defaultPageSize : Math.min(limit, maxPageSize);
+        int waitSeconds = wait == null || wait <= 0 ? 0 : Math.min(wait, maxWait);
+        if (waitSeconds == 0) {
+            DeferredResult<ChatEventPage> result = new DeferredResult<>();
+            result.setResult(getChatEvents(userId, after, pageSize));
+            return result;
+        }
+        DeferredResult<ChatEventPage> result = new DeferredResult<>(TimeUnit.SECONDS.toMillis(waitSeconds),
+                                                                    () -> new ChatEventPage(Collections.emptyList(), after, false, false));
+        EventWaiter waiter = new EventWaiter(userId, after, pageSize, result);
+        result.onCompletion(() -> waiters.remove(waiter));
+        waiters.add(waiter);
+        try {
+            ChatEventPage page = getChatEvents(userId, after, pageSize);
+            if (!page.getEvents().isEmpty() || page.isResyncRequired()) {
+                waiters.remove(waiter);
+                result.setResult(page);
+            }
+        } catch (InvalidAttributesException | RuntimeException e) {
+            waiters.remove(waiter);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Resync is required when events following given sequence were removed by retention
+     */
+    private ChatEventPage getChatEvents(int userId, long after, int pageSize) throws InvalidAttributesException {
+        ChatEventPage page = chatEventDataAccessObject.getChatEvents(userId, after, pageSize);
+        if (after > 0) {
+            long firstSequence = chatEventDataAccessObject.getFirstSequence();
+            page.setResyncRequired(firstSequence == 0 || after < firstSequence - 1);
+        }
+        return page;
+    }
+
+    private void requestCheck() {
+        if (waiters.isEmpty() || !checkRequested.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduleService.scheduleOnceFireTask(this::checkWaiters, 0, TimeUnit.MILLISECONDS);
+        } catch (InvalidAttributesException e) {
+            checkRequested.set(false);
+            log.error("Chat events check could not be scheduled", e);
+        }
+    }
+
+    /**
+     * Only waiters of users affected by new events read events again, all of them do if there were no waiters at previous check
+     */
+    private synchronized void checkWaiters() {
+        checkRequested.set(false);
+        if (waiters.isEmpty()) {
+            checkedSequence = -1;
+            return;
+        }
+        try {
+            long lastSequence = chatEventDataAccessObject.getLastSequence();
+            if (lastSequence == checkedSequence) {
+                return;
+            }
+            Set<Integer> affectedUsers = checkedSequence < 0 ? null : chatEventDataAccessObject.getAffectedUsers(checkedSequence, lastSequence);
+            checkedSequence = lastSequence;
+            for (EventWaiter waiter : waiters) {
+                if (waiter.getAfter() >= lastSequence || (affectedUsers != null && !affectedUsers.contains(waiter.getUserId()))) {
+                    continue;
+                }
+                ChatEventPage page = getChatEvents(waiter.getUserId(), waiter.getAfter(), waiter.getPageSize());
+                if (!page.getEvents().isEmpty() || page.isResyncRequired()) {
+                    waiter.getResult().setResult(page);
+                    waiters.remove(waiter);
+                }
+            }
+        } catch (InvalidAttributesException | RuntimeException e) {
+            log.error("Chat events check failed", e);
+        }
+    }
+
+    private void deleteExpiredEvents() {
+        try {
+            int deleted = chatEventDataAccessObject.deleteEventsOlderThan(retention);
+            log.info("Chat events retention removed {} events older than {} days", deleted, retention);
+        } catch (InvalidAttributesException | RuntimeException e) {
+            log.error("Chat events retention failed", e);
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class EventWaiter {
+        private final int userId;
+        private final long after;
+        private final int pageSize;
+        private final DeferredResult<ChatEventPage> result;
+    }
+
+    @FunctionalInterface
+    private interface EventAppend {
+        void append() throws InvalidAttributesException;
+    }
+}
@@ -16,11 +16,24 @@ public class ApplicationException extends Exception {
     private LocalDateTime errorTime;
     private HttpStatus httpStatus;
 
+    /**
+     * Stack trace is filled only when exception traces debug is enabled
+     */
     public ApplicationException(String exception, String trace, LocalDateTime errorTime, HttpStatus httpStatus) {
-        super(exception);
+        super(exception, null, false, ExceptionTrace.isDebug());
         this.exception = exception;
         this.trace = trace;
         this.errorTime = errorTime;
         this.httpStatus = httpStatus;
     }
+
+    /**
+     * Shared instance for errors with constant text, it never has stack trace, trace or error time,
+     * time is set when error is handled
+     */
+    protected ApplicationException(String exception, HttpStatus httpStatus) {
+        super(exception, null, false, false);
+        this.exception = exception;
+        this.httpStatus = httpStatus;
+    }
 }
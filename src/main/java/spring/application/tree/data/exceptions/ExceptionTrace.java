@@ -0,0 +1,48 @@
+package spring.application.tree.data.exceptions;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Decides how much application exceptions capture, by default they are stackless and carry no caller,
+ * with debug enabled caller is resolved by stack walker and full stack trace is filled
+ */
+@Component
+@Slf4j
+@PropertySource("classpath:exceptions.properties")
+public class ExceptionTrace {
+    private static final StackWalker stackWalker = StackWalker.getInstance();
+    private static volatile boolean debug;
+    @Value("${exceptions.debug}")
+    private boolean debugEnabled;
+
+    @PostConstruct
+    private void setup() {
+        setDebug(debugEnabled);
+        log.debug("Exception traces debug mode has been set to '{}'", debugEnabled);
+    }
+
+    public static boolean isDebug() {
+        return debug;
+    }
+
+    public static void setDebug(boolean debug) {
+        ExceptionTrace.debug = debug;
+    }
+
+    /**
+     * @return frame of method that called this one, or null when debug is disabled
+     */
+    public static String caller() {
+        if (!debug) {
+            return null;
+        }
+        return stackWalker.walk(frames -> frames.skip(1).findFirst())
+                          .map(frame -> frame.toStackTraceElement().toString())
+                          .orElse(null);
+    }
+}
@@ -8,4 +8,8 @@ public class NotAllowedException extends ApplicationException {
     public NotAllowedException(String exception, String trace, LocalDateTime errorTime, HttpStatus httpStatus) {
         super(exception, trace, errorTime, httpStatus);
     }
+
+    public NotAllowedException(String exception, HttpStatus httpStatus) {
+        super(exception, httpStatus);
+    }
 }
@@ -0,0 +1,11 @@
+package spring.application.tree.data.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+import java.time.LocalDateTime;
+
+public class OverloadedException extends ApplicationException {
+    public OverloadedException(String exception, String trace, LocalDateTime errorTime, HttpStatus httpStatus) {
+        super(exception, trace, errorTime, httpStatus);
+    }
+}
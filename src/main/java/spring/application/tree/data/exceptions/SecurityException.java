@@ -8,4 +8,8 @@ public class SecurityException extends ApplicationException {
     public SecurityException(String exception, String trace, LocalDateTime errorTime, HttpStatus httpStatus) {
         super(exception, trace, errorTime, httpStatus);
     }
+
+    public SecurityException(String exception, HttpStatus httpStatus) {
+        super(exception, httpStatus);
+    }
 }
@@ -0,0 +1,442 @@
+package spring.application.tree.data.messages.archive;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageArchiveStatistics;
+import spring.application.tree.data.messages.models.MessageCursor;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Messages moved out of database, stored on local disk as one directory per chat with one segment per UTC month.
+ * Sparse indexes of all segments are kept in memory, so only blocks overlapping requested page are read,
+ * segments are read through memory mapping and mappings of the least recently read ones are dropped above configured count,
+ * their memory is released by garbage collector, so the count limits referenced mappings, not mapped memory at any moment.
+ * Archive is read only for clients, archived messages are not updated, deleted one by one or found by search.
+ * Archive shared by nodes lives on storage mounted by all of them, it is written by one node at a time and changed chats
+ * are passed to other nodes by invalidation bus, every node also reloads all segments once per archiving interval,
+ * so it catches up with changes which were not passed by bus
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:message.properties")
+public class MessageArchive {
+    private static final String CACHE_NAME = "message.archive";
+    private final CacheInvalidationBus cacheInvalidationBus;
+    private final ScheduleService scheduleService;
+    @Value("${message.archive.directory}")
+    private String directory;
+    @Value("${message.archive.shared}")
+    private boolean shared;
+    @Value("${message.archive.interval}")
+    private int interval;
+    @Value("${message.archive.block.size}")
+    private int blockSize;
+    @Value("${message.archive.mapped.segments}")
+    private int maxMappedSegments;
+    /**
+     * Key - chat ID, value - segments of chat by month
+     */
+    private final Map<Integer, ConcurrentSkipListMap<YearMonth, MessageSegment>> chats = new ConcurrentHashMap<>();
+    /**
+     * Iteration goes from least to most recently read segment
+     */
+    private final LinkedHashMap<MessageSegment, Boolean> mappedSegments = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong blockReads = new AtomicLong();
+    private final AtomicLong appendedMessages = new AtomicLong();
+
+    /**
+     * Directory is created by the first append, so nothing is written to disk while archiving is disabled
+     */
+    @PostConstruct
+    private void loadSegments() throws InvalidAttributesException {
+        cacheInvalidationBus.subscribe(CACHE_NAME, key -> reloadChat(Integer.parseInt(key)));
+        Path root = Paths.get(directory);
+        if (shared) {
+            scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::reloadSegments, interval, interval, TimeUnit.MINUTES);
+        }
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        for (Integer chatId : getChatIds(root)) {
+            reloadChat(chatId);
+        }
+        int segments = chats.values().stream().mapToInt(Map::size).sum();
+        log.info("Archived messages loaded: {} segments of {} chats from {}", segments, chats.size(), root.toAbsolutePath());
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Segments of chat are opened again from disk, so changes written by other node become visible,
+     * chat is removed from memory when its directory has no segments
+     */
+    public synchronized void reloadChat(int chatId) {
+        Path chatDirectory = Paths.get(directory, Integer.toString(chatId));
+        ConcurrentSkipListMap<YearMonth, MessageSegment> segments = new ConcurrentSkipListMap<>();
+        if (Files.isDirectory(chatDirectory)) {
+            try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(chatDirectory, "*" + MessageSegment.SEGMENT_EXTENSION)) {
+                for (Path segmentFile : segmentFiles) {
+                    try {
+                        MessageSegment segment = MessageSegment.open(segmentFile);
+                        segments.put(segment.getMonth(), segment);
+                    } catch (IOException | RuntimeException e) {
+                        log.error(String.format("Archived messages segment could not be opened: %s", segmentFile), e);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        ConcurrentSkipListMap<YearMonth, MessageSegment> previous = segments.isEmpty() ? chats.remove(chatId) : chats.put(chatId, segments);
+        if (previous != null) {
+            releaseSegments(previous.values());
+        }
+    }
+
+    public boolean isArchived(int chatId) {
+        return chats.containsKey(chatId);
+    }
+
+    /**
+     * @return cursor of the newest archived message of chat, or null if chat has no archived messages
+     */
+    public MessageCursor getNewestCursor(int chatId) {
+        ConcurrentSkipListMap<YearMonth, MessageSegment> segments = chats.get(chatId);
+        Map.Entry<YearMonth, MessageSegment> latest = segments == null ? null : segments.lastEntry();
+        if (latest == null) {
+            return null;
+        }
+        MessageSegment.Block newest = null;
+        for (MessageSegment.Block block : latest.getValue().getBlocks()) {
+            if (newest == null || block.compareLast(newest.lastMicros, newest.lastId) > 0) {
+                newest = block;
+            }
+        }
+        return newest == null ? null : new MessageCursor(MessageSegment.fromMicros(newest.lastMicros), newest.lastId);
+    }
+
+    /**
+     * Archived messages preceding cursor, or the newest ones if cursor is null, ordered from the newest to the oldest one
+     */
+    public void getMessagesBefore(int chatId, MessageCursor before, int limit, List<AbstractMessageModel> messages, List<MessageCursor> cursors) {
+        collectMessages(chatId, before, limit, true, messages, cursors);
+    }
+
+    /**
+     * Archived messages following cursor, ordered from the oldest to the newest one
+     */
+    public void getMessagesAfter(int chatId, MessageCursor after, int limit, List<AbstractMessageModel> messages, List<MessageCursor> cursors) {
+        collectMessages(chatId, after, limit, false, messages, cursors);
+    }
+
+    /**
+     * Passes all archived messages of chat in chronological order, one segment is decoded at a time
+     */
+    public long streamMessages(int chatId, Consumer<AbstractMessageModel> consumer) {
+        ConcurrentSkipListMap<YearMonth, MessageSegment> segments = chats.get(chatId);
+        if (segments == null) {
+            return 0;
+        }
+        long count = 0;
+        for (MessageSegment segment : segments.values()) {
+            List<ArchivedMessage> archivedMessages = new ArrayList<>();
+            for (MessageSegment.Block block : segment.getBlocks()) {
+                archivedMessages.addAll(readBlock(chatId, segment, block));
+            }
+            archivedMessages.sort(ArchivedMessage.ORDER);
+            for (ArchivedMessage archivedMessage : archivedMessages) {
+                consumer.accept(archivedMessage.message);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes messages to segments of their months and forces them to disk, messages already present in archive are skipped,
+     * so batch can be appended again when it was archived, but not deleted from database
+     *
+     * @param messages messages of one chat ordered by sending date and ID
+     */
+    public synchronized void append(int chatId, List<AbstractMessageModel> messages, List<MessageCursor> cursors) throws IOException {
+        if (shared) {
+            reloadChat(chatId);
+        }
+        Path chatDirectory = Paths.get(directory, Integer.toString(chatId));
+        ConcurrentSkipListMap<YearMonth, MessageSegment> segments = chats.computeIfAbsent(chatId, id -> new ConcurrentSkipListMap<>());
+        int from = 0;
+        while (from < messages.size()) {
+            YearMonth month = monthOf(cursors.get(from));
+            int to = from;
+            while (to < messages.size() && monthOf(cursors.get(to)).equals(month)) {
+                to++;
+            }
+            MessageSegment segment = segments.get(month);
+            if (segment == null) {
+                segment = MessageSegment.create(chatDirectory, month);
+                segments.put(month, segment);
+            }
+            List<AbstractMessageModel> newMessages = new ArrayList<>();
+            List<MessageCursor> newCursors = new ArrayList<>();
+            Set<Integer> archivedIds = getArchivedIds(chatId, segment, cursors.get(from), cursors.get(to - 1));
+            for (int i = from; i < to; i++) {
+                if (!archivedIds.contains(cursors.get(i).getId())) {
+                    newMessages.add(messages.get(i));
+                    newCursors.add(cursors.get(i));
+                }
+            }
+            if (!newMessages.isEmpty()) {
+                segment.append(newMessages, newCursors, blockSize);
+                appendedMessages.addAndGet(newMessages.size());
+            }
+            from = to;
+        }
+        if (segments.isEmpty()) {
+            chats.remove(chatId);
+        }
+        cacheInvalidationBus.publish(CACHE_NAME, Integer.toString(chatId));
+    }
+
+    /**
+     * Segment files are deleted, chat directory is removed when nothing else was left in it.
+     * Segments are looked up on disk, so chat archived by other node into shared archive is removed as well
+     */
+    public synchronized void removeChat(int chatId) {
+        if (shared) {
+            reloadChat(chatId);
+        }
+        ConcurrentSkipListMap<YearMonth, MessageSegment> segments = chats.remove(chatId);
+        if (segments == null) {
+            return;
+        }
+        releaseSegments(segments.values());
+        for (MessageSegment segment : segments.values()) {
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                log.error(String.format("Archived messages segment of chat '%s' for %s could not be deleted", chatId, segment.getMonth()), e);
+            }
+        }
+        try {
+            Files.deleteIfExists(Paths.get(directory, Integer.toString(chatId)));
+        } catch (IOException e) {
+            log.warn("Archived messages directory of chat '{}' could not be deleted: {}", chatId, e.getMessage());
+        }
+        cacheInvalidationBus.publish(CACHE_NAME, Integer.toString(chatId));
+    }
+
+    public MessageArchiveStatistics getStatistics() {
+        int segments = 0;
+        long blocks = 0;
+        long messages = 0;
+        long storedBytes = 0;
+        for (ConcurrentSkipListMap<YearMonth, MessageSegment> chatSegments : chats.values()) {
+            for (MessageSegment segment : chatSegments.values()) {
+                segments++;
+                for (MessageSegment.Block block : segment.getBlocks()) {
+                    blocks++;
+                    messages += block.count;
+                    storedBytes += block.length;
+                }
+            }
+        }
+        int mapped;
+        synchronized (mappedSegments) {
+            mapped = mappedSegments.size();
+        }
+        return new MessageArchiveStatistics(chats.size(), segments, blocks, messages, storedBytes, mapped, blockReads.get(), appendedMessages.get());
+    }
+
+    /**
+     * Exceptions are not propagated, so reloading is never stopped
+     */
+    private void reloadSegments() {
+        try {
+            Set<Integer> chatIds = new HashSet<>(chats.keySet());
+            Path root = Paths.get(directory);
+            if (Files.isDirectory(root)) {
+                chatIds.addAll(getChatIds(root));
+            }
+            chatIds.forEach(this::reloadChat);
+        } catch (RuntimeException e) {
+            log.error("Archived messages could not be reloaded", e);
+        }
+    }
+
+    private void releaseSegments(Collection<MessageSegment> segments) {
+        synchronized (mappedSegments) {
+            for (MessageSegment segment : segments) {
+                mappedSegments.remove(segment);
+                segment.unmap();
+            }
+        }
+    }
+
+    private static List<Integer> getChatIds(Path root) {
+        List<Integer> chatIds = new ArrayList<>();
+        try (DirectoryStream<Path> chatDirectories = Files.newDirectoryStream(root)) {
+            for (Path chatDirectory : chatDirectories) {
+                Integer chatId = parseChatId(chatDirectory);
+                if (chatId != null) {
+                    chatIds.add(chatId);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chatIds;
+    }
+
+    static Integer parseChatId(Path chatDirectory) {
+        if (!Files.isDirectory(chatDirectory)) {
+            return null;
+        }
+        try {
+            int chatId = Integer.parseInt(chatDirectory.getFileName().toString());
+            return chatId > 0 ? chatId : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Blocks are taken in order of their nearest key to cursor and reading stops as soon as
+     * the next block cannot contain message closer to cursor than already collected ones
+     */
+    private void collectMessages(int chatId, MessageCursor cursor, int limit, boolean descending,
+                                 List<AbstractMessageModel> messages, List<MessageCursor> cursors) {
+        ConcurrentSkipListMap<YearMonth, MessageSegment> segments = chats.get(chatId);
+        if (segments == null || limit <= 0) {
+            return;
+        }
+        long cursorMicros = cursor == null ? (descending ? Long.MAX_VALUE : Long.MIN_VALUE) : MessageSegment.toMicros(cursor.getSentAt());
+        int cursorId = cursor == null ? (descending ? Integer.MAX_VALUE : Integer.MIN_VALUE) : cursor.getId();
+        List<MessageSegment> candidateSegments = new ArrayList<>();
+        List<MessageSegment.Block> candidates = new ArrayList<>();
+        for (MessageSegment segment : segments.values()) {
+            for (MessageSegment.Block block : segment.getBlocks()) {
+                boolean overlapping = descending ? block.compareFirst(cursorMicros, cursorId) < 0 : block.compareLast(cursorMicros, cursorId) > 0;
+                if (overlapping) {
+                    candidateSegments.add(segment);
+                    candidates.add(block);
+                }
+            }
+        }
+        Integer[] order = new Integer[candidates.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Comparator<Integer> nearest = descending
+                ? (left, right) -> candidates.get(right).compareLast(candidates.get(left).lastMicros, candidates.get(left).lastId)
+                : (left, right) -> candidates.get(left).compareFirst(candidates.get(right).firstMicros, candidates.get(right).firstId);
+        Arrays.sort(order, nearest);
+        Comparator<ArchivedMessage> pageOrder = descending ? ArchivedMessage.ORDER.reversed() : ArchivedMessage.ORDER;
+        List<ArchivedMessage> collected = new ArrayList<>();
+        for (int index : order) {
+            MessageSegment.Block block = candidates.get(index);
+            if (collected.size() >= limit) {
+                ArchivedMessage farthest = collected.get(limit - 1);
+                boolean closer = descending ? block.compareLast(farthest.micros, farthest.id) > 0 : block.compareFirst(farthest.micros, farthest.id) < 0;
+                if (!closer) {
+                    break;
+                }
+            }
+            for (ArchivedMessage archivedMessage : readBlock(chatId, candidateSegments.get(index), block)) {
+                int comparison = archivedMessage.micros != cursorMicros ? Long.compare(archivedMessage.micros, cursorMicros) : Integer.compare(archivedMessage.id, cursorId);
+                if (descending ? comparison < 0 : comparison > 0) {
+                    collected.add(archivedMessage);
+                }
+            }
+            collected.sort(pageOrder);
+            if (collected.size() > limit) {
+                collected.subList(limit, collected.size()).clear();
+            }
+        }
+        for (ArchivedMessage archivedMessage : collected) {
+            messages.add(archivedMessage.message);
+            cursors.add(archivedMessage.cursor);
+        }
+    }
+
+    private List<ArchivedMessage> readBlock(int chatId, MessageSegment segment, MessageSegment.Block block) {
+        List<AbstractMessageModel> messages = new ArrayList<>(block.count);
+        List<MessageCursor> cursors = new ArrayList<>(block.count);
+        try {
+            segment.read(block, messages, cursors, chatId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Archived messages of chat '%s' for %s could not be read", chatId, segment.getMonth()), e);
+        }
+        blockReads.incrementAndGet();
+        synchronized (mappedSegments) {
+            mappedSegments.put(segment, Boolean.TRUE);
+            Iterator<MessageSegment> iterator = mappedSegments.keySet().iterator();
+            while (mappedSegments.size() > maxMappedSegments && iterator.hasNext()) {
+                MessageSegment eldest = iterator.next();
+                iterator.remove();
+                eldest.unmap();
+            }
+        }
+        List<ArchivedMessage> archivedMessages = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            archivedMessages.add(new ArchivedMessage(messages.get(i), cursors.get(i)));
+        }
+        return archivedMessages;
+    }
+
+    private Set<Integer> getArchivedIds(int chatId, MessageSegment segment, MessageCursor first, MessageCursor last) {
+        long firstMicros = MessageSegment.toMicros(first.getSentAt());
+        long lastMicros = MessageSegment.toMicros(last.getSentAt());
+        Set<Integer> archivedIds = new HashSet<>();
+        for (MessageSegment.Block block : segment.getBlocks()) {
+            if (block.compareFirst(lastMicros, last.getId()) <= 0 && block.compareLast(firstMicros, first.getId()) >= 0) {
+                readBlock(chatId, segment, block).forEach(archivedMessage -> archivedIds.add(archivedMessage.id));
+            }
+        }
+        return archivedIds;
+    }
+
+    private static YearMonth monthOf(MessageCursor cursor) {
+        return YearMonth.from(cursor.getSentAt().toInstant().atOffset(ZoneOffset.UTC));
+    }
+
+    private static class ArchivedMessage {
+        static final Comparator<ArchivedMessage> ORDER = Comparator.<ArchivedMessage>comparingLong(archivedMessage -> archivedMessage.micros)
+                                                                   .thenComparingInt(archivedMessage -> archivedMessage.id);
+        final AbstractMessageModel message;
+        final MessageCursor cursor;
+        final long micros;
+        final int id;
+
+        ArchivedMessage(AbstractMessageModel message, MessageCursor cursor) {
+            this.message = message;
+            this.cursor = cursor;
+            this.micros = MessageSegment.toMicros(cursor.getSentAt());
+            this.id = cursor.getId();
+        }
+    }
+}
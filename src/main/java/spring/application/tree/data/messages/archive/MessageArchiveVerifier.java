@@ -0,0 +1,60 @@
+package spring.application.tree.data.messages.archive;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Checks archive directory offline: format of every segment and index, checksums and key ranges of blocks,
+ * ordering of messages and absence of duplicates within chat. Nothing is written, so archive can be verified while application
+ * appends to it, index entries left by interrupted append are reported. Problems are printed one per line, exit code is 1 if any was found.
+ * Run: java -cp messenger.jar -Dloader.main=spring.application.tree.data.messages.archive.MessageArchiveVerifier
+ *      org.springframework.boot.loader.PropertiesLauncher archive/messages
+ */
+public class MessageArchiveVerifier {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: MessageArchiveVerifier <archive directory>");
+            System.exit(2);
+        }
+        Path root = Paths.get(args[0]);
+        if (!Files.isDirectory(root)) {
+            System.err.printf("Archive directory does not exist: %s%n", root);
+            System.exit(2);
+        }
+        List<String> problems = new ArrayList<>();
+        int chats = 0;
+        int segments = 0;
+        long blocks = 0;
+        long messages = 0;
+        try (DirectoryStream<Path> chatDirectories = Files.newDirectoryStream(root)) {
+            for (Path chatDirectory : chatDirectories) {
+                Integer chatId = MessageArchive.parseChatId(chatDirectory);
+                if (chatId == null) {
+                    problems.add(String.format("%s: not a chat directory", chatDirectory));
+                    continue;
+                }
+                chats++;
+                Set<Integer> messageIds = new HashSet<>();
+                try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(chatDirectory, "*" + MessageSegment.SEGMENT_EXTENSION)) {
+                    for (Path segmentFile : segmentFiles) {
+                        try {
+                            MessageSegment segment = MessageSegment.open(segmentFile);
+                            segments++;
+                            blocks += segment.getBlocks().size();
+                            messages += segment.verify(chatId, messageIds, problems::add);
+                        } catch (IOException | RuntimeException e) {
+                            problems.add(String.format("%s: segment could not be opened: %s", segmentFile, e));
+                        }
+                    }
+                }
+            }
+        }
+        problems.forEach(System.out::println);
+        System.out.printf("Verified %d messages in %d blocks of %d segments of %d chats, problems: %d%n", messages, blocks, segments, chats, problems.size());
+        System.exit(problems.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,396 @@
+package spring.application.tree.data.messages.archive;
+
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageCursor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Archived messages of one chat and one month. Segment file holds deflated blocks of messages ordered by sending date and ID,
+ * index file holds one fixed size entry per block with its position, checksum and key range, so it is sparse index of segment.
+ * Both files are only appended, block is forced to disk before its index entry, so entry never points to incomplete block
+ * and bytes left by interrupted append are not referenced. Opening never writes, index entries left by interrupted append
+ * are skipped and overwritten by the next append, so segment can be opened while other process appends to it
+ */
+class MessageSegment {
+    static final String SEGMENT_EXTENSION = ".segment";
+    static final String INDEX_EXTENSION = ".index";
+    private static final byte[] SEGMENT_MAGIC = "MSGSEG01".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INDEX_MAGIC = "MSGIDX01".getBytes(StandardCharsets.US_ASCII);
+    private static final int INDEX_ENTRY_SIZE = 44;
+
+    private final YearMonth month;
+    private final Path segmentPath;
+    private final Path indexPath;
+    /**
+     * Blocks ordered as appended, list is replaced on append, so readers iterate over unchanged snapshot
+     */
+    private volatile List<Block> blocks;
+    /**
+     * Size of index entries which were found after the last complete block when segment was opened
+     */
+    private final long trailingIndexBytes;
+    private volatile MappedByteBuffer mapped;
+
+    private MessageSegment(YearMonth month, Path segmentPath, Path indexPath, List<Block> blocks, long trailingIndexBytes) {
+        this.month = month;
+        this.segmentPath = segmentPath;
+        this.indexPath = indexPath;
+        this.blocks = blocks;
+        this.trailingIndexBytes = trailingIndexBytes;
+    }
+
+    static Path segmentPath(Path chatDirectory, YearMonth month) {
+        return chatDirectory.resolve(String.format("%04d_%02d%s", month.getYear(), month.getMonthValue(), SEGMENT_EXTENSION));
+    }
+
+    static YearMonth parseMonth(String fileName) {
+        String name = fileName.substring(0, fileName.length() - SEGMENT_EXTENSION.length());
+        String[] parts = name.split("_");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException(String.format("Segment name is invalid: %s", fileName));
+        }
+        return YearMonth.of(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * Existing segment is opened, files left by interrupted creation are replaced
+     */
+    static MessageSegment create(Path chatDirectory, YearMonth month) throws IOException {
+        Files.createDirectories(chatDirectory);
+        Path segmentPath = segmentPath(chatDirectory, month);
+        Path indexPath = indexPath(segmentPath);
+        if (Files.exists(segmentPath) && Files.exists(indexPath)) {
+            return open(segmentPath);
+        }
+        Files.deleteIfExists(indexPath);
+        Files.deleteIfExists(segmentPath);
+        writeHeader(segmentPath, SEGMENT_MAGIC);
+        writeHeader(indexPath, INDEX_MAGIC);
+        return new MessageSegment(month, segmentPath, indexPath, Collections.emptyList(), 0);
+    }
+
+    /**
+     * Index entries after the last complete entry pointing inside of segment are left by interrupted append, they are skipped
+     */
+    static MessageSegment open(Path segmentPath) throws IOException {
+        Path indexPath = indexPath(segmentPath);
+        long segmentSize = Files.size(segmentPath);
+        List<Block> blocks = new ArrayList<>();
+        long position = INDEX_MAGIC.length;
+        long indexSize;
+        try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            checkHeader(index, INDEX_MAGIC, indexPath);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            while (readFully(index, entry, position)) {
+                entry.flip();
+                Block block = Block.read(entry);
+                if (block.offset < SEGMENT_MAGIC.length || block.offset + block.length > segmentSize) {
+                    break;
+                }
+                blocks.add(block);
+                position += INDEX_ENTRY_SIZE;
+                entry.clear();
+            }
+            indexSize = index.size();
+        }
+        return new MessageSegment(parseMonth(segmentPath.getFileName().toString()), segmentPath, indexPath, blocks, indexSize - position);
+    }
+
+    YearMonth getMonth() {
+        return month;
+    }
+
+    List<Block> getBlocks() {
+        return blocks;
+    }
+
+    long getTrailingIndexBytes() {
+        return trailingIndexBytes;
+    }
+
+    long getStoredBytes() {
+        long bytes = 0;
+        for (Block block : blocks) {
+            bytes += block.length;
+        }
+        return bytes;
+    }
+
+    void delete() throws IOException {
+        unmap();
+        Files.deleteIfExists(indexPath);
+        Files.deleteIfExists(segmentPath);
+    }
+
+    /**
+     * Messages have to be ordered by sending date and ID, they are split into blocks of given size.
+     * Appended blocks are ordered within themselves only, block of messages archived late may precede existing ones
+     */
+    void append(List<AbstractMessageModel> messages, List<MessageCursor> cursors, int blockSize) throws IOException {
+        List<Block> appended = new ArrayList<>();
+        try (FileChannel segment = FileChannel.open(segmentPath, StandardOpenOption.WRITE)) {
+            long offset = segment.size();
+            for (int from = 0; from < messages.size(); from += blockSize) {
+                int to = Math.min(messages.size(), from + blockSize);
+                byte[] compressed = encode(messages.subList(from, to), cursors.subList(from, to));
+                CRC32 crc = new CRC32();
+                crc.update(compressed, 0, compressed.length);
+                writeFully(segment, ByteBuffer.wrap(compressed), offset);
+                MessageCursor first = cursors.get(from);
+                MessageCursor last = cursors.get(to - 1);
+                appended.add(new Block(offset, compressed.length, (int) crc.getValue(), to - from,
+                                       toMicros(first.getSentAt()), first.getId(), toMicros(last.getSentAt()), last.getId()));
+                offset += compressed.length;
+            }
+            segment.force(true);
+        }
+        // entries left by interrupted append are overwritten, as they follow the last known block
+        long indexPosition = INDEX_MAGIC.length + (long) blocks.size() * INDEX_ENTRY_SIZE;
+        try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+            ByteBuffer entries = ByteBuffer.allocate(appended.size() * INDEX_ENTRY_SIZE);
+            appended.forEach(block -> block.write(entries));
+            entries.flip();
+            index.truncate(indexPosition);
+            writeFully(index, entries, indexPosition);
+            index.force(true);
+        }
+        List<Block> updated = new ArrayList<>(blocks);
+        updated.addAll(appended);
+        blocks = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Block is read through memory mapping of segment, mapping is renewed when segment grew after it was mapped
+     */
+    void read(Block block, List<AbstractMessageModel> messages, List<MessageCursor> cursors, int chatId) throws IOException {
+        byte[] compressed = new byte[block.length];
+        ByteBuffer buffer = map(block.offset + block.length).duplicate();
+        buffer.position((int) block.offset);
+        buffer.get(compressed);
+        decode(compressed, block.count, chatId, messages, cursors);
+    }
+
+    boolean isMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * Drops reference to mapping only, mapped memory is released when buffer is collected by garbage collector.
+     * Mapping is not released explicitly, as concurrent reader may still hold duplicate of it
+     */
+    synchronized void unmap() {
+        mapped = null;
+    }
+
+    private synchronized MappedByteBuffer map(long size) throws IOException {
+        if (mapped == null || mapped.capacity() < size) {
+            try (FileChannel segment = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+                mapped = segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Checks header, checksum, key range and ordering of every block against its index entry,
+     * blocks may overlap each other, as messages left in database by the previous runs are archived later
+     *
+     * @return count of verified messages
+     */
+    long verify(int chatId, Set<Integer> messageIds, Consumer<String> problems) throws IOException {
+        String name = segmentPath.toString();
+        try (FileChannel segment = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+            checkHeader(segment, SEGMENT_MAGIC, segmentPath);
+        }
+        if (trailingIndexBytes > 0) {
+            problems.accept(String.format("%s: index has %d bytes after the last complete block, they are left by interrupted append", name, trailingIndexBytes));
+        }
+        long verified = 0;
+        for (Block block : blocks) {
+            byte[] compressed = new byte[block.length];
+            ByteBuffer buffer = map(block.offset + block.length).duplicate();
+            buffer.position((int) block.offset);
+            buffer.get(compressed);
+            CRC32 crc = new CRC32();
+            crc.update(compressed, 0, compressed.length);
+            if ((int) crc.getValue() != block.crc) {
+                problems.accept(String.format("%s: block at %d has checksum mismatch", name, block.offset));
+                continue;
+            }
+            List<AbstractMessageModel> messages = new ArrayList<>();
+            List<MessageCursor> cursors = new ArrayList<>();
+            try {
+                decode(compressed, block.count, chatId, messages, cursors);
+            } catch (IOException | RuntimeException e) {
+                problems.accept(String.format("%s: block at %d could not be decoded: %s", name, block.offset, e));
+                continue;
+            }
+            MessageCursor first = cursors.get(0);
+            MessageCursor last = cursors.get(cursors.size() - 1);
+            if (toMicros(first.getSentAt()) != block.firstMicros || first.getId() != block.firstId
+                || toMicros(last.getSentAt()) != block.lastMicros || last.getId() != block.lastId) {
+                problems.accept(String.format("%s: block at %d does not match key range of its index entry", name, block.offset));
+            }
+            long previousMicros = Long.MIN_VALUE;
+            int previousId = Integer.MIN_VALUE;
+            for (MessageCursor cursor : cursors) {
+                long micros = toMicros(cursor.getSentAt());
+                if (micros < previousMicros || (micros == previousMicros && cursor.getId() <= previousId)) {
+                    problems.accept(String.format("%s: message %d is out of order", name, cursor.getId()));
+                }
+                if (!YearMonth.from(cursor.getSentAt().toInstant().atOffset(ZoneOffset.UTC)).equals(month)) {
+                    problems.accept(String.format("%s: message %d does not belong to segment month", name, cursor.getId()));
+                }
+                if (!messageIds.add(cursor.getId())) {
+                    problems.accept(String.format("%s: message %d is archived more than once", name, cursor.getId()));
+                }
+                previousMicros = micros;
+                previousId = cursor.getId();
+            }
+            verified += messages.size();
+        }
+        return verified;
+    }
+
+    static long toMicros(Timestamp timestamp) {
+        return Math.floorDiv(timestamp.getTime(), 1000L) * 1000000L + timestamp.getNanos() / 1000;
+    }
+
+    static Timestamp fromMicros(long micros) {
+        Timestamp timestamp = new Timestamp(Math.floorDiv(micros, 1000000L) * 1000L);
+        timestamp.setNanos((int) Math.floorMod(micros, 1000000L) * 1000);
+        return timestamp;
+    }
+
+    private static byte[] encode(List<AbstractMessageModel> messages, List<MessageCursor> cursors) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            for (int i = 0; i < messages.size(); i++) {
+                AbstractMessageModel message = messages.get(i);
+                byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+                output.writeInt(cursors.get(i).getId());
+                output.writeLong(toMicros(cursors.get(i).getSentAt()));
+                output.writeInt(message.getAuthorId());
+                output.writeUTF(message.getMessageType().name());
+                output.writeInt(text.length);
+                output.write(text);
+            }
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void decode(byte[] compressed, int count, int chatId, List<AbstractMessageModel> messages, List<MessageCursor> cursors) throws IOException {
+        try (DataInputStream input = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+            for (int i = 0; i < count; i++) {
+                int id = input.readInt();
+                Timestamp sentAt = fromMicros(input.readLong());
+                int authorId = input.readInt();
+                MessageType messageType = MessageType.valueOf(input.readUTF());
+                byte[] text = new byte[input.readInt()];
+                input.readFully(text);
+                messages.add(new AbstractMessageModel(id, new String(text, StandardCharsets.UTF_8), sentAt, authorId, chatId, messageType));
+                cursors.add(new MessageCursor(sentAt, id));
+            }
+        }
+    }
+
+    private static Path indexPath(Path segmentPath) {
+        String name = segmentPath.getFileName().toString();
+        return segmentPath.resolveSibling(name.substring(0, name.length() - SEGMENT_EXTENSION.length()) + INDEX_EXTENSION);
+    }
+
+    private static void writeHeader(Path path, byte[] magic) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.wrap(magic), 0);
+            channel.force(true);
+        }
+    }
+
+    private static void checkHeader(FileChannel channel, byte[] magic, Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(magic.length);
+        if (!readFully(channel, header, 0) || !Arrays.equals(header.array(), magic)) {
+            throw new IOException(String.format("File has unknown format: %s", path));
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Index entry of one block, key range is kept as sending date in microseconds and message ID
+     */
+    static class Block {
+        final long offset;
+        final int length;
+        final int crc;
+        final int count;
+        final long firstMicros;
+        final int firstId;
+        final long lastMicros;
+        final int lastId;
+
+        Block(long offset, int length, int crc, int count, long firstMicros, int firstId, long lastMicros, int lastId) {
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.count = count;
+            this.firstMicros = firstMicros;
+            this.firstId = firstId;
+            this.lastMicros = lastMicros;
+            this.lastId = lastId;
+        }
+
+        static Block read(ByteBuffer entry) {
+            return new Block(entry.getLong(), entry.getInt(), entry.getInt(), entry.getInt(), entry.getLong(), entry.getInt(), entry.getLong(), entry.getInt());
+        }
+
+        void write(ByteBuffer entry) {
+            entry.putLong(offset).putInt(length).putInt(crc).putInt(count).putLong(firstMicros).putInt(firstId).putLong(lastMicros).putInt(lastId);
+        }
+
+        /**
+         * @return negative if the first key of block is lower than given key
+         */
+        int compareFirst(long micros, int id) {
+            return firstMicros != micros ? Long.compare(firstMicros, micros) : Integer.compare(firstId, id);
+        }
+
+        int compareLast(long micros, int id) {
+            return lastMicros != micros ? Long.compare(lastMicros, micros) : Integer.compare(lastId, id);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package spring.application.tree.data.messages.attributes;
+
+import lombok.Getter;
+
+public enum ExportFormat {
+    NDJSON("application/x-ndjson", "ndjson"),
+    JSON("application/json", "json");
+
+    @Getter
+    private final String contentType;
+    @Getter
+    private final String extension;
+
+    ExportFormat(String contentType, String extension) {
+        this.contentType = contentType;
+        this.extension = extension;
+    }
+}
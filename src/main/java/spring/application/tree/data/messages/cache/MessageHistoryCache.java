@@ -0,0 +1,417 @@
+package spring.application.tree.data.messages.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageCacheStatistics;
+import spring.application.tree.data.messages.models.MessageCursor;
+import spring.application.tree.data.messages.models.MessagePage;
+import spring.application.tree.data.utility.transactions.TransactionCallbackUtility;
+
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the latest messages of recently read chats, every chat owns ring buffer of fixed capacity,
+ * whole chats are evicted in least recently used order when memory budget is exceeded.
+ * Changes are applied after transaction commit, so rolled back writes never reach the cache
+ */
+@Component
+@Slf4j
+@PropertySource("classpath:message.properties")
+public class MessageHistoryCache {
+    private static final int WRITE_STAMP_STRIPES = 64;
+    private static final long MESSAGE_MEMORY_OVERHEAD = 128;
+
+    @Value("${message.cache.capacity}")
+    private int capacity;
+    @Value("${message.cache.memory.budget}")
+    private long memoryBudget;
+    /**
+     * Key - chat ID, value - buffer of the latest chat messages, iteration goes from least to most recently used chat
+     */
+    private final LinkedHashMap<Integer, ChatHistoryBuffer> chats = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Key - message ID, value - chat ID, only cached messages are present
+     */
+    private final Map<Integer, Integer> messageToChat = new HashMap<>();
+    /**
+     * Write counters striped by chat ID, loading result is not cached if chat was modified while loading
+     */
+    private final AtomicLongArray writeStamps = new AtomicLongArray(WRITE_STAMP_STRIPES);
+    private long usedMemory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getWriteStamp(int chatId) {
+        return writeStamps.get(stripe(chatId));
+    }
+
+    /**
+     * Returns the newest page of chat history or null if cache can not serve it
+     */
+    public MessagePage getLatestMessages(int chatId, int limit) {
+        List<CachedMessage> entries;
+        boolean olderExist;
+        synchronized (chats) {
+            ChatHistoryBuffer buffer = chats.get(chatId);
+            if (buffer == null || limit > capacity || (buffer.size < limit && !buffer.historyComplete)) {
+                misses.incrementAndGet();
+                return null;
+            }
+            int count = Math.min(limit, buffer.size);
+            entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(buffer.get(i).copy());
+            }
+            olderExist = buffer.size > limit || !buffer.historyComplete;
+        }
+        hits.incrementAndGet();
+        List<AbstractMessageModel> messages = new ArrayList<>(entries.size());
+        for (CachedMessage entry : entries) {
+            messages.add(entry.toModel(chatId));
+        }
+        if (entries.isEmpty()) {
+            return new MessagePage(messages, null, null);
+        }
+        String nextCursor = olderExist ? entries.get(entries.size() - 1).cursor().encode() : null;
+        return new MessagePage(messages, nextCursor, entries.get(0).cursor().encode());
+    }
+
+    /**
+     * Caches loaded chat history, messages have to be ordered from the newest one,
+     * result is dropped if chat was changed after write stamp was taken
+     */
+    public void putLatestMessages(int chatId, List<AbstractMessageModel> messages, List<MessageCursor> cursors, boolean historyComplete, long writeStamp) {
+        synchronized (chats) {
+            if (writeStamps.get(stripe(chatId)) != writeStamp || chats.containsKey(chatId)) {
+                return;
+            }
+            ChatHistoryBuffer buffer = new ChatHistoryBuffer(capacity);
+            for (int i = Math.min(messages.size(), capacity) - 1; i >= 0; i--) {
+                AbstractMessageModel message = messages.get(i);
+                buffer.addNewest(new CachedMessage(message.getId(), message.getMessage(), cursors.get(i).getSentAt(),
+                                                   message.getAuthorId(), message.getMessageType()));
+                messageToChat.put(message.getId(), chatId);
+            }
+            buffer.historyComplete = historyComplete && messages.size() <= capacity;
+            chats.put(chatId, buffer);
+            usedMemory += buffer.memory;
+            evictIfNeeded();
+        }
+    }
+
+    public void addMessage(int chatId, int messageId, String message, Timestamp sentAt, int authorId, MessageType messageType) {
+        afterCommit(chatId, () -> {
+            ChatHistoryBuffer buffer = chats.get(chatId);
+            if (buffer == null) {
+                return;
+            }
+            removeFromBuffer(buffer, messageId);
+            long memoryBefore = buffer.memory;
+            CachedMessage evicted = buffer.insert(new CachedMessage(messageId, message, sentAt, authorId, messageType));
+            if (buffer.contains(messageId)) {
+                messageToChat.put(messageId, chatId);
+            }
+            if (evicted != null) {
+                messageToChat.remove(evicted.id);
+            }
+            usedMemory += buffer.memory - memoryBefore;
+            evictIfNeeded();
+        });
+    }
+
+    public void updateMessage(int messageId, String message) {
+        afterMessageCommit(messageId, () -> {
+            CachedMessage entry = findCachedMessage(messageId);
+            if (entry != null) {
+                ChatHistoryBuffer buffer = chats.get(messageToChat.get(messageId));
+                long difference = CachedMessage.estimateMemory(message) - CachedMessage.estimateMemory(entry.message);
+                entry.message = message;
+                buffer.memory += difference;
+                usedMemory += difference;
+                evictIfNeeded();
+            }
+        });
+    }
+
+    public void updateMessageType(int messageId, MessageType messageType) {
+        afterMessageCommit(messageId, () -> {
+            CachedMessage entry = findCachedMessage(messageId);
+            if (entry != null) {
+                entry.messageType = messageType;
+            }
+        });
+    }
+
+    public void removeMessage(int messageId) {
+        afterMessageCommit(messageId, () -> {
+            if (findCachedMessage(messageId) != null) {
+                removeFromBuffer(chats.get(messageToChat.get(messageId)), messageId);
+            }
+        });
+    }
+
+    public void removeChat(int chatId) {
+        afterCommit(chatId, () -> {
+            ChatHistoryBuffer buffer = chats.remove(chatId);
+            if (buffer != null) {
+                releaseBuffer(buffer);
+            }
+        });
+    }
+
+    /**
+     * Sending date of cached message lets message be looked up in its partition only, returns null if message is not cached
+     */
+    public Timestamp getSentAt(int messageId) {
+        synchronized (chats) {
+            Integer chatId = messageToChat.get(messageId);
+            ChatHistoryBuffer buffer = chatId == null ? null : chats.get(chatId);
+            CachedMessage entry = buffer == null ? null : buffer.find(messageId);
+            return entry == null ? null : entry.sentAt;
+        }
+    }
+
+    public MessageCacheStatistics getStatistics() {
+        synchronized (chats) {
+            return new MessageCacheStatistics(hits.get(), misses.get(), evictions.get(), chats.size(),
+                                              messageToChat.size(), usedMemory, memoryBudget);
+        }
+    }
+
+    /**
+     * Looks message up and discards loading in progress for its chat,
+     * chat of message outside of cache is unknown, so every loading in progress is discarded
+     */
+    private CachedMessage findCachedMessage(int messageId) {
+        Integer chatId = messageToChat.get(messageId);
+        if (chatId == null) {
+            for (int i = 0; i < WRITE_STAMP_STRIPES; i++) {
+                writeStamps.incrementAndGet(i);
+            }
+            return null;
+        }
+        writeStamps.incrementAndGet(stripe(chatId));
+        ChatHistoryBuffer buffer = chats.get(chatId);
+        return buffer == null ? null : buffer.find(messageId);
+    }
+
+    private void removeFromBuffer(ChatHistoryBuffer buffer, int messageId) {
+        long memoryBefore = buffer.memory;
+        if (buffer.remove(messageId) != null) {
+            messageToChat.remove(messageId);
+            usedMemory += buffer.memory - memoryBefore;
+        }
+    }
+
+    private void releaseBuffer(ChatHistoryBuffer buffer) {
+        for (int i = 0; i < buffer.size; i++) {
+            messageToChat.remove(buffer.get(i).id);
+        }
+        usedMemory -= buffer.memory;
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<Integer, ChatHistoryBuffer>> iterator = chats.entrySet().iterator();
+        while (usedMemory > memoryBudget && iterator.hasNext()) {
+            Map.Entry<Integer, ChatHistoryBuffer> eldest = iterator.next();
+            iterator.remove();
+            releaseBuffer(eldest.getValue());
+            evictions.incrementAndGet();
+            log.debug("Chat '{}' evicted from message cache", eldest.getKey());
+        }
+    }
+
+    private void dropChat(int chatId) {
+        writeStamps.incrementAndGet(stripe(chatId));
+        ChatHistoryBuffer buffer = chats.remove(chatId);
+        if (buffer != null) {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private void afterCommit(int chatId, Runnable change) {
+        afterCommit(() -> {
+            writeStamps.incrementAndGet(stripe(chatId));
+            change.run();
+        }, () -> dropChat(chatId));
+    }
+
+    private void afterMessageCommit(int messageId, Runnable change) {
+        afterCommit(change, () -> {
+            Integer chatId = messageToChat.get(messageId);
+            findCachedMessage(messageId);
+            if (chatId != null) {
+                dropChat(chatId);
+            }
+        });
+    }
+
+    /**
+     * Loading inside of transaction sees its uncommitted changes, so chat touched by rolled back transaction is dropped
+     */
+    private void afterCommit(Runnable change, Runnable rollback) {
+        TransactionCallbackUtility.runAfterCompletion(() -> {
+            synchronized (chats) {
+                change.run();
+            }
+        }, () -> {
+            synchronized (chats) {
+                rollback.run();
+            }
+        });
+    }
+
+    private static int stripe(int chatId) {
+        return Math.floorMod(chatId, WRITE_STAMP_STRIPES);
+    }
+
+    private static class CachedMessage {
+        private final int id;
+        private String message;
+        private final Timestamp sentAt;
+        private final int authorId;
+        private MessageType messageType;
+
+        private CachedMessage(int id, String message, Timestamp sentAt, int authorId, MessageType messageType) {
+            this.id = id;
+            this.message = message;
+            this.sentAt = sentAt;
+            this.authorId = authorId;
+            this.messageType = messageType;
+        }
+
+        private CachedMessage copy() {
+            return new CachedMessage(id, message, sentAt, authorId, messageType);
+        }
+
+        private AbstractMessageModel toModel(int chatId) {
+            return new AbstractMessageModel(id, message, sentAt, authorId, chatId, messageType);
+        }
+
+        private MessageCursor cursor() {
+            return new MessageCursor(sentAt, id);
+        }
+
+        private boolean isNewerThan(CachedMessage other) {
+            int comparison = sentAt.compareTo(other.sentAt);
+            return comparison > 0 || (comparison == 0 && id > other.id);
+        }
+
+        private static long estimateMemory(String message) {
+            return MESSAGE_MEMORY_OVERHEAD + (message == null ? 0 : 2L * message.length());
+        }
+    }
+
+    /**
+     * Ring buffer of chat messages, index 0 is the newest message
+     */
+    private static class ChatHistoryBuffer {
+        private final CachedMessage[] entries;
+        private int head;
+        private int size;
+        private long memory;
+        /**
+         * True if there are no older messages in chat than buffered ones
+         */
+        private boolean historyComplete;
+
+        private ChatHistoryBuffer(int capacity) {
+            entries = new CachedMessage[capacity];
+        }
+
+        private CachedMessage get(int index) {
+            return entries[(head + index) % entries.length];
+        }
+
+        private void set(int index, CachedMessage entry) {
+            entries[(head + index) % entries.length] = entry;
+        }
+
+        private CachedMessage addNewest(CachedMessage entry) {
+            head = (head - 1 + entries.length) % entries.length;
+            CachedMessage evicted = size == entries.length ? entries[head] : null;
+            entries[head] = entry;
+            memory += CachedMessage.estimateMemory(entry.message);
+            if (evicted == null) {
+                size++;
+            } else {
+                memory -= CachedMessage.estimateMemory(evicted.message);
+                historyComplete = false;
+            }
+            return evicted;
+        }
+
+        /**
+         * Puts message to its position by sending date, returns message pushed out of buffer
+         */
+        private CachedMessage insert(CachedMessage entry) {
+            if (size == 0 || entry.isNewerThan(get(0))) {
+                return addNewest(entry);
+            }
+            if (!entry.isNewerThan(get(size - 1)) && (!historyComplete || size == entries.length)) {
+                historyComplete = false;
+                return null;
+            }
+            CachedMessage evicted = null;
+            if (size == entries.length) {
+                evicted = get(size - 1);
+                set(size - 1, null);
+                size--;
+                memory -= CachedMessage.estimateMemory(evicted.message);
+                historyComplete = false;
+            }
+            int position = 0;
+            while (position < size && get(position).isNewerThan(entry)) {
+                position++;
+            }
+            for (int i = size; i > position; i--) {
+                set(i, get(i - 1));
+            }
+            set(position, entry);
+            size++;
+            memory += CachedMessage.estimateMemory(entry.message);
+            return evicted;
+        }
+
+        private CachedMessage find(int messageId) {
+            for (int i = 0; i < size; i++) {
+                if (get(i).id == messageId) {
+                    return get(i);
+                }
+            }
+            return null;
+        }
+
+        private boolean contains(int messageId) {
+            return find(messageId) != null;
+        }
+
+        private CachedMessage remove(int messageId) {
+            for (int i = 0; i < size; i++) {
+                CachedMessage entry = get(i);
+                if (entry.id == messageId) {
+                    for (int j = i; j < size - 1; j++) {
+                        set(j, get(j + 1));
+                    }
+                    set(size - 1, null);
+                    size--;
+                    memory -= CachedMessage.estimateMemory(entry.message);
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+}
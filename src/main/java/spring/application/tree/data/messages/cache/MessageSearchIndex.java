@@ -0,0 +1,555 @@
+package spring.application.tree.data.messages.cache;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageCursor;
+import spring.application.tree.data.messages.models.MessageIndexStatistics;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+import spring.application.tree.data.utility.transactions.TransactionCallbackUtility;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Inverted index of recently searched chats, answers chat local queries without database.
+ * Every chat owns sorted dictionary of terms with sorted message ID posting lists, so the last query term is matched as prefix.
+ * Whole chats are evicted in least recently used order when memory budget is exceeded and loaded again on the next search.
+ * Chat is guarded by lock of its stripe, so chats of different stripes are searched and changed in parallel,
+ * only eviction takes global lock. Only messages stored in database are indexed, archived history is not searched.
+ * Changes are applied after transaction commit, so rolled back writes never reach the index.
+ * Chats changed on other nodes are dropped from the index by invalidation bus and loaded again on the next search
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:message.properties")
+public class MessageSearchIndex {
+    private static final int WRITE_STAMP_STRIPES = 64;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int OVERSIZED_CHATS_LIMIT = 1024;
+    private static final long MESSAGE_MEMORY_OVERHEAD = 96;
+    private static final long TERM_MEMORY_OVERHEAD = 112;
+    private static final String CACHE_NAME = "message.search";
+    private static final String CHAT_PREFIX = "chat:";
+    private static final String MESSAGE_PREFIX = "message:";
+
+    private final CacheInvalidationBus cacheInvalidationBus;
+    @Value("${message.index.memory.budget}")
+    private long memoryBudget;
+    @Value("${message.index.chat.messages.max}")
+    private int maxChatMessages;
+    /**
+     * Key - chat ID, value - index of all chat messages, index is read and changed under lock of chat stripe only
+     */
+    private final Map<Integer, ChatIndex> chats = new ConcurrentHashMap<>();
+    /**
+     * Key - message ID, value - chat ID, only indexed messages are present
+     */
+    private final Map<Integer, Integer> messageToChat = new ConcurrentHashMap<>();
+    /**
+     * Chats having more messages than allowed for indexing, they are searched by database
+     */
+    private final Set<Integer> oversizedChats = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > OVERSIZED_CHATS_LIMIT;
+        }
+    }));
+    /**
+     * Locks of chats striped by chat ID, the same stripes as write stamps
+     */
+    private final Object[] chatLocks = createLocks();
+    /**
+     * Write counters striped by chat ID, loading result is not indexed if chat was modified while loading
+     */
+    private final AtomicLongArray writeStamps = new AtomicLongArray(WRITE_STAMP_STRIPES);
+    /**
+     * Taken by eviction only, before lock of evicted chat, so it never waits for chat lock holder which waits for it
+     */
+    private final Object evictionLock = new Object();
+    /**
+     * Source of access stamps, chat with the lowest stamp is the least recently used one
+     */
+    private final AtomicLong accessClock = new AtomicLong();
+    private final AtomicLong usedMemory = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @PostConstruct
+    private void initializeInvalidation() {
+        cacheInvalidationBus.subscribe(CACHE_NAME, key -> {
+            if (key.startsWith(CHAT_PREFIX)) {
+                dropChat(Integer.parseInt(key.substring(CHAT_PREFIX.length())));
+            } else if (key.startsWith(MESSAGE_PREFIX)) {
+                dropMessageChat(Integer.parseInt(key.substring(MESSAGE_PREFIX.length())));
+            }
+        });
+    }
+
+    public int getMaxChatMessages() {
+        return maxChatMessages;
+    }
+
+    public long getWriteStamp(int chatId) {
+        return writeStamps.get(stripe(chatId));
+    }
+
+    public boolean isOversized(int chatId) {
+        return oversizedChats.contains(chatId);
+    }
+
+    /**
+     * Sent messages containing every query term, the last term is matched as prefix unless query ends with separator
+     *
+     * @return messages ordered from the newest to the oldest one or null if chat is not indexed
+     */
+    public List<AbstractMessageModel> search(int chatId, String query, int limit) {
+        List<String> tokens = tokenize(query);
+        boolean prefix = !query.isEmpty() && isTokenCharacter(query.codePointBefore(query.length()));
+        List<AbstractMessageModel> messages = new ArrayList<>();
+        synchronized (lock(chatId)) {
+            ChatIndex index = chats.get(chatId);
+            if (index == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            index.lastAccess = accessClock.incrementAndGet();
+            if (tokens.isEmpty()) {
+                return messages;
+            }
+            int[] matches = index.match(tokens, prefix);
+            Comparator<Integer> newestFirst = Comparator.comparing((Integer id) -> index.messages.get(id).sentAt).thenComparing(id -> id).reversed();
+            PriorityQueue<Integer> newest = new PriorityQueue<>(limit + 1, newestFirst.reversed());
+            for (int id : matches) {
+                if (index.messages.get(id).messageType == MessageType.SENT) {
+                    newest.add(id);
+                    if (newest.size() > limit) {
+                        newest.poll();
+                    }
+                }
+            }
+            List<Integer> found = new ArrayList<>(newest);
+            found.sort(newestFirst);
+            for (Integer id : found) {
+                messages.add(index.messages.get(id).toModel(id, chatId));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Indexes loaded chat messages, result is dropped if chat was changed after write stamp was taken
+     */
+    public void putChat(int chatId, List<AbstractMessageModel> messages, List<MessageCursor> cursors, long writeStamp) {
+        synchronized (lock(chatId)) {
+            if (writeStamps.get(stripe(chatId)) != writeStamp || chats.containsKey(chatId)) {
+                return;
+            }
+            ChatIndex index = new ChatIndex();
+            for (int i = 0; i < messages.size(); i++) {
+                AbstractMessageModel message = messages.get(i);
+                index.add(message.getId(), new IndexedMessage(message.getMessage(), cursors.get(i).getSentAt(), message.getAuthorId(), message.getMessageType()));
+                messageToChat.put(message.getId(), chatId);
+            }
+            index.lastAccess = accessClock.incrementAndGet();
+            chats.put(chatId, index);
+            oversizedChats.remove(chatId);
+            usedMemory.addAndGet(index.memory);
+        }
+        evictIfNeeded();
+    }
+
+    public void markOversized(int chatId) {
+        oversizedChats.add(chatId);
+    }
+
+    public void addMessage(int chatId, int messageId, String message, Timestamp sentAt, int authorId, MessageType messageType) {
+        afterCommit(chatId, () -> {
+            ChatIndex index = chats.get(chatId);
+            if (index == null) {
+                return;
+            }
+            long memoryBefore = index.memory;
+            index.remove(messageId);
+            index.add(messageId, new IndexedMessage(message, sentAt, authorId, messageType));
+            messageToChat.put(messageId, chatId);
+            usedMemory.addAndGet(index.memory - memoryBefore);
+        });
+    }
+
+    public void updateMessage(int messageId, String message) {
+        afterMessageCommit(messageId, index -> {
+            long memoryBefore = index.memory;
+            IndexedMessage entry = index.remove(messageId);
+            index.add(messageId, new IndexedMessage(message, entry.sentAt, entry.authorId, entry.messageType));
+            usedMemory.addAndGet(index.memory - memoryBefore);
+        });
+    }
+
+    public void updateMessageType(int messageId, MessageType messageType) {
+        afterMessageCommit(messageId, index -> index.messages.get(messageId).messageType = messageType);
+    }
+
+    public void removeMessage(int messageId) {
+        afterMessageCommit(messageId, index -> {
+            long memoryBefore = index.memory;
+            index.remove(messageId);
+            messageToChat.remove(messageId);
+            usedMemory.addAndGet(index.memory - memoryBefore);
+        });
+    }
+
+    public void removeChat(int chatId) {
+        afterCommit(chatId, () -> {
+            oversizedChats.remove(chatId);
+            ChatIndex index = chats.remove(chatId);
+            if (index != null) {
+                releaseIndex(index);
+            }
+        });
+    }
+
+    public MessageIndexStatistics getStatistics() {
+        int indexedChats = 0;
+        int terms = 0;
+        for (Map.Entry<Integer, ChatIndex> entry : chats.entrySet()) {
+            synchronized (lock(entry.getKey())) {
+                indexedChats++;
+                terms += entry.getValue().terms.size();
+            }
+        }
+        return new MessageIndexStatistics(hits.get(), misses.get(), evictions.get(), indexedChats, messageToChat.size(),
+                                          terms, oversizedChats.size(), usedMemory.get(), memoryBudget);
+    }
+
+    /**
+     * Lower cased runs of letters and digits, the same split is used for indexing and querying
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (isTokenCharacter(codePoint)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+                tokens.add(token.length() > MAX_TERM_LENGTH ? token.substring(0, MAX_TERM_LENGTH) : token);
+                start = -1;
+            }
+            i += i < text.length() ? Character.charCount(codePoint) : 1;
+        }
+        return tokens;
+    }
+
+    private static boolean isTokenCharacter(int codePoint) {
+        return Character.isLetterOrDigit(codePoint);
+    }
+
+    /**
+     * Chat of message outside of index is unknown, so every loading in progress is discarded.
+     * Chat loaded before its stripe was passed is found by the second lookup
+     *
+     * @return chat ID of indexed message or null
+     */
+    private Integer findChat(int messageId) {
+        Integer chatId = messageToChat.get(messageId);
+        if (chatId != null) {
+            return chatId;
+        }
+        for (int i = 0; i < WRITE_STAMP_STRIPES; i++) {
+            synchronized (chatLocks[i]) {
+                writeStamps.incrementAndGet(i);
+            }
+        }
+        return messageToChat.get(messageId);
+    }
+
+    private void releaseIndex(ChatIndex index) {
+        index.messages.keySet().forEach(messageToChat::remove);
+        usedMemory.addAndGet(-index.memory);
+    }
+
+    /**
+     * Chats are evicted from the least recently used one, access stamps are copied first, so order does not change while evicting
+     */
+    private void evictIfNeeded() {
+        if (usedMemory.get() <= memoryBudget) {
+            return;
+        }
+        synchronized (evictionLock) {
+            TreeMap<Long, Integer> leastRecentlyUsed = new TreeMap<>();
+            chats.forEach((chatId, index) -> leastRecentlyUsed.put(index.lastAccess, chatId));
+            for (Integer chatId : leastRecentlyUsed.values()) {
+                if (usedMemory.get() <= memoryBudget) {
+                    return;
+                }
+                synchronized (lock(chatId)) {
+                    ChatIndex index = chats.remove(chatId);
+                    if (index != null) {
+                        releaseIndex(index);
+                        evictions.incrementAndGet();
+                        log.debug("Chat '{}' evicted from message search index", chatId);
+                    }
+                }
+            }
+        }
+    }
+
+    private void dropChat(int chatId) {
+        synchronized (lock(chatId)) {
+            writeStamps.incrementAndGet(stripe(chatId));
+            ChatIndex index = chats.remove(chatId);
+            if (index != null) {
+                releaseIndex(index);
+            }
+        }
+    }
+
+    private void dropMessageChat(int messageId) {
+        Integer chatId = findChat(messageId);
+        if (chatId != null) {
+            dropChat(chatId);
+        }
+    }
+
+    /**
+     * Loading inside of transaction sees its uncommitted changes, so chat touched by rolled back transaction is dropped
+     */
+    private void afterCommit(int chatId, Runnable change) {
+        cacheInvalidationBus.publish(CACHE_NAME, CHAT_PREFIX + chatId);
+        TransactionCallbackUtility.runAfterCompletion(() -> {
+            synchronized (lock(chatId)) {
+                writeStamps.incrementAndGet(stripe(chatId));
+                change.run();
+            }
+            evictIfNeeded();
+        }, () -> dropChat(chatId));
+    }
+
+    /**
+     * Change is applied to chat index only if it still contains the message
+     */
+    private void afterMessageCommit(int messageId, Consumer<ChatIndex> change) {
+        cacheInvalidationBus.publish(CACHE_NAME, MESSAGE_PREFIX + messageId);
+        TransactionCallbackUtility.runAfterCompletion(() -> {
+            Integer chatId = findChat(messageId);
+            if (chatId == null) {
+                return;
+            }
+            synchronized (lock(chatId)) {
+                writeStamps.incrementAndGet(stripe(chatId));
+                ChatIndex index = chats.get(chatId);
+                if (index != null && index.messages.containsKey(messageId)) {
+                    change.accept(index);
+                }
+            }
+            evictIfNeeded();
+        }, () -> dropMessageChat(messageId));
+    }
+
+    private static Object[] createLocks() {
+        Object[] locks = new Object[WRITE_STAMP_STRIPES];
+        for (int i = 0; i < WRITE_STAMP_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private Object lock(int chatId) {
+        return chatLocks[stripe(chatId)];
+    }
+
+    private static int stripe(int chatId) {
+        return Math.floorMod(chatId, WRITE_STAMP_STRIPES);
+    }
+
+    private static class IndexedMessage {
+        private final String message;
+        private final Timestamp sentAt;
+        private final int authorId;
+        private MessageType messageType;
+
+        private IndexedMessage(String message, Timestamp sentAt, int authorId, MessageType messageType) {
+            this.message = message;
+            this.sentAt = sentAt;
+            this.authorId = authorId;
+            this.messageType = messageType;
+        }
+
+        private AbstractMessageModel toModel(int id, int chatId) {
+            return new AbstractMessageModel(id, message, sentAt, authorId, chatId, messageType);
+        }
+
+        private long estimateMemory() {
+            return MESSAGE_MEMORY_OVERHEAD + (message == null ? 0 : 2L * message.length());
+        }
+    }
+
+    private static class ChatIndex {
+        private final TreeMap<String, PostingList> terms = new TreeMap<>();
+        private final Map<Integer, IndexedMessage> messages = new HashMap<>();
+        private long memory;
+        private volatile long lastAccess;
+
+        private void add(int messageId, IndexedMessage entry) {
+            messages.put(messageId, entry);
+            memory += entry.estimateMemory();
+            for (String token : new HashSet<>(tokenize(entry.message))) {
+                PostingList postings = terms.get(token);
+                if (postings == null) {
+                    postings = new PostingList();
+                    terms.put(token, postings);
+                    memory += TERM_MEMORY_OVERHEAD + 2L * token.length() + postings.estimateMemory();
+                }
+                long postingsMemory = postings.estimateMemory();
+                postings.add(messageId);
+                memory += postings.estimateMemory() - postingsMemory;
+            }
+        }
+
+        private IndexedMessage remove(int messageId) {
+            IndexedMessage entry = messages.remove(messageId);
+            if (entry == null) {
+                return null;
+            }
+            memory -= entry.estimateMemory();
+            for (String token : new HashSet<>(tokenize(entry.message))) {
+                PostingList postings = terms.get(token);
+                if (postings == null) {
+                    continue;
+                }
+                long postingsMemory = postings.estimateMemory();
+                postings.remove(messageId);
+                memory += postings.estimateMemory() - postingsMemory;
+                if (postings.size == 0) {
+                    terms.remove(token);
+                    memory -= TERM_MEMORY_OVERHEAD + 2L * token.length() + postings.estimateMemory();
+                }
+            }
+            return entry;
+        }
+
+        /**
+         * @return ascending message IDs containing every token
+         */
+        private int[] match(List<String> tokens, boolean prefix) {
+            List<int[]> lists = new ArrayList<>(tokens.size());
+            for (int i = 0; i < tokens.size(); i++) {
+                int[] postings = prefix && i == tokens.size() - 1 ? matchPrefix(tokens.get(i)) : matchExact(tokens.get(i));
+                if (postings.length == 0) {
+                    return postings;
+                }
+                lists.add(postings);
+            }
+            lists.sort(Comparator.comparingInt(list -> list.length));
+            int[] result = lists.get(0);
+            for (int i = 1; i < lists.size() && result.length > 0; i++) {
+                result = intersect(result, lists.get(i));
+            }
+            return result;
+        }
+
+        private int[] matchExact(String token) {
+            PostingList postings = terms.get(token);
+            return postings == null ? new int[0] : Arrays.copyOf(postings.ids, postings.size);
+        }
+
+        private int[] matchPrefix(String prefix) {
+            SortedMap<String, PostingList> matches = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+            if (matches.size() == 1) {
+                return matchExact(matches.firstKey());
+            }
+            int total = 0;
+            for (PostingList postings : matches.values()) {
+                total += postings.size;
+            }
+            int[] union = new int[total];
+            int position = 0;
+            for (PostingList postings : matches.values()) {
+                System.arraycopy(postings.ids, 0, union, position, postings.size);
+                position += postings.size;
+            }
+            Arrays.sort(union);
+            int distinct = 0;
+            for (int i = 0; i < union.length; i++) {
+                if (i == 0 || union[i] != union[i - 1]) {
+                    union[distinct++] = union[i];
+                }
+            }
+            return Arrays.copyOf(union, distinct);
+        }
+
+        private static int[] intersect(int[] first, int[] second) {
+            int[] result = new int[Math.min(first.length, second.length)];
+            int size = 0;
+            for (int i = 0, j = 0; i < first.length && j < second.length; ) {
+                if (first[i] < second[j]) {
+                    i++;
+                } else if (first[i] > second[j]) {
+                    j++;
+                } else {
+                    result[size++] = first[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, size);
+        }
+    }
+
+    /**
+     * Ascending message IDs, messages are mostly added with growing IDs, so insertion is append in common case
+     */
+    private static class PostingList {
+        private int[] ids = new int[2];
+        private int size;
+
+        private void add(int id) {
+            int position = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+            if (position >= 0 && position < size) {
+                return;
+            }
+            position = position < 0 ? -position - 1 : position;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length + (ids.length >> 1) + 1);
+            }
+            System.arraycopy(ids, position, ids, position + 1, size - position);
+            ids[position] = id;
+            size++;
+        }
+
+        private void remove(int id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position < 0) {
+                return;
+            }
+            System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+            size--;
+            if (size < ids.length >> 2 && ids.length > 8) {
+                ids = Arrays.copyOf(ids, ids.length >> 1);
+            }
+        }
+
+        private long estimateMemory() {
+            return 16 + 4L * ids.length;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package spring.application.tree.data.messages.models;
 
 import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -38,4 +39,12 @@ public class AbstractMessageModel {
         }
         return OffsetDateTime.ofInstant(sendingDate.toInstant(), ZoneId.systemDefault());
     }
+
+    /**
+     * Sending date as it is stored, together with ID it is key of message
+     */
+    @JsonIgnore
+    public Date getStoredSendingDate() {
+        return sendingDate;
+    }
 }
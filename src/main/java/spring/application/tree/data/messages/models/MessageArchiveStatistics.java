@@ -0,0 +1,19 @@
+package spring.application.tree.data.messages.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageArchiveStatistics {
+    private int chats;
+    private int segments;
+    private long blocks;
+    private long messages;
+    private long storedBytes;
+    private int mappedSegments;
+    private long blockReads;
+    private long appendedMessages;
+}
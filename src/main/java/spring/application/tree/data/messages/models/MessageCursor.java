@@ -0,0 +1,54 @@
+package spring.application.tree.data.messages.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.http.HttpStatus;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.Comparator;
+
+/**
+ * Position of message in chat history, ordering is done by sending date and ID,
+ * token representation is opaque for clients
+ */
+@Data
+@AllArgsConstructor
+public class MessageCursor {
+    public static final Comparator<MessageCursor> HISTORY_ORDER = Comparator.comparing(MessageCursor::getSentAt).thenComparingInt(MessageCursor::getId);
+    private Timestamp sentAt;
+    private int id;
+
+    public String encode() {
+        long seconds = Math.floorDiv(sentAt.getTime(), 1000L);
+        String raw = String.format("%d:%d:%d", seconds, sentAt.getNanos(), id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static MessageCursor decode(String token) throws InvalidAttributesException {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException(token);
+            }
+            Timestamp sentAt = new Timestamp(Long.parseLong(parts[0]) * 1000L);
+            sentAt.setNanos(Integer.parseInt(parts[1]));
+            int id = Integer.parseInt(parts[2]);
+            if (id <= 0) {
+                throw new IllegalArgumentException(token);
+            }
+            return new MessageCursor(sentAt, id);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAttributesException(String.format("Message cursor is invalid: %s", token),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package spring.application.tree.data.messages.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageIndexStatistics {
+    private long hits;
+    private long misses;
+    private long evictions;
+    private int chats;
+    private int messages;
+    private int terms;
+    private int oversizedChats;
+    private long usedMemory;
+    private long memoryBudget;
+}
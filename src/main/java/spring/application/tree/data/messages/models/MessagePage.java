@@ -0,0 +1,28 @@
+package spring.application.tree.data.messages.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessagePage {
+    /**
+     * Messages ordered from the newest to the oldest one
+     */
+    private List<AbstractMessageModel> messages;
+    /**
+     * Cursor for reading older messages, passed as 'before', null if history end is reached
+     */
+    @JsonProperty("next_cursor")
+    private String nextCursor;
+    /**
+     * Cursor for reading newer messages, passed as 'after', null if page is empty and no anchor was passed
+     */
+    @JsonProperty("previous_cursor")
+    private String previousCursor;
+}
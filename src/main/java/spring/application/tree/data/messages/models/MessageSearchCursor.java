@@ -0,0 +1,55 @@
+package spring.application.tree.data.messages.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.http.HttpStatus;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+/**
+ * Position of message in search results, ordering is done by rank, sending date and ID.
+ * Rank is kept as exact float bits, so it matches rank computed by database again,
+ * token representation is opaque for clients
+ */
+@Data
+@AllArgsConstructor
+public class MessageSearchCursor {
+    private float rank;
+    private Timestamp sentAt;
+    private int id;
+
+    public String encode() {
+        long seconds = Math.floorDiv(sentAt.getTime(), 1000L);
+        String raw = String.format("%d:%d:%d:%d", Float.floatToIntBits(rank), seconds, sentAt.getNanos(), id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static MessageSearchCursor decode(String token) throws InvalidAttributesException {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException(token);
+            }
+            float rank = Float.intBitsToFloat(Integer.parseInt(parts[0]));
+            Timestamp sentAt = new Timestamp(Long.parseLong(parts[1]) * 1000L);
+            sentAt.setNanos(Integer.parseInt(parts[2]));
+            int id = Integer.parseInt(parts[3]);
+            if (id <= 0 || Float.isNaN(rank)) {
+                throw new IllegalArgumentException(token);
+            }
+            return new MessageSearchCursor(rank, sentAt, id);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAttributesException(String.format("Message search cursor is invalid: %s", token),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+    }
+}
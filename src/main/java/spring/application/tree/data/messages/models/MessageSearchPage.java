@@ -0,0 +1,23 @@
+package spring.application.tree.data.messages.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageSearchPage {
+    /**
+     * Results ordered from the most to the least relevant one, equally relevant ones from the newest to the oldest one
+     */
+    private List<MessageSearchResult> results;
+    /**
+     * Cursor for reading less relevant results, passed as 'after', null if results end is reached
+     */
+    @JsonProperty("next_cursor")
+    private String nextCursor;
+}
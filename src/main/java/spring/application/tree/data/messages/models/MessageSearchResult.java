@@ -0,0 +1,17 @@
+package spring.application.tree.data.messages.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageSearchResult {
+    private AbstractMessageModel message;
+    /**
+     * HTML escaped fragments of message, matched words are wrapped into 'mark' tags
+     */
+    private String snippet;
+    private float rank;
+}
@@ -4,33 +4,72 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.messages.archive.MessageArchive;
+import spring.application.tree.data.messages.cache.MessageHistoryCache;
+import spring.application.tree.data.messages.cache.MessageSearchIndex;
 import spring.application.tree.data.messages.attributes.MessageType;
 import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageCursor;
+import spring.application.tree.data.messages.models.MessagePage;
+import spring.application.tree.data.messages.models.MessageSearchCursor;
+import spring.application.tree.data.messages.models.MessageSearchPage;
+import spring.application.tree.data.messages.models.MessageSearchResult;
 import spring.application.tree.data.users.service.UserService;
+import spring.application.tree.data.utility.models.PairValue;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.function.Consumer;
 
 @Repository
 @Slf4j
 @RequiredArgsConstructor
 public class MessageDataAccessObject {
+    /**
+     * Text search configuration of generated search vector column, queries have to use the same one to hit its index
+     */
+    private static final String SEARCH_CONFIGURATION = "simple";
+    /**
+     * Number of whole months before current one read by the first query of the latest page
+     */
+    private static final int LATEST_PAGE_MONTHS = 1;
+    /**
+     * Key of advisory lock of archiving, differs from lock of chat events appending
+     */
+    private static final long ARCHIVE_LOCK_KEY = 0x61726368L;
     private final JdbcTemplate jdbcTemplate;
-
+    private final MessageHistoryCache messageHistoryCache;
+    private final MessageSearchIndex messageSearchIndex;
+    private final MessageArchive messageArchive;
 
     public AbstractMessageModel getMessage(int id) throws InvalidAttributesException {
+        return getMessage(id, messageHistoryCache.getSentAt(id));
+    }
+
+    /**
+     * Message is looked up in partition of its sending date, message which is not found there is looked up in every partition
+     */
+    public AbstractMessageModel getMessage(int id, Date sentAt) throws InvalidAttributesException {
         if (id <= 0) {
             throw new InvalidAttributesException(String.format("Message ID is invalid: %s", id),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        final String query = "SELECT message, sent_at, author_id, chat_id, type FROM messages WHERE id = ? ORDER BY sent_at DESC;";
-        return jdbcTemplate.query(query,  resultSet -> {
+        final String query = "SELECT message, sent_at, author_id, chat_id, type FROM messages WHERE %s ORDER BY sent_at DESC;";
+        ResultSetExtractor<AbstractMessageModel> extractor = resultSet -> {
             if (resultSet.next()) {
                 String message = resultSet.getString("message");
                 Date sendingDate = resultSet.getTimestamp("sent_at");
@@ -40,71 +79,491 @@ public class MessageDataAccessObject {
                 return new AbstractMessageModel(id, message, sendingDate, authorId, chatId, messageType);
             }
             return null;
-        }, id);
+        };
+        AbstractMessageModel message = jdbcTemplate.query(String.format(query, keyPredicate(sentAt)), extractor, keyArguments(id, sentAt));
+        if (message == null && sentAt != null) {
+            message = jdbcTemplate.query(String.format(query, keyPredicate(null)), extractor, keyArguments(id, null));
+        }
+        return message;
     }
 
-    public List<AbstractMessageModel> getMessages(int chatId) throws InvalidAttributesException {
-        if (chatId <= 0) {
-            throw new InvalidAttributesException(String.format("Chat ID is invalid: %s", chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+    /**
+     * Page of stored messages is completed by archived ones when archive of chat reaches into it,
+     * otherwise archive is not read, so pages of recent history are served by database and cache only
+     */
+    public MessagePage getMessages(int chatId, MessageCursor before, MessageCursor after, int limit) throws InvalidAttributesException {
+        if (chatId <= 0 || limit <= 0 || (before != null && after != null)) {
+            throw new InvalidAttributesException(String.format("Chat ID: %s or page size: %s is invalid, or both cursors are passed, before: %s, after: %s", chatId, limit, before, after),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        final String query = "SELECT id, message, sent_at, author_id, type FROM messages WHERE chat_id = ? ORDER BY sent_at DESC;";
+        MessagePage page = getStoredMessages(chatId, before, after, limit);
+        MessageCursor newestArchived = messageArchive.getNewestCursor(chatId);
+        if (newestArchived == null) {
+            return page;
+        }
+        if (after != null) {
+            if (MessageCursor.HISTORY_ORDER.compare(newestArchived, after) <= 0) {
+                return page;
+            }
+        } else {
+            MessageCursor oldestOnPage = MessageCursor.decode(page.getNextCursor());
+            if (oldestOnPage != null && MessageCursor.HISTORY_ORDER.compare(newestArchived, oldestOnPage) < 0) {
+                return page;
+            }
+        }
+        return getMergedMessages(chatId, before, after, limit);
+    }
+
+    /**
+     * Cursor is applied by row comparison over chat history index and duplicated by plain sending date bound,
+     * which planner uses to skip partitions of messages table outside of requested page
+     */
+    private MessagePage getStoredMessages(int chatId, MessageCursor before, MessageCursor after, int limit) {
+        boolean cacheable = before == null && after == null && limit <= messageHistoryCache.getCapacity();
+        if (cacheable) {
+            MessagePage cachedPage = messageHistoryCache.getLatestMessages(chatId, limit);
+            if (cachedPage != null) {
+                return cachedPage;
+            }
+        }
+        long writeStamp = messageHistoryCache.getWriteStamp(chatId);
+        int fetchLimit = cacheable ? messageHistoryCache.getCapacity() : limit;
         List<AbstractMessageModel> messages = new ArrayList<>();
+        List<MessageCursor> cursors = new ArrayList<>();
+        queryMessages(chatId, before, after, fetchLimit + 1, messages, cursors);
+        boolean hasMore = messages.size() > fetchLimit;
+        if (cacheable) {
+            messageHistoryCache.putLatestMessages(chatId, messages, cursors, !hasMore, writeStamp);
+        }
+        return buildPage(messages, cursors, after, limit);
+    }
+
+    /**
+     * Stored and archived messages are merged by history order, message present in both of them
+     * after interrupted archiving is taken from database
+     */
+    private MessagePage getMergedMessages(int chatId, MessageCursor before, MessageCursor after, int limit) {
+        List<AbstractMessageModel> candidateMessages = new ArrayList<>();
+        List<MessageCursor> candidateCursors = new ArrayList<>();
+        queryMessages(chatId, before, after, limit + 1, candidateMessages, candidateCursors);
+        if (after != null) {
+            messageArchive.getMessagesAfter(chatId, after, limit + 1, candidateMessages, candidateCursors);
+        } else {
+            messageArchive.getMessagesBefore(chatId, before, limit + 1, candidateMessages, candidateCursors);
+        }
+        Comparator<MessageCursor> pageOrder = after != null ? MessageCursor.HISTORY_ORDER : MessageCursor.HISTORY_ORDER.reversed();
+        Integer[] order = new Integer[candidateMessages.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (left, right) -> pageOrder.compare(candidateCursors.get(left), candidateCursors.get(right)));
+        List<AbstractMessageModel> messages = new ArrayList<>();
+        List<MessageCursor> cursors = new ArrayList<>();
+        Set<Integer> messageIds = new HashSet<>();
+        for (int i = 0; i < order.length && messages.size() <= limit; i++) {
+            if (messageIds.add(candidateCursors.get(order[i]).getId())) {
+                messages.add(candidateMessages.get(order[i]));
+                cursors.add(candidateCursors.get(order[i]));
+            }
+        }
+        return buildPage(messages, cursors, after, limit);
+    }
+
+    /**
+     * Messages are ordered from the oldest to the newest one when reading after cursor, otherwise from the newest to the oldest one.
+     * The latest page is read from partitions of recent months first, so active chat is served without probing index of every partition,
+     * older partitions are read only when recent months do not fill the page
+     */
+    private void queryMessages(int chatId, MessageCursor before, MessageCursor after, int limit,
+                               List<AbstractMessageModel> messages, List<MessageCursor> cursors) {
+        RowCallbackHandler handler = resultSet -> {
+            int id = resultSet.getInt("id");
+            String message = resultSet.getString("message");
+            Timestamp sendingDate = resultSet.getTimestamp("sent_at");
+            int authorId = resultSet.getInt("author_id");
+            MessageType messageType = MessageType.valueOf(resultSet.getString("type"));
+            messages.add(new AbstractMessageModel(id, message, sendingDate, authorId, chatId, messageType));
+            cursors.add(new MessageCursor(sendingDate, id));
+        };
+        if (after != null) {
+            final String query = "SELECT id, message, sent_at, author_id, type FROM messages " +
+                                 "WHERE chat_id = ? AND sent_at >= ? AND (sent_at, id) > (?, ?) ORDER BY sent_at ASC, id ASC LIMIT ?;";
+            jdbcTemplate.query(query, handler, chatId, after.getSentAt(), after.getSentAt(), after.getId(), limit);
+        } else if (before != null) {
+            final String query = "SELECT id, message, sent_at, author_id, type FROM messages " +
+                                 "WHERE chat_id = ? AND sent_at <= ? AND (sent_at, id) < (?, ?) ORDER BY sent_at DESC, id DESC LIMIT ?;";
+            jdbcTemplate.query(query, handler, chatId, before.getSentAt(), before.getSentAt(), before.getId(), limit);
+        } else {
+            Timestamp recentStart = Timestamp.from(YearMonth.now(ZoneOffset.UTC).minusMonths(LATEST_PAGE_MONTHS).atDay(1)
+                                                            .atStartOfDay().toInstant(ZoneOffset.UTC));
+            int found = messages.size();
+            final String recentQuery = "SELECT id, message, sent_at, author_id, type FROM messages " +
+                                       "WHERE chat_id = ? AND sent_at >= ? ORDER BY sent_at DESC, id DESC LIMIT ?;";
+            jdbcTemplate.query(recentQuery, handler, chatId, recentStart, limit);
+            int remaining = limit - (messages.size() - found);
+            if (remaining > 0) {
+                final String olderQuery = "SELECT id, message, sent_at, author_id, type FROM messages " +
+                                          "WHERE chat_id = ? AND sent_at < ? ORDER BY sent_at DESC, id DESC LIMIT ?;";
+                jdbcTemplate.query(olderQuery, handler, chatId, recentStart, remaining);
+            }
+        }
+    }
+
+    /**
+     * Messages beyond page size only mark that more history exists in direction of reading
+     */
+    private MessagePage buildPage(List<AbstractMessageModel> messages, List<MessageCursor> cursors, MessageCursor after, int limit) {
+        boolean hasMore = messages.size() > limit;
+        while (messages.size() > limit) {
+            messages.remove(messages.size() - 1);
+            cursors.remove(cursors.size() - 1);
+        }
+        if (after != null) {
+            Collections.reverse(messages);
+            Collections.reverse(cursors);
+        }
+        if (messages.isEmpty()) {
+            return new MessagePage(messages, null, after != null ? after.encode() : null);
+        }
+        boolean olderExist = after != null || hasMore;
+        String nextCursor = olderExist ? cursors.get(cursors.size() - 1).encode() : null;
+        String previousCursor = cursors.get(0).encode();
+        return new MessagePage(messages, nextCursor, previousCursor);
+    }
+
+    /**
+     * Sent messages matching web search style query over chats member is participating, optionally over one chat only.
+     * Matches are found by GIN index over generated search vector, membership is checked by the same query
+     * and snippets are built for returned page only
+     */
+    public MessageSearchPage searchMessages(int memberId, String searchQuery, Integer chatId, MessageSearchCursor after, int limit) throws InvalidAttributesException {
+        if (memberId <= 0 || searchQuery == null || searchQuery.trim().isEmpty() || (chatId != null && chatId <= 0) || limit <= 0) {
+            throw new InvalidAttributesException(String.format("Member ID: %s, query: %s, chat ID: %s or page size: %s is invalid", memberId, searchQuery, chatId, limit),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = "SELECT page.*, ts_headline('" + SEARCH_CONFIGURATION + "', " +
+                             "replace(replace(replace(page.message, '&', '&amp;'), '<', '&lt;'), '>', '&gt;'), page.search_query, " +
+                             "'StartSel=<mark>, StopSel=</mark>, MaxFragments=2, MaxWords=30, MinWords=10, FragmentDelimiter=\" ... \"') AS snippet FROM (" +
+                             "SELECT messages.id, messages.message, messages.sent_at, messages.author_id, messages.chat_id, messages.type, " +
+                             "ts_rank(messages.search_vector, search_query) AS rank, search_query " +
+                             "FROM messages, websearch_to_tsquery('" + SEARCH_CONFIGURATION + "', ?) search_query " +
+                             "WHERE messages.search_vector @@ search_query AND messages.type = ? " +
+                             "AND messages.chat_id IN (SELECT chat_id FROM users_to_chats WHERE user_id = ?) " +
+                             (chatId == null ? "" : "AND messages.chat_id = ? ") +
+                             (after == null ? "" : "AND (ts_rank(messages.search_vector, search_query), messages.sent_at, messages.id) < (CAST(? AS REAL), ?, ?) ") +
+                             "ORDER BY rank DESC, messages.sent_at DESC, messages.id DESC LIMIT ?) page " +
+                             "ORDER BY page.rank DESC, page.sent_at DESC, page.id DESC;";
+        List<Object> params = new ArrayList<>(Arrays.asList(searchQuery, MessageType.SENT.name(), memberId));
+        if (chatId != null) {
+            params.add(chatId);
+        }
+        if (after != null) {
+            params.addAll(Arrays.asList(after.getRank(), after.getSentAt(), after.getId()));
+        }
+        params.add(limit + 1);
+        List<MessageSearchResult> results = new ArrayList<>();
+        List<MessageSearchCursor> cursors = new ArrayList<>();
         jdbcTemplate.query(query, resultSet -> {
+            int id = resultSet.getInt("id");
+            String message = resultSet.getString("message");
+            Timestamp sendingDate = resultSet.getTimestamp("sent_at");
+            int authorId = resultSet.getInt("author_id");
+            MessageType messageType = MessageType.valueOf(resultSet.getString("type"));
+            float rank = resultSet.getFloat("rank");
+            AbstractMessageModel abstractMessageModel = new AbstractMessageModel(id, message, sendingDate, authorId, resultSet.getInt("chat_id"), messageType);
+            results.add(new MessageSearchResult(abstractMessageModel, resultSet.getString("snippet"), rank));
+            cursors.add(new MessageSearchCursor(rank, sendingDate, id));
+        }, params.toArray());
+        boolean hasMore = results.size() > limit;
+        while (results.size() > limit) {
+            results.remove(results.size() - 1);
+            cursors.remove(cursors.size() - 1);
+        }
+        return new MessageSearchPage(results, hasMore ? cursors.get(cursors.size() - 1).encode() : null);
+    }
+
+    /**
+     * Chat local search served by in-process index, chat is loaded into index by the first search.
+     * Index is loaded from database only, so archived messages are not searched
+     *
+     * @return sent messages ordered from the newest to the oldest one, or null if chat is too large to be indexed
+     * or was changed while being loaded
+     */
+    public List<AbstractMessageModel> findChatMessages(int chatId, String searchQuery, int limit) throws InvalidAttributesException {
+        if (chatId <= 0 || searchQuery == null || limit <= 0) {
+            throw new InvalidAttributesException(String.format("Chat ID: %s, query: %s or limit: %s is invalid", chatId, searchQuery, limit),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        List<AbstractMessageModel> found = messageSearchIndex.search(chatId, searchQuery, limit);
+        if (found != null || messageSearchIndex.isOversized(chatId)) {
+            return found;
+        }
+        int maxChatMessages = messageSearchIndex.getMaxChatMessages();
+        final String countQuery = "SELECT COUNT(*) FROM (SELECT 1 FROM messages WHERE chat_id = ? LIMIT ?) AS limited;";
+        Integer count = jdbcTemplate.queryForObject(countQuery, Integer.class, chatId, maxChatMessages + 1);
+        if (count != null && count > maxChatMessages) {
+            log.debug("Chat '{}' has more than {} messages, it is searched by database", chatId, maxChatMessages);
+            messageSearchIndex.markOversized(chatId);
+            return null;
+        }
+        long writeStamp = messageSearchIndex.getWriteStamp(chatId);
+        final String query = "SELECT id, message, sent_at, author_id, type FROM messages WHERE chat_id = ? ORDER BY id LIMIT ?;";
+        List<AbstractMessageModel> messages = new ArrayList<>();
+        List<MessageCursor> cursors = new ArrayList<>();
+        jdbcTemplate.query(query, resultSet -> {
+            int id = resultSet.getInt("id");
+            String message = resultSet.getString("message");
+            Timestamp sendingDate = resultSet.getTimestamp("sent_at");
+            int authorId = resultSet.getInt("author_id");
+            MessageType messageType = MessageType.valueOf(resultSet.getString("type"));
+            messages.add(new AbstractMessageModel(id, message, sendingDate, authorId, chatId, messageType));
+            cursors.add(new MessageCursor(sendingDate, id));
+        }, chatId, maxChatMessages + 1);
+        if (messages.size() > maxChatMessages) {
+            messageSearchIndex.markOversized(chatId);
+            return null;
+        }
+        messageSearchIndex.putChat(chatId, messages, cursors, writeStamp);
+        return messageSearchIndex.search(chatId, searchQuery, limit);
+    }
+
+    /**
+     * Reads whole chat history in chronological order, archived messages first and then stored ones through forward-only cursor,
+     * has to be called inside transaction, otherwise driver fetches all rows at once.
+     * Shared lock of archiving is held till the end of transaction, so archiving waits for reading and is skipped by its run meanwhile.
+     * Stored message not newer than the last archived one was archived by interrupted archiving run and is not passed again
+     */
+    public long streamMessages(int chatId, int fetchSize, Consumer<AbstractMessageModel> consumer) throws InvalidAttributesException {
+        if (chatId <= 0 || fetchSize <= 0 || consumer == null) {
+            throw new InvalidAttributesException(String.format("Chat ID: %s, fetch size: %s or consumer: %s is invalid", chatId, fetchSize, consumer),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        jdbcTemplate.query("SELECT pg_advisory_xact_lock_shared(?);", resultSet -> null, ARCHIVE_LOCK_KEY);
+        if (messageArchive.isShared()) {
+            messageArchive.reloadChat(chatId);
+        }
+        MessageCursor[] lastArchived = {null};
+        long[] count = {messageArchive.streamMessages(chatId, message -> {
+            lastArchived[0] = new MessageCursor((Timestamp) message.getStoredSendingDate(), message.getId());
+            consumer.accept(message);
+        })};
+        final String query = "SELECT id, message, sent_at, author_id, type FROM messages WHERE chat_id = ? " +
+                             (lastArchived[0] == null ? "" : "AND (sent_at, id) > (?, ?) ") +
+                             "ORDER BY sent_at ASC, id ASC;";
+        jdbcTemplate.query(connection -> {
+            PreparedStatement preparedStatement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            preparedStatement.setFetchSize(fetchSize);
+            preparedStatement.setInt(1, chatId);
+            if (lastArchived[0] != null) {
+                preparedStatement.setTimestamp(2, lastArchived[0].getSentAt());
+                preparedStatement.setInt(3, lastArchived[0].getId());
+            }
+            return preparedStatement;
+        }, resultSet -> {
             int id = resultSet.getInt("id");
             String message = resultSet.getString("message");
             Date sendingDate = resultSet.getTimestamp("sent_at");
             int authorId = resultSet.getInt("author_id");
             MessageType messageType = MessageType.valueOf(resultSet.getString("type"));
+            consumer.accept(new AbstractMessageModel(id, message, sendingDate, authorId, chatId, messageType));
+            count[0]++;
+        });
+        return count[0];
+    }
+
+    /**
+     * @return chats having messages sent before cutoff which are not scheduled anymore
+     */
+    public List<Integer> getArchivableChats(Timestamp cutoff) {
+        final String query = "SELECT DISTINCT chat_id FROM messages WHERE sent_at < ? AND type <> 'SCHEDULED';";
+        return jdbcTemplate.queryForList(query, Integer.class, cutoff);
+    }
+
+    /**
+     * Takes transaction level advisory lock of archiving, so archive is written by one node of cluster at a time
+     *
+     * @return false if other node archives messages now
+     */
+    public boolean tryLockArchiving() {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT pg_try_advisory_xact_lock(?);", Boolean.class, ARCHIVE_LOCK_KEY));
+    }
+
+    /**
+     * Locks the oldest messages of chat sent before cutoff in chronological order, the newest message of chat is never taken,
+     * so chat keeps its last message in database, has to be called inside transaction deleting archived messages
+     */
+    public void lockArchivableMessages(int chatId, Timestamp cutoff, int limit, List<AbstractMessageModel> messages, List<MessageCursor> cursors) throws InvalidAttributesException {
+        if (chatId <= 0 || cutoff == null || limit <= 0) {
+            throw new InvalidAttributesException(String.format("Chat ID: %s, cutoff: %s or limit: %s is invalid", chatId, cutoff, limit),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = "SELECT id, message, sent_at, author_id, type FROM messages " +
+                             "WHERE chat_id = ? AND sent_at < ? AND type <> 'SCHEDULED' " +
+                             "AND (sent_at, id) < (SELECT sent_at, id FROM messages WHERE chat_id = ? ORDER BY sent_at DESC, id DESC LIMIT 1) " +
+                             "ORDER BY sent_at ASC, id ASC LIMIT ? FOR UPDATE;";
+        jdbcTemplate.query(query, resultSet -> {
+            int id = resultSet.getInt("id");
+            String message = resultSet.getString("message");
+            Timestamp sendingDate = resultSet.getTimestamp("sent_at");
+            int authorId = resultSet.getInt("author_id");
+            MessageType messageType = MessageType.valueOf(resultSet.getString("type"));
             messages.add(new AbstractMessageModel(id, message, sendingDate, authorId, chatId, messageType));
-        }, chatId);
-        return messages;
+            cursors.add(new MessageCursor(sendingDate, id));
+        }, chatId, cutoff, chatId, limit);
+    }
+
+    /**
+     * Removes archived messages, caches and index of chat are dropped after commit and loaded again from remaining history
+     */
+    public int deleteArchivedMessages(int chatId, Timestamp cutoff, Collection<Integer> messageIds) throws InvalidAttributesException {
+        if (chatId <= 0 || cutoff == null || messageIds == null) {
+            throw new InvalidAttributesException(String.format("Chat ID: %s, cutoff: %s or message IDs: %s is invalid", chatId, cutoff, messageIds),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = "DELETE FROM messages WHERE chat_id = ? AND sent_at < ? AND id = ANY(?);";
+        int deleted = jdbcTemplate.update(connection -> {
+            PreparedStatement preparedStatement = connection.prepareStatement(query);
+            preparedStatement.setInt(1, chatId);
+            preparedStatement.setTimestamp(2, cutoff);
+            preparedStatement.setArray(3, connection.createArrayOf("int4", messageIds.toArray()));
+            return preparedStatement;
+        });
+        messageHistoryCache.removeChat(chatId);
+        messageSearchIndex.removeChat(chatId);
+        return deleted;
     }
 
     public int addMessage(AbstractMessageModel abstractMessageModel) throws InvalidAttributesException {
         validateMessageModel(abstractMessageModel);
-        final String query = "INSERT INTO messages(message, sent_at, author_id, chat_id, type) VALUES(?, now(), ?, ?, ?) RETURNING id;";
+        final String query = "INSERT INTO messages(message, sent_at, author_id, chat_id, type) VALUES(?, now(), ?, ?, ?) RETURNING id, sent_at;";
         KeyHolder keyHolder = new GeneratedKeyHolder();
         jdbcTemplate.update(connection -> {
-            PreparedStatement preparedStatement = connection.prepareStatement(query, new String[] {"id"});
+            PreparedStatement preparedStatement = connection.prepareStatement(query, new String[] {"id", "sent_at"});
             preparedStatement.setString(1, abstractMessageModel.getMessage());
             preparedStatement.setInt(2, abstractMessageModel.getAuthorId());
             preparedStatement.setInt(3, abstractMessageModel.getChatId());
             preparedStatement.setString(4, abstractMessageModel.getMessageType().name());
             return preparedStatement;
         }, keyHolder);
-        return Objects.requireNonNull(keyHolder.getKey()).intValue();
+        Map<String, Object> keys = Objects.requireNonNull(keyHolder.getKeys());
+        int messageId = ((Number) keys.get("id")).intValue();
+        abstractMessageModel.setSendingDate((Timestamp) keys.get("sent_at"));
+        messageHistoryCache.addMessage(abstractMessageModel.getChatId(), messageId, abstractMessageModel.getMessage(), (Timestamp) keys.get("sent_at"),
+                                       abstractMessageModel.getAuthorId(), abstractMessageModel.getMessageType());
+        messageSearchIndex.addMessage(abstractMessageModel.getChatId(), messageId, abstractMessageModel.getMessage(), (Timestamp) keys.get("sent_at"),
+                                      abstractMessageModel.getAuthorId(), abstractMessageModel.getMessageType());
+        return messageId;
     }
 
-    public void updateMessage(int messageId, String message) throws InvalidAttributesException {
+    public void updateMessage(int messageId, Date sentAt, String message) throws InvalidAttributesException {
         if (messageId <= 0 || message == null || message.isEmpty()) {
             throw new InvalidAttributesException(String.format("Message ID: %s or message: %s is invalid", messageId, message),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        final String query = "UPDATE messages SET message = ? WHERE id = ?;";
-        jdbcTemplate.update(query, message, messageId);
+        updateByKey("UPDATE messages SET message = ? WHERE %s;", messageId, sentAt, message);
+        messageHistoryCache.updateMessage(messageId, message);
+        messageSearchIndex.updateMessage(messageId, message);
     }
 
-    public void updateMessageType(int messageId, MessageType messageType) throws InvalidAttributesException {
+    public void updateMessageType(int messageId, Date sentAt, MessageType messageType) throws InvalidAttributesException {
         if (messageId <= 0 || messageType == null) {
             throw new InvalidAttributesException(String.format("Message ID: %s or message type: %s is invalid", messageId, messageType),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        final String query = "UPDATE messages SET type = ? WHERE id = ?";
-        jdbcTemplate.update(query, messageType.name(), messageId);
+        updateByKey("UPDATE messages SET type = ? WHERE %s;", messageId, sentAt, messageType.name());
+        messageHistoryCache.updateMessageType(messageId, messageType);
+        messageSearchIndex.updateMessageType(messageId, messageType);
     }
 
-    public void deleteMessage(int messageId) throws InvalidAttributesException {
+    /**
+     * @return ID of chat if deleted message was sent, null if message was not found or was not sent yet
+     */
+    public Integer deleteMessage(int messageId, Date sentAt) throws InvalidAttributesException {
         if (messageId <= 0) {
             throw new InvalidAttributesException(String.format("Message ID is invalid: %s", messageId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        final String query = "DELETE FROM messages WHERE id = ?;";
-        jdbcTemplate.update(query, messageId);
+        final String query = "DELETE FROM messages WHERE %s RETURNING chat_id, type;";
+        RowMapper<Integer> sentChatId = (resultSet, rowNum) ->
+                MessageType.SENT.name().equals(resultSet.getString("type")) ? resultSet.getInt("chat_id") : null;
+        List<Integer> deleted = jdbcTemplate.query(String.format(query, keyPredicate(sentAt)), sentChatId, keyArguments(messageId, sentAt));
+        if (deleted.isEmpty() && sentAt != null) {
+            deleted = jdbcTemplate.query(String.format(query, keyPredicate(null)), sentChatId, keyArguments(messageId, null));
+        }
+        messageHistoryCache.removeMessage(messageId);
+        messageSearchIndex.removeMessage(messageId);
+        return deleted.isEmpty() ? null : deleted.get(0);
+    }
+
+    public void setMessageFireDate(int messageId, Date sentAt, Date fireDate) throws InvalidAttributesException {
+        if (messageId <= 0 || fireDate == null) {
+            throw new InvalidAttributesException(String.format("Message ID: %s or fire date: %s is invalid", messageId, fireDate),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        updateByKey("UPDATE messages SET fire_at = ?, dispatch_attempts = 0 WHERE %s;", messageId, sentAt, new Timestamp(fireDate.getTime()));
+    }
+
+    /**
+     * Claims due scheduled messages by moving their fire date forward for lease duration and counting dispatch attempt,
+     * rows locked by other nodes are skipped, messages which were not sent before lease ends are claimed again.
+     * Returns pairs of message key and number of attempts including current one
+     */
+    public List<PairValue<MessageCursor, Integer>> claimDueScheduledMessages(int batchSize, int leaseSeconds) {
+        final String query = "UPDATE messages SET fire_at = now() + make_interval(secs => ?), dispatch_attempts = dispatch_attempts + 1 " +
+                             "WHERE (id, sent_at) IN (SELECT id, sent_at FROM messages WHERE type = 'SCHEDULED' AND fire_at <= now() " +
+                             "ORDER BY fire_at LIMIT ? FOR UPDATE SKIP LOCKED) RETURNING id, sent_at, dispatch_attempts;";
+        return jdbcTemplate.query(query, (resultSet, rowNum) -> new PairValue<>(new MessageCursor(resultSet.getTimestamp("sent_at"), resultSet.getInt("id")),
+                                                                                resultSet.getInt("dispatch_attempts")),
+                                  leaseSeconds, batchSize);
+    }
+
+    public int countDueScheduledMessages() {
+        final String query = "SELECT COUNT(*) FROM messages WHERE type = 'SCHEDULED' AND fire_at <= now();";
+        Integer count = jdbcTemplate.queryForObject(query, Integer.class);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Message stays scheduled, but is not claimed anymore
+     */
+    public void abandonScheduledMessage(int messageId, Date sentAt) {
+        updateByKey("UPDATE messages SET fire_at = NULL WHERE %s AND type = 'SCHEDULED';", messageId, sentAt);
+    }
+
+    /**
+     * Key predicate lets partitioned table be pruned to partition of sending date. Dates of models sent by clients can be truncated
+     * to milliseconds or be wrong, so sending date is matched within its millisecond and unmatched message is looked up in every partition
+     */
+    private int updateByKey(String query, int messageId, Date sentAt, Object... values) {
+        int updated = jdbcTemplate.update(String.format(query, keyPredicate(sentAt)), keyArguments(messageId, sentAt, values));
+        if (updated == 0 && sentAt != null) {
+            updated = jdbcTemplate.update(String.format(query, keyPredicate(null)), keyArguments(messageId, null, values));
+        }
+        return updated;
+    }
+
+    private static String keyPredicate(Date sentAt) {
+        return sentAt == null ? "id = ?" : "id = ? AND sent_at >= ? AND sent_at < ?";
+    }
+
+    private static Object[] keyArguments(int messageId, Date sentAt, Object... values) {
+        List<Object> arguments = new ArrayList<>(Arrays.asList(values));
+        arguments.add(messageId);
+        if (sentAt != null) {
+            arguments.add(new Timestamp(sentAt.getTime()));
+            arguments.add(new Timestamp(sentAt.getTime() + 1));
+        }
+        return arguments.toArray();
     }
 
     private void validateMessageModel(AbstractMessageModel abstractMessageModel) throws InvalidAttributesException {
@@ -123,7 +582,7 @@ public class MessageDataAccessObject {
         }
         if (!exceptionText.toString().isEmpty()) {
             throw new InvalidAttributesException(exceptionText.toString(),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
     }
@@ -0,0 +1,115 @@
+package spring.application.tree.data.messages.repository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages table is partitioned by sending date, one partition per UTC month named messages_yyyy_MM.
+ * There is no default partition, so partitions are ordered and history queries read them one by one,
+ * message with sending date outside of existing partitions is rejected
+ */
+@Repository
+@Slf4j
+@RequiredArgsConstructor
+public class MessagePartitionDataAccessObject {
+    private static final DateTimeFormatter PARTITION_NAME_FORMAT = DateTimeFormatter.ofPattern("'messages_'yyyy_MM");
+    /**
+     * Exclusive lock waits for running queries and blocks every query behind it, so waiting for it is limited
+     */
+    private static final String LOCK_TIMEOUT = "5s";
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * @return months of attached partitions in chronological order
+     */
+    public List<YearMonth> getPartitions() {
+        final String query = "SELECT child.relname FROM pg_inherits " +
+                             "INNER JOIN pg_class child ON child.oid = pg_inherits.inhrelid " +
+                             "WHERE pg_inherits.inhparent = 'messages'::regclass ORDER BY child.relname;";
+        List<YearMonth> partitions = new ArrayList<>();
+        for (String name : jdbcTemplate.queryForList(query, String.class)) {
+            try {
+                partitions.add(YearMonth.parse(name, PARTITION_NAME_FORMAT));
+            } catch (RuntimeException e) {
+                log.warn("Messages partition '{}' does not follow monthly naming and is not managed", name);
+            }
+        }
+        return partitions;
+    }
+
+    public void createPartition(YearMonth month) throws InvalidAttributesException {
+        if (month == null) {
+            throw new InvalidAttributesException("Partition month is invalid: null",
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = String.format("CREATE TABLE IF NOT EXISTS %s PARTITION OF messages FOR VALUES FROM ('%s') TO ('%s');",
+                                           month.format(PARTITION_NAME_FORMAT),
+                                           month.atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC),
+                                           month.plusMonths(1).atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC));
+        jdbcTemplate.execute(query);
+    }
+
+    /**
+     * Detached partition is kept as standalone table, so its messages can be archived or attached back.
+     * Its foreign keys are dropped in the same transaction, otherwise chats and users it references could not be deleted.
+     * Detaching takes exclusive lock of messages table, waiting for it is limited, so partition is detached by the next run if it times out
+     */
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
+    public void detachPartition(YearMonth month) throws InvalidAttributesException {
+        if (month == null) {
+            throw new InvalidAttributesException("Partition month is invalid: null",
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String partition = month.format(PARTITION_NAME_FORMAT);
+        jdbcTemplate.execute(String.format("SET LOCAL lock_timeout = '%s';", LOCK_TIMEOUT));
+        jdbcTemplate.execute(String.format("ALTER TABLE messages DETACH PARTITION %s;", partition));
+        final String query = "SELECT conname FROM pg_constraint WHERE conrelid = CAST(? AS REGCLASS) AND contype = 'f';";
+        for (String constraint : jdbcTemplate.queryForList(query, String.class, partition)) {
+            jdbcTemplate.execute(String.format("ALTER TABLE %s DROP CONSTRAINT \"%s\";", partition, constraint.replace("\"", "\"\"")));
+        }
+    }
+
+    /**
+     * Partition is dropped only when it has no messages left, so nothing is lost if it was filled again.
+     * Emptiness is checked again under exclusive lock of messages table and partition taken in order of inserts,
+     * so no message can land in partition between check and drop
+     *
+     * @return true if partition was dropped
+     */
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
+    public boolean dropPartitionIfEmpty(YearMonth month) throws InvalidAttributesException {
+        if (month == null) {
+            throw new InvalidAttributesException("Partition month is invalid: null",
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String partition = month.format(PARTITION_NAME_FORMAT);
+        final String emptinessQuery = String.format("SELECT NOT EXISTS (SELECT 1 FROM %s);", partition);
+        if (!Boolean.TRUE.equals(jdbcTemplate.queryForObject(emptinessQuery, Boolean.class))) {
+            return false;
+        }
+        jdbcTemplate.execute(String.format("SET LOCAL lock_timeout = '%s';", LOCK_TIMEOUT));
+        jdbcTemplate.execute(String.format("LOCK TABLE messages, %s IN ACCESS EXCLUSIVE MODE;", partition));
+        if (!Boolean.TRUE.equals(jdbcTemplate.queryForObject(emptinessQuery, Boolean.class))) {
+            return false;
+        }
+        jdbcTemplate.execute(String.format("DROP TABLE %s;", partition));
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+package spring.application.tree.data.messages.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.messages.archive.MessageArchive;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageCursor;
+import spring.application.tree.data.messages.repository.MessageDataAccessObject;
+import spring.application.tree.data.messages.repository.MessagePartitionDataAccessObject;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Moves messages older than configured age from database to archive, archiving is disabled by age of zero days.
+ * Every batch is locked, written and forced to archive and deleted from database in one transaction,
+ * so batch interrupted before commit stays in database and is archived again by the next run without duplicates.
+ * Monthly partitions emptied by archiving are dropped, partition retention is refused together with archiving,
+ * as detached partitions are not archived. Every batch takes cluster wide advisory lock, run is stopped when other node holds it,
+ * so archive is written by one node at a time. Archive of several nodes has to be shared by them, otherwise history of chat
+ * would be split between their disks, so archiving is refused with cross node fan out unless archive is declared shared
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:message.properties")
+public class MessageArchiver {
+    private final MessageDataAccessObject messageDataAccessObject;
+    private final MessagePartitionDataAccessObject messagePartitionDataAccessObject;
+    private final MessageArchive messageArchive;
+    private final ScheduleService scheduleService;
+    private final PlatformTransactionManager transactionManager;
+    private final Environment environment;
+    @Value("${message.archive.age}")
+    private int age;
+    @Value("${message.archive.interval}")
+    private int interval;
+    @Value("${message.archive.batch.size}")
+    private int batchSize;
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    private void initializeArchiving() throws InvalidAttributesException {
+        if (age <= 0) {
+            return;
+        }
+        if (!messageArchive.isShared() && environment.acceptsProfiles(Profiles.of("fan_out_postgres | fan_out_relay"))) {
+            throw new IllegalStateException(String.format("Archiving of messages older than %s days requires archive shared by all nodes, " +
+                                                          "archive directory has to be on shared storage and message.archive.shared has to be set", age));
+        }
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::archiveMessages, interval, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Exceptions are not propagated, so archiving is never stopped, failed chat is archived again by the next run
+     */
+    private void archiveMessages() {
+        try {
+            Timestamp cutoff = Timestamp.from(Instant.now().minus(age, ChronoUnit.DAYS));
+            long start = System.nanoTime();
+            long archived = 0;
+            for (int chatId : messageDataAccessObject.getArchivableChats(cutoff)) {
+                try {
+                    int batch;
+                    do {
+                        batch = archiveBatch(chatId, cutoff);
+                        if (batch < 0) {
+                            log.debug("Messages archiving is skipped, other node archives messages now");
+                            return;
+                        }
+                        archived += batch;
+                    } while (batch == batchSize);
+                } catch (RuntimeException e) {
+                    log.error(String.format("Messages of chat '%s' could not be archived", chatId), e);
+                }
+            }
+            if (archived > 0) {
+                log.info("Messages archived: {} older than {} in {} ms", archived, cutoff, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            dropEmptyPartitions(cutoff);
+        } catch (RuntimeException e) {
+            log.error("Messages archiving failed", e);
+        }
+    }
+
+    /**
+     * @return count of archived messages, or -1 if other node holds lock of archiving
+     */
+    private int archiveBatch(int chatId, Timestamp cutoff) {
+        Integer archived = transactionTemplate.execute(status -> {
+            if (!messageDataAccessObject.tryLockArchiving()) {
+                return -1;
+            }
+            List<AbstractMessageModel> messages = new ArrayList<>();
+            List<MessageCursor> cursors = new ArrayList<>();
+            try {
+                messageDataAccessObject.lockArchivableMessages(chatId, cutoff, batchSize, messages, cursors);
+                if (messages.isEmpty()) {
+                    return 0;
+                }
+                messageArchive.append(chatId, messages, cursors);
+                messageDataAccessObject.deleteArchivedMessages(chatId, cutoff, cursors.stream().map(MessageCursor::getId).collect(Collectors.toList()));
+            } catch (InvalidAttributesException e) {
+                throw new IllegalStateException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return messages.size();
+        });
+        return archived == null ? 0 : archived;
+    }
+
+    /**
+     * Only months which ended before cutoff are dropped, later partitions can still receive messages
+     */
+    private void dropEmptyPartitions(Timestamp cutoff) {
+        YearMonth cutoffMonth = YearMonth.from(cutoff.toInstant().atOffset(ZoneOffset.UTC));
+        try {
+            for (YearMonth month : messagePartitionDataAccessObject.getPartitions()) {
+                if (month.isBefore(cutoffMonth) && messagePartitionDataAccessObject.dropPartitionIfEmpty(month)) {
+                    log.info("Messages partition for {} is dropped, all its messages are archived", month);
+                }
+            }
+        } catch (InvalidAttributesException | RuntimeException e) {
+            log.error("Archived messages partitions could not be dropped", e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package spring.application.tree.data.messages.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Service;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.messages.repository.MessagePartitionDataAccessObject;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+
+import javax.annotation.PostConstruct;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps monthly partitions of messages table ahead of current date, so new messages always have partition to land in.
+ * Partitions older than retention are detached from messages table, retention of zero months keeps every partition attached.
+ * Detached messages are not archived, so retention can not be used together with archiving
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:message.properties")
+public class MessagePartitionService {
+    private final MessagePartitionDataAccessObject messagePartitionDataAccessObject;
+    private final ScheduleService scheduleService;
+    @Value("${message.partitions.ahead}")
+    private int partitionsAhead;
+    @Value("${message.partitions.retention}")
+    private int retention;
+    @Value("${message.archive.age}")
+    private int archiveAge;
+
+    /**
+     * Partitions are maintained at startup before requests are served and then every hour
+     */
+    @PostConstruct
+    private void initializeMaintenance() throws InvalidAttributesException {
+        if (retention > 0 && archiveAge > 0) {
+            throw new IllegalStateException(String.format("Partition retention of %s months can not be used with archiving of messages older than %s days, " +
+                                                          "detached messages would not be archived", retention, archiveAge));
+        }
+        maintainPartitions();
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::maintainPartitions, 1, 1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Exceptions are not propagated, so maintenance is never stopped, creation is retried by the next run
+     */
+    private void maintainPartitions() {
+        try {
+            YearMonth currentMonth = YearMonth.now(ZoneOffset.UTC);
+            List<YearMonth> partitions = messagePartitionDataAccessObject.getPartitions();
+            for (YearMonth month = currentMonth; !month.isAfter(currentMonth.plusMonths(partitionsAhead)); month = month.plusMonths(1)) {
+                if (!partitions.contains(month)) {
+                    messagePartitionDataAccessObject.createPartition(month);
+                    log.info("Messages partition for {} is created", month);
+                }
+            }
+            if (retention <= 0) {
+                return;
+            }
+            YearMonth oldestRetainedMonth = currentMonth.minusMonths(retention);
+            for (YearMonth month : partitions) {
+                if (month.isBefore(oldestRetainedMonth)) {
+                    messagePartitionDataAccessObject.detachPartition(month);
+                    log.info("Messages partition for {} is detached, it is older than {} months", month, retention);
+                }
+            }
+        } catch (InvalidAttributesException | RuntimeException e) {
+            log.error("Messages partitions maintenance failed", e);
+        }
+    }
+}
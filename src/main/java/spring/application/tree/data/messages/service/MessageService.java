@@ -1,58 +1,197 @@
 package spring.application.tree.data.messages.service;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import spring.application.tree.data.chats.attributes.ChatType;
 import spring.application.tree.data.chats.service.ChatService;
+import spring.application.tree.data.events.service.ChatEventService;
 import spring.application.tree.data.exceptions.DataNotFoundException;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
 import spring.application.tree.data.exceptions.NotAllowedException;
+import spring.application.tree.data.messages.attributes.ExportFormat;
 import spring.application.tree.data.messages.attributes.MessageType;
 import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageCursor;
+import spring.application.tree.data.messages.models.MessagePage;
+import spring.application.tree.data.messages.models.MessageSearchCursor;
+import spring.application.tree.data.messages.models.MessageSearchPage;
+import spring.application.tree.data.messages.models.MessageSearchResult;
 import spring.application.tree.data.messages.repository.MessageDataAccessObject;
-import spring.application.tree.data.scheduling.service.ScheduleService;
 import spring.application.tree.data.users.service.UserService;
-import spring.application.tree.data.utility.models.PairValue;
 import spring.application.tree.web.webscoket.models.Endpoints;
 import spring.application.tree.web.webscoket.models.WebSocketEvent;
 import spring.application.tree.web.webscoket.service.WebSocketService;
 
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
 @RequiredArgsConstructor
+@PropertySource("classpath:message.properties")
 public class MessageService {
+    @Value("${message.page.size.default}")
+    private int defaultPageSize;
+    @Value("${message.page.size.max}")
+    private int maxPageSize;
+    @Value("${message.search.page.size.default}")
+    private int defaultSearchPageSize;
+    @Value("${message.search.page.size.max}")
+    private int maxSearchPageSize;
+    @Value("${message.search.query.length.max}")
+    private int maxSearchQueryLength;
+    @Value("${message.find.result.size.default}")
+    private int defaultFindResultSize;
+    @Value("${message.find.result.size.max}")
+    private int maxFindResultSize;
+    @Value("${message.export.fetch.size}")
+    private int exportFetchSize;
     private final MessageDataAccessObject messageDataAccessObject;
     private final ChatService chatService;
-    private final ScheduleService scheduleService;
+    private final ChatEventService chatEventService;
     private final WebSocketService webSocketService;
+    private final ObjectMapper objectMapper;
+    private ObjectWriter exportWriter;
 
-    /**
-     * key - user ID, value - message ID and sending task
-     */
-    private static final Map<Integer, List<PairValue<Integer, ScheduledFuture<?>>>> scheduleMessageTasks = new HashMap<>();
+    @PostConstruct
+    private void initializeExportWriter() {
+        exportWriter = objectMapper.writerFor(AbstractMessageModel.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
 
     public AbstractMessageModel getMessage(int id) throws InvalidAttributesException {
         return messageDataAccessObject.getMessage(id);
     }
 
-    public List<AbstractMessageModel> getMessages(int chatId) throws InvalidAttributesException, NotAllowedException {
+    public MessagePage getMessages(int chatId, String before, String after, Integer limit) throws InvalidAttributesException, NotAllowedException {
+        checkReadingMessageAvailability(chatId);
+        int pageSize = limit == null || limit <= 0 ? defaultPageSize : Math.min(limit, maxPageSize);
+        return messageDataAccessObject.getMessages(chatId, MessageCursor.decode(before), MessageCursor.decode(after), pageSize);
+    }
+
+    /**
+     * Searches over chats current user is participating, chat ID narrows search to one chat
+     */
+    public MessageSearchPage searchMessages(String query, Integer chatId, String after, Integer limit) throws InvalidAttributesException, NotAllowedException {
         Integer currentUserId = UserService.getIdOfCurrentlyAuthenticatedUser();
-        if (currentUserId == null || !chatService.checkUserPresenceInChat(currentUserId, chatId)) {
-            throw new NotAllowedException(String.format("User with ID: %s is not participating chat with ID: %s, message reading is forbidden", currentUserId, chatId),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
-                                          LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        if (currentUserId == null) {
+            throw new NotAllowedException("Message search forbidden, no authorization detected",
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.FORBIDDEN);
+        }
+        if (query == null || query.trim().isEmpty() || query.length() > maxSearchQueryLength) {
+            throw new InvalidAttributesException(String.format("Search query is invalid, it has to be not blank and not longer than %s characters", maxSearchQueryLength),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        int pageSize = limit == null || limit <= 0 ? defaultSearchPageSize : Math.min(limit, maxSearchPageSize);
+        return messageDataAccessObject.searchMessages(currentUserId, query, chatId, MessageSearchCursor.decode(after), pageSize);
+    }
+
+    /**
+     * As you type search inside of one chat, the last query word is matched as prefix.
+     * Chat is searched by in-process index, chats too large for it are searched by database full text search.
+     * Only messages stored in database are searched, messages moved to archive are not found
+     */
+    public List<AbstractMessageModel> findChatMessages(int chatId, String query, Integer limit) throws InvalidAttributesException, NotAllowedException {
+        checkReadingMessageAvailability(chatId);
+        if (query == null || query.length() > maxSearchQueryLength) {
+            throw new InvalidAttributesException(String.format("Search query is invalid, it has to be not longer than %s characters", maxSearchQueryLength),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        int resultSize = limit == null || limit <= 0 ? defaultFindResultSize : Math.min(limit, maxFindResultSize);
+        List<AbstractMessageModel> messages = messageDataAccessObject.findChatMessages(chatId, query, resultSize);
+        if (messages != null) {
+            return messages;
+        }
+        if (query.trim().isEmpty()) {
+            return new ArrayList<>();
+        }
+        return messageDataAccessObject.searchMessages(UserService.getIdOfCurrentlyAuthenticatedUser(), query, chatId, null, resultSize)
+                                      .getResults().stream()
+                                      .map(MessageSearchResult::getMessage)
+                                      .collect(Collectors.toList());
+    }
+
+    /**
+     * Writes chat history straight to response, rows are never collected in memory,
+     * transaction keeps server side cursor open while rows are fetched in portions
+     */
+    @Transactional(propagation = Propagation.REQUIRED, readOnly = true, rollbackFor = Exception.class)
+    public void exportMessages(int chatId, ExportFormat format, HttpServletRequest request, HttpServletResponse response) throws InvalidAttributesException, NotAllowedException, IOException {
+        checkReadingMessageAvailability(chatId);
+        ExportFormat exportFormat = format == null ? ExportFormat.NDJSON : format;
+        long[] statistics = new long[2];
+        response.setContentType(exportFormat.getContentType());
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Content-Disposition", String.format("attachment; filename=\"chat-%s.%s\"", chatId, exportFormat.getExtension()));
+        setExportTrailers(request, response, statistics);
+        long start = System.nanoTime();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            if (exportFormat == ExportFormat.JSON) {
+                generator.writeStartArray();
+            } else {
+                generator.setRootValueSeparator(null);
+            }
+            statistics[0] = messageDataAccessObject.streamMessages(chatId, exportFetchSize, message -> {
+                try {
+                    exportWriter.writeValue(generator, message);
+                    if (exportFormat == ExportFormat.NDJSON) {
+                        generator.writeRaw('\n');
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (exportFormat == ExportFormat.JSON) {
+                generator.writeEndArray();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        statistics[1] = statistics[0] * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        log.info("Chat '{}' exported as {}: {} messages in {} ms, {} messages/s",
+                 chatId, exportFormat, statistics[0], TimeUnit.NANOSECONDS.toMillis(elapsed), statistics[1]);
+    }
+
+    /**
+     * Trailers are sent only by HTTP/1.1 chunked and HTTP/2 responses, otherwise export goes without them
+     */
+    private void setExportTrailers(HttpServletRequest request, HttpServletResponse response, long[] statistics) {
+        if ("HTTP/1.0".equals(request.getProtocol())) {
+            return;
+        }
+        try {
+            response.setTrailerFields(() -> {
+                Map<String, String> trailers = new HashMap<>();
+                trailers.put("X-Export-Rows", String.valueOf(statistics[0]));
+                trailers.put("X-Export-Rows-Per-Second", String.valueOf(statistics[1]));
+                return trailers;
+            });
+        } catch (IllegalStateException e) {
+            log.debug("Export trailers are not supported by response: {}", e.getMessage());
         }
-        return messageDataAccessObject.getMessages(chatId);
     }
 
     public int addMessage(AbstractMessageModel abstractMessageModel) throws InvalidAttributesException, NotAllowedException {
@@ -60,32 +199,41 @@ public class MessageService {
         return messageDataAccessObject.addMessage(abstractMessageModel);
     }
 
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     public void updateMessage(AbstractMessageModel abstractMessageModel) throws InvalidAttributesException, NotAllowedException {
         int authorId = abstractMessageModel.getAuthorId();
         Integer currentUserId = UserService.getIdOfCurrentlyAuthenticatedUser();
         if (currentUserId == null || currentUserId != authorId) {
             throw new NotAllowedException(String.format("User with ID: %s is not author of this message, editing is forbidden", authorId),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        messageDataAccessObject.updateMessage(abstractMessageModel.getId(), abstractMessageModel.getMessage());
+        messageDataAccessObject.updateMessage(abstractMessageModel.getId(), abstractMessageModel.getStoredSendingDate(), abstractMessageModel.getMessage());
+        chatEventService.appendMessageEvent(abstractMessageModel.getId(), WebSocketEvent.UPDATING_MESSAGE);
     }
 
     public void updateMessageType(AbstractMessageModel abstractMessageModel) throws InvalidAttributesException {
-        messageDataAccessObject.updateMessageType(abstractMessageModel.getId(), abstractMessageModel.getMessageType());
+        messageDataAccessObject.updateMessageType(abstractMessageModel.getId(), abstractMessageModel.getStoredSendingDate(), abstractMessageModel.getMessageType());
     }
 
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     public void deleteMessage(AbstractMessageModel abstractMessageModel) throws InvalidAttributesException, NotAllowedException {
         int authorId = abstractMessageModel.getAuthorId();
         Integer currentUserId = UserService.getIdOfCurrentlyAuthenticatedUser();
         if (currentUserId == null || currentUserId != authorId) {
             throw new NotAllowedException(String.format("User with ID: %s is not author of this message, deletion is forbidden", authorId),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        messageDataAccessObject.deleteMessage(abstractMessageModel.getId());
+        Integer chatId = messageDataAccessObject.deleteMessage(abstractMessageModel.getId(), abstractMessageModel.getStoredSendingDate());
+        if (chatId != null) {
+            chatEventService.appendMessageEvent(chatId, abstractMessageModel.getId(), WebSocketEvent.DELETING_MESSAGE);
+        }
     }
 
+    /**
+     * Message is stored with its fire date and sent by ScheduledMessageDispatcher, so it survives restarts
+     */
     @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     public void scheduleMessage(AbstractMessageModel abstractMessageModel, Date fireDate, String timezone) throws InvalidAttributesException, NotAllowedException {
         abstractMessageModel.setMessageType(MessageType.SCHEDULED);
@@ -93,44 +241,40 @@ public class MessageService {
         Date fireDateAtServerTimezone = new Date(fireDate.getTime() - TimeZone.getTimeZone(timezone).getRawOffset() + TimeZone.getDefault().getRawOffset());
         if (now.after(fireDateAtServerTimezone)) {
             throw new InvalidAttributesException(String.format("Invalid fire date, now is: %s, fire date: %s", now, fireDate),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         int messageId = addMessage(abstractMessageModel);
         abstractMessageModel.setId(messageId);
-        Runnable task = () -> {
-            try {
-                sendMessage(messageId, WebSocketEvent.SENDING_MESSAGE);
-                List<PairValue<Integer, ScheduledFuture<?>>> scheduledMessages = scheduleMessageTasks.get(abstractMessageModel.getAuthorId());
-                scheduledMessages.removeIf(scheduledMessage -> scheduledMessage.getKey() == messageId);
-            } catch (JsonProcessingException | NotAllowedException | InvalidAttributesException | DataNotFoundException e) {
-                log.error(e.getMessage(), e);
-            }
-        };
-        int delay = Math.toIntExact(fireDateAtServerTimezone.getTime() - now.getTime());
-        ScheduledFuture<?> scheduledTask = scheduleService.scheduleOnceFireTask(task, delay, TimeUnit.MILLISECONDS);
-        if (scheduleMessageTasks.containsKey(abstractMessageModel.getAuthorId())) {
-            List<PairValue<Integer, ScheduledFuture<?>>> scheduledMessages = new ArrayList<>(scheduleMessageTasks.get(abstractMessageModel.getAuthorId()));
-            scheduledMessages.add(new PairValue<>(messageId, scheduledTask));
-            scheduleMessageTasks.put(abstractMessageModel.getAuthorId(), scheduledMessages);
-        }
-        scheduleMessageTasks.putIfAbsent(abstractMessageModel.getAuthorId(), List.of(new PairValue<>(messageId, scheduledTask)));
+        messageDataAccessObject.setMessageFireDate(messageId, abstractMessageModel.getStoredSendingDate(), fireDateAtServerTimezone);
     }
 
-    public void cancelScheduledMessage(Integer messageId) throws InvalidAttributesException {
-        Integer authorId = UserService.getIdOfCurrentlyAuthenticatedUser();
-        List<PairValue<Integer, ScheduledFuture<?>>> scheduledMessages = scheduleMessageTasks.get(authorId);
-        scheduleMessageTasks.get(authorId).stream().filter(pair -> pair.getKey().equals(messageId)).findAny().ifPresent(scheduledTask -> scheduledTask.getValue().cancel(true));
-        scheduledMessages.removeIf(scheduledMessage -> Objects.equals(scheduledMessage.getKey(), messageId));
-        messageDataAccessObject.deleteMessage(messageId);
+    public void cancelScheduledMessage(Integer messageId) throws InvalidAttributesException, NotAllowedException {
+        AbstractMessageModel abstractMessageModel = getMessage(messageId);
+        Integer currentUserId = UserService.getIdOfCurrentlyAuthenticatedUser();
+        if (abstractMessageModel == null || abstractMessageModel.getMessageType() != MessageType.SCHEDULED
+            || currentUserId == null || currentUserId != abstractMessageModel.getAuthorId()) {
+            throw new NotAllowedException(String.format("User with ID: %s has no scheduled message with ID: %s, cancelling is forbidden", currentUserId, messageId),
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        messageDataAccessObject.deleteMessage(messageId, abstractMessageModel.getStoredSendingDate());
     }
 
     @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     public void sendMessage(int messageId, WebSocketEvent event) throws JsonProcessingException, NotAllowedException, InvalidAttributesException, DataNotFoundException {
-        AbstractMessageModel abstractMessageModel = getMessage(messageId);
+        sendMessage(messageId, null, event);
+    }
+
+    /**
+     * Sending date of message lets it be looked up and updated in its partition only
+     */
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
+    public void sendMessage(int messageId, Date sentAt, WebSocketEvent event) throws JsonProcessingException, NotAllowedException, InvalidAttributesException, DataNotFoundException {
+        AbstractMessageModel abstractMessageModel = sentAt == null ? getMessage(messageId) : messageDataAccessObject.getMessage(messageId, sentAt);
         if (abstractMessageModel == null) {
             throw new DataNotFoundException(String.format("Message with following ID was not found: %s", messageId),
-                                            Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                            ExceptionTrace.caller(),
                                             LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         abstractMessageModel.setMessageType(MessageType.SENT);
@@ -138,7 +282,8 @@ public class MessageService {
         checkSendingMessageAvailability(abstractMessageModel);
         String destination = String.format("%s/%s", Endpoints.CHAT.getEndpointPrefix(), abstractMessageModel.getChatId());
         updateMessageType(abstractMessageModel);
-        webSocketService.sendMessage(abstractMessageModel, destination, event);
+        webSocketService.sendMessageAfterCommit(abstractMessageModel, destination, event);
+        chatEventService.appendMessageEvent(messageId, event);
     }
 
     private void validateMessageModel(AbstractMessageModel abstractMessageModel) throws InvalidAttributesException {
@@ -157,11 +302,20 @@ public class MessageService {
         }
         if (!exceptionText.toString().isEmpty()) {
             throw new InvalidAttributesException(exceptionText.toString(),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
     }
 
+    private void checkReadingMessageAvailability(int chatId) throws InvalidAttributesException, NotAllowedException {
+        Integer currentUserId = UserService.getIdOfCurrentlyAuthenticatedUser();
+        if (currentUserId == null || !chatService.checkUserPresenceInChat(currentUserId, chatId)) {
+            throw new NotAllowedException(String.format("User with ID: %s is not participating chat with ID: %s, message reading is forbidden", currentUserId, chatId),
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+    }
+
     private void checkSendingMessageAvailability(AbstractMessageModel abstractMessageModel) throws NotAllowedException, InvalidAttributesException {
         int authorId = abstractMessageModel.getAuthorId();
         int chatId = abstractMessageModel.getChatId();
@@ -169,14 +323,14 @@ public class MessageService {
         Integer userId = UserService.getIdOfCurrentlyAuthenticatedUser();
         if (!chatService.checkUserPresenceInChat(authorId, chatId)) {
             throw new NotAllowedException(String.format("User with ID: %s is not participating chat with ID: %s, message sending is forbidden", authorId, chatId),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         switch (chatType) {
             case CHANNEL: {
                 if (userId == null || userId != authorId) {
                     throw new NotAllowedException(String.format("User with ID: %s does not owes chat with ID: %s and type: %s, message sending is forbidden", authorId, chatId, chatType),
-                                                  Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                  ExceptionTrace.caller(),
                                                   LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
                 }
             }
@@ -0,0 +1,96 @@
+package spring.application.tree.data.messages.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Service;
+import spring.application.tree.data.exceptions.DataNotFoundException;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.NotAllowedException;
+import spring.application.tree.data.messages.models.MessageCursor;
+import spring.application.tree.data.messages.repository.MessageDataAccessObject;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.utility.models.PairValue;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends scheduled messages stored in database, due messages are claimed in batches, so several nodes can poll together.
+ * Messages which became due while application was stopped are sent by the first poll after startup.
+ * Message which failed to be sent is claimed again when its lease ends and is abandoned after configured number of attempts,
+ * only deleted messages and messages which author is not allowed to send anymore are abandoned immediately
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:message.properties")
+public class ScheduledMessageDispatcher {
+    private final MessageDataAccessObject messageDataAccessObject;
+    private final MessageService messageService;
+    private final ScheduleService scheduleService;
+    @Value("${message.schedule.poll.interval}")
+    private int pollInterval;
+    @Value("${message.schedule.batch.size}")
+    private int batchSize;
+    @Value("${message.schedule.lease}")
+    private int lease;
+    @Value("${message.schedule.attempts}")
+    private int maxAttempts;
+
+    @PostConstruct
+    private void initializeDispatching() throws InvalidAttributesException {
+        log.info("Scheduled messages due for sending at startup: {}", messageDataAccessObject.countDueScheduledMessages());
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::dispatchDueMessages, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Claims batches until there are no due messages left, exceptions are not propagated, so polling is never stopped
+     */
+    private void dispatchDueMessages() {
+        try {
+            List<PairValue<MessageCursor, Integer>> claims;
+            do {
+                claims = messageDataAccessObject.claimDueScheduledMessages(batchSize, lease);
+                claims.forEach(claim -> dispatchMessage(claim.getKey().getId(), claim.getKey().getSentAt(), claim.getValue()));
+            } while (claims.size() == batchSize);
+        } catch (RuntimeException e) {
+            log.error("Scheduled messages polling failed", e);
+        }
+    }
+
+    private void dispatchMessage(int messageId, Timestamp sentAt, int attempt) {
+        try {
+            messageService.sendMessage(messageId, sentAt, WebSocketEvent.SENDING_MESSAGE);
+        } catch (DataNotFoundException e) {
+            log.debug("Scheduled message '{}' was cancelled before sending", messageId);
+            abandonMessage(messageId, sentAt);
+        } catch (NotAllowedException e) {
+            log.error(String.format("Scheduled message '%s' is not allowed to be sent and is abandoned", messageId), e);
+            abandonMessage(messageId, sentAt);
+        } catch (JsonProcessingException | InvalidAttributesException | RuntimeException e) {
+            if (attempt < maxAttempts) {
+                log.warn(String.format("Scheduled message '%s' could not be sent on attempt %d, it is retried after lease ends", messageId, attempt), e);
+                return;
+            }
+            log.error(String.format("Scheduled message '%s' could not be sent in %d attempts and is abandoned", messageId, attempt), e);
+            abandonMessage(messageId, sentAt);
+        }
+    }
+
+    /**
+     * Failed abandoning leaves message to be claimed again when its lease ends
+     */
+    private void abandonMessage(int messageId, Timestamp sentAt) {
+        try {
+            messageDataAccessObject.abandonScheduledMessage(messageId, sentAt);
+        } catch (RuntimeException e) {
+            log.error(String.format("Scheduled message '%s' could not be abandoned", messageId), e);
+        }
+    }
+}
@@ -3,15 +3,16 @@ package spring.application.tree.data.scheduling.service;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.scheduling.wheel.HierarchicalTimingWheel;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -20,16 +21,23 @@ import java.util.concurrent.TimeUnit;
 @Service
 @Slf4j
 public class ScheduleService {
-    private List<ScheduledFuture<?>> scheduledTasks;
+    private static final long TIMING_WHEEL_TICK = 10;
+    private static final int TIMING_WHEEL_SIZE = 512;
+    /**
+     * Periodic tasks only, one time tasks are kept by timing wheel until they are run or cancelled
+     */
+    private Set<ScheduledFuture<?>> scheduledTasks;
     private ScheduledExecutorService utilScheduler;
+    private HierarchicalTimingWheel timingWheel;
 
     @PostConstruct
     private void initializeSchedulers() {
-        scheduledTasks = new ArrayList<>();
+        scheduledTasks = ConcurrentHashMap.newKeySet();
         utilScheduler = Executors.newScheduledThreadPool(8);
+        timingWheel = new HierarchicalTimingWheel(TIMING_WHEEL_TICK, TIMING_WHEEL_SIZE, utilScheduler);
         Runnable clearingTask = () -> {
             scheduledTasks.removeIf(task -> task.isDone() || task.isCancelled());
-            log.info("Completed task removal process started");
+            log.info("Completed task removal process started, pending one time tasks: {}", timingWheel.size());
         };
         utilScheduler.scheduleAtFixedRate(clearingTask, 0, 15, TimeUnit.MINUTES);
     }
@@ -37,7 +45,7 @@ public class ScheduleService {
     public ScheduledFuture<?> schedulePeriodicTaskConsideringTaskDuration(Runnable task, int delay, int period, TimeUnit timeUnit) throws InvalidAttributesException {
         if (task == null || delay < 0 || period < 0 || timeUnit == null) {
             throw new InvalidAttributesException(String.format("Some of params is invalid, task: %s, delay: %d, period: %d, timeUnit: %s", task, delay, period, timeUnit),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         ScheduledFuture<?> scheduledTask = utilScheduler.scheduleWithFixedDelay(task, delay, period, timeUnit);
@@ -48,7 +56,7 @@ public class ScheduleService {
     public ScheduledFuture<?> schedulePeriodicTaskWithoutConsideringTaskDuration(Runnable task, int delay, int period, TimeUnit timeUnit) throws InvalidAttributesException {
         if (task == null || delay < 0 || period < 0 || timeUnit == null) {
             throw new InvalidAttributesException(String.format("Some of params is invalid, task: %s, delay: %d, period: %d, timeUnit: %s", task, delay, period, timeUnit),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         ScheduledFuture<?> scheduledTask = utilScheduler.scheduleAtFixedRate(task, delay, period, timeUnit);
@@ -59,12 +67,10 @@ public class ScheduleService {
     public ScheduledFuture<?> scheduleOnceFireTask(Runnable task, int delay, TimeUnit timeUnit) throws InvalidAttributesException {
         if (task == null || delay < 0 || timeUnit == null) {
             throw new InvalidAttributesException(String.format("Some of params is invalid, task: %s, delay: %d, timeUnit: %s", task, delay, timeUnit),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(), LocalDateTime.now(),
+                                                 ExceptionTrace.caller(), LocalDateTime.now(),
                                                  HttpStatus.NOT_ACCEPTABLE);
         }
-        ScheduledFuture<?> scheduledTask = utilScheduler.schedule(task, delay, timeUnit);
-        scheduledTasks.add(scheduledTask);
-        return scheduledTask;
+        return timingWheel.schedule(task, delay, timeUnit);
     }
 
     public ScheduledFuture<?> schedulePeriodicTaskConsideringTaskDurationUntilDate(Runnable task, int delay, int period, TimeUnit timeUnit, Date repeatUntil) throws InvalidAttributesException {
@@ -89,6 +95,7 @@ public class ScheduleService {
 
     @PreDestroy
     private void saveScheduledTasksBefore() {
+        timingWheel.shutdown();
         scheduledTasks.forEach(task -> task.cancel(true));
         scheduledTasks.clear();
     }
@@ -0,0 +1,99 @@
+package spring.application.tree.data.scheduling.wheel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hashed hierarchical timing wheel for one time tasks, scheduling and cancelling take constant time.
+ * Single thread advances the wheel by expired buckets and passes due tasks to executor,
+ * tasks are run within one tick after their delay, never before it
+ */
+@Slf4j
+public class HierarchicalTimingWheel {
+    private final Executor executor;
+    private final long tickMillis;
+    private final TimingWheelLevel lowestLevel;
+    private final DelayQueue<TimerBucket> queue = new DelayQueue<>();
+    private final AtomicInteger timersCount = new AtomicInteger();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Thread ticker;
+    private volatile boolean running = true;
+
+    public HierarchicalTimingWheel(long tickMillis, int wheelSize, Executor executor) {
+        this.executor = executor;
+        this.tickMillis = tickMillis;
+        this.lowestLevel = new TimingWheelLevel(tickMillis, wheelSize, currentTimeMillis(), timersCount, queue);
+        this.ticker = new Thread(this::tick, "timing-wheel-ticker");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    static long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Deadline of delayed task is rounded up to tick, so bucket of the lowest level never expires before the task is due
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit timeUnit) {
+        long deadline = currentTimeMillis() + timeUnit.toMillis(delay);
+        if (delay > 0) {
+            deadline = Math.floorDiv(deadline + tickMillis - 1, tickMillis) * tickMillis;
+        }
+        WheelTimeout timeout = new WheelTimeout(task, deadline);
+        lock.readLock().lock();
+        try {
+            addOrRun(timeout);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return timeout;
+    }
+
+    /**
+     * Number of pending timers
+     */
+    public int size() {
+        return timersCount.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        ticker.interrupt();
+    }
+
+    private void addOrRun(WheelTimeout timeout) {
+        if (!timeout.isCancelled() && !lowestLevel.add(timeout)) {
+            executor.execute(timeout);
+        }
+    }
+
+    private void tick() {
+        while (running) {
+            try {
+                TimerBucket bucket = queue.take();
+                lock.writeLock().lock();
+                try {
+                    while (bucket != null) {
+                        lowestLevel.advanceClock(bucket.getExpiration());
+                        bucket.flush(this::addOrRun);
+                        bucket = queue.poll();
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Timing wheel tick failed", e);
+            }
+        }
+    }
+}
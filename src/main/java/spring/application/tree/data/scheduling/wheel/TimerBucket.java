@@ -0,0 +1,87 @@
+package spring.application.tree.data.scheduling.wheel;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Slot of wheel level, doubly linked list of timers which expire within the same tick.
+ * Only buckets are kept in delay queue, so queue size depends on number of slots, not on number of timers
+ */
+class TimerBucket implements Delayed {
+    private final WheelTimeout root = new WheelTimeout(() -> {}, -1);
+    private final AtomicLong expiration = new AtomicLong(-1);
+    private final AtomicInteger timersCount;
+
+    TimerBucket(AtomicInteger timersCount) {
+        this.timersCount = timersCount;
+        root.next = root;
+        root.previous = root;
+    }
+
+    /**
+     * Returns true if expiration was changed, so bucket has to be put into delay queue again
+     */
+    boolean setExpiration(long expirationMillis) {
+        return expiration.getAndSet(expirationMillis) != expirationMillis;
+    }
+
+    long getExpiration() {
+        return expiration.get();
+    }
+
+    void add(WheelTimeout timeout) {
+        timeout.removeFromBucket();
+        synchronized (this) {
+            synchronized (timeout) {
+                if (timeout.bucket == null) {
+                    WheelTimeout tail = root.previous;
+                    timeout.next = root;
+                    timeout.previous = tail;
+                    timeout.bucket = this;
+                    tail.next = timeout;
+                    root.previous = timeout;
+                    timersCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    synchronized void remove(WheelTimeout timeout) {
+        synchronized (timeout) {
+            if (timeout.bucket == this) {
+                timeout.next.previous = timeout.previous;
+                timeout.previous.next = timeout.next;
+                timeout.next = null;
+                timeout.previous = null;
+                timeout.bucket = null;
+                timersCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Detaches every timer and passes it to consumer, bucket can be reused for the next round of wheel
+     */
+    synchronized void flush(Consumer<WheelTimeout> consumer) {
+        WheelTimeout head = root.next;
+        while (head != root) {
+            remove(head);
+            consumer.accept(head);
+            head = root.next;
+        }
+        expiration.set(-1);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(Math.max(getExpiration() - HierarchicalTimingWheel.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+        return Long.compare(getExpiration(), ((TimerBucket) other).getExpiration());
+    }
+}
@@ -0,0 +1,77 @@
+package spring.application.tree.data.scheduling.wheel;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One level of hierarchy, every slot covers one tick, whole level covers tick multiplied by wheel size.
+ * Timers which do not fit are passed to the overflow level with tick equal to interval of this one,
+ * when their bucket expires they are moved down until they reach the lowest level and are run
+ */
+class TimingWheelLevel {
+    private final long tickMillis;
+    private final int wheelSize;
+    private final long interval;
+    private final TimerBucket[] buckets;
+    private final AtomicInteger timersCount;
+    private final DelayQueue<TimerBucket> queue;
+    private long currentTime;
+    private volatile TimingWheelLevel overflowLevel;
+
+    TimingWheelLevel(long tickMillis, int wheelSize, long startMillis, AtomicInteger timersCount, DelayQueue<TimerBucket> queue) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.interval = tickMillis * wheelSize;
+        this.timersCount = timersCount;
+        this.queue = queue;
+        this.currentTime = startMillis - Math.floorMod(startMillis, tickMillis);
+        this.buckets = new TimerBucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new TimerBucket(timersCount);
+        }
+    }
+
+    /**
+     * Returns false if timer expires within current tick and has to be run
+     */
+    boolean add(WheelTimeout timeout) {
+        long expiration = timeout.deadline;
+        if (expiration < currentTime + tickMillis) {
+            return false;
+        }
+        if (expiration < currentTime + interval) {
+            long bucketExpiration = expiration - Math.floorMod(expiration, tickMillis);
+            TimerBucket bucket = buckets[(int) Math.floorMod(bucketExpiration / tickMillis, (long) wheelSize)];
+            bucket.add(timeout);
+            if (bucket.setExpiration(bucketExpiration)) {
+                queue.offer(bucket);
+            }
+            return true;
+        }
+        return getOverflowLevel().add(timeout);
+    }
+
+    void advanceClock(long timeMillis) {
+        if (timeMillis >= currentTime + tickMillis) {
+            currentTime = timeMillis - Math.floorMod(timeMillis, tickMillis);
+            TimingWheelLevel overflow = overflowLevel;
+            if (overflow != null) {
+                overflow.advanceClock(currentTime);
+            }
+        }
+    }
+
+    private TimingWheelLevel getOverflowLevel() {
+        TimingWheelLevel overflow = overflowLevel;
+        if (overflow == null) {
+            synchronized (this) {
+                overflow = overflowLevel;
+                if (overflow == null) {
+                    overflow = new TimingWheelLevel(interval, wheelSize, currentTime, timersCount, queue);
+                    overflowLevel = overflow;
+                }
+            }
+        }
+        return overflow;
+    }
+}
@@ -0,0 +1,52 @@
+package spring.application.tree.data.scheduling.wheel;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer of the wheel, it is the entry of bucket linked list and the future returned to caller at once,
+ * so every scheduled task costs a single object besides task itself
+ */
+class WheelTimeout extends FutureTask<Object> implements ScheduledFuture<Object> {
+    final long deadline;
+    volatile TimerBucket bucket;
+    WheelTimeout previous;
+    WheelTimeout next;
+
+    WheelTimeout(Runnable task, long deadline) {
+        super(task, null);
+        this.deadline = deadline;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            removeFromBucket();
+        }
+        return cancelled;
+    }
+
+    /**
+     * Bucket may be changed by concurrent flush, so removal is repeated until timer is detached
+     */
+    void removeFromBucket() {
+        TimerBucket current = bucket;
+        while (current != null) {
+            current.remove(this);
+            current = bucket;
+        }
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(deadline - HierarchicalTimingWheel.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+        return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+    }
+}
@@ -7,7 +7,9 @@ public enum Permission {
     CREATE_USER          ("permission:user:create"),
     READ_USER            ("permission:user:read"),
     UPDATE_USER          ("permission:user:update"),
-    DELETE_USER          ("permission:user:delete");
+    DELETE_USER          ("permission:user:delete"),
+    READ_STATISTICS      ("permission:statistics:read"),
+    SEND_BULK_MAIL       ("permission:mail:bulk");
 
     private final String permission;
 
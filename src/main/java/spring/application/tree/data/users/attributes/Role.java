@@ -8,7 +8,9 @@ import java.util.stream.Collectors;
 
 @Getter
 public enum Role {
-    ROLE_USER(Set.of(Permission.CREATE_USER, Permission.READ_USER, Permission.UPDATE_USER, Permission.DELETE_USER));
+    ROLE_USER(Set.of(Permission.CREATE_USER, Permission.READ_USER, Permission.UPDATE_USER, Permission.DELETE_USER)),
+    ROLE_ADMIN(Set.of(Permission.CREATE_USER, Permission.READ_USER, Permission.UPDATE_USER, Permission.DELETE_USER,
+                      Permission.READ_STATISTICS, Permission.SEND_BULK_MAIL));
 
     private final Set<Permission> permissions;
 
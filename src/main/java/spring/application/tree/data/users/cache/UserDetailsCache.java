@@ -0,0 +1,153 @@
+package spring.application.tree.data.users.cache;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.users.models.AbstractUserModel;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+import spring.application.tree.data.utility.transactions.TransactionCallbackUtility;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Keeps recently authenticated users by login they were loaded with, so token authenticated requests
+ * do not query database for the principal. Entries live until TTL passes or user is changed,
+ * every change invalidates matching entries immediately and once more after transaction commit.
+ * Changes are passed to other nodes by invalidation bus, invalidation key is login or user ID with its prefix
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:user.properties")
+public class UserDetailsCache {
+    private static final String CACHE_NAME = "user.details";
+    private static final String LOGIN_PREFIX = "login:";
+    private static final String ID_PREFIX = "id:";
+    private final CacheInvalidationBus cacheInvalidationBus;
+    @Value("${user.details.cache.size}")
+    private int maxUsers;
+    @Value("${user.details.cache.ttl}")
+    private long timeToLive;
+    /**
+     * Key - username or email used for loading, value - user and time in milliseconds when entry expires
+     */
+    private final Map<String, CachedUser> users = new ConcurrentHashMap<>();
+    /**
+     * Incremented on every invalidation, loads started before it are not cached
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @PostConstruct
+    private void initializeInvalidation() {
+        cacheInvalidationBus.subscribe(CACHE_NAME, key -> {
+            if (key.startsWith(ID_PREFIX)) {
+                int userId = Integer.parseInt(key.substring(ID_PREFIX.length()));
+                removeUsers(user -> user.getId() != null && user.getId() == userId);
+            } else if (key.startsWith(LOGIN_PREFIX)) {
+                String login = key.substring(LOGIN_PREFIX.length());
+                removeUsers(user -> login.equals(user.getUsername()) || login.equals(user.getEmail()));
+            }
+        });
+    }
+
+    /**
+     * Returns null if user is not cached or entry is expired
+     */
+    public AbstractUserModel getUser(String login) {
+        CachedUser cachedUser = users.get(login);
+        if (cachedUser == null) {
+            return null;
+        }
+        if (cachedUser.expiresAt < System.currentTimeMillis()) {
+            users.remove(login, cachedUser);
+            return null;
+        }
+        return cachedUser.user;
+    }
+
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * User is cached only if no invalidation happened since generation was read, before loading
+     */
+    public void putUser(String login, AbstractUserModel user, long loadGeneration) {
+        if (generation.get() != loadGeneration) {
+            return;
+        }
+        users.put(login, new CachedUser(user, System.currentTimeMillis() + timeToLive));
+        if (generation.get() != loadGeneration) {
+            users.remove(login);
+        }
+        evictIfNeeded(login);
+    }
+
+    /**
+     * Invalidates user which has following username or email
+     */
+    public void invalidateUser(String login) {
+        invalidate(user -> login.equals(user.getUsername()) || login.equals(user.getEmail()));
+        cacheInvalidationBus.publish(CACHE_NAME, LOGIN_PREFIX + login);
+    }
+
+    public void invalidateUser(int userId) {
+        invalidate(user -> user.getId() != null && user.getId() == userId);
+        cacheInvalidationBus.publish(CACHE_NAME, ID_PREFIX + userId);
+    }
+
+    public void invalidateUsers(Collection<String> usernames) {
+        Set<String> invalidated = new HashSet<>(usernames);
+        invalidate(user -> invalidated.contains(user.getUsername()));
+        invalidated.forEach(username -> cacheInvalidationBus.publish(CACHE_NAME, LOGIN_PREFIX + username));
+    }
+
+    private void invalidate(Predicate<AbstractUserModel> predicate) {
+        Runnable invalidation = () -> removeUsers(predicate);
+        invalidation.run();
+        TransactionCallbackUtility.runAfterCompletion(invalidation, invalidation);
+    }
+
+    private void removeUsers(Predicate<AbstractUserModel> predicate) {
+        generation.incrementAndGet();
+        users.values().removeIf(cachedUser -> predicate.test(cachedUser.user));
+    }
+
+    /**
+     * Removes expired users first, then arbitrary users except the just cached one, until cache fits its size
+     */
+    private void evictIfNeeded(String cachedLogin) {
+        if (users.size() <= maxUsers) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        users.values().removeIf(cachedUser -> cachedUser.expiresAt < now);
+        Iterator<String> iterator = users.keySet().iterator();
+        while (users.size() > maxUsers && iterator.hasNext()) {
+            if (!iterator.next().equals(cachedLogin)) {
+                iterator.remove();
+            }
+        }
+        log.debug("Cached users evicted, users left: {}", users.size());
+    }
+
+    private static class CachedUser {
+        private final AbstractUserModel user;
+        private final long expiresAt;
+
+        private CachedUser(AbstractUserModel user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
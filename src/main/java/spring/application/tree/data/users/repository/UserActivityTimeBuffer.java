@@ -0,0 +1,136 @@
+package spring.application.tree.data.users.repository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.users.cache.UserDetailsCache;
+import spring.application.tree.data.utility.models.PairValue;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects login and logout times and writes them with single statement per flush,
+ * only the latest time of every user is kept, so repeated logins cost nothing until flush.
+ * Flush happens periodically, when buffer reaches its size and on shutdown
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:user.properties")
+public class UserActivityTimeBuffer {
+    private final JdbcTemplate jdbcTemplate;
+    private final ScheduleService scheduleService;
+    private final UserDetailsCache userDetailsCache;
+    @Value("${user.activity.flush.size}")
+    private int flushSize;
+    @Value("${user.activity.flush.interval}")
+    private int flushInterval;
+    /**
+     * Key - username, value - the latest login time and the latest logout time, null if not changed
+     */
+    private final Map<String, PairValue<Timestamp, Timestamp>> pendingTimes = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    @PostConstruct
+    private void initializeFlushing() throws InvalidAttributesException {
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void putLoginTime(String username) {
+        put(username, new PairValue<>(new Timestamp(System.currentTimeMillis()), null));
+    }
+
+    public void putLogoutTime(String username) {
+        put(username, new PairValue<>(null, new Timestamp(System.currentTimeMillis())));
+    }
+
+    private void put(String username, PairValue<Timestamp, Timestamp> times) {
+        pendingTimes.merge(username, times, UserActivityTimeBuffer::mergeTimes);
+        if (pendingTimes.size() >= flushSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                scheduleService.scheduleOnceFireTask(this::flush, 0, TimeUnit.MILLISECONDS);
+            } catch (InvalidAttributesException e) {
+                flushRequested.set(false);
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public synchronized void flush() {
+        flushRequested.set(false);
+        if (pendingTimes.isEmpty()) {
+            return;
+        }
+        List<String> usernames = new ArrayList<>(pendingTimes.keySet());
+        Collections.sort(usernames);
+        List<String> flushedUsernames = new ArrayList<>(usernames.size());
+        List<PairValue<Timestamp, Timestamp>> flushedTimes = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            PairValue<Timestamp, Timestamp> times = pendingTimes.remove(username);
+            if (times != null) {
+                flushedUsernames.add(username);
+                flushedTimes.add(times);
+            }
+        }
+        final String query = "UPDATE users SET login_time = COALESCE(pending.login_time, users.login_time), " +
+                             "logout_time = COALESCE(pending.logout_time, users.logout_time) " +
+                             "FROM unnest(?, ?, ?) AS pending(username, login_time, logout_time) " +
+                             "WHERE users.username = pending.username;";
+        try {
+            jdbcTemplate.update(connection -> {
+                Timestamp[] loginTimes = new Timestamp[flushedTimes.size()];
+                Timestamp[] logoutTimes = new Timestamp[flushedTimes.size()];
+                for (int i = 0; i < flushedTimes.size(); i++) {
+                    loginTimes[i] = flushedTimes.get(i).getKey();
+                    logoutTimes[i] = flushedTimes.get(i).getValue();
+                }
+                Array usernameArray = connection.createArrayOf("varchar", flushedUsernames.toArray());
+                Array loginTimeArray = connection.createArrayOf("timestamptz", loginTimes);
+                Array logoutTimeArray = connection.createArrayOf("timestamptz", logoutTimes);
+                PreparedStatement preparedStatement = connection.prepareStatement(query);
+                preparedStatement.setArray(1, usernameArray);
+                preparedStatement.setArray(2, loginTimeArray);
+                preparedStatement.setArray(3, logoutTimeArray);
+                return preparedStatement;
+            });
+            userDetailsCache.invalidateUsers(flushedUsernames);
+            log.debug("Activity times flushed for {} users", flushedUsernames.size());
+        } catch (RuntimeException e) {
+            log.error(String.format("Activity times flushing failed for %s users, times are returned to buffer", flushedUsernames.size()), e);
+            for (int i = 0; i < flushedUsernames.size(); i++) {
+                pendingTimes.merge(flushedUsernames.get(i), flushedTimes.get(i), UserActivityTimeBuffer::mergeTimes);
+            }
+        }
+    }
+
+    private static PairValue<Timestamp, Timestamp> mergeTimes(PairValue<Timestamp, Timestamp> first, PairValue<Timestamp, Timestamp> second) {
+        return new PairValue<>(latest(first.getKey(), second.getKey()), latest(first.getValue(), second.getValue()));
+    }
+
+    private static Timestamp latest(Timestamp first, Timestamp second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return first.after(second) ? first : second;
+    }
+}
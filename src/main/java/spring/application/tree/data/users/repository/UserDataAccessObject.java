@@ -4,19 +4,27 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Repository;
+import spring.application.tree.data.chats.attributes.MemberUpdateResult;
+import spring.application.tree.data.chats.cache.ChatMembershipCache;
 import spring.application.tree.data.exceptions.ApplicationException;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
 import spring.application.tree.data.users.attributes.Language;
 import spring.application.tree.data.users.attributes.Role;
 import spring.application.tree.data.users.attributes.Status;
+import spring.application.tree.data.users.cache.UserDetailsCache;
 import spring.application.tree.data.users.models.AbstractUserModel;
 
+import java.sql.PreparedStatement;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @Repository
@@ -25,11 +33,14 @@ import java.util.Optional;
 public class UserDataAccessObject {
     private final UserRepository userRepository;
     private final JdbcTemplate jdbcTemplate;
+    private final ChatMembershipCache chatMembershipCache;
+    private final UserActivityTimeBuffer userActivityTimeBuffer;
+    private final UserDetailsCache userDetailsCache;
 
     public List<AbstractUserModel> getChatMembers(int chatId) throws InvalidAttributesException {
         if (chatId <= 0) {
             throw new InvalidAttributesException(String.format("Chat ID is invalid: %s", chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "SELECT u.id, u.username, u.email, u.login_time, u.logout_time, u.role, u.status, u.language, u.timezone " +
@@ -51,10 +62,35 @@ public class UserDataAccessObject {
         return members;
     }
 
+    /**
+     * Page of enabled users ordered by ID, the next page starts after the last returned ID
+     */
+    public List<AbstractUserModel> getEnabledUsersPage(Integer chatId, int afterUserId, int limit) throws InvalidAttributesException {
+        if (chatId != null && chatId <= 0 || afterUserId < 0 || limit <= 0) {
+            throw new InvalidAttributesException(String.format("Chat ID: %s, user ID: %s or limit: %s is invalid", chatId, afterUserId, limit),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        final String query = chatId == null ?
+                             "SELECT u.id, u.username, u.email FROM users u WHERE u.status = 'ENABLED' AND u.id > ? ORDER BY u.id LIMIT ?;" :
+                             "SELECT u.id, u.username, u.email FROM users u INNER JOIN users_to_chats utc ON u.id = utc.user_id " +
+                             "WHERE utc.chat_id = ? AND u.status = 'ENABLED' AND u.id > ? ORDER BY u.id LIMIT ?;";
+        RowMapper<AbstractUserModel> rowMapper = (resultSet, row) -> {
+            AbstractUserModel abstractUserModel = new AbstractUserModel();
+            abstractUserModel.setId(resultSet.getInt("id"));
+            abstractUserModel.setUsername(resultSet.getString("username"));
+            abstractUserModel.setEmail(resultSet.getString("email"));
+            return abstractUserModel;
+        };
+        return chatId == null ?
+               jdbcTemplate.query(query, rowMapper, afterUserId, limit) :
+               jdbcTemplate.query(query, rowMapper, chatId, afterUserId, limit);
+    }
+
     public AbstractUserModel getUserByLoginCredentials(String login) throws ApplicationException {
         if (login == null || login.isEmpty()) {
             throw new InvalidAttributesException(String.format("Username/email is invalid: %s", login),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         return userRepository.findUserByLogin(login);
@@ -63,7 +99,7 @@ public class UserDataAccessObject {
     public AbstractUserModel getUserById(Integer id) throws InvalidAttributesException {
         if (id == null || id <= 0) {
             throw new InvalidAttributesException(String.format("User ID is invalid: %s", id),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         Optional<AbstractUserModel> abstractUserModelOptional =  userRepository.findById(id);
@@ -73,7 +109,7 @@ public class UserDataAccessObject {
     public boolean checkUsernameAvailability(String username) throws ApplicationException {
         if (username == null || username.isEmpty()) {
             throw new InvalidAttributesException(String.format("Username is invalid: %s", username),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         return userRepository.countAbstractUserModelsWithFollowingUsername(username) == 0;
@@ -82,7 +118,7 @@ public class UserDataAccessObject {
     public boolean checkEmailAvailability(String email) throws ApplicationException {
         if (email == null || email.isEmpty()) {
             throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         return userRepository.countAbstractUserModelsWithFollowingEMail(email) == 0;
@@ -91,7 +127,7 @@ public class UserDataAccessObject {
     public boolean checkUserCredentialsAvailable(String email, String username) throws InvalidAttributesException {
         if (username == null || username.isEmpty() || email == null || email.isEmpty()) {
             throw new InvalidAttributesException(String.format("Username: %s or email is invalid: %s", username, email),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         return userRepository.countAbstractUserModelsWithFollowingEmailOrUsername(email, username) == 0;
@@ -105,54 +141,145 @@ public class UserDataAccessObject {
     public void updateUser(AbstractUserModel abstractUserModel) throws InvalidAttributesException {
         validateUserModel(abstractUserModel);
         userRepository.save(abstractUserModel);
+        userDetailsCache.invalidateUser(abstractUserModel.getId());
     }
 
     public void deleteUserById(Integer id) throws ApplicationException {
         if (id <= 0L) {
             throw new InvalidAttributesException(String.format("ID is invalid: %s", id),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "DELETE FROM users_to_chats WHERE user_id = ?";
         jdbcTemplate.update(query, id);
         userRepository.deleteAbstractUserModelById(id);
+        chatMembershipCache.removeUser(id);
+        userDetailsCache.invalidateUser(id);
     }
 
     public void addUserToChat(int userId, int chatId) throws InvalidAttributesException {
         if (userId <= 0 || chatId <= 0) {
             throw new InvalidAttributesException(String.format("User/Chat ID is invalid - user ID: %s, chat ID: %s", userId, chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "INSERT INTO users_to_chats(user_id, chat_id) VALUES(?, ?);";
         jdbcTemplate.update(query, userId, chatId);
+        chatMembershipCache.addMember(chatId, userId);
     }
 
     public void removeUserFromChat(int userId, int chatId) throws InvalidAttributesException {
         if (userId <= 0 || chatId <= 0) {
             throw new InvalidAttributesException(String.format("User/Chat ID is invalid - user ID: %s, chat ID: %s", userId, chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "DELETE FROM users_to_chats WHERE user_id = ? AND chat_id = ?;";
         jdbcTemplate.update(query, userId, chatId);
+        chatMembershipCache.removeMember(chatId, userId);
+    }
+
+    /**
+     * Adds users by one statement, existing members and absent users are skipped
+     *
+     * @return result for every distinct requested user ID
+     */
+    public Map<Integer, MemberUpdateResult> addUsersToChat(Collection<Integer> userIds, int chatId) throws InvalidAttributesException {
+        validateChatMembers(userIds, chatId);
+        final String query = "WITH requested(user_id) AS (SELECT DISTINCT unnest(?)), " +
+                             "inserted AS (INSERT INTO users_to_chats(user_id, chat_id) " +
+                             "SELECT requested.user_id, ? FROM requested INNER JOIN users ON users.id = requested.user_id " +
+                             "ON CONFLICT DO NOTHING RETURNING user_id) " +
+                             "SELECT requested.user_id, inserted.user_id IS NOT NULL AS added, users.id IS NOT NULL AS present " +
+                             "FROM requested LEFT JOIN inserted ON inserted.user_id = requested.user_id " +
+                             "LEFT JOIN users ON users.id = requested.user_id;";
+        Map<Integer, MemberUpdateResult> results = new LinkedHashMap<>();
+        jdbcTemplate.query(connection -> {
+            PreparedStatement preparedStatement = connection.prepareStatement(query);
+            preparedStatement.setArray(1, connection.createArrayOf("int4", userIds.toArray()));
+            preparedStatement.setInt(2, chatId);
+            return preparedStatement;
+        }, resultSet -> {
+            MemberUpdateResult result = resultSet.getBoolean("added") ? MemberUpdateResult.ADDED :
+                                        resultSet.getBoolean("present") ? MemberUpdateResult.ALREADY_MEMBER : MemberUpdateResult.USER_NOT_FOUND;
+            results.put(resultSet.getInt("user_id"), result);
+        });
+        chatMembershipCache.addMembers(chatId, collectUsers(results, MemberUpdateResult.ADDED));
+        return results;
+    }
+
+    /**
+     * Removes users by one statement
+     *
+     * @return result for every distinct requested user ID
+     */
+    public Map<Integer, MemberUpdateResult> removeUsersFromChat(Collection<Integer> userIds, int chatId) throws InvalidAttributesException {
+        validateChatMembers(userIds, chatId);
+        final String query = "WITH requested(user_id) AS (SELECT DISTINCT unnest(?)), " +
+                             "deleted AS (DELETE FROM users_to_chats WHERE chat_id = ? " +
+                             "AND user_id IN (SELECT user_id FROM requested) RETURNING user_id) " +
+                             "SELECT requested.user_id, deleted.user_id IS NOT NULL AS removed " +
+                             "FROM requested LEFT JOIN deleted ON deleted.user_id = requested.user_id;";
+        Map<Integer, MemberUpdateResult> results = new LinkedHashMap<>();
+        jdbcTemplate.query(connection -> {
+            PreparedStatement preparedStatement = connection.prepareStatement(query);
+            preparedStatement.setArray(1, connection.createArrayOf("int4", userIds.toArray()));
+            preparedStatement.setInt(2, chatId);
+            return preparedStatement;
+        }, resultSet -> {
+            results.put(resultSet.getInt("user_id"), resultSet.getBoolean("removed") ? MemberUpdateResult.REMOVED : MemberUpdateResult.NOT_MEMBER);
+        });
+        chatMembershipCache.removeMembers(chatId, collectUsers(results, MemberUpdateResult.REMOVED));
+        return results;
+    }
+
+    private void validateChatMembers(Collection<Integer> userIds, int chatId) throws InvalidAttributesException {
+        if (chatId <= 0 || userIds == null || userIds.isEmpty() || userIds.stream().anyMatch(userId -> userId == null || userId <= 0)) {
+            throw new InvalidAttributesException(String.format("User/Chat ID is invalid - user IDs: %s, chat ID: %s", userIds, chatId),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+    }
+
+    private static int[] collectUsers(Map<Integer, MemberUpdateResult> results, MemberUpdateResult result) {
+        return results.entrySet().stream().filter(entry -> entry.getValue() == result).mapToInt(Map.Entry::getKey).toArray();
+    }
+
+    /**
+     * Distinct requested users which exist and are not members of chat yet, only they take chat capacity when added
+     */
+    public int countNewChatMembers(Collection<Integer> userIds, int chatId) throws InvalidAttributesException {
+        validateChatMembers(userIds, chatId);
+        final String query = "SELECT COUNT(*) FROM users WHERE id = ANY(?) " +
+                             "AND NOT EXISTS (SELECT 1 FROM users_to_chats WHERE user_id = users.id AND chat_id = ?);";
+        Integer count = jdbcTemplate.query(connection -> {
+            PreparedStatement preparedStatement = connection.prepareStatement(query);
+            preparedStatement.setArray(1, connection.createArrayOf("int4", userIds.toArray()));
+            preparedStatement.setInt(2, chatId);
+            return preparedStatement;
+        }, resultSet -> resultSet.next() ? resultSet.getInt(1) : 0);
+        return count == null ? 0 : count;
     }
 
     public int countChatMembers(int chatId) throws InvalidAttributesException {
         if (chatId <= 0) {
             throw new InvalidAttributesException(String.format("Chat ID is invalid: %s", chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
+        Integer count = chatMembershipCache.countMembers(chatId);
+        if (count != null) {
+            return count;
+        }
         final String query = "SELECT COUNT(*) FROM users_to_chats WHERE chat_id = ?;";
-        Integer count = jdbcTemplate.queryForObject(query, Integer.class, chatId);
+        count = jdbcTemplate.queryForObject(query, Integer.class, chatId);
         return count == null ? 0 : count;
     }
 
     public int countCreatedChatsByUser(int userId) throws InvalidAttributesException {
         if (userId <= 0) {
             throw new InvalidAttributesException(String.format("User ID is invalid: %s", userId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "SELECT COUNT(*) FROM chats WHERE author_id = ?;";
@@ -163,7 +290,7 @@ public class UserDataAccessObject {
     public int getRandomChatSimpleMemberId(int chatId, int userId) throws InvalidAttributesException {
         if (userId <= 0 || chatId <= 0) {
             throw new InvalidAttributesException(String.format("User/Chat ID is invalid - user ID: %s, chat ID: %s", userId, chatId),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         final String query = "SELECT user_id FROM users_to_chats utc INNER JOIN chats c on utc.chat_id = c.id WHERE c.id = ? AND utc.user_id != ? LIMIT 1;";
@@ -174,64 +301,69 @@ public class UserDataAccessObject {
     public void updateUserLoginTime(String username) throws InvalidAttributesException {
         if (username == null || username.isEmpty()) {
             throw new InvalidAttributesException(String.format("Username is invalid: %s", username),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        userRepository.updateUserLoginTimeByUsername(username);
+        userActivityTimeBuffer.putLoginTime(username);
     }
 
     public void updateUserLogoutTime(String username) throws InvalidAttributesException {
         if (username == null || username.isEmpty()) {
             throw new InvalidAttributesException(String.format("Username is invalid: %s", username),
-                    Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                    ExceptionTrace.caller(),
                     LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        userRepository.updateUserLogoutTimeByUsername(username);
+        userActivityTimeBuffer.putLogoutTime(username);
     }
 
     public void updateUserPassword(String login, String newPassword) throws InvalidAttributesException {
         if (login == null || login.isEmpty() || newPassword == null || newPassword.isEmpty()) {
             throw new InvalidAttributesException(String.format("Login: %s or password is invalid: %s", login, newPassword),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         userRepository.updateUserPassword(login, newPassword);
+        userDetailsCache.invalidateUser(login);
     }
 
     public void updateUserEmail(String email, String username) throws InvalidAttributesException {
         if (email == null || email.isEmpty() || username == null || username.isEmpty()) {
             throw new InvalidAttributesException(String.format("Email: %s or username is invalid: %s", email, username),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         userRepository.updateUserEmail(email, username);
+        userDetailsCache.invalidateUser(username);
     }
 
     public void enableUser(String email) throws InvalidAttributesException {
         if (email == null || email.isEmpty()) {
             throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         userRepository.enableUser(email);
+        userDetailsCache.invalidateUser(email);
     }
 
     public void disableUser(String email) throws InvalidAttributesException {
         if (email == null || email.isEmpty()) {
             throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         userRepository.disableUser(email);
+        userDetailsCache.invalidateUser(email);
     }
 
     public void deleteActivationExpiredAccountByLogin(String login) throws InvalidAttributesException {
         if (login == null || login.isEmpty()) {
             throw new InvalidAttributesException(String.format("Username/email is invalid: %s", login),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         userRepository.deleteDisabledUser(login);
+        userDetailsCache.invalidateUser(login);
     }
 
     private void validateUserModel(AbstractUserModel abstractUserModel) throws InvalidAttributesException {
@@ -250,7 +382,7 @@ public class UserDataAccessObject {
         }
         if (!exceptionText.toString().isEmpty()) {
             throw new InvalidAttributesException(exceptionText.toString(),
-                    Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                    ExceptionTrace.caller(),
                     LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
     }
@@ -18,14 +18,6 @@ public interface UserRepository extends JpaRepository<AbstractUserModel, Integer
     Long countAbstractUserModelsWithFollowingUsername(@Param("username") String username);
     @Modifying
     @Transactional
-    @Query("UPDATE AbstractUserModel u SET u.loginTime = current_timestamp WHERE u.username = :username")
-    void updateUserLoginTimeByUsername(@Param("username") String username);
-    @Modifying
-    @Transactional
-    @Query("UPDATE AbstractUserModel u SET u.logoutTime = current_timestamp WHERE u.username = :username")
-    void updateUserLogoutTimeByUsername(@Param("username") String username);
-    @Modifying
-    @Transactional
     @Query("UPDATE AbstractUserModel u SET u.password = :password WHERE u.username = :login OR u.email = :login")
     void updateUserPassword(@Param("login") String login, @Param("password") String password);
     @Modifying
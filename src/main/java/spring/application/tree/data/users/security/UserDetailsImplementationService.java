@@ -8,6 +8,7 @@ import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 import spring.application.tree.data.exceptions.ApplicationException;
+import spring.application.tree.data.users.cache.UserDetailsCache;
 import spring.application.tree.data.users.models.AbstractUserModel;
 import spring.application.tree.data.users.repository.UserDataAccessObject;
 
@@ -17,10 +18,15 @@ import spring.application.tree.data.users.repository.UserDataAccessObject;
 @RequiredArgsConstructor
 public class UserDetailsImplementationService implements UserDetailsService {
     private final UserDataAccessObject userDataAccessObject;
+    private final UserDetailsCache userDetailsCache;
 
     @Override
     public UserDetails loadUserByUsername(String login) throws UsernameNotFoundException {
-        AbstractUserModel user = null;
+        AbstractUserModel user = userDetailsCache.getUser(login);
+        if (user != null) {
+            return user;
+        }
+        long generation = userDetailsCache.getGeneration();
         try {
             user = userDataAccessObject.getUserByLoginCredentials(login);
         } catch (ApplicationException e) {
@@ -29,6 +35,7 @@ public class UserDetailsImplementationService implements UserDetailsService {
         if (user == null) {
             throw new UsernameNotFoundException(String.format("No users were found by following username: %s", login));
         }
+        userDetailsCache.putUser(login, user, generation);
         return user;
     }
 }
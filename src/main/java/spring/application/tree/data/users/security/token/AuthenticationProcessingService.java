@@ -9,6 +9,7 @@ import org.springframework.security.authentication.UsernamePasswordAuthenticatio
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
 import spring.application.tree.data.exceptions.SecurityException;
 import spring.application.tree.data.users.security.UserDetailsImplementationService;
@@ -16,7 +17,6 @@ import spring.application.tree.data.users.service.UserService;
 
 import javax.servlet.http.HttpServletRequest;
 import java.time.LocalDateTime;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -25,6 +25,7 @@ import java.util.Map;
 @Slf4j
 @Profile(value = {"token", "boots_token"})
 public class AuthenticationProcessingService {
+    private static final SecurityException TOKEN_NOT_ACHIEVED = new SecurityException("Authorization token can not be achieved", HttpStatus.UNAUTHORIZED);
     private final AuthenticationManager authenticationManager;
     private final UserDetailsImplementationService userDetailsService;
     private final AuthorizationTokenUtility authorizationTokenUtility;
@@ -37,9 +38,7 @@ public class AuthenticationProcessingService {
             UserDetails userDetails = userDetailsService.loadUserByUsername(username);
             token = authorizationTokenUtility.generateToken(userDetails, request);
         } else {
-            throw new SecurityException("Authorization token can not be achieved",
-                                        Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
-                                        LocalDateTime.now(), HttpStatus.UNAUTHORIZED);
+            throw TOKEN_NOT_ACHIEVED;
         }
         try {
             userService.updateUserLoginTime(username);
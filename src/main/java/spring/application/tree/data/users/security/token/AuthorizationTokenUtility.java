@@ -1,39 +1,65 @@
 package spring.application.tree.data.users.security.token;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.lang.NonNull;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Component;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
 import java.security.Key;
 import java.time.Clock;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 @Component
+@Slf4j
+@RequiredArgsConstructor
 @PropertySource("classpath:token.properties")
 @Profile(value = {"token", "boots_token"})
 public class AuthorizationTokenUtility {
-    /**
-     * Username -> Token
-     */
-    private final Map<String, String> blacklistedTokens = new HashMap<>();
+    private final TokenRevocationStore tokenRevocationStore;
+    private final ScheduleService scheduleService;
     @Value("${token.duration}")
     private int tokenValidityDuration;
+    @Value("${token.cache.size}")
+    private int verifiedTokensCacheSize;
+    @Value("${token.cache.sweep.interval}")
+    private int verifiedTokensSweepInterval;
     private final Key key = Keys.secretKeyFor(SignatureAlgorithm.HS256);
+    private final JwtParser jwtParser = Jwts.parserBuilder().setSigningKey(key).build();
+    /**
+     * SHA-256 of token -> Claims of token with verified signature. Expired tokens are swept periodically,
+     * full cache drops expired tokens and then arbitrary ones, dropped token is verified again by its next request
+     */
+    private final Map<String, Claims> verifiedTokens = new ConcurrentHashMap<>();
 
+    @PostConstruct
+    private void initializeVerifiedTokensCache() throws InvalidAttributesException {
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::sweepVerifiedTokens, verifiedTokensSweepInterval,
+                                                                    verifiedTokensSweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Token stays revoked until its expiration date, new tokens of the same user are not affected
+     */
     public void blacklistToken(String token) {
-        String username = getUsernameFromToken(token);
-        blacklistedTokens.put(username, token);
+        tokenRevocationStore.revoke(token, getExpirationDateFromToken(token));
     }
 
     public String getUsernameFromToken(String token) {
@@ -49,20 +75,55 @@ public class AuthorizationTokenUtility {
         return claimsResolver.apply(claims);
     }
 
-    private Claims getAllClaimsFromToken(String token) {
-        return Jwts.parserBuilder().setSigningKey(key).build().parseClaimsJws(token).getBody();
+    /**
+     * Signature is verified only once for every token, following calls get claims from cache until token expires
+     */
+    public Claims getAllClaimsFromToken(String token) {
+        return getAllClaimsFromToken(token, TokenRevocationStore.digest(token));
+    }
+
+    /**
+     * @param digest digest of token computed by {@link TokenRevocationStore#digest(String)}, so request computes it once
+     */
+    public Claims getAllClaimsFromToken(String token, String digest) {
+        Claims claims = verifiedTokens.get(digest);
+        if (claims != null && claims.getExpiration() != null && claims.getExpiration().after(new Date())) {
+            return claims;
+        }
+        verifiedTokens.remove(digest);
+        claims = jwtParser.parseClaimsJws(token).getBody();
+        if (verifiedTokens.size() >= verifiedTokensCacheSize) {
+            shrinkVerifiedTokens();
+        }
+        verifiedTokens.put(digest, claims);
+        return claims;
     }
 
-    private boolean isTokenExpired(String token) {
-        Date expiration = getExpirationDateFromToken(token);
+    private void sweepVerifiedTokens() {
+        Date now = new Date();
+        verifiedTokens.values().removeIf(claims -> claims.getExpiration() == null || !claims.getExpiration().after(now));
+    }
+
+    /**
+     * Concurrent callers may shrink cache together, so it can drop a few more tokens than needed
+     */
+    private void shrinkVerifiedTokens() {
+        sweepVerifiedTokens();
+        Iterator<String> digests = verifiedTokens.keySet().iterator();
+        while (verifiedTokens.size() >= verifiedTokensCacheSize && digests.hasNext()) {
+            digests.next();
+            digests.remove();
+        }
+        log.debug("Verified tokens cache is full, tokens left: {}", verifiedTokens.size());
+    }
+
+    private boolean isTokenExpired(String digest, Claims claims) {
+        Date expiration = claims.getExpiration();
         Date now = Date.from(LocalDateTime.now(Clock.systemDefaultZone()).toInstant(ZoneOffset.ofTotalSeconds(0)));
-        return expiration.before(now) || blacklistedTokens.containsValue(token);
+        return expiration.before(now) || tokenRevocationStore.isRevokedDigest(digest);
     }
 
     public String generateToken(UserDetails userDetails, @NonNull HttpServletRequest request) {
-        if (blacklistedTokens.containsKey(userDetails.getUsername()) && !isTokenExpired(blacklistedTokens.get(userDetails.getUsername()))) {
-            return blacklistedTokens.get(userDetails.getUsername());
-        }
         Map<String, String> claims = new HashMap<>();
         claims.put("User-Agent", request.getHeader("User-Agent"));
         claims.put("IP", request.getRemoteAddr());
@@ -73,15 +134,27 @@ public class AuthorizationTokenUtility {
                            .setExpiration(Date.from(LocalDateTime.now(Clock.systemDefaultZone()).plusSeconds(tokenValidityDuration).toInstant(ZoneOffset.ofTotalSeconds(0))))
                            .signWith(key)
                            .compact();
-        blacklistedTokens.remove(userDetails.getUsername());
         return token;
     }
 
     public boolean validateToken(String token, UserDetails userDetails, @NonNull HttpServletRequest request) {
-        String username = getUsernameFromToken(token);
-        Claims claims = getAllClaimsFromToken(token);
+        return validateToken(token, getAllClaimsFromToken(token), userDetails, request);
+    }
+
+    /**
+     * Validates token using claims which were already extracted from it
+     */
+    public boolean validateToken(String token, Claims claims, UserDetails userDetails, @NonNull HttpServletRequest request) {
+        return validateTokenByDigest(TokenRevocationStore.digest(token), claims, userDetails, request);
+    }
+
+    /**
+     * Validates token by its digest and claims which were already extracted from it
+     */
+    public boolean validateTokenByDigest(String digest, Claims claims, UserDetails userDetails, @NonNull HttpServletRequest request) {
+        String username = claims.getSubject();
         String userAgent = (String) claims.get("User-Agent");
         String address = (String) claims.get("IP");
-        return username.equals(userDetails.getUsername()) && userAgent.equals(request.getHeader("User-Agent")) && address.equals(request.getRemoteAddr()) && !isTokenExpired(token) && !blacklistedTokens.containsValue(token);
+        return username.equals(userDetails.getUsername()) && Objects.equals(userAgent, request.getHeader("User-Agent")) && Objects.equals(address, request.getRemoteAddr()) && !isTokenExpired(digest, claims);
     }
 }
@@ -0,0 +1,144 @@
+package spring.application.tree.data.users.security.token;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Revoked tokens are kept only until their expiration date, after that parser rejects them anyway.
+ * Tokens are stored as SHA-256 digests, so lookup does not depend on number of revoked tokens
+ * and raw tokens are never written to snapshot
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:token.properties")
+@Profile(value = {"token", "boots_token"})
+public class TokenRevocationStore {
+    private final ScheduleService scheduleService;
+    @Value("${token.revocation.sweep.interval}")
+    private int sweepInterval;
+    @Value("${token.revocation.snapshot.path}")
+    private String snapshotPath;
+    /**
+     * Digest of token -> expiration time of token in milliseconds
+     */
+    private final Map<String, Long> revokedTokens = new ConcurrentHashMap<>();
+    private final AtomicBoolean snapshotOutdated = new AtomicBoolean();
+
+    @PostConstruct
+    private void initializeRevocationStore() throws InvalidAttributesException {
+        readSnapshot();
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public static String digest(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void revoke(String token, Date expiration) {
+        revokedTokens.put(digest(token), expiration.getTime());
+        snapshotOutdated.set(true);
+    }
+
+    public boolean isRevoked(String token) {
+        return revokedTokens.containsKey(digest(token));
+    }
+
+    /**
+     * Lookup by digest which was already computed from token
+     */
+    public boolean isRevokedDigest(String digest) {
+        return revokedTokens.containsKey(digest);
+    }
+
+    public int size() {
+        return revokedTokens.size();
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        int sizeBefore = revokedTokens.size();
+        revokedTokens.values().removeIf(expiration -> expiration < now);
+        int removed = sizeBefore - revokedTokens.size();
+        if (removed > 0) {
+            snapshotOutdated.set(true);
+            log.debug(String.format("Expired revoked tokens removed: %d", removed));
+        }
+        writeSnapshot();
+    }
+
+    private void readSnapshot() {
+        if (snapshotPath == null || snapshotPath.isEmpty() || !Files.exists(Paths.get(snapshotPath))) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(snapshotPath), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 2 && Long.parseLong(parts[1]) >= now) {
+                    revokedTokens.put(parts[0], Long.parseLong(parts[1]));
+                }
+            }
+            log.info(String.format("Revoked tokens restored from snapshot: %d", revokedTokens.size()));
+        } catch (IOException | NumberFormatException e) {
+            log.error(String.format("Revoked tokens snapshot could not be read: %s", snapshotPath), e);
+        }
+    }
+
+    /**
+     * Snapshot is written to temporary file and moved over previous one, so it is never left half written
+     */
+    @PreDestroy
+    private synchronized void writeSnapshot() {
+        if (snapshotPath == null || snapshotPath.isEmpty() || !snapshotOutdated.compareAndSet(true, false)) {
+            return;
+        }
+        Path snapshot = Paths.get(snapshotPath);
+        Path temporarySnapshot = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporarySnapshot, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> revokedToken : revokedTokens.entrySet()) {
+                    writer.write(revokedToken.getKey());
+                    writer.write(' ');
+                    writer.write(Long.toString(revokedToken.getValue()));
+                    writer.newLine();
+                }
+            }
+            Files.move(temporarySnapshot, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            snapshotOutdated.set(true);
+            log.error(String.format("Revoked tokens snapshot could not be written: %s", snapshotPath), e);
+        }
+    }
+}
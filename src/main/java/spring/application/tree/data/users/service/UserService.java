@@ -1,7 +1,10 @@
 package spring.application.tree.data.users.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -9,33 +12,52 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import spring.application.tree.data.chats.attributes.ChatType;
+import spring.application.tree.data.chats.attributes.MemberUpdateResult;
+import spring.application.tree.data.chats.models.ChatMembersModel;
 import spring.application.tree.data.chats.service.ChatService;
+import spring.application.tree.data.events.service.ChatEventService;
 import spring.application.tree.data.exceptions.ApplicationException;
 import spring.application.tree.data.exceptions.DataNotFoundException;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
 import spring.application.tree.data.exceptions.NotAllowedException;
 import spring.application.tree.data.users.models.AbstractUserModel;
 import spring.application.tree.data.users.repository.UserDataAccessObject;
 import spring.application.tree.data.users.security.DataEncoderTool;
-import spring.application.tree.data.utility.tasks.TaskUtility;
+import spring.application.tree.data.utility.mailing.models.ActionType;
+import spring.application.tree.data.utility.tasks.ActionHistoryStorage;
+import spring.application.tree.data.utility.tasks.storage.ConfirmationAction;
+import spring.application.tree.data.utility.transactions.TransactionCallbackUtility;
+import spring.application.tree.web.webscoket.models.Endpoints;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
+import spring.application.tree.web.webscoket.service.WebSocketService;
 
 import javax.servlet.http.HttpServletRequest;
 import java.time.LocalDateTime;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
 @RequiredArgsConstructor
+@PropertySource("classpath:chat.properties")
 public class UserService {
+    private static final NotAllowedException DELETION_NOT_AUTHORIZED = new NotAllowedException("Account deletion not allowed, no authorization detected", HttpStatus.FORBIDDEN);
     private final UserDataAccessObject userDataAccessObject;
     private final ChatService chatService;
+    private final ChatEventService chatEventService;
+    private final WebSocketService webSocketService;
+    @Value("${chat.member.batch.size.max}")
+    private int maxMemberBatchSize;
 
     public List<AbstractUserModel> getChatMembers(int chatId) throws InvalidAttributesException, NotAllowedException {
         Integer currentUserId = getIdOfCurrentlyAuthenticatedUser();
         if (currentUserId == null || !chatService.checkUserPresenceInChat(currentUserId, chatId)) {
             throw new NotAllowedException(String.format("Access to chat with ID: %s denied, you not participating it", chatId),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.FORBIDDEN);
         }
         return userDataAccessObject.getChatMembers(chatId);
@@ -73,19 +95,11 @@ public class UserService {
     public void saveUser(AbstractUserModel abstractUserModel, HttpServletRequest httpServletRequest) throws ApplicationException {
         if (!checkUserCredentialsAvailable(abstractUserModel.getEmail(), abstractUserModel.getUsername())) {
             throw new NotAllowedException(String.format("Credentials are taken, email: %s, username: %s", abstractUserModel.getEmail(), abstractUserModel.getUsername()),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        Runnable postponeSuccessTask = () -> {
-            try {
-                enableUser(abstractUserModel.getEmail());
-            } catch (InvalidAttributesException e) {
-                log.error(e.getMessage(), e);
-                log.error(String.format("Could not enable user: %s", abstractUserModel.getEmail()));
-            }
-        };
         String origin = extractSourceURI(httpServletRequest);
-        TaskUtility.putSuccessConfirmationTask(abstractUserModel.getEmail(), origin, postponeSuccessTask);
+        ActionHistoryStorage.putSuccessAction(abstractUserModel.getEmail(), ActionType.SIGN_UP, abstractUserModel.getEmail(), null, origin);
         userDataAccessObject.saveUser(abstractUserModel);
     }
 
@@ -93,7 +107,7 @@ public class UserService {
         AbstractUserModel oldUser = userDataAccessObject.getUserById(updatedUser.getId());
         if (oldUser == null) {
             throw new DataNotFoundException(String.format("User with following ID was not found: %s", updatedUser.getId()),
-                                            Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                            ExceptionTrace.caller(),
                                             LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         oldUser.mergeChanges(updatedUser);
@@ -103,37 +117,42 @@ public class UserService {
     public void restoreUserPassword(String email, String newPassword, HttpServletRequest httpServletRequest) throws ApplicationException {
         if (checkEmailAvailability(email)) {
             throw new DataNotFoundException(String.format("No account signed to email was found: %s", email),
-                                            Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                            ExceptionTrace.caller(),
                                             LocalDateTime.now(), HttpStatus.NOT_FOUND);
         }
-        Runnable postponeSuccessTask = () -> {
-            try {
-                updateUserPassword(email, newPassword);
-            } catch (ApplicationException e) {
-                log.error(e.getMessage(), e);
-                log.error(String.format("Could not update password for user: %s", email));
-            }
-        };
         String origin = extractSourceURI(httpServletRequest);
-        TaskUtility.putSuccessConfirmationTask(email, origin, postponeSuccessTask);
+        ActionHistoryStorage.putSuccessAction(email, ActionType.RESTORE_PASSWORD, email, DataEncoderTool.encodeData(newPassword), origin);
     }
 
     public void restoreUserEmail(String email, String username, HttpServletRequest httpServletRequest) throws ApplicationException {
         if (!checkEmailAvailability(email) || checkUsernameAvailability(username)) {
             throw new NotAllowedException(String.format("Email: %s is taken or no signed to username account was found: %s", email, username),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.NOT_FOUND);
         }
-        Runnable postponeSuccessTask = () -> {
-            try {
-                updateUserEmail(email, username);
-            } catch (ApplicationException e) {
-                log.error(e.getMessage(), e);
-                log.error(String.format("Could not update email for user: %s", username));
-            }
-        };
         String origin = extractSourceURI(httpServletRequest);
-        TaskUtility.putSuccessConfirmationTask(email, origin, postponeSuccessTask);
+        ActionHistoryStorage.putSuccessAction(email, ActionType.CHANGE_EMAIL, username, email, origin);
+    }
+
+    /**
+     * Executes action stored when confirmation was requested, password of restoring action is stored encoded
+     */
+    public void executeConfirmationAction(ConfirmationAction action) throws ApplicationException {
+        switch (action.getActionType()) {
+            case SIGN_UP:
+                enableUser(action.getLogin());
+                break;
+            case RESTORE_PASSWORD:
+                userDataAccessObject.updateUserPassword(action.getLogin(), action.getParameter());
+                break;
+            case CHANGE_EMAIL:
+                updateUserEmail(action.getParameter(), action.getLogin());
+                break;
+            default:
+                throw new InvalidAttributesException(String.format("Action can not be confirmed: %s", action.getActionType()),
+                                                     ExceptionTrace.caller(),
+                                                     LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
     }
 
     public void updateUserPassword(String email, String newPassword) throws ApplicationException {
@@ -152,9 +171,7 @@ public class UserService {
     public void deleteUser(HttpServletRequest httpRequest) throws ApplicationException {
         Integer id = getIdOfCurrentlyAuthenticatedUser();
         if (id == null) {
-            throw new NotAllowedException("Account deletion not allowed, no authorization detected",
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
-                                          LocalDateTime.now(), HttpStatus.FORBIDDEN);
+            throw DELETION_NOT_AUTHORIZED;
         }
         processChatsOnAuthorAccountDeletion(id);
         userDataAccessObject.deleteUserById(id);
@@ -176,25 +193,28 @@ public class UserService {
                 } else {
                     chatService.deleteChat(chatId, userId);
                 }
+                chatEventService.appendMembersEvent(chatId, WebSocketEvent.USER_LEAVES_CHAT, Collections.singletonList(userId));
             }
         }
     }
 
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     public void addUserToChat(int userId, int chatId) throws InvalidAttributesException, NotAllowedException {
         Integer currentUserId = getIdOfCurrentlyAuthenticatedUser();
         if (currentUserId == null || !chatService.getChatIdsOwnedByUser(currentUserId).contains(chatId)) {
             throw new NotAllowedException(String.format("Member adding declined, only author of chat able to do that, chat ID: %s", chatId),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.FORBIDDEN);
         }
         ChatType chatType = chatService.getChatType(chatId);
         int chatMembersCount = countChatMembers(chatId);
         if (!chatType.isUserAddingAllowed(chatMembersCount)) {
             throw new NotAllowedException(String.format("Member adding declined, chat type restricts it, chat ID: %s, chat type: %s", chatId, chatType),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.FORBIDDEN);
         }
         userDataAccessObject.addUserToChat(userId, chatId);
+        chatEventService.appendMembersEvent(chatId, WebSocketEvent.NEW_USER_IN_CHAT, Collections.singletonList(userId));
     }
 
     @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
@@ -202,17 +222,100 @@ public class UserService {
         Integer currentUserId = getIdOfCurrentlyAuthenticatedUser();
         if (currentUserId == null || !chatService.getChatIdsOwnedByUser(currentUserId).contains(chatId)) {
             throw new NotAllowedException(String.format("Member removing declined, only author of chat able to do that, chat ID: %s", chatId),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.FORBIDDEN);
         }
         if (currentUserId == userId) {
             throw new NotAllowedException(String.format("Member removing declined, author of chat can not be removed, chat ID: %s", chatId),
-                                          Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                          ExceptionTrace.caller(),
                                           LocalDateTime.now(), HttpStatus.FORBIDDEN);
         }
         userDataAccessObject.removeUserFromChat(userId, chatId);
+        chatEventService.appendMembersEvent(chatId, WebSocketEvent.USER_LEAVES_CHAT, Collections.singletonList(userId));
     }
 
+    /**
+     * Ownership and chat type are checked once for all users, members are added by one statement
+     * and chat receives one event with IDs of added users. Chat capacity is checked against distinct existing users which are not members yet
+     */
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
+    public Map<Integer, MemberUpdateResult> addUsersToChat(List<Integer> userIds, int chatId) throws InvalidAttributesException, NotAllowedException {
+        checkMemberBatchSize(userIds);
+        Integer currentUserId = getIdOfCurrentlyAuthenticatedUser();
+        if (currentUserId == null || !chatService.getChatIdsOwnedByUser(currentUserId).contains(chatId)) {
+            throw new NotAllowedException(String.format("Member adding declined, only author of chat able to do that, chat ID: %s", chatId),
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.FORBIDDEN);
+        }
+        ChatType chatType = chatService.getChatType(chatId);
+        int chatMembersCount = countChatMembers(chatId);
+        int newMembersCount = userDataAccessObject.countNewChatMembers(userIds, chatId);
+        if (newMembersCount > 0 && !chatType.isUserAddingAllowed(chatMembersCount + newMembersCount - 1)) {
+            throw new NotAllowedException(String.format("Member adding declined, chat type restricts it, chat ID: %s, chat type: %s", chatId, chatType),
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.FORBIDDEN);
+        }
+        Map<Integer, MemberUpdateResult> results = userDataAccessObject.addUsersToChat(userIds, chatId);
+        notifyChatMembersChange(chatId, results, MemberUpdateResult.ADDED, WebSocketEvent.NEW_USER_IN_CHAT);
+        return results;
+    }
+
+    /**
+     * Author of chat is never removed, other members are removed by one statement
+     * and chat receives one event with IDs of removed users
+     */
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
+    public Map<Integer, MemberUpdateResult> removeUsersFromChat(List<Integer> userIds, int chatId) throws InvalidAttributesException, NotAllowedException {
+        checkMemberBatchSize(userIds);
+        Integer currentUserId = getIdOfCurrentlyAuthenticatedUser();
+        if (currentUserId == null || !chatService.getChatIdsOwnedByUser(currentUserId).contains(chatId)) {
+            throw new NotAllowedException(String.format("Member removing declined, only author of chat able to do that, chat ID: %s", chatId),
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.FORBIDDEN);
+        }
+        List<Integer> removedUserIds = userIds.stream().filter(userId -> !currentUserId.equals(userId)).collect(Collectors.toList());
+        Map<Integer, MemberUpdateResult> results = new LinkedHashMap<>();
+        if (!removedUserIds.isEmpty()) {
+            results.putAll(userDataAccessObject.removeUsersFromChat(removedUserIds, chatId));
+        }
+        if (removedUserIds.size() < userIds.size()) {
+            results.put(currentUserId, MemberUpdateResult.DECLINED);
+        }
+        notifyChatMembersChange(chatId, results, MemberUpdateResult.REMOVED, WebSocketEvent.USER_LEAVES_CHAT);
+        return results;
+    }
+
+    private void checkMemberBatchSize(List<Integer> userIds) throws InvalidAttributesException {
+        if (userIds == null || userIds.isEmpty() || userIds.size() > maxMemberBatchSize) {
+            throw new InvalidAttributesException(String.format("Members count is invalid: %s, maximum is %s", userIds == null ? null : userIds.size(), maxMemberBatchSize),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+    }
+
+    /**
+     * Event is appended to chat events and sent after commit, only when some members were changed
+     */
+    private void notifyChatMembersChange(int chatId, Map<Integer, MemberUpdateResult> results, MemberUpdateResult change, WebSocketEvent event) throws InvalidAttributesException {
+        List<Integer> changedUserIds = results.entrySet().stream()
+                                              .filter(entry -> entry.getValue() == change)
+                                              .map(Map.Entry::getKey)
+                                              .collect(Collectors.toList());
+        if (changedUserIds.isEmpty()) {
+            return;
+        }
+        chatEventService.appendMembersEvent(chatId, event, changedUserIds);
+        String destination = String.format("%s/%s", Endpoints.CHAT.getEndpointPrefix(), chatId);
+        TransactionCallbackUtility.runAfterCommit(() -> {
+            try {
+                webSocketService.sendMessage(new ChatMembersModel(chatId, changedUserIds), destination, event);
+            } catch (JsonProcessingException e) {
+                log.error(String.format("Members change of chat %s could not be sent", chatId), e);
+            }
+        });
+    }
+
+    @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     public void joinChat(int chatId, String password) throws InvalidAttributesException, NotAllowedException {
         Integer userId = getIdOfCurrentlyAuthenticatedUser();
         if (userId != null) {
@@ -222,10 +325,11 @@ public class UserService {
             boolean joiningAllowed = chatPassword == null || (chatPassword.equals(password)) || chatType.isUserAddingAllowed(chatMembersCount);
             if (!joiningAllowed) {
                 throw new NotAllowedException(String.format("Joining declined, password does not match or chat type does not support that action, chat ID: %s, chat type: %s", chatId, chatType),
-                                              Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                              ExceptionTrace.caller(),
                                               LocalDateTime.now(), HttpStatus.FORBIDDEN);
             }
             userDataAccessObject.addUserToChat(userId, chatId);
+            chatEventService.appendMembersEvent(chatId, WebSocketEvent.NEW_USER_IN_CHAT, Collections.singletonList(userId));
         }
     }
 
@@ -237,6 +341,7 @@ public class UserService {
                 processChatsOnAuthorAccountDeletion(userId);
             } else {
                 userDataAccessObject.removeUserFromChat(userId, chatId);
+                chatEventService.appendMembersEvent(chatId, WebSocketEvent.USER_LEAVES_CHAT, Collections.singletonList(userId));
             }
         }
     }
@@ -261,6 +366,10 @@ public class UserService {
         userDataAccessObject.deleteActivationExpiredAccountByLogin(login);
     }
 
+    public List<AbstractUserModel> getEnabledUsersPage(Integer chatId, int afterUserId, int limit) throws InvalidAttributesException {
+        return userDataAccessObject.getEnabledUsersPage(chatId, afterUserId, limit);
+    }
+
     public int countChatMembers(int chatId) throws InvalidAttributesException {
         return userDataAccessObject.countChatMembers(chatId);
     }
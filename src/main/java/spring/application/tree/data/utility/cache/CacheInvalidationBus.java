@@ -0,0 +1,57 @@
+package spring.application.tree.data.utility.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Passes invalidations of node local caches to other nodes, so change made on one node is not served stale by others.
+ * Invalidations travel by Postgres fan out channel and are passed only with fan_out_postgres profile,
+ * otherwise caches rely on their time to live. Invalidation published inside of transaction is delivered on commit only
+ */
+@Component
+@Slf4j
+public class CacheInvalidationBus {
+    /**
+     * Key - cache name, value - listener invalidating entry by key received from other node
+     */
+    private final Map<String, Consumer<String>> listeners = new ConcurrentHashMap<>();
+    private volatile BiConsumer<String, String> transport;
+
+    public void subscribe(String cache, Consumer<String> listener) {
+        listeners.put(cache, listener);
+    }
+
+    public void setTransport(BiConsumer<String, String> transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Failed publishing is logged only, other nodes are left to time to live of their entries
+     */
+    public void publish(String cache, String key) {
+        BiConsumer<String, String> currentTransport = transport;
+        if (currentTransport == null) {
+            return;
+        }
+        try {
+            currentTransport.accept(cache, key);
+        } catch (RuntimeException e) {
+            log.error(String.format("Invalidation of '%s' in cache '%s' was not passed to other nodes", key, cache), e);
+        }
+    }
+
+    /**
+     * Invalidation received from other node
+     */
+    public void deliver(String cache, String key) {
+        Consumer<String> listener = listeners.get(cache);
+        if (listener != null) {
+            listener.accept(key);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package spring.application.tree.data.utility.mailing.models;
+
+import com.fasterxml.jackson.annotation.JsonAlias;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Notification for many recipients, text and subject may contain {username} and {email} placeholders
+ * which are replaced with values of every recipient
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BulkMailMessageModel {
+    private RecipientQuery recipients;
+    @JsonAlias({"chat_id"})
+    private Integer chatId;
+    private String subject;
+    private String text;
+    private MailType mailType;
+}
@@ -0,0 +1,19 @@
+package spring.application.tree.data.utility.mailing.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MailOutboxStatistics {
+    private int queueDepth;
+    private int capacity;
+    private long sent;
+    private long retried;
+    private long failed;
+    private long rejected;
+    private double averageSendLatency;
+    private long maxSendLatency;
+}
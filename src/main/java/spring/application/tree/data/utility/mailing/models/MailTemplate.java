@@ -0,0 +1,68 @@
+package spring.application.tree.data.utility.mailing.models;
+
+import org.springframework.web.util.HtmlUtils;
+import spring.application.tree.data.users.models.AbstractUserModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Template split once into literal parts and placeholders, so rendering for every recipient
+ * only appends parts without searching the text again. Unknown placeholders are left as they are
+ */
+public class MailTemplate {
+    private static final String[] PLACEHOLDERS = {"{username}", "{email}"};
+    private final List<Object> parts = new ArrayList<>();
+    private final boolean escaped;
+    private int literalLength;
+
+    public MailTemplate(String template, boolean escaped) {
+        this.escaped = escaped;
+        int start = 0;
+        int position = template.indexOf('{');
+        while (position >= 0) {
+            int placeholder = findPlaceholder(template, position);
+            if (placeholder >= 0) {
+                addLiteral(template.substring(start, position));
+                parts.add(placeholder == 0 ? (Function<AbstractUserModel, String>) AbstractUserModel::getUsername
+                                           : (Function<AbstractUserModel, String>) AbstractUserModel::getEmail);
+                start = position + PLACEHOLDERS[placeholder].length();
+            }
+            position = template.indexOf('{', position + 1);
+        }
+        addLiteral(template.substring(start));
+    }
+
+    @SuppressWarnings("unchecked")
+    public String render(AbstractUserModel recipient) {
+        StringBuilder result = new StringBuilder(literalLength + 64);
+        for (Object part : parts) {
+            if (part instanceof String) {
+                result.append((String) part);
+            } else {
+                String value = ((Function<AbstractUserModel, String>) part).apply(recipient);
+                if (value != null) {
+                    result.append(escaped ? HtmlUtils.htmlEscape(value) : value);
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    private static int findPlaceholder(String template, int position) {
+        for (int i = 0; i < PLACEHOLDERS.length; i++) {
+            if (template.startsWith(PLACEHOLDERS[i], position)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addLiteral(String literal) {
+        if (!literal.isEmpty()) {
+            parts.add(literal);
+            literalLength += literal.length();
+        }
+    }
+}
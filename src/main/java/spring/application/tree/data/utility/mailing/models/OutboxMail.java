@@ -0,0 +1,17 @@
+package spring.application.tree.data.utility.mailing.models;
+
+import lombok.Data;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Prepared message waiting in outbox, failure callback is run once all sending attempts are used
+ */
+@Data
+public class OutboxMail {
+    private final MimeMessage message;
+    private final String recipient;
+    private final Runnable onFailure;
+    private final long queuedAt = System.currentTimeMillis();
+    private int attempts;
+}
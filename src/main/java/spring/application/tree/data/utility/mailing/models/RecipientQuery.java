@@ -0,0 +1,5 @@
+package spring.application.tree.data.utility.mailing.models;
+
+public enum RecipientQuery {
+    CHAT_MEMBERS, ENABLED_USERS
+}
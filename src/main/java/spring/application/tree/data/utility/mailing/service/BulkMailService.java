@@ -0,0 +1,188 @@
+package spring.application.tree.data.utility.mailing.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.NotAllowedException;
+import spring.application.tree.data.exceptions.OverloadedException;
+import spring.application.tree.data.users.models.AbstractUserModel;
+import spring.application.tree.data.users.service.UserService;
+import spring.application.tree.data.utility.mailing.models.AbstractMailMessageModel;
+import spring.application.tree.data.utility.mailing.models.ActionType;
+import spring.application.tree.data.utility.mailing.models.BulkMailMessageModel;
+import spring.application.tree.data.utility.mailing.models.MailTemplate;
+import spring.application.tree.data.utility.mailing.models.MailType;
+import spring.application.tree.data.utility.mailing.models.RecipientQuery;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends notification to every recipient matching query, recipients are read from database by pages ordered by user ID,
+ * every page in its own short transaction, so memory does not depend on number of recipients and no transaction
+ * stays open while mails are queued. Mailings run one after another in background, each is limited by configured rate
+ * and waits while outbox is full, mailings over configured queue capacity are rejected
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:mail.properties")
+public class BulkMailService {
+    private static final NotAllowedException BULK_MAILING_NOT_AUTHORIZED = new NotAllowedException("Bulk mailing forbidden, no authorization detected", HttpStatus.FORBIDDEN);
+    private final UserService userService;
+    private final MailService mailService;
+    private final MailOutbox mailOutbox;
+    private final PlatformTransactionManager transactionManager;
+    @Value("${mail.bulk.rate}")
+    private int rate;
+    @Value("${mail.bulk.page.size}")
+    private int pageSize;
+    @Value("${mail.bulk.queue.capacity}")
+    private int queueCapacity;
+    @Value("${mail.bulk.all.users.enabled}")
+    private boolean allUsersEnabled;
+    private TransactionTemplate transactionTemplate;
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    private void initializeBulkMailing() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "bulk-mail-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void stopBulkMailing() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Checks request and starts mailing, sender is authorized by bulk mailing permission and may notify members of any chat,
+     * all users only if it is allowed by configuration
+     */
+    public void sendBulkMessage(BulkMailMessageModel bulkMailMessageModel) throws InvalidAttributesException, NotAllowedException, OverloadedException {
+        validateBulkMessageModel(bulkMailMessageModel);
+        Integer currentUserId = UserService.getIdOfCurrentlyAuthenticatedUser();
+        if (currentUserId == null) {
+            throw BULK_MAILING_NOT_AUTHORIZED;
+        }
+        Integer chatId = null;
+        if (bulkMailMessageModel.getRecipients() == RecipientQuery.CHAT_MEMBERS) {
+            chatId = bulkMailMessageModel.getChatId();
+        } else if (!allUsersEnabled) {
+            throw new NotAllowedException("Mailing to all users is disabled",
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.FORBIDDEN);
+        }
+        MailType mailType = bulkMailMessageModel.getMailType() == null ? MailType.PLAIN : bulkMailMessageModel.getMailType();
+        MailTemplate subject = new MailTemplate(bulkMailMessageModel.getSubject(), false);
+        MailTemplate text = new MailTemplate(bulkMailMessageModel.getText(), mailType == MailType.HTML);
+        Integer recipientsChatId = chatId;
+        try {
+            executor.execute(() -> send(recipientsChatId, subject, text, mailType));
+        } catch (RejectedExecutionException e) {
+            if (executor.isShutdown()) {
+                throw new NotAllowedException("Bulk mailing is stopped",
+                                              ExceptionTrace.caller(),
+                                              LocalDateTime.now(), HttpStatus.SERVICE_UNAVAILABLE);
+            }
+            throw new OverloadedException(String.format("Too many pending bulk mailings, maximum is %s", queueCapacity),
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void send(Integer chatId, MailTemplate subject, MailTemplate text, MailType mailType) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(rate, 1);
+        long nextSendingTime = System.nanoTime();
+        long queued = 0;
+        long failed = 0;
+        long startedAt = System.currentTimeMillis();
+        try {
+            int afterUserId = 0;
+            List<AbstractUserModel> recipients;
+            do {
+                int lastUserId = afterUserId;
+                recipients = transactionTemplate.execute(status -> {
+                    try {
+                        return userService.getEnabledUsersPage(chatId, lastUserId, pageSize);
+                    } catch (InvalidAttributesException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                if (recipients == null) {
+                    break;
+                }
+                for (AbstractUserModel recipient : recipients) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new IllegalStateException("Bulk mailing is interrupted");
+                    }
+                    long delay = nextSendingTime - System.nanoTime();
+                    if (delay > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                    nextSendingTime = Math.max(nextSendingTime, System.nanoTime() - interval) + interval;
+                    AbstractMailMessageModel message = new AbstractMailMessageModel(recipient.getEmail(), subject.render(recipient),
+                                                                                    text.render(recipient), mailType, ActionType.NOTIFICATION,
+                                                                                    TimeZone.getDefault().getID());
+                    try {
+                        mailOutbox.put(mailService.composeMessage(message));
+                        queued++;
+                    } catch (InvalidAttributesException e) {
+                        failed++;
+                        log.warn("Bulk mail to '{}' is skipped: {}", recipient.getEmail(), e.getMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Bulk mailing is interrupted", e);
+                    }
+                    afterUserId = recipient.getId();
+                }
+            } while (recipients.size() == pageSize);
+            log.info("Bulk mailing for chat {} finished in {} ms, queued: {}, skipped: {}",
+                     chatId == null ? "'all users'" : chatId, System.currentTimeMillis() - startedAt, queued, failed);
+        } catch (RuntimeException e) {
+            log.error(String.format("Bulk mailing for chat %s failed after %s queued mails", chatId == null ? "'all users'" : chatId, queued), e);
+        }
+    }
+
+    private void validateBulkMessageModel(BulkMailMessageModel bulkMailMessageModel) throws InvalidAttributesException {
+        StringBuilder exceptionMessage = new StringBuilder();
+        if (bulkMailMessageModel.getRecipients() == null) {
+            exceptionMessage.append(String.format("Invalid recipients: %s ", bulkMailMessageModel.getRecipients()));
+        }
+        if (bulkMailMessageModel.getRecipients() == RecipientQuery.CHAT_MEMBERS &&
+            (bulkMailMessageModel.getChatId() == null || bulkMailMessageModel.getChatId() <= 0)) {
+            exceptionMessage.append(String.format("Invalid chat ID: %s ", bulkMailMessageModel.getChatId()));
+        }
+        if (bulkMailMessageModel.getSubject() == null || bulkMailMessageModel.getSubject().isEmpty()) {
+            exceptionMessage.append(String.format("Invalid subject: %s ", bulkMailMessageModel.getSubject()));
+        }
+        if (bulkMailMessageModel.getText() == null || bulkMailMessageModel.getText().isEmpty()) {
+            exceptionMessage.append(String.format("Invalid text: %s", bulkMailMessageModel.getText()));
+        }
+        if (!exceptionMessage.toString().isEmpty()) {
+            throw new InvalidAttributesException(exceptionMessage.toString(),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.joda.time.DateTime;
 import org.springframework.stereotype.Component;
 import spring.application.tree.data.exceptions.ApplicationException;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.OverloadedException;
 import spring.application.tree.data.scheduling.service.ScheduleService;
 import spring.application.tree.data.utility.converting.DateConvertingUtility;
 import spring.application.tree.data.utility.mailing.models.AbstractMailMessageModel;
@@ -48,7 +49,7 @@ public class MailActionsUtility {
         if (ActionType.isConfirmationAction(abstractMailMessageModel.getActionType())) {
             sendConfirmationEmailMessage(abstractMailMessageModel, httpServletRequest);
         } else if (ActionType.isSimpleAction(abstractMailMessageModel.getActionType())) {
-            mailService.sendMessage(abstractMailMessageModel).run();
+            mailService.queueMessage(abstractMailMessageModel);
         }
     }
 
@@ -68,7 +69,7 @@ public class MailActionsUtility {
         return Generators.timeBasedGenerator().generate().toString();
     }
 
-    private AbstractMailMessageModel processConfirmationMailMessageModelForSending(AbstractMailMessageModel abstractMailMessageModel, HttpServletRequest httpServletRequest) throws InvalidAttributesException, ParseException {
+    private AbstractMailMessageModel processConfirmationMailMessageModelForSending(AbstractMailMessageModel abstractMailMessageModel, HttpServletRequest httpServletRequest) throws InvalidAttributesException, OverloadedException, ParseException {
         String subject = "Confirmation message";
         String text;
         String uniqueCode = generateUniqueCode();
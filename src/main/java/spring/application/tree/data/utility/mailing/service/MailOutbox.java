@@ -0,0 +1,260 @@
+package spring.application.tree.data.utility.mailing.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.HttpStatus;
+import org.springframework.mail.MailException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.OverloadedException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.utility.mailing.models.MailOutboxStatistics;
+import spring.application.tree.data.utility.mailing.models.OutboxMail;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded queue of outgoing mails served by pool of workers, every worker keeps its own SMTP connection
+ * while there are mails to send and closes it after idle timeout. Mails are taken in batches and sent through one connection,
+ * failed mails are queued again with exponential backoff. Producers wait for free space and get exception if queue stays full
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:mail.properties")
+public class MailOutbox {
+    private final JavaMailSender javaMailSender;
+    private final ScheduleService scheduleService;
+    @Value("${mail.outbox.capacity}")
+    private int capacity;
+    @Value("${mail.outbox.workers}")
+    private int workersCount;
+    @Value("${mail.outbox.batch.size}")
+    private int batchSize;
+    @Value("${mail.outbox.offer.timeout}")
+    private long offerTimeout;
+    @Value("${mail.outbox.idle.timeout}")
+    private long idleTimeout;
+    @Value("${mail.outbox.retry.attempts}")
+    private int retryAttempts;
+    @Value("${mail.outbox.retry.backoff}")
+    private long retryBackoff;
+    private BlockingQueue<OutboxMail> queue;
+    private List<Thread> workers;
+    private volatile boolean running;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalSendLatency = new LongAdder();
+    private final LongAccumulator maxSendLatency = new LongAccumulator(Math::max, 0);
+
+    @PostConstruct
+    private void startWorkers() {
+        queue = new ArrayBlockingQueue<>(capacity);
+        workers = new ArrayList<>(workersCount);
+        running = true;
+        for (int i = 0; i < workersCount; i++) {
+            Thread worker = new Thread(this::work, String.format("mail-outbox-worker-%d", i));
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Workers send everything queued before shutdown, retries which are not due yet are dropped.
+     * Idle workers are woken by interruption, all of them are awaited until one shared deadline
+     */
+    @PreDestroy
+    private void stopWorkers() throws InterruptedException {
+        running = false;
+        workers.forEach(Thread::interrupt);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(idleTimeout * 2);
+        for (Thread worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                break;
+            }
+            worker.join(remaining);
+        }
+        long alive = workers.stream().filter(Thread::isAlive).count();
+        if (alive > 0) {
+            log.warn("Mail outbox workers still running after shutdown: {}, mails queued: {}", alive, queue.size());
+        }
+    }
+
+    public void submit(OutboxMail mail) throws OverloadedException {
+        boolean queued;
+        try {
+            queued = queue.offer(mail, offerTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        if (!queued) {
+            rejected.increment();
+            throw new OverloadedException(String.format("Mail outbox is full, mail to %s is rejected", mail.getRecipient()),
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Waits until there is free space, used by long running producers which have to be slowed down instead of rejected
+     */
+    public void put(OutboxMail mail) throws InterruptedException {
+        queue.put(mail);
+    }
+
+    public MailOutboxStatistics getStatistics() {
+        long sentCount = sent.sum();
+        double averageLatency = sentCount == 0 ? 0 : (double) totalSendLatency.sum() / sentCount;
+        return new MailOutboxStatistics(queue.size(), capacity, sentCount, retried.sum(), failed.sum(), rejected.sum(),
+                                        averageLatency, maxSendLatency.get());
+    }
+
+    private void work() {
+        Transport transport = null;
+        List<OutboxMail> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                OutboxMail mail = queue.poll(idleTimeout, TimeUnit.MILLISECONDS);
+                if (mail == null) {
+                    transport = close(transport);
+                    continue;
+                }
+                batch.add(mail);
+                queue.drainTo(batch, batchSize - 1);
+                transport = sendBatch(transport, batch);
+            } catch (InterruptedException e) {
+                if (running) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            } catch (RuntimeException e) {
+                log.error("Mail outbox worker failed", e);
+                batch.forEach(mail -> retry(mail, e));
+                transport = close(transport);
+            } finally {
+                batch.clear();
+            }
+        }
+        close(transport);
+    }
+
+    /**
+     * Returns connection which is still usable, broken connection is closed and opened again for the next mail
+     */
+    private Transport sendBatch(Transport transport, List<OutboxMail> batch) {
+        if (!(javaMailSender instanceof JavaMailSenderImpl)) {
+            batch.forEach(this::sendWithoutConnectionReuse);
+            return null;
+        }
+        for (OutboxMail mail : batch) {
+            try {
+                if (transport == null || !transport.isConnected()) {
+                    transport = connect((JavaMailSenderImpl) javaMailSender);
+                }
+                MimeMessage message = mail.getMessage();
+                if (message.getSentDate() == null) {
+                    message.setSentDate(new Date());
+                }
+                message.saveChanges();
+                transport.sendMessage(message, message.getAllRecipients());
+                recordSent(mail);
+            } catch (SendFailedException e) {
+                retry(mail, e);
+            } catch (MessagingException e) {
+                transport = close(transport);
+                retry(mail, e);
+            }
+        }
+        return transport;
+    }
+
+    private void sendWithoutConnectionReuse(OutboxMail mail) {
+        try {
+            javaMailSender.send(mail.getMessage());
+            recordSent(mail);
+        } catch (MailException e) {
+            retry(mail, e);
+        }
+    }
+
+    private Transport connect(JavaMailSenderImpl mailSender) throws MessagingException {
+        String protocol = mailSender.getProtocol() == null ? "smtp" : mailSender.getProtocol();
+        Transport transport = mailSender.getSession().getTransport(protocol);
+        String username = mailSender.getUsername() == null || mailSender.getUsername().isEmpty() ? null : mailSender.getUsername();
+        String password = mailSender.getPassword() == null || mailSender.getPassword().isEmpty() ? null : mailSender.getPassword();
+        transport.connect(mailSender.getHost(), mailSender.getPort(), username, password);
+        return transport;
+    }
+
+    private Transport close(Transport transport) {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                log.debug("Mail transport closing failed: {}", e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private void recordSent(OutboxMail mail) {
+        long latency = System.currentTimeMillis() - mail.getQueuedAt();
+        sent.increment();
+        totalSendLatency.add(latency);
+        maxSendLatency.accumulate(latency);
+        log.info("Sending email to: '{}'", mail.getRecipient());
+    }
+
+    private void retry(OutboxMail mail, Exception cause) {
+        mail.setAttempts(mail.getAttempts() + 1);
+        if (mail.getAttempts() >= retryAttempts) {
+            fail(mail, cause);
+            return;
+        }
+        long delay = retryBackoff << Math.min(mail.getAttempts() - 1, 16);
+        log.warn("Mail to '{}' was not sent, attempt {} of {}, next attempt in {} ms: {}",
+                 mail.getRecipient(), mail.getAttempts(), retryAttempts, delay, cause.getMessage());
+        try {
+            scheduleService.scheduleOnceFireTask(() -> {
+                if (!queue.offer(mail)) {
+                    fail(mail, cause);
+                }
+            }, Math.toIntExact(delay), TimeUnit.MILLISECONDS);
+            retried.increment();
+        } catch (InvalidAttributesException | ArithmeticException e) {
+            fail(mail, cause);
+        }
+    }
+
+    private void fail(OutboxMail mail, Exception cause) {
+        failed.increment();
+        log.error(String.format("Mail to '%s' was not sent after %s attempts", mail.getRecipient(), mail.getAttempts()), cause);
+        if (mail.getOnFailure() != null) {
+            mail.getOnFailure().run();
+        }
+    }
+}
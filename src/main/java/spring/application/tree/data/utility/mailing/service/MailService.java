@@ -4,22 +4,21 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
-import org.springframework.mail.SimpleMailMessage;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Service;
 import spring.application.tree.data.exceptions.ApplicationException;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
 import spring.application.tree.data.utility.mailing.models.AbstractMailMessageModel;
 import spring.application.tree.data.utility.mailing.models.ActionType;
 import spring.application.tree.data.utility.mailing.models.MailType;
+import spring.application.tree.data.utility.mailing.models.OutboxMail;
 import spring.application.tree.data.utility.tasks.ActionHistoryStorage;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import java.time.LocalDateTime;
-import java.util.Arrays;
-import java.util.Date;
 
 @Service
 @RequiredArgsConstructor
@@ -28,15 +27,48 @@ public class MailService {
     @Value("${spring.mail.username}")
     private String sender;
     private final JavaMailSender javaMailSender;
+    private final MailOutbox mailOutbox;
 
-    public synchronized Runnable sendMessage(AbstractMailMessageModel abstractMailMessageModel) throws ApplicationException {
+    /**
+     * Returns task which puts message into outbox, used when mail has to be sent later
+     */
+    public Runnable sendMessage(AbstractMailMessageModel abstractMailMessageModel) throws ApplicationException {
         validateMessageModel(abstractMailMessageModel);
-        if (abstractMailMessageModel.getMailType() == MailType.HTML) {
-            return sendHtmlMailMessage(abstractMailMessageModel);
-        } else if (abstractMailMessageModel.getMailType() == MailType.PLAIN) {
-            return sendMailMessage(abstractMailMessageModel);
+        return () -> {
+            try {
+                queueMessage(abstractMailMessageModel);
+            } catch (ApplicationException e) {
+                log.error(e.getMessage(), e);
+                handleSendingFailure(abstractMailMessageModel);
+            }
+        };
+    }
+
+    /**
+     * Puts message into outbox, caller waits while outbox is full and gets exception if it stays full
+     */
+    public void queueMessage(AbstractMailMessageModel abstractMailMessageModel) throws ApplicationException {
+        mailOutbox.submit(composeMessage(abstractMailMessageModel));
+    }
+
+    /**
+     * Prepares message for outbox without queueing it
+     */
+    public OutboxMail composeMessage(AbstractMailMessageModel abstractMailMessageModel) throws InvalidAttributesException {
+        validateMessageModel(abstractMailMessageModel);
+        MimeMessage mimeMessage = javaMailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, "UTF-8");
+        try {
+            helper.setFrom(sender);
+            helper.setTo(abstractMailMessageModel.getRecipient());
+            helper.setSubject(abstractMailMessageModel.getSubject());
+            helper.setText(abstractMailMessageModel.getText(), abstractMailMessageModel.getMailType() == MailType.HTML);
+        } catch (MessagingException e) {
+            throw new InvalidAttributesException(String.format("Mail message could not be composed: %s", e.getMessage()),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        return null;
+        return new OutboxMail(mimeMessage, abstractMailMessageModel.getRecipient(), () -> handleSendingFailure(abstractMailMessageModel));
     }
 
     private void validateMessageModel(AbstractMailMessageModel abstractMailMessageModel) throws InvalidAttributesException {
@@ -60,50 +92,20 @@ public class MailService {
         }
         if (!exceptionMessage.toString().isEmpty()) {
             throw new InvalidAttributesException(exceptionMessage.toString(),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
     }
 
-    @Deprecated
-    private Runnable sendMailMessage(AbstractMailMessageModel abstractMailMessageModel) {
-        Runnable task = () -> {
-            SimpleMailMessage message = new SimpleMailMessage();
-            message.setFrom(sender);
-            message.setTo(abstractMailMessageModel.getRecipient());
-            message.setSubject(abstractMailMessageModel.getSubject());
-            message.setText(abstractMailMessageModel.getText());
-            message.setSentDate(new Date());
-            javaMailSender.send(message);
-            log.info("Sending email to: '{}'", abstractMailMessageModel.getRecipient());
-        };
-        return task;
-    }
-
-    private Runnable sendHtmlMailMessage(AbstractMailMessageModel abstractMailMessageModel) {
-        Runnable task = () -> {
-            MimeMessage mimeMessage = javaMailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, "UTF-8");
+    private void handleSendingFailure(AbstractMailMessageModel abstractMailMessageModel) {
+        if (ActionType.isConfirmationAction(abstractMailMessageModel.getActionType())) {
             try {
-                helper.setFrom(sender);
-                helper.setTo(abstractMailMessageModel.getRecipient());
-                helper.setSubject(abstractMailMessageModel.getSubject());
-                helper.setText(abstractMailMessageModel.getText(), true);
-                javaMailSender.send(mimeMessage);
-                log.info("Sending email to: '{}'", abstractMailMessageModel.getRecipient());
-            } catch (MessagingException e) {
-                log.error(e.getMessage(), e);
-                if (ActionType.isConfirmationAction(abstractMailMessageModel.getActionType())) {
-                    try {
-                        ActionHistoryStorage.removeConfirmationCode(abstractMailMessageModel.getRecipient());
-                    } catch (InvalidAttributesException ex) {
-                        log.error(ex.getMessage(), ex);
-                        log.error("Error occurs when trying to remove confirmation code on fail email sending, recipient: '{}'",
-                                abstractMailMessageModel.getRecipient());
-                    }
-                }
+                ActionHistoryStorage.removeConfirmationCode(abstractMailMessageModel.getRecipient());
+            } catch (InvalidAttributesException ex) {
+                log.error(ex.getMessage(), ex);
+                log.error("Error occurs when trying to remove confirmation code on fail email sending, recipient: '{}'",
+                        abstractMailMessageModel.getRecipient());
             }
-        };
-        return task;
+        }
     }
 }
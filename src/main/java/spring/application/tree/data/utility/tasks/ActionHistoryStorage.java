@@ -1,151 +1,201 @@
 package spring.application.tree.data.utility.tasks;
 
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
 import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
 import spring.application.tree.data.exceptions.ConfirmationException;
+import spring.application.tree.data.exceptions.ExceptionTrace;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.OverloadedException;
 import spring.application.tree.data.utility.mailing.models.ActionType;
-import spring.application.tree.data.utility.models.PairValue;
+import spring.application.tree.data.utility.tasks.storage.ConfirmationAction;
+import spring.application.tree.data.utility.tasks.storage.ConfirmationRecord;
+import spring.application.tree.data.utility.tasks.storage.ConfirmationResult;
+import spring.application.tree.data.utility.tasks.storage.ConfirmationStore;
 
+import javax.annotation.PostConstruct;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
 
+/**
+ * Confirmation code, action, expiring time and postponed task of every user are kept together in one record,
+ * action executed on confirmation is kept apart, as it is registered before code is sent.
+ * Store is chosen by profile and is in memory by default
+ */
+@Component
 @Slf4j
+@RequiredArgsConstructor
+@PropertySource("classpath:mail.properties")
 public class ActionHistoryStorage {
+    private static ConfirmationStore store;
     /**
-     * Key - user email, value - task of confirmation email sending, expiring time
+     * Lifetime of code in seconds until confirmation task sets exact expiring time
      */
-    private static final Map<String, PairValue<ScheduledFuture<?>, LocalDateTime>> userToConfirmationTask = new HashMap<>();
-    /**
-     * Key - user email, value - confirmation code and action type
-     */
-    private static final Map<String, PairValue<String, ActionType>> userToConfirmationCode = new HashMap<>();
-    /**
-     * Key - user email, value - postponed task and action type
-     */
-    private static final Map<String, PairValue<ScheduledFuture<?>, ActionType>> userToPostponedTask = new HashMap<>();
+    private static long codeLifetime;
+    private final ConfirmationStore confirmationStore;
+    @Value("${duration}")
+    private long duration;
+
+    @PostConstruct
+    private void initializeStorage() {
+        store = confirmationStore;
+        codeLifetime = duration;
+    }
 
-    public static void putPostponedTask(String email, ScheduledFuture<?> task, ActionType actionType) throws InvalidAttributesException {
+    public static void putPostponedTask(String email, ScheduledFuture<?> task, ActionType actionType) throws InvalidAttributesException, OverloadedException {
         if (email == null || email.isEmpty() || task == null) {
             throw new InvalidAttributesException(String.format("Email: %s or confirmation task: %s is invalid", email, task),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        synchronized (userToPostponedTask) {
-            if (userToPostponedTask.containsKey(email)) {
-                userToPostponedTask.get(email).getKey().cancel(true);
-            }
-            userToPostponedTask.remove(email);
-            userToPostponedTask.put(email, new PairValue<>(task, actionType));
-            log.debug("Adding postponed task for user '{}' and action '{}'", email, actionType);
-        }
+        store.putPostponedTask(email, task, actionType);
+        log.debug("Adding postponed task for user '{}' and action '{}'", email, actionType);
     }
 
-    public static void putConfirmationTask(String email, ScheduledFuture<?> task, int expiringDelay, ChronoUnit unit) throws InvalidAttributesException {
+    public static void putConfirmationTask(String email, ScheduledFuture<?> task, int expiringDelay, ChronoUnit unit) throws InvalidAttributesException, OverloadedException {
         if (email == null || email.isEmpty() || task == null) {
             throw new InvalidAttributesException(String.format("Email: %s or confirmation task: %s is invalid", email, task),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        synchronized (userToConfirmationTask) {
-            userToConfirmationTask.remove(email);
-            userToConfirmationTask.put(email, new PairValue<>(task, LocalDateTime.now().plus(expiringDelay, unit)));
-            log.debug("Adding confirmation task for user '{}'", email);
-        }
+        store.putConfirmationTask(email, task, System.currentTimeMillis() + unit.getDuration().multipliedBy(expiringDelay).toMillis());
+        log.debug("Adding confirmation task for user '{}'", email);
     }
 
-    public static void putConfirmationCode(String email, String code, ActionType actionType) throws InvalidAttributesException {
+    public static void putConfirmationCode(String email, String code, ActionType actionType) throws InvalidAttributesException, OverloadedException {
         if (email == null || email.isEmpty() || code == null || code.isEmpty()) {
             throw new InvalidAttributesException(String.format("Email: %s or confirmation code: %s is invalid", email, code),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        synchronized (userToConfirmationCode) {
-            userToConfirmationCode.remove(email);
-            userToConfirmationCode.put(email, new PairValue<>(code, actionType));
-            log.debug("Adding confirmation code '{}' for user '{}' and action '{}'", code, email, actionType);
-        }
+        store.putCode(email, code, actionType, System.currentTimeMillis() + codeLifetime * 1000);
+        log.debug("Adding confirmation code '{}' for user '{}' and action '{}'", code, email, actionType);
     }
 
     public static void removeConfirmationTask(String email) throws InvalidAttributesException {
         if (email == null || email.isEmpty()) {
             throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        userToConfirmationTask.remove(email);
+        store.removeConfirmation(email);
         log.debug("Removing confirmation task for user '{}'", email);
     }
 
     public static void removeConfirmationCode(String email) throws InvalidAttributesException {
         if (email == null || email.isEmpty()) {
             throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        userToConfirmationCode.remove(email);
+        store.removeConfirmation(email);
         log.debug("Removing confirmation code for user '{}'", email);
     }
 
     public static ScheduledFuture<?> getConfirmationTask(String email) throws InvalidAttributesException {
         if (email == null || email.isEmpty()) {
             throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        if (userToConfirmationTask.containsKey(email)) {
-            return userToConfirmationTask.get(email).getKey();
-        }
-        return null;
+        ConfirmationRecord record = store.getRecord(email);
+        return record == null ? null : record.getConfirmationTask();
     }
 
     public static String getConfirmationCode(String email) throws InvalidAttributesException {
         if (email == null || email.isEmpty()) {
             throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        if (userToConfirmationCode.containsKey(email)) {
-            return userToConfirmationCode.get(email).getKey();
+        ConfirmationRecord record = store.getRecord(email);
+        return record == null ? null : record.getCode();
+    }
+
+    /**
+     * Returns time in milliseconds when code of user expires, zero if there is no code
+     */
+    public static long getConfirmationExpiringTime(String email) throws InvalidAttributesException {
+        if (email == null || email.isEmpty()) {
+            throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
-        return null;
+        ConfirmationRecord record = store.getRecord(email);
+        return record == null || record.getCode() == null ? 0 : record.getExpiresAt();
+    }
+
+    /**
+     * Returns false if valid code is still pending, so confirmation must not be rolled back
+     */
+    public static boolean removeExpiredConfirmation(String email) throws InvalidAttributesException {
+        if (email == null || email.isEmpty()) {
+            throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        boolean removed = store.removeExpiredConfirmation(email);
+        log.debug("Removing expired confirmation for user '{}': {}", email, removed);
+        return removed;
+    }
+
+    public static void putSuccessAction(String email, ActionType actionType, String login, String parameter, String origin) throws InvalidAttributesException {
+        if (email == null || email.isEmpty() || actionType == null || login == null || login.isEmpty() || origin == null) {
+            throw new InvalidAttributesException(String.format("Email: %s or action: %s or login: %s or origin: %s is invalid", email, actionType, login, origin),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        store.putSuccessAction(email, new ConfirmationAction(actionType, login, parameter, origin, System.currentTimeMillis() + codeLifetime * 1000));
+        log.debug("Adding success action '{}' for user '{}'", actionType, email);
+    }
+
+    public static void removeSuccessAction(String email) throws InvalidAttributesException {
+        if (email == null || email.isEmpty()) {
+            throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        store.removeSuccessAction(email);
+        log.debug("Removing success action for user '{}'", email);
+    }
+
+    /**
+     * Returns null if user has no action to execute
+     */
+    public static ConfirmationAction takeSuccessAction(String email) throws InvalidAttributesException {
+        if (email == null || email.isEmpty()) {
+            throw new InvalidAttributesException(String.format("Email is invalid: %s", email),
+                                                 ExceptionTrace.caller(),
+                                                 LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+        }
+        return store.takeSuccessAction(email);
     }
 
     public static boolean markTaskAsCompleted(String email, String code, ActionType actionType) throws InvalidAttributesException, ConfirmationException {
         if (email == null || email.isEmpty() || code == null || code.isEmpty() || actionType == null) {
             throw new InvalidAttributesException(String.format("Email: %s or confirmation code: %s or action: %s is invalid", email, code, actionType),
-                                                 Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
+                                                 ExceptionTrace.caller(),
                                                  LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
         }
         log.debug("Completing task for user '{}', using code '{}' and action '{}'", email, code, actionType);
-        if (!userToConfirmationCode.containsKey(email)) {
-            return false;
-        }
-        if (!userToConfirmationTask.containsKey(email)) {
-            return false;
-        } else {
-            LocalDateTime expireTime = userToConfirmationTask.get(email).getValue();
-            if (LocalDateTime.now().isAfter(expireTime)) {
-                userToConfirmationTask.remove(email);
-                userToConfirmationCode.remove(email);
+        ConfirmationResult result = store.complete(email, code, actionType);
+        switch (result) {
+            case COMPLETED:
+                return true;
+            case EXPIRED:
                 throw new ConfirmationException(String.format("Confirmation code is expired: %s", code),
-                        Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
-                        LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
-            }
-        }
-        String confirmationCode = userToConfirmationCode.get(email).getKey();
-        if (code.equals(confirmationCode) && actionType == userToConfirmationCode.get(email).getValue()) {
-            userToConfirmationTask.remove(email);
-            userToConfirmationCode.remove(email);
-            return true;
-        } else {
-            throw new ConfirmationException(String.format("Confirmation codes does not match: %s", code),
-                                            Arrays.asList(Thread.currentThread().getStackTrace()).get(1).toString(),
-                                            LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+                                                ExceptionTrace.caller(),
+                                                LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+            case MISMATCH:
+                throw new ConfirmationException(String.format("Confirmation codes does not match: %s", code),
+                                                ExceptionTrace.caller(),
+                                                LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+            default:
+                return false;
         }
     }
 }
@@ -4,6 +4,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.OverloadedException;
 import spring.application.tree.data.scheduling.service.ScheduleService;
 import spring.application.tree.data.users.service.UserService;
 import spring.application.tree.data.utility.mailing.models.ActionType;
@@ -18,13 +19,20 @@ import java.util.concurrent.TimeUnit;
 public class TaskFactory {
     private final UserService userService;
 
-    private Runnable getRollbackTaskForSignUpConfirmation(String email) {
+    /**
+     * Account is deleted only if confirmation is not pending anymore, code sent again from other node is left to its own rollback,
+     * code which is valid a bit longer than rollback delay postpones rollback until code expires.
+     * Completion removes code before account is enabled in the same transaction, so account confirmed concurrently is not deleted
+     */
+    private Runnable getRollbackTaskForSignUpConfirmation(String email, ScheduleService scheduleService) {
         Runnable task = () -> {
             try {
+                if (!ActionHistoryStorage.removeExpiredConfirmation(email)) {
+                    postponeRollbackTaskForSignUpConfirmation(email, scheduleService);
+                    return;
+                }
+                ActionHistoryStorage.removeSuccessAction(email);
                 userService.deleteActivationExpiredAccountByLogin(email);
-                ActionHistoryStorage.removeConfirmationCode(email);
-                ActionHistoryStorage.removeConfirmationTask(email);
-                TaskUtility.removeSuccessConfirmationTask(email);
             } catch (InvalidAttributesException e) {
                 log.error(e.getMessage(), e);
                 log.error("Unable to remove confirmation data for user expired task: '{}'", email);
@@ -33,12 +41,18 @@ public class TaskFactory {
         return task;
     }
 
+    private void postponeRollbackTaskForSignUpConfirmation(String email, ScheduleService scheduleService) throws InvalidAttributesException {
+        long delay = Math.max(ActionHistoryStorage.getConfirmationExpiringTime(email) - System.currentTimeMillis(), 0);
+        scheduleService.scheduleOnceFireTask(getRollbackTaskForSignUpConfirmation(email, scheduleService), (int) delay + 1000, TimeUnit.MILLISECONDS);
+        log.debug("Rollback of confirmation for user '{}' postponed by {} ms, code is still valid", email, delay);
+    }
+
     private void callRollbackTaskForSignUpConfirmation(String email, ActionType actionType, ScheduleService scheduleService, Map<String, String> properties) {
-        Runnable expireConfirmation = getRollbackTaskForSignUpConfirmation(email);
+        Runnable expireConfirmation = getRollbackTaskForSignUpConfirmation(email, scheduleService);
         try {
             ScheduledFuture<?> task = scheduleService.scheduleOnceFireTask(expireConfirmation, Integer.parseInt(properties.get("duration")), TimeUnit.SECONDS);
             ActionHistoryStorage.putPostponedTask(email, task, actionType);
-        } catch (InvalidAttributesException e) {
+        } catch (InvalidAttributesException | OverloadedException e) {
             throw new RuntimeException(e);
         }
     }
@@ -46,9 +60,9 @@ public class TaskFactory {
     private Runnable getRollbackTaskForPasswordRestoringConfirmation(String email) {
         Runnable task = () -> {
             try {
-                ActionHistoryStorage.removeConfirmationCode(email);
-                ActionHistoryStorage.removeConfirmationTask(email);
-                TaskUtility.removeSuccessConfirmationTask(email);
+                if (ActionHistoryStorage.removeExpiredConfirmation(email)) {
+                    ActionHistoryStorage.removeSuccessAction(email);
+                }
             } catch (InvalidAttributesException e) {
                 log.error(e.getMessage(), e);
                 log.error("Unable to remove confirmation data for user expired task: '{}'", email);
@@ -62,7 +76,7 @@ public class TaskFactory {
         try {
             ScheduledFuture<?> task = scheduleService.scheduleOnceFireTask(expireConfirmation, Integer.parseInt(properties.get("duration")), TimeUnit.SECONDS);
             ActionHistoryStorage.putPostponedTask(email, task, actionType);
-        } catch (InvalidAttributesException e) {
+        } catch (InvalidAttributesException | OverloadedException e) {
             throw new RuntimeException(e);
         }
     }
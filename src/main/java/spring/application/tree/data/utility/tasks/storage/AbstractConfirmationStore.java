@@ -0,0 +1,112 @@
+package spring.application.tree.data.utility.tasks.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.OverloadedException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.utility.mailing.models.ActionType;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps records of this node in memory, number of records is limited and new users are rejected
+ * when limit is reached even after expired records are removed, records of other users are never dropped before they expire
+ */
+@Slf4j
+public abstract class AbstractConfirmationStore implements ConfirmationStore {
+    protected final ScheduleService scheduleService;
+    protected final Map<String, ConfirmationRecord> records = new ConcurrentHashMap<>();
+    protected final Map<String, ConfirmationAction> successActions = new ConcurrentHashMap<>();
+    @Value("${action.history.max.size}")
+    private int maxSize;
+    @Value("${action.history.sweep.interval}")
+    private int sweepInterval;
+
+    protected AbstractConfirmationStore(ScheduleService scheduleService) {
+        this.scheduleService = scheduleService;
+    }
+
+    @PostConstruct
+    private void initializeSweeping() throws InvalidAttributesException {
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void putConfirmationTask(String email, ScheduledFuture<?> task, long expiresAt) throws OverloadedException {
+        updateRecord(email, record -> record.withConfirmationTask(task).withExpiresAt(expiresAt));
+    }
+
+    @Override
+    public void putPostponedTask(String email, ScheduledFuture<?> task, ActionType actionType) throws OverloadedException {
+        ConfirmationRecord previous = updateRecord(email, record -> record.withPostponedTask(task).withPostponedActionType(actionType));
+        if (previous != null && previous.getPostponedTask() != null && previous.getPostponedTask() != task) {
+            previous.getPostponedTask().cancel(true);
+        }
+    }
+
+    @Override
+    public void putSuccessAction(String email, ConfirmationAction action) {
+        successActions.put(email, action);
+    }
+
+    @Override
+    public void removeSuccessAction(String email) {
+        successActions.remove(email);
+    }
+
+    @Override
+    public ConfirmationAction takeSuccessAction(String email) {
+        ConfirmationAction action = successActions.remove(email);
+        return action == null || action.getExpiresAt() < System.currentTimeMillis() ? null : action;
+    }
+
+    @Override
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Returns record which was replaced
+     */
+    protected ConfirmationRecord updateRecord(String email, UnaryOperator<ConfirmationRecord> update) throws OverloadedException {
+        ensureCapacity(email);
+        ConfirmationRecord[] previous = {null};
+        records.compute(email, (key, record) -> {
+            previous[0] = record;
+            return update.apply(record == null ? ConfirmationRecord.EMPTY : record);
+        });
+        return previous[0];
+    }
+
+    protected void sweep() {
+        long now = System.currentTimeMillis();
+        int sizeBefore = records.size();
+        records.values().removeIf(record -> record.isEvictable(now));
+        successActions.values().removeIf(action -> action.getExpiresAt() < now);
+        int removed = sizeBefore - records.size();
+        if (removed > 0) {
+            log.debug("Expired confirmation records removed: {}", removed);
+        }
+    }
+
+    private void ensureCapacity(String email) throws OverloadedException {
+        if (records.size() < maxSize || records.containsKey(email)) {
+            return;
+        }
+        sweep();
+        if (records.size() >= maxSize) {
+            throw new OverloadedException(String.format("Too many pending confirmations, confirmation for %s is rejected", email),
+                                          ExceptionTrace.caller(),
+                                          LocalDateTime.now(), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+}
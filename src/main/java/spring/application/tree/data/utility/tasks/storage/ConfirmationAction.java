@@ -0,0 +1,29 @@
+package spring.application.tree.data.utility.tasks.storage;
+
+import lombok.Value;
+import spring.application.tree.data.utility.mailing.models.ActionType;
+
+/**
+ * Action executed when user confirms code, action is stored with its parameters instead of task,
+ * so confirmation can be completed on any node and after restart
+ */
+@Value
+public class ConfirmationAction {
+    ActionType actionType;
+    /**
+     * Email or username of account which action is applied to
+     */
+    String login;
+    /**
+     * New email or encoded password, null if action has no parameter
+     */
+    String parameter;
+    /**
+     * URI user is redirected to after confirmation
+     */
+    String origin;
+    /**
+     * Time in milliseconds when action expires
+     */
+    long expiresAt;
+}
@@ -0,0 +1,39 @@
+package spring.application.tree.data.utility.tasks.storage;
+
+import lombok.Value;
+import lombok.With;
+import spring.application.tree.data.utility.mailing.models.ActionType;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Everything known about pending confirmation of one user, records are immutable and replaced as a whole,
+ * so readers never see half updated record
+ */
+@Value
+@With
+public class ConfirmationRecord {
+    public static final ConfirmationRecord EMPTY = new ConfirmationRecord(null, null, 0, null, null, null);
+
+    String code;
+    ActionType actionType;
+    /**
+     * Time in milliseconds when code expires
+     */
+    long expiresAt;
+    ScheduledFuture<?> confirmationTask;
+    ScheduledFuture<?> postponedTask;
+    ActionType postponedActionType;
+
+    /**
+     * Removes code and confirmation task, postponed task is kept until it is done
+     */
+    public ConfirmationRecord withoutConfirmation() {
+        ConfirmationRecord record = new ConfirmationRecord(null, null, 0, null, postponedTask, postponedActionType);
+        return record.isEvictable(Long.MAX_VALUE) ? null : record;
+    }
+
+    public boolean isEvictable(long now) {
+        return expiresAt < now && (postponedTask == null || postponedTask.isDone());
+    }
+}
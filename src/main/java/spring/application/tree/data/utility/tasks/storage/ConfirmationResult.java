@@ -0,0 +1,5 @@
+package spring.application.tree.data.utility.tasks.storage;
+
+public enum ConfirmationResult {
+    COMPLETED, MISSING, EXPIRED, MISMATCH
+}
@@ -0,0 +1,54 @@
+package spring.application.tree.data.utility.tasks.storage;
+
+import spring.application.tree.data.exceptions.OverloadedException;
+import spring.application.tree.data.utility.mailing.models.ActionType;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Pending confirmations keyed by user email, every method changes record of one user atomically
+ */
+public interface ConfirmationStore {
+    void putCode(String email, String code, ActionType actionType, long expiresAt) throws OverloadedException;
+
+    void putConfirmationTask(String email, ScheduledFuture<?> task, long expiresAt) throws OverloadedException;
+
+    /**
+     * Replaces postponed task of user, previous task is cancelled
+     */
+    void putPostponedTask(String email, ScheduledFuture<?> task, ActionType actionType) throws OverloadedException;
+
+    /**
+     * Removes code and confirmation task, postponed task is left to run
+     */
+    void removeConfirmation(String email);
+
+    /**
+     * Returns null if there is nothing stored for user
+     */
+    ConfirmationRecord getRecord(String email);
+
+    /**
+     * Removes confirmation if code and action match and code is not expired, postponed task of completed confirmation is cancelled
+     */
+    ConfirmationResult complete(String email, String code, ActionType actionType);
+
+    /**
+     * Removes confirmation unless its code is still valid, returns false if valid code is pending
+     */
+    boolean removeExpiredConfirmation(String email);
+
+    /**
+     * Replaces action executed on confirmation of user
+     */
+    void putSuccessAction(String email, ConfirmationAction action);
+
+    void removeSuccessAction(String email);
+
+    /**
+     * Removes and returns action of user, returns null if there is no action or it is expired
+     */
+    ConfirmationAction takeSuccessAction(String email);
+
+    int size();
+}
@@ -0,0 +1,73 @@
+package spring.application.tree.data.utility.tasks.storage;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.exceptions.OverloadedException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.utility.mailing.models.ActionType;
+
+@Component
+@Profile("!confirmation_jdbc")
+@PropertySource("classpath:mail.properties")
+public class InMemoryConfirmationStore extends AbstractConfirmationStore {
+    public InMemoryConfirmationStore(ScheduleService scheduleService) {
+        super(scheduleService);
+    }
+
+    @Override
+    public void putCode(String email, String code, ActionType actionType, long expiresAt) throws OverloadedException {
+        updateRecord(email, record -> record.withCode(code).withActionType(actionType).withExpiresAt(expiresAt));
+    }
+
+    @Override
+    public void removeConfirmation(String email) {
+        records.computeIfPresent(email, (key, record) -> record.withoutConfirmation());
+    }
+
+    @Override
+    public ConfirmationRecord getRecord(String email) {
+        return records.get(email);
+    }
+
+    @Override
+    public ConfirmationResult complete(String email, String code, ActionType actionType) {
+        long now = System.currentTimeMillis();
+        ConfirmationResult[] result = {ConfirmationResult.MISSING};
+        ConfirmationRecord[] completed = {null};
+        records.computeIfPresent(email, (key, record) -> {
+            if (record.getCode() == null) {
+                return record;
+            }
+            if (record.getExpiresAt() < now) {
+                result[0] = ConfirmationResult.EXPIRED;
+                return record.withoutConfirmation();
+            }
+            if (!record.getCode().equals(code) || record.getActionType() != actionType) {
+                result[0] = ConfirmationResult.MISMATCH;
+                return record;
+            }
+            result[0] = ConfirmationResult.COMPLETED;
+            completed[0] = record;
+            return null;
+        });
+        if (completed[0] != null && completed[0].getPostponedTask() != null) {
+            completed[0].getPostponedTask().cancel(false);
+        }
+        return result[0];
+    }
+
+    @Override
+    public boolean removeExpiredConfirmation(String email) {
+        long now = System.currentTimeMillis();
+        boolean[] pending = {false};
+        records.computeIfPresent(email, (key, record) -> {
+            if (record.getCode() != null && record.getExpiresAt() >= now) {
+                pending[0] = true;
+                return record;
+            }
+            return record.withoutConfirmation();
+        });
+        return !pending[0];
+    }
+}
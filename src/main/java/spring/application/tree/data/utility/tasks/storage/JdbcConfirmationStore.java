@@ -0,0 +1,147 @@
+package spring.application.tree.data.utility.tasks.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import spring.application.tree.data.exceptions.OverloadedException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.utility.mailing.models.ActionType;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Keeps codes and success actions in database, so confirmation links keep working after restart and on every node.
+ * Scheduled tasks can not be shared and stay in memory of node which scheduled them
+ */
+@Component
+@Slf4j
+@Profile("confirmation_jdbc")
+@PropertySource("classpath:mail.properties")
+public class JdbcConfirmationStore extends AbstractConfirmationStore {
+    private final JdbcTemplate jdbcTemplate;
+
+    public JdbcConfirmationStore(ScheduleService scheduleService, JdbcTemplate jdbcTemplate) {
+        super(scheduleService);
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void putCode(String email, String code, ActionType actionType, long expiresAt) {
+        final String query = "INSERT INTO confirmation_codes(email, code, action, expires_at) VALUES(?, ?, ?, ?) " +
+                             "ON CONFLICT (email) DO UPDATE SET code = excluded.code, action = excluded.action, expires_at = excluded.expires_at;";
+        jdbcTemplate.update(query, email, code, actionType.name(), new Timestamp(expiresAt));
+    }
+
+    @Override
+    public void putConfirmationTask(String email, ScheduledFuture<?> task, long expiresAt) throws OverloadedException {
+        super.putConfirmationTask(email, task, expiresAt);
+        jdbcTemplate.update("UPDATE confirmation_codes SET expires_at = ? WHERE email = ?;", new Timestamp(expiresAt), email);
+    }
+
+    @Override
+    public void removeConfirmation(String email) {
+        jdbcTemplate.update("DELETE FROM confirmation_codes WHERE email = ?;", email);
+        records.computeIfPresent(email, (key, record) -> record.withoutConfirmation());
+    }
+
+    @Override
+    public ConfirmationRecord getRecord(String email) {
+        ConfirmationRecord tasks = records.get(email);
+        final String query = "SELECT code, action, expires_at FROM confirmation_codes WHERE email = ?;";
+        List<ConfirmationRecord> stored = jdbcTemplate.query(query, (resultSet, rowNum) ->
+                (tasks == null ? ConfirmationRecord.EMPTY : tasks).withCode(resultSet.getString("code"))
+                                                                  .withActionType(ActionType.valueOf(resultSet.getString("action")))
+                                                                  .withExpiresAt(resultSet.getTimestamp("expires_at").getTime()), email);
+        return stored.isEmpty() ? tasks : stored.get(0);
+    }
+
+    /**
+     * Matching code is removed by single statement, so only one node can complete confirmation
+     */
+    @Override
+    public ConfirmationResult complete(String email, String code, ActionType actionType) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        final String query = "DELETE FROM confirmation_codes WHERE email = ? AND code = ? AND action = ? AND expires_at >= ? RETURNING email;";
+        boolean completed = !jdbcTemplate.queryForList(query, String.class, email, code, actionType.name(), now).isEmpty();
+        if (completed) {
+            ConfirmationRecord record = records.remove(email);
+            if (record != null && record.getPostponedTask() != null) {
+                record.getPostponedTask().cancel(false);
+            }
+            return ConfirmationResult.COMPLETED;
+        }
+        final String expiredQuery = "DELETE FROM confirmation_codes WHERE email = ? AND expires_at < ? RETURNING email;";
+        if (!jdbcTemplate.queryForList(expiredQuery, String.class, email, now).isEmpty()) {
+            records.computeIfPresent(email, (key, record) -> record.withoutConfirmation());
+            return ConfirmationResult.EXPIRED;
+        }
+        Integer stored = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM confirmation_codes WHERE email = ?;", Integer.class, email);
+        return stored != null && stored > 0 ? ConfirmationResult.MISMATCH : ConfirmationResult.MISSING;
+    }
+
+    /**
+     * Expired code is removed by single statement, so code completed concurrently on other node is either
+     * removed by completion first or not completed at all
+     */
+    @Override
+    public boolean removeExpiredConfirmation(String email) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        jdbcTemplate.update("DELETE FROM confirmation_codes WHERE email = ? AND expires_at < ?;", email, now);
+        Integer pending = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM confirmation_codes WHERE email = ?;", Integer.class, email);
+        if (pending != null && pending > 0) {
+            return false;
+        }
+        records.computeIfPresent(email, (key, record) -> record.withoutConfirmation());
+        return true;
+    }
+
+    @Override
+    public void putSuccessAction(String email, ConfirmationAction action) {
+        final String query = "INSERT INTO confirmation_actions(email, action, login, parameter, origin, expires_at) VALUES(?, ?, ?, ?, ?, ?) " +
+                             "ON CONFLICT (email) DO UPDATE SET action = excluded.action, login = excluded.login, parameter = excluded.parameter, " +
+                             "origin = excluded.origin, expires_at = excluded.expires_at;";
+        jdbcTemplate.update(query, email, action.getActionType().name(), action.getLogin(), action.getParameter(), action.getOrigin(),
+                            new Timestamp(action.getExpiresAt()));
+    }
+
+    @Override
+    public void removeSuccessAction(String email) {
+        jdbcTemplate.update("DELETE FROM confirmation_actions WHERE email = ?;", email);
+    }
+
+    /**
+     * Action is removed by single statement, so it is taken by one node only
+     */
+    @Override
+    public ConfirmationAction takeSuccessAction(String email) {
+        final String query = "DELETE FROM confirmation_actions WHERE email = ? RETURNING action, login, parameter, origin, expires_at;";
+        List<ConfirmationAction> actions = jdbcTemplate.query(query, (resultSet, rowNum) ->
+                new ConfirmationAction(ActionType.valueOf(resultSet.getString("action")),
+                                       resultSet.getString("login"),
+                                       resultSet.getString("parameter"),
+                                       resultSet.getString("origin"),
+                                       resultSet.getTimestamp("expires_at").getTime()), email);
+        return actions.isEmpty() || actions.get(0).getExpiresAt() < System.currentTimeMillis() ? null : actions.get(0);
+    }
+
+    @Override
+    protected void sweep() {
+        super.sweep();
+        try {
+            int removed = jdbcTemplate.update("DELETE FROM confirmation_codes WHERE expires_at < ?;", new Timestamp(System.currentTimeMillis()));
+            if (removed > 0) {
+                log.debug("Expired confirmation codes removed: {}", removed);
+            }
+            removed = jdbcTemplate.update("DELETE FROM confirmation_actions WHERE expires_at < ?;", new Timestamp(System.currentTimeMillis()));
+            if (removed > 0) {
+                log.debug("Expired confirmation actions removed: {}", removed);
+            }
+        } catch (RuntimeException e) {
+            log.error("Expired confirmation codes could not be removed", e);
+        }
+    }
+}
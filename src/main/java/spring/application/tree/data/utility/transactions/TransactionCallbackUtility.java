@@ -0,0 +1,51 @@
+package spring.application.tree.data.utility.transactions;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class TransactionCallbackUtility {
+    /**
+     * Runs task when surrounding transaction is committed or immediately if there is no transaction
+     */
+    public static void runAfterCommit(Runnable onCommit) {
+        runAfterCompletion(onCommit, null);
+    }
+
+    /**
+     * Runs task right before surrounding transaction is committed or immediately if there is no transaction.
+     * Tasks are run in order they were registered, after every statement of transaction, exception of task rolls transaction back
+     */
+    public static void runBeforeCommit(Runnable beforeCommit) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            beforeCommit.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                beforeCommit.run();
+            }
+        });
+    }
+
+    /**
+     * Runs first task when surrounding transaction is committed or immediately if there is no transaction,
+     * second one is run if transaction is rolled back
+     */
+    public static void runAfterCompletion(Runnable onCommit, Runnable onRollback) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            onCommit.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED) {
+                    onCommit.run();
+                } else if (onRollback != null) {
+                    onRollback.run();
+                }
+            }
+        });
+    }
+}
@@ -22,6 +22,7 @@ import org.springframework.security.web.authentication.logout.LogoutFilter;
 import org.springframework.security.web.authentication.rememberme.AbstractRememberMeServices;
 import org.springframework.security.web.session.HttpSessionEventPublisher;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import spring.application.tree.data.users.attributes.Permission;
 import spring.application.tree.data.users.security.UserDetailsImplementationService;
 import spring.application.tree.web.configuration.filters.PreAuthenticationFilter;
 import spring.application.tree.web.configuration.filters.PreLogoutFilter;
@@ -59,6 +60,8 @@ public class ApplicationSecurityConfiguration extends WebSecurityConfigurerAdapt
                 .authorizeRequests()
                 .antMatchers("/stomp/**").permitAll()
                 .antMatchers("/api/user/account/create").permitAll()
+                .antMatchers("/api/utility/statistics/**").hasAuthority(Permission.READ_STATISTICS.getPermission())
+                .antMatchers("/api/utility/mail/send/bulk").hasAuthority(Permission.SEND_BULK_MAIL.getPermission())
                 .antMatchers("/api/utility/**").permitAll()
                 .antMatchers(HttpMethod.POST, "/login", "/logout").permitAll()
                 .anyRequest()
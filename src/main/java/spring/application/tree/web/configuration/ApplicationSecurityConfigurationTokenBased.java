@@ -23,6 +23,7 @@ import org.springframework.security.web.authentication.logout.LogoutFilter;
 import org.springframework.security.web.authentication.rememberme.AbstractRememberMeServices;
 import org.springframework.security.web.session.HttpSessionEventPublisher;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import spring.application.tree.data.users.attributes.Permission;
 import spring.application.tree.data.users.security.UserDetailsImplementationService;
 import spring.application.tree.web.configuration.handlers.AuthenticationLogoutTokenBasedSecurityHandler;
 import spring.application.tree.web.configuration.entries.AuthenticationTokenBasedEntryPoint;
@@ -57,6 +58,8 @@ public class ApplicationSecurityConfigurationTokenBased extends WebSecurityConfi
                 .authorizeRequests()
                 .antMatchers("/stomp/**").permitAll()
                 .antMatchers(HttpMethod.POST, "/api/user/account/create").permitAll()
+                .antMatchers("/api/utility/statistics/**").hasAuthority(Permission.READ_STATISTICS.getPermission())
+                .antMatchers("/api/utility/mail/send/bulk").hasAuthority(Permission.SEND_BULK_MAIL.getPermission())
                 .antMatchers("/api/utility/**").permitAll()
                 .antMatchers(HttpMethod.POST, "/login", "/logout").permitAll()
                 .anyRequest()
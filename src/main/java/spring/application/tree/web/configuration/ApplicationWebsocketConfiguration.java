@@ -1,23 +1,84 @@
 package spring.application.tree.web.configuration;
 
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import spring.application.tree.web.webscoket.fanout.StompRelayWebSocketFanOut;
+import spring.application.tree.web.webscoket.fanout.WebSocketFanOutMetrics;
 
 @Configuration
 @EnableWebSocketMessageBroker
+@RequiredArgsConstructor
+@PropertySource("classpath:websocket.properties")
 public class ApplicationWebsocketConfiguration implements WebSocketMessageBrokerConfigurer {
+    private final Environment environment;
+    private final WebSocketFanOutMetrics webSocketFanOutMetrics;
+    @Value("${websocket.relay.host}")
+    private String relayHost;
+    @Value("${websocket.relay.port}")
+    private int relayPort;
+    @Value("${websocket.relay.login}")
+    private String relayLogin;
+    @Value("${websocket.relay.passcode}")
+    private String relayPasscode;
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        config.enableSimpleBroker("/topic");
+        if (isRelayEnabled()) {
+            config.enableStompBrokerRelay("/topic")
+                  .setRelayHost(relayHost)
+                  .setRelayPort(relayPort)
+                  .setClientLogin(relayLogin)
+                  .setClientPasscode(relayPasscode)
+                  .setSystemLogin(relayLogin)
+                  .setSystemPasscode(relayPasscode);
+        } else {
+            config.enableSimpleBroker("/topic");
+        }
         config.setApplicationDestinationPrefixes("/socket");
     }
 
+    /**
+     * Messages relayed by external broker carry publishing time, latency is recorded once they reach client session
+     */
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        if (!isRelayEnabled()) {
+            return;
+        }
+        registration.interceptors(new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                SimpMessageHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, SimpMessageHeaderAccessor.class);
+                String sentAt = accessor == null ? null : accessor.getFirstNativeHeader(StompRelayWebSocketFanOut.SENT_AT_HEADER);
+                if (sentAt != null) {
+                    webSocketFanOutMetrics.recordRemoteDelivery(Long.parseLong(sentAt));
+                }
+                return message;
+            }
+        });
+    }
+
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
         registry.addEndpoint("/stomp").setAllowedOrigins("http://localhost:63343", "http://localhost:9000");
         registry.addEndpoint("/stomp").setAllowedOrigins("http://localhost:63343", "http://localhost:9000").withSockJS();
     }
+
+    private boolean isRelayEnabled() {
+        return environment.acceptsProfiles(Profiles.of("fan_out_relay"));
+    }
 }
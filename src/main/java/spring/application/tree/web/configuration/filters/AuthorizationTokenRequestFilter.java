@@ -1,5 +1,6 @@
 package spring.application.tree.web.configuration.filters;
 
+import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.ExpiredJwtException;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Profile;
@@ -12,6 +13,7 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 import spring.application.tree.data.users.security.UserDetailsImplementationService;
 import spring.application.tree.data.users.security.token.AuthorizationTokenUtility;
+import spring.application.tree.data.users.security.token.TokenRevocationStore;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -32,10 +34,12 @@ public class AuthorizationTokenRequestFilter extends OncePerRequestFilter {
         if (authorizationHeaderValue != null && authorizationHeaderValue.startsWith("Bearer ")) {
             String authorizationToken = authorizationHeaderValue.substring(7);
             try {
-                String username = authorizationTokenUtility.getUsernameFromToken(authorizationToken);
+                String digest = TokenRevocationStore.digest(authorizationToken);
+                Claims claims = authorizationTokenUtility.getAllClaimsFromToken(authorizationToken, digest);
+                String username = claims.getSubject();
                 if (!username.isEmpty() && SecurityContextHolder.getContext().getAuthentication() == null) {
                     UserDetails userDetails = userDetailsImplementationService.loadUserByUsername(username);
-                    if (authorizationTokenUtility.validateToken(authorizationToken, userDetails, request)) {
+                    if (authorizationTokenUtility.validateTokenByDigest(digest, claims, userDetails, request)) {
                         UsernamePasswordAuthenticationToken usernamePasswordAuthenticationToken =
                                 new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
                         usernamePasswordAuthenticationToken.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
@@ -8,13 +8,21 @@ import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import spring.application.tree.data.chats.attributes.MemberUpdateResult;
 import spring.application.tree.data.chats.models.AbstractChatModel;
+import spring.application.tree.data.chats.models.ChatInboxPage;
 import spring.application.tree.data.chats.service.ChatService;
+import spring.application.tree.data.events.models.ChatEventPage;
+import spring.application.tree.data.events.service.ChatEventService;
 import spring.application.tree.data.exceptions.ApplicationException;
 import spring.application.tree.data.exceptions.DataNotFoundException;
 import spring.application.tree.data.exceptions.InvalidAttributesException;
 import spring.application.tree.data.exceptions.NotAllowedException;
+import spring.application.tree.data.messages.attributes.ExportFormat;
 import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessagePage;
+import spring.application.tree.data.messages.models.MessageSearchPage;
 import spring.application.tree.data.messages.service.MessageService;
 import spring.application.tree.data.users.models.AbstractUserModel;
 import spring.application.tree.data.users.service.UserService;
@@ -22,6 +30,8 @@ import spring.application.tree.data.users.views.AbstractUserView;
 import spring.application.tree.web.webscoket.models.WebSocketEvent;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -35,6 +45,7 @@ public class UserController {
     private final UserService userService;
     private final ChatService chatService;
     private final MessageService messageService;
+    private final ChatEventService chatEventService;
 
     @PreAuthorize("hasAnyAuthority('permission:user:read')")
     @GetMapping("/account/read")
@@ -73,6 +84,30 @@ public class UserController {
         return ResponseEntity.ok(chats);
     }
 
+    @PreAuthorize("hasAuthority('permission:user:read')")
+    @GetMapping("/chats/inbox")
+    public ResponseEntity<Object> getChatInbox(@RequestParam(value = "before", required = false) String before,
+                                               @RequestParam(value = "limit", required = false) Integer limit) throws InvalidAttributesException, NotAllowedException {
+        ChatInboxPage inbox = chatService.getChatInboxForCurrentUser(before, limit);
+        return ResponseEntity.ok(inbox);
+    }
+
+    @PreAuthorize("hasAuthority('permission:user:read')")
+    @PostMapping("/chat/read")
+    public ResponseEntity<Object> markChatRead(@RequestParam("chat_id") int chatId,
+                                               @RequestParam(value = "message_id", required = false) Integer messageId) throws InvalidAttributesException, NotAllowedException {
+        chatService.markChatReadForCurrentUser(chatId, messageId);
+        return ResponseEntity.ok().build();
+    }
+
+    @PreAuthorize("hasAuthority('permission:user:read')")
+    @GetMapping("/events")
+    public DeferredResult<ChatEventPage> getChatEvents(@RequestParam(value = "after", defaultValue = "0") long after,
+                                                       @RequestParam(value = "limit", required = false) Integer limit,
+                                                       @RequestParam(value = "wait", required = false) Integer wait) throws InvalidAttributesException, NotAllowedException {
+        return chatEventService.getChatEventsForCurrentUser(after, limit, wait);
+    }
+
     @PreAuthorize("hasAuthority('permission:user:read')")
     @GetMapping("/members")
     @JsonView(AbstractUserView.Base.class)
@@ -107,11 +142,42 @@ public class UserController {
 
     @PreAuthorize("hasAuthority('permission:user:read')")
     @GetMapping("/messages")
-    public ResponseEntity<Object> getMessages(@RequestParam("chat_id") int chatId) throws InvalidAttributesException, NotAllowedException {
-        List<AbstractMessageModel> messages = messageService.getMessages(chatId);
+    public ResponseEntity<Object> getMessages(@RequestParam("chat_id") int chatId,
+                                              @RequestParam(value = "before", required = false) String before,
+                                              @RequestParam(value = "after", required = false) String after,
+                                              @RequestParam(value = "limit", required = false) Integer limit) throws InvalidAttributesException, NotAllowedException {
+        MessagePage messages = messageService.getMessages(chatId, before, after, limit);
+        return ResponseEntity.ok(messages);
+    }
+
+    @PreAuthorize("hasAuthority('permission:user:read')")
+    @GetMapping("/messages/search")
+    public ResponseEntity<Object> searchMessages(@RequestParam("query") String query,
+                                                 @RequestParam(value = "chat_id", required = false) Integer chatId,
+                                                 @RequestParam(value = "after", required = false) String after,
+                                                 @RequestParam(value = "limit", required = false) Integer limit) throws InvalidAttributesException, NotAllowedException {
+        MessageSearchPage results = messageService.searchMessages(query, chatId, after, limit);
+        return ResponseEntity.ok(results);
+    }
+
+    @PreAuthorize("hasAuthority('permission:user:read')")
+    @GetMapping("/messages/find")
+    public ResponseEntity<Object> findChatMessages(@RequestParam("chat_id") int chatId,
+                                                   @RequestParam("query") String query,
+                                                   @RequestParam(value = "limit", required = false) Integer limit) throws InvalidAttributesException, NotAllowedException {
+        List<AbstractMessageModel> messages = messageService.findChatMessages(chatId, query, limit);
         return ResponseEntity.ok(messages);
     }
 
+    @PreAuthorize("hasAuthority('permission:user:read')")
+    @GetMapping("/messages/export")
+    public void exportMessages(@RequestParam("chat_id") int chatId,
+                               @RequestParam(value = "format", required = false) ExportFormat format,
+                               HttpServletRequest request,
+                               HttpServletResponse response) throws InvalidAttributesException, NotAllowedException, IOException {
+        messageService.exportMessages(chatId, format, request, response);
+    }
+
     @PreAuthorize("hasAuthority('permission:user:create')")
     @PostMapping("/message/schedule")
     public ResponseEntity<Object> scheduleMessage(@RequestBody AbstractMessageModel abstractMessageModel,
@@ -123,7 +189,7 @@ public class UserController {
 
     @PreAuthorize("hasAuthority('permission:user:create')")
     @PostMapping("/message/schedule/cancel")
-    public ResponseEntity<Object> cancelScheduledMessage(@RequestParam("message_id") int messageId) throws InvalidAttributesException {
+    public ResponseEntity<Object> cancelScheduledMessage(@RequestParam("message_id") int messageId) throws InvalidAttributesException, NotAllowedException {
         messageService.cancelScheduledMessage(messageId);
         return ResponseEntity.ok().build();
     }
@@ -188,4 +254,26 @@ public class UserController {
         userService.removeUserFromChat(userId, chatId);
         return ResponseEntity.ok().build();
     }
+
+    @PreAuthorize("hasAuthority('permission:user:update')")
+    @PostMapping("/chat/member/add/bulk")
+    public ResponseEntity<Object> addUsersToChat(@RequestBody List<Integer> userIds,
+                                                 @RequestParam("chat_id") int chatId) throws InvalidAttributesException, NotAllowedException {
+        Map<Integer, MemberUpdateResult> results = userService.addUsersToChat(userIds, chatId);
+        Map<String, Object> response = new HashMap<>();
+        response.put("chat_id", chatId);
+        response.put("results", results);
+        return ResponseEntity.ok(response);
+    }
+
+    @PreAuthorize("hasAuthority('permission:user:update')")
+    @DeleteMapping("/chat/member/remove/bulk")
+    public ResponseEntity<Object> removeUsersFromChat(@RequestBody List<Integer> userIds,
+                                                      @RequestParam("chat_id") int chatId) throws InvalidAttributesException, NotAllowedException {
+        Map<Integer, MemberUpdateResult> results = userService.removeUsersFromChat(userIds, chatId);
+        Map<String, Object> response = new HashMap<>();
+        response.put("chat_id", chatId);
+        response.put("results", results);
+        return ResponseEntity.ok(response);
+    }
 }
@@ -4,14 +4,20 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 import spring.application.tree.data.exceptions.ApplicationException;
-import spring.application.tree.data.exceptions.ConfirmationException;
-import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.messages.archive.MessageArchive;
+import spring.application.tree.data.messages.cache.MessageHistoryCache;
+import spring.application.tree.data.messages.cache.MessageSearchIndex;
 import spring.application.tree.data.users.service.UserService;
 import spring.application.tree.data.utility.mailing.models.AbstractMailMessageModel;
+import spring.application.tree.data.utility.mailing.models.BulkMailMessageModel;
+import spring.application.tree.data.utility.mailing.service.BulkMailService;
 import spring.application.tree.data.utility.mailing.service.MailActionsUtility;
+import spring.application.tree.data.utility.mailing.service.MailOutbox;
 import spring.application.tree.data.utility.tasks.TaskUtility;
+import spring.application.tree.web.webscoket.fanout.WebSocketFanOutMetrics;
 
 import javax.servlet.http.HttpServletRequest;
 import java.text.ParseException;
@@ -28,7 +34,13 @@ import java.util.TimeZone;
 public class UtilityController {
     private final UserService userService;
     private final MailActionsUtility mailActionsUtility;
+    private final MailOutbox mailOutbox;
+    private final BulkMailService bulkMailService;
     private final TaskUtility taskUtility;
+    private final MessageHistoryCache messageHistoryCache;
+    private final MessageSearchIndex messageSearchIndex;
+    private final MessageArchive messageArchive;
+    private final WebSocketFanOutMetrics webSocketFanOutMetrics;
 
     @GetMapping("/credentials/availability")
     public ResponseEntity<Object> checkCredentialsAvailability(@RequestParam(required = false) String email,
@@ -57,6 +69,36 @@ public class UtilityController {
         return ResponseEntity.ok(zones);
     }
 
+    @PreAuthorize("hasAuthority('permission:statistics:read')")
+    @GetMapping("/statistics/messages/cache")
+    public ResponseEntity<Object> getMessageCacheStatistics() {
+        return ResponseEntity.ok(messageHistoryCache.getStatistics());
+    }
+
+    @PreAuthorize("hasAuthority('permission:statistics:read')")
+    @GetMapping("/statistics/messages/index")
+    public ResponseEntity<Object> getMessageIndexStatistics() {
+        return ResponseEntity.ok(messageSearchIndex.getStatistics());
+    }
+
+    @PreAuthorize("hasAuthority('permission:statistics:read')")
+    @GetMapping("/statistics/messages/archive")
+    public ResponseEntity<Object> getMessageArchiveStatistics() {
+        return ResponseEntity.ok(messageArchive.getStatistics());
+    }
+
+    @PreAuthorize("hasAuthority('permission:statistics:read')")
+    @GetMapping("/statistics/websocket/fan-out")
+    public ResponseEntity<Object> getWebSocketFanOutStatistics() {
+        return ResponseEntity.ok(webSocketFanOutMetrics.getStatistics());
+    }
+
+    @PreAuthorize("hasAuthority('permission:statistics:read')")
+    @GetMapping("/statistics/mail/outbox")
+    public ResponseEntity<Object> getMailOutboxStatistics() {
+        return ResponseEntity.ok(mailOutbox.getStatistics());
+    }
+
     @PostMapping("/mail/send")
     public ResponseEntity<Object> createMessageSendingTask(@RequestBody AbstractMailMessageModel abstractMailMessageModel,
                                                            HttpServletRequest httpServletRequest) throws ApplicationException, ParseException {
@@ -64,10 +106,17 @@ public class UtilityController {
         return ResponseEntity.ok().build();
     }
 
+    @PreAuthorize("hasAuthority('permission:mail:bulk')")
+    @PostMapping("/mail/send/bulk")
+    public ResponseEntity<Object> createBulkMessageSendingTask(@RequestBody BulkMailMessageModel bulkMailMessageModel) throws ApplicationException {
+        bulkMailService.sendBulkMessage(bulkMailMessageModel);
+        return ResponseEntity.accepted().build();
+    }
+
     @GetMapping("/task/confirm/{code}/{email}/{action}")
     public ResponseEntity<Object> confirmTaskExecution(@PathVariable("code")   String code,
                                                        @PathVariable("email")  String email,
-                                                       @PathVariable("action") String action) throws InvalidAttributesException, ConfirmationException {
+                                                       @PathVariable("action") String action) throws ApplicationException {
         return taskUtility.confirmTaskExecution(code, email, action);
     }
 
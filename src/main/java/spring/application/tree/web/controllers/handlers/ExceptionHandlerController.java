@@ -22,7 +22,7 @@ public class ExceptionHandlerController {
             httpStatus = ((ApplicationException) e).getHttpStatus();
             exception = ((ApplicationException) e).getException();
             trace = ((ApplicationException) e).getTrace();
-            exceptionTime = ((ApplicationException) e).getErrorTime();
+            exceptionTime = ((ApplicationException) e).getErrorTime() == null ? LocalDateTime.now() : ((ApplicationException) e).getErrorTime();
         } else {
             httpStatus = (e instanceof HttpClientErrorException) ? HttpStatus.CONFLICT : HttpStatus.INTERNAL_SERVER_ERROR;
             exception = e.getMessage();
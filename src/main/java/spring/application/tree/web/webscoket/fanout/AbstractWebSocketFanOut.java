@@ -0,0 +1,27 @@
+package spring.application.tree.web.webscoket.fanout;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+
+import java.util.Map;
+
+@RequiredArgsConstructor
+public abstract class AbstractWebSocketFanOut implements WebSocketFanOut {
+    protected final SimpMessagingTemplate messagingTemplate;
+    protected final WebSocketFanOutMetrics metrics;
+
+    /**
+     * Passes encoded message to broker as is, without conversion
+     */
+    protected void sendToBroker(String destination, byte[] payload, Map<String, String> nativeHeaders) {
+        SimpMessageHeaderAccessor headerAccessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headerAccessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        nativeHeaders.forEach(headerAccessor::setNativeHeader);
+        headerAccessor.setLeaveMutable(true);
+        messagingTemplate.send(destination, MessageBuilder.createMessage(payload, headerAccessor.getMessageHeaders()));
+    }
+}
@@ -0,0 +1,24 @@
+package spring.application.tree.web.webscoket.fanout;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+
+/**
+ * Single node delivery through in memory broker, used when no cross node profile is active
+ */
+@Component
+@Profile("!fan_out_postgres & !fan_out_relay")
+public class LocalWebSocketFanOut extends AbstractWebSocketFanOut {
+    public LocalWebSocketFanOut(SimpMessagingTemplate messagingTemplate, WebSocketFanOutMetrics metrics) {
+        super(messagingTemplate, metrics);
+    }
+
+    @Override
+    public void publish(String destination, byte[] payload) {
+        sendToBroker(destination, payload, Collections.emptyMap());
+        metrics.recordPublished();
+    }
+}
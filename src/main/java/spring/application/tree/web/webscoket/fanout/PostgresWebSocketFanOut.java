@@ -0,0 +1,242 @@
+package spring.application.tree.web.webscoket.fanout;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+import spring.application.tree.data.utility.transactions.TransactionCallbackUtility;
+import spring.application.tree.web.webscoket.models.FanOutEnvelope;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery through Postgres LISTEN/NOTIFY, message is passed to other nodes by notification sent in surrounding transaction
+ * and is delivered to local subscribers after commit, so every node sees it after commit only. Every node keeps IDs
+ * of recently delivered messages and drops repeated ones. Notification payload is limited by Postgres, bigger message
+ * is stored in fan_out_payloads table and notification carries ID of its row, rows are removed after retention period.
+ * Cache invalidations are passed by the same channel and are handed to invalidation bus instead of broker
+ */
+@Component
+@Slf4j
+@Profile("fan_out_postgres")
+@PropertySource("classpath:websocket.properties")
+public class PostgresWebSocketFanOut extends AbstractWebSocketFanOut {
+    private static final int MAX_NOTIFICATION_SIZE = 7999;
+    /**
+     * Prefix of destination of cache invalidation, broker destinations start with slash, so they never match it
+     */
+    private static final String INVALIDATION_PREFIX = "cache:";
+    private final JdbcTemplate jdbcTemplate;
+    private final DataSource dataSource;
+    private final PlatformTransactionManager transactionManager;
+    private final CacheInvalidationBus cacheInvalidationBus;
+    private final ScheduleService scheduleService;
+    private final ObjectMapper mapper = new ObjectMapper();
+    @Value("${websocket.fan.out.channel}")
+    private String channel;
+    @Value("${websocket.fan.out.deduplication.size}")
+    private int deduplicationSize;
+    @Value("${websocket.fan.out.poll.timeout}")
+    private int pollTimeout;
+    /**
+     * Seconds, other nodes have to read stored payload within this period
+     */
+    @Value("${websocket.fan.out.payload.retention}")
+    private int payloadRetention;
+    private Set<String> deliveredMessages;
+    private TransactionTemplate notificationTransaction;
+    private volatile boolean listening;
+    private Thread listener;
+
+    public PostgresWebSocketFanOut(SimpMessagingTemplate messagingTemplate, WebSocketFanOutMetrics metrics,
+                                   JdbcTemplate jdbcTemplate, DataSource dataSource, PlatformTransactionManager transactionManager,
+                                   CacheInvalidationBus cacheInvalidationBus, ScheduleService scheduleService) {
+        super(messagingTemplate, metrics);
+        this.jdbcTemplate = jdbcTemplate;
+        this.dataSource = dataSource;
+        this.transactionManager = transactionManager;
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        this.scheduleService = scheduleService;
+    }
+
+    @PostConstruct
+    private void startListening() throws InvalidAttributesException {
+        if (!channel.matches("[a-z_][a-z0-9_]*")) {
+            throw new IllegalStateException(String.format("Fan out channel name is invalid: %s", channel));
+        }
+        deliveredMessages = Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > deduplicationSize;
+            }
+        }));
+        listening = true;
+        listener = new Thread(this::listen, "websocket-fan-out-listener");
+        listener.setDaemon(true);
+        listener.start();
+        cacheInvalidationBus.setTransport(this::publishInvalidation);
+        notificationTransaction = new TransactionTemplate(transactionManager);
+        notificationTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        scheduleService.schedulePeriodicTaskConsideringTaskDuration(this::removeExpiredPayloads, payloadRetention, payloadRetention, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void stopListening() throws InterruptedException {
+        listening = false;
+        listener.interrupt();
+        listener.join(pollTimeout * 2L);
+    }
+
+    /**
+     * Outside of transaction, as well as after completion of transaction, notification is sent in its own transaction
+     */
+    @Override
+    public void publish(String destination, byte[] payload) {
+        FanOutEnvelope envelope = new FanOutEnvelope(metrics.nextMessageId(), metrics.getNodeId(), System.currentTimeMillis(),
+                                                     destination, new String(payload, StandardCharsets.UTF_8), null);
+        deliveredMessages.add(envelope.getId());
+        metrics.recordPublished();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            notifyNodes(envelope);
+        } else {
+            try {
+                notificationTransaction.executeWithoutResult(status -> notifyNodes(envelope));
+            } catch (RuntimeException e) {
+                metrics.recordRejected();
+                log.error(String.format("Message for '%s' was not passed to other nodes", destination), e);
+            }
+        }
+        TransactionCallbackUtility.runAfterCommit(() -> sendToBroker(destination, payload, Collections.emptyMap()));
+    }
+
+    /**
+     * Failure inside of transaction is propagated, statement failed in Postgres transaction fails the whole transaction anyway
+     */
+    private void notifyNodes(FanOutEnvelope envelope) {
+        try {
+            String notification = mapper.writeValueAsString(envelope);
+            if (notification.getBytes(StandardCharsets.UTF_8).length > MAX_NOTIFICATION_SIZE) {
+                Long payloadId = jdbcTemplate.queryForObject("INSERT INTO fan_out_payloads(payload) VALUES (?) RETURNING id;",
+                                                             Long.class, envelope.getPayload());
+                notification = mapper.writeValueAsString(new FanOutEnvelope(envelope.getId(), envelope.getOrigin(), envelope.getSentAt(),
+                                                                            envelope.getDestination(), null, payloadId));
+            }
+            jdbcTemplate.query("SELECT pg_notify(?, ?);", resultSet -> null, channel, notification);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void removeExpiredPayloads() {
+        try {
+            jdbcTemplate.update("DELETE FROM fan_out_payloads WHERE created_at < now() - make_interval(secs => ?);", payloadRetention);
+        } catch (RuntimeException e) {
+            log.error("Expired fan out payloads were not removed", e);
+        }
+    }
+
+    /**
+     * Notification is sent by connection of current transaction, so it reaches other nodes only when transaction commits
+     */
+    private void publishInvalidation(String cache, String key) {
+        FanOutEnvelope envelope = new FanOutEnvelope(metrics.nextMessageId(), metrics.getNodeId(), System.currentTimeMillis(),
+                                                     INVALIDATION_PREFIX + cache, key, null);
+        try {
+            jdbcTemplate.query("SELECT pg_notify(?, ?);", resultSet -> null, channel, mapper.writeValueAsString(envelope));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Holds dedicated connection, lost connection is opened again after poll timeout
+     */
+    private void listen() {
+        while (listening) {
+            try (Connection connection = dataSource.getConnection()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(String.format("LISTEN %s;", channel));
+                }
+                log.info("Listening to fan out channel '{}' as node '{}'", channel, metrics.getNodeId());
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (listening) {
+                    PGNotification[] notifications = pgConnection.getNotifications(pollTimeout);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            receive(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (!listening) {
+                    return;
+                }
+                log.error(String.format("Fan out channel '%s' connection lost", channel), e);
+                try {
+                    Thread.sleep(pollTimeout);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void receive(String notification) {
+        try {
+            FanOutEnvelope envelope = mapper.readValue(notification, FanOutEnvelope.class);
+            if (metrics.getNodeId().equals(envelope.getOrigin())) {
+                return;
+            }
+            if (!deliveredMessages.add(envelope.getId())) {
+                metrics.recordDuplicate();
+                return;
+            }
+            if (envelope.getDestination().startsWith(INVALIDATION_PREFIX)) {
+                cacheInvalidationBus.deliver(envelope.getDestination().substring(INVALIDATION_PREFIX.length()), envelope.getPayload());
+                return;
+            }
+            String payload = envelope.getPayloadId() == null ? envelope.getPayload() : loadPayload(envelope.getPayloadId());
+            if (payload == null) {
+                metrics.recordRejected();
+                log.warn("Stored payload '{}' of message for '{}' is already removed", envelope.getPayloadId(), envelope.getDestination());
+                return;
+            }
+            sendToBroker(envelope.getDestination(), payload.getBytes(StandardCharsets.UTF_8), Collections.emptyMap());
+            metrics.recordRemoteDelivery(envelope.getSentAt());
+        } catch (JsonProcessingException | RuntimeException e) {
+            log.error(String.format("Fan out notification could not be delivered: %s", notification), e);
+        }
+    }
+
+    private String loadPayload(long payloadId) {
+        List<String> payloads = jdbcTemplate.queryForList("SELECT payload FROM fan_out_payloads WHERE id = ?;", String.class, payloadId);
+        return payloads.isEmpty() ? null : payloads.get(0);
+    }
+}
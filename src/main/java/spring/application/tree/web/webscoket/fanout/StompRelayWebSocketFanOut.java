@@ -0,0 +1,32 @@
+package spring.application.tree.web.webscoket.fanout;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delivery through external STOMP broker which every node is connected to, broker sends message
+ * once to every subscription, so no deduplication is needed. Headers let receiving nodes measure latency
+ */
+@Component
+@Profile("fan_out_relay")
+public class StompRelayWebSocketFanOut extends AbstractWebSocketFanOut {
+    public static final String ID_HEADER = "fan-out-id";
+    public static final String SENT_AT_HEADER = "fan-out-sent-at";
+
+    public StompRelayWebSocketFanOut(SimpMessagingTemplate messagingTemplate, WebSocketFanOutMetrics metrics) {
+        super(messagingTemplate, metrics);
+    }
+
+    @Override
+    public void publish(String destination, byte[] payload) {
+        Map<String, String> nativeHeaders = new HashMap<>();
+        nativeHeaders.put(ID_HEADER, metrics.nextMessageId());
+        nativeHeaders.put(SENT_AT_HEADER, Long.toString(System.currentTimeMillis()));
+        sendToBroker(destination, payload, nativeHeaders);
+        metrics.recordPublished();
+    }
+}
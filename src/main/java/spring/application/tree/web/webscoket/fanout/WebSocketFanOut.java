@@ -0,0 +1,9 @@
+package spring.application.tree.web.webscoket.fanout;
+
+/**
+ * Delivers serialized message to subscribers of destination connected to any node,
+ * implementation is chosen by profile: fan_out_postgres, fan_out_relay, single node delivery otherwise
+ */
+public interface WebSocketFanOut {
+    void publish(String destination, byte[] payload);
+}
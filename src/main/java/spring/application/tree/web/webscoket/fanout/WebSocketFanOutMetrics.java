@@ -0,0 +1,62 @@
+package spring.application.tree.web.webscoket.fanout;
+
+import org.springframework.stereotype.Component;
+import spring.application.tree.web.webscoket.models.FanOutStatistics;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of cross node delivery, latency is measured in milliseconds from publishing on origin node
+ * to delivery on receiving node, so it includes clock difference of nodes
+ */
+@Component
+public class WebSocketFanOutMetrics {
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder remoteDeliveries = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Unique across nodes ID of published message
+     */
+    public String nextMessageId() {
+        return nodeId + ":" + sequence.incrementAndGet();
+    }
+
+    public void recordPublished() {
+        published.increment();
+    }
+
+    public void recordRejected() {
+        rejected.increment();
+    }
+
+    public void recordDuplicate() {
+        duplicates.increment();
+    }
+
+    public void recordRemoteDelivery(long sentAt) {
+        long latency = Math.max(System.currentTimeMillis() - sentAt, 0);
+        remoteDeliveries.increment();
+        totalLatency.add(latency);
+        maxLatency.accumulate(latency);
+    }
+
+    public FanOutStatistics getStatistics() {
+        long deliveries = remoteDeliveries.sum();
+        double averageLatency = deliveries == 0 ? 0 : (double) totalLatency.sum() / deliveries;
+        return new FanOutStatistics(nodeId, published.sum(), rejected.sum(), deliveries, duplicates.sum(),
+                                    averageLatency, maxLatency.get());
+    }
+}
@@ -0,0 +1,21 @@
+package spring.application.tree.web.webscoket.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Message passed between nodes, payload is already serialized websocket message.
+ * Payload too big for notification is stored in table and envelope carries ID of its row instead
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FanOutEnvelope {
+    private String id;
+    private String origin;
+    private long sentAt;
+    private String destination;
+    private String payload;
+    private Long payloadId;
+}
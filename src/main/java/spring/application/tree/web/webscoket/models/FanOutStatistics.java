@@ -0,0 +1,18 @@
+package spring.application.tree.web.webscoket.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FanOutStatistics {
+    private String node;
+    private long published;
+    private long rejected;
+    private long remoteDeliveries;
+    private long duplicates;
+    private double averageDeliveryLatency;
+    private long maxDeliveryLatency;
+}
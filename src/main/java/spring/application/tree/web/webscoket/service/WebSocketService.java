@@ -2,6 +2,7 @@ package spring.application.tree.web.webscoket.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -9,6 +10,9 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Service;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.utility.transactions.TransactionCallbackUtility;
+import spring.application.tree.web.webscoket.fanout.WebSocketFanOut;
 import spring.application.tree.web.webscoket.models.WebSocketEvent;
 import spring.application.tree.web.webscoket.models.WebSocketMessage;
 
@@ -22,22 +26,44 @@ public class WebSocketService {
     @Value("${websocket.timeout}")
     private String timeout;
     private final SimpMessagingTemplate messagingTemplate;
+    private final WebSocketFanOut webSocketFanOut;
+    /**
+     * Shared by all outbound messages, serializers are resolved once and reused
+     */
+    private final ObjectWriter messageWriter = new ObjectMapper().registerModule(new JavaTimeModule()).writerFor(WebSocketMessage.class);
+
     @PostConstruct
-    private void setup() {
+    private void setup() throws JsonProcessingException {
         log.debug("Timeout for websocket message sending has been set to '{}'", timeout);
         messagingTemplate.setSendTimeout(Long.parseLong(timeout));
+        messageWriter.writeValueAsBytes(new WebSocketMessage(new AbstractMessageModel(), WebSocketEvent.SENDING_MESSAGE));
     }
 
-    private void sendMessage(String message, String destination) {
-        log.debug("Sending message '{}' to '{}'", message, destination);
-        messagingTemplate.convertAndSend(destination, message);
+    /**
+     * Payload is serialized once, broker passes the same encoded frame body to every subscriber of destination
+     */
+    private void sendMessage(byte[] message, String destination) {
+        log.debug("Sending message of {} bytes to '{}'", message.length, destination);
+        webSocketFanOut.publish(destination, message);
     }
 
     public void sendMessage(Object payload, String destination, WebSocketEvent event) throws JsonProcessingException {
+        sendMessage(serialize(payload, event), destination);
+    }
+
+    /**
+     * Payload is serialized at once, so failed serialization rolls surrounding transaction back,
+     * and is published after commit, so rolled back changes are never sent and transaction does not wait for publishing
+     */
+    public void sendMessageAfterCommit(Object payload, String destination, WebSocketEvent event) throws JsonProcessingException {
+        byte[] message = serialize(payload, event);
+        TransactionCallbackUtility.runAfterCommit(() -> sendMessage(message, destination));
+    }
+
+    private byte[] serialize(Object payload, WebSocketEvent event) throws JsonProcessingException {
         if (!(payload instanceof WebSocketMessage)) {
             payload = new WebSocketMessage(payload, event);
         }
-        ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
-        sendMessage(mapper.writeValueAsString(payload), destination);
+        return messageWriter.writeValueAsBytes(payload);
     }
 }
@@ -0,0 +1 @@
+CREATE INDEX IF NOT EXISTS messages_chat_id_sent_at_id_idx ON messages(chat_id, sent_at DESC, id DESC);
\ No newline at end of file
@@ -0,0 +1,3 @@
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS fire_at TIMESTAMPTZ;
+UPDATE messages SET fire_at = sent_at WHERE type = 'SCHEDULED' AND fire_at IS NULL;
+CREATE INDEX IF NOT EXISTS messages_scheduled_fire_at_idx ON messages(fire_at) WHERE type = 'SCHEDULED';
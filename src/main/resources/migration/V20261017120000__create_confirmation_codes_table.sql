@@ -0,0 +1,7 @@
+CREATE TABLE IF NOT EXISTS confirmation_codes(
+    email VARCHAR PRIMARY KEY NOT NULL,
+    code VARCHAR NOT NULL,
+    action VARCHAR NOT NULL,
+    expires_at TIMESTAMPTZ NOT NULL
+);
+CREATE INDEX IF NOT EXISTS confirmation_codes_expires_at_idx ON confirmation_codes(expires_at);
\ No newline at end of file
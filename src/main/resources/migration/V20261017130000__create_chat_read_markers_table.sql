@@ -0,0 +1,7 @@
+CREATE TABLE IF NOT EXISTS chat_read_markers(
+    user_id INT8 NOT NULL REFERENCES users(id) ON DELETE CASCADE,
+    chat_id INT8 NOT NULL REFERENCES chats(id) ON DELETE CASCADE,
+    sent_at TIMESTAMPTZ NOT NULL,
+    message_id INT8 NOT NULL,
+    PRIMARY KEY(user_id, chat_id)
+);
\ No newline at end of file
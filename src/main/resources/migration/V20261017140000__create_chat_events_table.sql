@@ -0,0 +1,11 @@
+CREATE TABLE IF NOT EXISTS chat_events(
+    sequence BIGSERIAL PRIMARY KEY NOT NULL,
+    chat_id INT8 NOT NULL,
+    event VARCHAR NOT NULL,
+    message_id INT8,
+    user_id INT8,
+    created_at TIMESTAMPTZ NOT NULL DEFAULT now()
+);
+CREATE INDEX IF NOT EXISTS chat_events_chat_id_sequence_idx ON chat_events(chat_id, sequence);
+CREATE INDEX IF NOT EXISTS chat_events_user_id_sequence_idx ON chat_events(user_id, sequence) WHERE user_id IS NOT NULL;
+CREATE INDEX IF NOT EXISTS chat_events_created_at_idx ON chat_events(created_at);
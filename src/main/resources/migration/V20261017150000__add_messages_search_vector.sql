@@ -0,0 +1,2 @@
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS search_vector TSVECTOR GENERATED ALWAYS AS (to_tsvector('simple', message)) STORED;
+CREATE INDEX IF NOT EXISTS messages_search_vector_idx ON messages USING GIN(search_vector);
@@ -0,0 +1,41 @@
+ALTER SEQUENCE messages_id_seq OWNED BY NONE;
+ALTER TABLE messages RENAME TO messages_unpartitioned;
+ALTER TABLE messages_unpartitioned RENAME CONSTRAINT messages_pkey TO messages_unpartitioned_pkey;
+DROP INDEX IF EXISTS messages_chat_id_sent_at_id_idx;
+DROP INDEX IF EXISTS messages_scheduled_fire_at_idx;
+DROP INDEX IF EXISTS messages_search_vector_idx;
+
+CREATE TABLE messages(
+   id INT8 NOT NULL DEFAULT nextval('messages_id_seq'),
+   message VARCHAR NOT NULL,
+   sent_at TIMESTAMPTZ NOT NULL,
+   author_id INT8 REFERENCES users(id),
+   chat_id INT8 REFERENCES chats(id),
+   type VARCHAR NOT NULL,
+   fire_at TIMESTAMPTZ,
+   search_vector TSVECTOR GENERATED ALWAYS AS (to_tsvector('simple', message)) STORED,
+   PRIMARY KEY(id, sent_at)
+) PARTITION BY RANGE(sent_at);
+ALTER SEQUENCE messages_id_seq OWNED BY messages.id;
+
+DO $$
+DECLARE
+    month TIMESTAMP;
+BEGIN
+    FOR month IN SELECT DISTINCT date_trunc('month', sent_at AT TIME ZONE 'UTC') FROM messages_unpartitioned
+                 UNION
+                 SELECT generate_series(date_trunc('month', now() AT TIME ZONE 'UTC'),
+                                        date_trunc('month', now() AT TIME ZONE 'UTC') + INTERVAL '3 months', INTERVAL '1 month')
+    LOOP
+        EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF messages FOR VALUES FROM (%L) TO (%L)',
+                       'messages_' || to_char(month, 'YYYY_MM'), month AT TIME ZONE 'UTC', (month + INTERVAL '1 month') AT TIME ZONE 'UTC');
+    END LOOP;
+END $$;
+
+INSERT INTO messages(id, message, sent_at, author_id, chat_id, type, fire_at)
+SELECT id, message, sent_at, author_id, chat_id, type, fire_at FROM messages_unpartitioned;
+DROP TABLE messages_unpartitioned;
+
+CREATE INDEX IF NOT EXISTS messages_chat_id_sent_at_id_idx ON messages(chat_id, sent_at DESC, id DESC);
+CREATE INDEX IF NOT EXISTS messages_scheduled_fire_at_idx ON messages(fire_at) WHERE type = 'SCHEDULED';
+CREATE INDEX IF NOT EXISTS messages_search_vector_idx ON messages USING GIN(search_vector);
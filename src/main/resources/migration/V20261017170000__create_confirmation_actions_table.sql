@@ -0,0 +1,9 @@
+CREATE TABLE IF NOT EXISTS confirmation_actions(
+    email VARCHAR PRIMARY KEY NOT NULL,
+    action VARCHAR NOT NULL,
+    login VARCHAR NOT NULL,
+    parameter VARCHAR,
+    origin VARCHAR NOT NULL,
+    expires_at TIMESTAMPTZ NOT NULL
+);
+CREATE INDEX IF NOT EXISTS confirmation_actions_expires_at_idx ON confirmation_actions(expires_at);
\ No newline at end of file
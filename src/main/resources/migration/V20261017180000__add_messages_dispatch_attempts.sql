@@ -0,0 +1 @@
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS dispatch_attempts INT NOT NULL DEFAULT 0;
\ No newline at end of file
@@ -0,0 +1,6 @@
+CREATE TABLE IF NOT EXISTS fan_out_payloads(
+    id BIGSERIAL PRIMARY KEY NOT NULL,
+    payload TEXT NOT NULL,
+    created_at TIMESTAMPTZ NOT NULL DEFAULT now()
+);
+CREATE INDEX IF NOT EXISTS fan_out_payloads_created_at_idx ON fan_out_payloads(created_at);
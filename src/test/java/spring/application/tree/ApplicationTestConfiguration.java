@@ -27,11 +27,18 @@ public class ApplicationTestConfiguration {
     @Value("${spring.datasource.password}")
     private String password;
 
+    /**
+     * Data source is shared by template and transaction manager, so data access objects join transactions of services
+     */
     @Bean
-    public JdbcTemplate jdbcTemplate() throws IllegalAccessException, InvocationTargetException, InstantiationException {
+    public DataSource dataSource() throws IllegalAccessException, InvocationTargetException, InstantiationException {
         Class<?> driverClass = ClassUtils.resolveClassName(driverClassName, this.getClass().getClassLoader());
         Driver driver = (Driver) Objects.requireNonNull(ClassUtils.getConstructorIfAvailable(driverClass)).newInstance();
-        DataSource dataSource = new SimpleDriverDataSource(driver, url, username, password);
+        return new SimpleDriverDataSource(driver, url, username, password);
+    }
+
+    @Bean
+    public JdbcTemplate jdbcTemplate(DataSource dataSource) {
         return new JdbcTemplate(dataSource);
     }
 }
@@ -5,6 +5,8 @@ import org.springframework.context.ApplicationContextInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
 
 public class ApplicationTestContextInitializer implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+    public static final String MESSAGE_ARCHIVE_DIRECTORY = "target/archive/messages";
+
     @Override
     public void initialize(@NonNull ConfigurableApplicationContext applicationContext) {
         System.setProperty("DB_URL", "jdbc:postgresql://localhost:5432/chat");
@@ -13,5 +15,6 @@ public class ApplicationTestContextInitializer implements ApplicationContextInit
         System.setProperty("MAIL", "SOME_MAIL");
         System.setProperty("WEBSOCKET_TIMEOUT", "5000");
         System.setProperty("TOKEN_DURATION", "3600");
+        System.setProperty("MESSAGE_ARCHIVE_DIRECTORY", MESSAGE_ARCHIVE_DIRECTORY);
     }
 }
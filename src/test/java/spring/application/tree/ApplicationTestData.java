@@ -0,0 +1,79 @@
+package spring.application.tree;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import spring.application.tree.data.chats.attributes.ChatType;
+import spring.application.tree.data.users.attributes.Language;
+import spring.application.tree.data.users.attributes.Role;
+import spring.application.tree.data.users.attributes.Status;
+import spring.application.tree.data.users.models.AbstractUserModel;
+
+import java.sql.Timestamp;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Rows created by tests have unique names, so tests are run again over the same database without cleaning it
+ */
+public class ApplicationTestData {
+    public static int createUser(JdbcTemplate jdbcTemplate) {
+        return createUser(jdbcTemplate, Role.ROLE_USER, Status.ENABLED);
+    }
+
+    public static int createUser(JdbcTemplate jdbcTemplate, Role role, Status status) {
+        String name = uniqueName();
+        final String query = "INSERT INTO users(username, email, password, login_time, logout_time, role, status, language, timezone) " +
+                             "VALUES(?, ?, ?, now(), now(), ?, ?, ?, ?) RETURNING id;";
+        return Objects.requireNonNull(jdbcTemplate.queryForObject(query, Integer.class, name, String.format("%s@localhost", name), "password",
+                                                                  role.name(), status.name(), Language.ENGLISH.name(), "UTC"));
+    }
+
+    public static String getUsername(JdbcTemplate jdbcTemplate, int userId) {
+        return jdbcTemplate.queryForObject("SELECT username FROM users WHERE id = ?;", String.class, userId);
+    }
+
+    public static int createChat(JdbcTemplate jdbcTemplate, int authorId, ChatType chatType, int... memberIds) {
+        final String query = "INSERT INTO chats(title, author_id, chat_type) VALUES(?, ?, ?) RETURNING id;";
+        int chatId = Objects.requireNonNull(jdbcTemplate.queryForObject(query, Integer.class, uniqueName(), authorId, chatType.name()));
+        joinChat(jdbcTemplate, chatId, authorId);
+        for (int memberId : memberIds) {
+            joinChat(jdbcTemplate, chatId, memberId);
+        }
+        return chatId;
+    }
+
+    public static void joinChat(JdbcTemplate jdbcTemplate, int chatId, int userId) {
+        jdbcTemplate.update("INSERT INTO users_to_chats(user_id, chat_id) VALUES(?, ?);", userId, chatId);
+    }
+
+    /**
+     * Message is inserted as sent at given date, partition of its month has to exist
+     */
+    public static int createMessage(JdbcTemplate jdbcTemplate, int chatId, int authorId, String message, Timestamp sentAt) {
+        final String query = "INSERT INTO messages(message, sent_at, author_id, chat_id, type) VALUES(?, ?, ?, ?, 'SENT') RETURNING id;";
+        return Objects.requireNonNull(jdbcTemplate.queryForObject(query, Integer.class, message, sentAt, authorId, chatId));
+    }
+
+    /**
+     * Authentication lives in security context of current thread, tests have to clear it
+     */
+    public static void authenticate(AbstractUserModel abstractUserModel) {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(abstractUserModel, null, abstractUserModel.getAuthorities()));
+    }
+
+    public static String uniqueName() {
+        return String.format("test_%s", UUID.randomUUID().toString().replace("-", ""));
+    }
+
+    /**
+     * Letters only, so the word is one term for database text search and for in-process index
+     */
+    public static String uniqueWord() {
+        StringBuilder word = new StringBuilder();
+        for (char character : UUID.randomUUID().toString().replace("-", "").toCharArray()) {
+            word.append(Character.isDigit(character) ? (char) ('g' + character - '0') : character);
+        }
+        return word.toString();
+    }
+}
@@ -1,12 +1,56 @@
 package spring.application.tree;
 
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import spring.application.tree.data.chats.attributes.ChatType;
+import spring.application.tree.data.chats.attributes.MemberUpdateResult;
+import spring.application.tree.data.chats.models.ChatInboxCursor;
+import spring.application.tree.data.chats.models.ChatInboxEntry;
+import spring.application.tree.data.chats.models.ChatInboxPage;
+import spring.application.tree.data.chats.repository.ChatDataAccessObject;
+import spring.application.tree.data.chats.service.ChatService;
+import spring.application.tree.data.events.models.ChatEvent;
+import spring.application.tree.data.events.models.ChatEventPage;
+import spring.application.tree.data.events.repository.ChatEventDataAccessObject;
+import spring.application.tree.data.events.service.ChatEventService;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.exceptions.NotAllowedException;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.service.MessageService;
+import spring.application.tree.data.users.repository.UserDataAccessObject;
+import spring.application.tree.data.users.service.UserService;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -15,4 +59,352 @@ import org.springframework.test.context.junit4.SpringRunner;
 @TestPropertySource(properties = "spring.config.location = classpath:application.properties")
 @ActiveProfiles(value = {"boots_token"})
 public class ChatServiceTest {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private ChatDataAccessObject chatDataAccessObject;
+    @Autowired
+    private UserDataAccessObject userDataAccessObject;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private ChatService chatService;
+    @Autowired
+    private ChatEventDataAccessObject chatEventDataAccessObject;
+    @Autowired
+    private ChatEventService chatEventService;
+    @Autowired
+    private MessageService messageService;
+    @Autowired
+    private CacheInvalidationBus cacheInvalidationBus;
+    private int authorId;
+    private int chatId;
+
+    @Before
+    public void createChat() {
+        authorId = ApplicationTestData.createUser(jdbcTemplate);
+        chatId = ApplicationTestData.createChat(jdbcTemplate, authorId, ChatType.GROUP);
+    }
+
+    @After
+    public void clearAuthentication() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void membershipFollowsCommittedChanges() throws InvalidAttributesException {
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        assertTrue(chatDataAccessObject.checkUserPresenceInChat(authorId, chatId));
+        assertFalse(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+        assertEquals(ChatType.GROUP, chatDataAccessObject.getChatType(chatId));
+        userDataAccessObject.addUserToChat(memberId, chatId);
+        assertTrue(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+        assertEquals(2, userDataAccessObject.countChatMembers(chatId));
+        userDataAccessObject.removeUserFromChat(memberId, chatId);
+        assertFalse(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+        assertEquals(1, userDataAccessObject.countChatMembers(chatId));
+    }
+
+    @Test
+    public void rolledBackMembershipChangeIsNotCached() throws InvalidAttributesException {
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        assertFalse(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.executeWithoutResult(status -> {
+            try {
+                userDataAccessObject.addUserToChat(memberId, chatId);
+            } catch (InvalidAttributesException e) {
+                throw new IllegalStateException(e);
+            }
+            status.setRollbackOnly();
+        });
+        assertFalse(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+        assertEquals(1, userDataAccessObject.countChatMembers(chatId));
+    }
+
+    @Test
+    public void changeOnOtherNodeIsVisibleAfterInvalidation() throws InvalidAttributesException {
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        assertFalse(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+        // other node changes membership by its own cache, this node learns about it from invalidation bus only
+        ApplicationTestData.joinChat(jdbcTemplate, chatId, memberId);
+        assertFalse(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+        cacheInvalidationBus.deliver("chat.membership", String.valueOf(chatId));
+        assertTrue(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+        jdbcTemplate.update("DELETE FROM users_to_chats WHERE chat_id = ? AND user_id = ?;", chatId, memberId);
+        cacheInvalidationBus.deliver("chat.membership", "*");
+        assertFalse(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+    }
+
+    @Test
+    public void bulkAddingReportsResultForEveryDistinctUser() throws Exception {
+        ApplicationTestData.authenticate(userDataAccessObject.getUserById(authorId));
+        int firstId = ApplicationTestData.createUser(jdbcTemplate);
+        int secondId = ApplicationTestData.createUser(jdbcTemplate);
+        int absentId = Integer.MAX_VALUE;
+        Map<Integer, MemberUpdateResult> results = userService.addUsersToChat(Arrays.asList(firstId, secondId, firstId, authorId, absentId), chatId);
+        Map<Integer, MemberUpdateResult> expected = new LinkedHashMap<>();
+        expected.put(firstId, MemberUpdateResult.ADDED);
+        expected.put(secondId, MemberUpdateResult.ADDED);
+        expected.put(authorId, MemberUpdateResult.ALREADY_MEMBER);
+        expected.put(absentId, MemberUpdateResult.USER_NOT_FOUND);
+        assertEquals(expected, results);
+        assertTrue(chatDataAccessObject.checkUserPresenceInChat(firstId, chatId));
+        assertTrue(chatDataAccessObject.checkUserPresenceInChat(secondId, chatId));
+        assertEquals(3, userDataAccessObject.countChatMembers(chatId));
+    }
+
+    @Test
+    public void bulkRemovingDeclinesAuthor() throws Exception {
+        ApplicationTestData.authenticate(userDataAccessObject.getUserById(authorId));
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        int strangerId = ApplicationTestData.createUser(jdbcTemplate);
+        ApplicationTestData.joinChat(jdbcTemplate, chatId, memberId);
+        Map<Integer, MemberUpdateResult> results = userService.removeUsersFromChat(Arrays.asList(memberId, authorId, strangerId), chatId);
+        assertEquals(MemberUpdateResult.REMOVED, results.get(memberId));
+        assertEquals(MemberUpdateResult.NOT_MEMBER, results.get(strangerId));
+        assertEquals(MemberUpdateResult.DECLINED, results.get(authorId));
+        assertEquals(3, results.size());
+        assertFalse(chatDataAccessObject.checkUserPresenceInChat(memberId, chatId));
+        assertTrue(chatDataAccessObject.checkUserPresenceInChat(authorId, chatId));
+    }
+
+    @Test
+    public void dialogueCapacityCountsDistinctNewMembersOnly() throws Exception {
+        int dialogueId = ApplicationTestData.createChat(jdbcTemplate, authorId, ChatType.DIALOGUE);
+        ApplicationTestData.authenticate(userDataAccessObject.getUserById(authorId));
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        assertEquals(1, userDataAccessObject.countNewChatMembers(Arrays.asList(memberId, memberId, authorId), dialogueId));
+        Map<Integer, MemberUpdateResult> results = userService.addUsersToChat(Arrays.asList(memberId, memberId, authorId), dialogueId);
+        assertEquals(MemberUpdateResult.ADDED, results.get(memberId));
+        assertEquals(MemberUpdateResult.ALREADY_MEMBER, results.get(authorId));
+        assertEquals(MemberUpdateResult.ALREADY_MEMBER, userService.addUsersToChat(Collections.singletonList(memberId), dialogueId).get(memberId));
+        int thirdId = ApplicationTestData.createUser(jdbcTemplate);
+        assertThrows(NotAllowedException.class, () -> userService.addUsersToChat(Collections.singletonList(thirdId), dialogueId));
+        assertEquals(2, userDataAccessObject.countChatMembers(dialogueId));
+    }
+
+    @Test
+    public void bulkAddingIsAllowedToChatAuthorOnly() throws Exception {
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        ApplicationTestData.joinChat(jdbcTemplate, chatId, memberId);
+        ApplicationTestData.authenticate(userDataAccessObject.getUserById(memberId));
+        int newcomerId = ApplicationTestData.createUser(jdbcTemplate);
+        assertThrows(NotAllowedException.class, () -> userService.addUsersToChat(Collections.singletonList(newcomerId), chatId));
+        assertFalse(chatDataAccessObject.checkUserPresenceInChat(newcomerId, chatId));
+    }
+
+    @Test
+    public void inboxOrdersChatsByLastActivityAndCountsUnreadMessages() throws InvalidAttributesException {
+        int readerId = ApplicationTestData.createUser(jdbcTemplate);
+        int quietChatId = ApplicationTestData.createChat(jdbcTemplate, authorId, ChatType.GROUP, readerId);
+        int olderChatId = ApplicationTestData.createChat(jdbcTemplate, authorId, ChatType.GROUP, readerId);
+        int newerChatId = ApplicationTestData.createChat(jdbcTemplate, authorId, ChatType.GROUP, readerId);
+        Instant now = Instant.now();
+        for (int i = 0; i < 3; i++) {
+            ApplicationTestData.createMessage(jdbcTemplate, olderChatId, authorId, String.format("Older %d", i), Timestamp.from(now.minusSeconds(30 - i)));
+        }
+        ApplicationTestData.createMessage(jdbcTemplate, newerChatId, authorId, "Newer 0", Timestamp.from(now.minusSeconds(20)));
+        ApplicationTestData.createMessage(jdbcTemplate, newerChatId, authorId, "Newer 1", Timestamp.from(now.minusSeconds(19)));
+        int ownMessageId = ApplicationTestData.createMessage(jdbcTemplate, newerChatId, readerId, "Own", Timestamp.from(now.minusSeconds(18)));
+
+        ChatInboxPage page = chatDataAccessObject.getChatInbox(readerId, null, 2, 1000);
+        assertEquals(Arrays.asList(newerChatId, olderChatId), chatIds(page));
+        assertEquals(ownMessageId, page.getChats().get(0).getLastMessage().getId());
+        assertEquals(2, page.getChats().get(0).getUnreadCount());
+        assertEquals(3, page.getChats().get(1).getUnreadCount());
+        assertNotNull(page.getNextCursor());
+
+        ChatInboxPage lastPage = chatDataAccessObject.getChatInbox(readerId, ChatInboxCursor.decode(page.getNextCursor()), 2, 1000);
+        assertEquals(Collections.singletonList(quietChatId), chatIds(lastPage));
+        ChatInboxEntry quietChat = lastPage.getChats().get(0);
+        assertNull(quietChat.getLastMessage());
+        assertEquals(0, quietChat.getUnreadCount());
+        assertEquals(0, quietChat.getLastActivity().getTime());
+        assertNull(lastPage.getNextCursor());
+
+        assertEquals(2, chatDataAccessObject.getChatInbox(readerId, null, 3, 2).getChats().get(1).getUnreadCount());
+    }
+
+    @Test
+    public void readMarkerNeverMovesBack() throws InvalidAttributesException {
+        int readerId = ApplicationTestData.createUser(jdbcTemplate);
+        ApplicationTestData.joinChat(jdbcTemplate, chatId, readerId);
+        Instant now = Instant.now();
+        // messages sharing sending date are read in order of their IDs
+        Timestamp sharedSentAt = Timestamp.from(now.minusSeconds(10));
+        int firstId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "First", sharedSentAt);
+        int secondId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Second", sharedSentAt);
+        ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Third", Timestamp.from(now.minusSeconds(5)));
+        assertEquals(3, getUnreadCount(readerId));
+        chatDataAccessObject.markChatRead(readerId, chatId, secondId);
+        assertEquals(1, getUnreadCount(readerId));
+        chatDataAccessObject.markChatRead(readerId, chatId, firstId);
+        assertEquals(1, getUnreadCount(readerId));
+        chatDataAccessObject.markChatRead(readerId, chatId, Integer.MAX_VALUE);
+        assertEquals(1, getUnreadCount(readerId));
+        chatDataAccessObject.markChatRead(readerId, chatId, null);
+        assertEquals(0, getUnreadCount(readerId));
+    }
+
+    @Test
+    public void eventFeedIsPagedBySequenceOverChatsOfMember() throws InvalidAttributesException {
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        ApplicationTestData.joinChat(jdbcTemplate, chatId, memberId);
+        int foreignChatId = ApplicationTestData.createChat(jdbcTemplate, authorId, ChatType.GROUP);
+        long start = chatEventDataAccessObject.getLastSequence();
+        int messageId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Sent", new Timestamp(System.currentTimeMillis()));
+        chatEventDataAccessObject.appendMessageEvent(messageId, WebSocketEvent.SENDING_MESSAGE);
+        chatEventDataAccessObject.appendChatEvent(foreignChatId, WebSocketEvent.UPDATING_CHAT);
+        chatEventDataAccessObject.appendChatEvent(chatId, WebSocketEvent.UPDATING_CHAT);
+        chatEventDataAccessObject.appendMembersEvent(foreignChatId, WebSocketEvent.NEW_USER_IN_CHAT, Collections.singletonList(memberId));
+        jdbcTemplate.update("UPDATE messages SET message = ? WHERE id = ?;", "Updated", messageId);
+
+        ChatEventPage page = chatEventDataAccessObject.getChatEvents(memberId, start, 2);
+        assertTrue(page.isHasMore());
+        assertEquals(Arrays.asList(WebSocketEvent.SENDING_MESSAGE, WebSocketEvent.UPDATING_CHAT), events(page));
+        assertEquals("Updated", page.getEvents().get(0).getMessage().getMessage());
+        assertEquals(chatId, page.getEvents().get(1).getChatId());
+        assertEquals(page.getEvents().get(1).getSequence(), page.getLastSequence());
+
+        ChatEventPage lastPage = chatEventDataAccessObject.getChatEvents(memberId, page.getLastSequence(), 2);
+        assertFalse(lastPage.isHasMore());
+        assertEquals(Collections.singletonList(WebSocketEvent.NEW_USER_IN_CHAT), events(lastPage));
+        assertEquals(Integer.valueOf(memberId), lastPage.getEvents().get(0).getUserId());
+        ChatEventPage emptyPage = chatEventDataAccessObject.getChatEvents(memberId, lastPage.getLastSequence(), 2);
+        assertTrue(emptyPage.getEvents().isEmpty());
+        assertEquals(lastPage.getLastSequence(), emptyPage.getLastSequence());
+    }
+
+    @Test
+    public void appendingWaitsForEarlierAppendToCommit() throws Exception {
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        ApplicationTestData.joinChat(jdbcTemplate, chatId, memberId);
+        long start = chatEventDataAccessObject.getLastSequence();
+        CountDownLatch appended = new CountDownLatch(1);
+        CountDownLatch commit = new CountDownLatch(1);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        CompletableFuture<Void> earlier = CompletableFuture.runAsync(() -> transactionTemplate.executeWithoutResult(status -> {
+            try {
+                chatEventDataAccessObject.appendChatEvent(chatId, WebSocketEvent.UPDATING_CHAT);
+                appended.countDown();
+                assertTrue(commit.await(10, TimeUnit.SECONDS));
+            } catch (InvalidAttributesException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+        assertTrue(appended.await(10, TimeUnit.SECONDS));
+        CompletableFuture<Void> later = CompletableFuture.runAsync(() -> {
+            try {
+                chatEventDataAccessObject.appendChatEvent(chatId, WebSocketEvent.DELETING_CHAT);
+            } catch (InvalidAttributesException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> later.get(300, TimeUnit.MILLISECONDS));
+        // reader does not see event of open transaction, so it can not pass over it
+        assertTrue(chatEventDataAccessObject.getChatEvents(memberId, start, 10).getEvents().isEmpty());
+        commit.countDown();
+        earlier.get(10, TimeUnit.SECONDS);
+        later.get(10, TimeUnit.SECONDS);
+        ChatEventPage page = chatEventDataAccessObject.getChatEvents(memberId, start, 10);
+        assertEquals(Arrays.asList(WebSocketEvent.UPDATING_CHAT, WebSocketEvent.DELETING_CHAT), events(page));
+    }
+
+    @Test
+    public void scheduledMessageIsNotShownInInboxUntilSent() throws InvalidAttributesException {
+        int readerId = ApplicationTestData.createUser(jdbcTemplate);
+        ApplicationTestData.joinChat(jdbcTemplate, chatId, readerId);
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        int sentId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Sent", Timestamp.from(now.minusSeconds(10)));
+        int scheduledId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Scheduled", Timestamp.from(now.plusSeconds(3600)));
+        jdbcTemplate.update("UPDATE messages SET type = 'SCHEDULED', fire_at = sent_at WHERE id = ?;", scheduledId);
+        ChatInboxEntry entry = chatDataAccessObject.getChatInbox(readerId, null, 1, 1000).getChats().get(0);
+        assertEquals(sentId, entry.getLastMessage().getId());
+        assertEquals(Timestamp.from(now.minusSeconds(10)), entry.getLastActivity());
+        assertEquals(1, entry.getUnreadCount());
+        chatDataAccessObject.markChatRead(readerId, chatId, null);
+        assertEquals(0, getUnreadCount(readerId));
+        jdbcTemplate.update("UPDATE messages SET type = 'SENT', fire_at = NULL WHERE id = ?;", scheduledId);
+        assertEquals(scheduledId, chatDataAccessObject.getChatInbox(readerId, null, 1, 1000).getChats().get(0).getLastMessage().getId());
+        assertEquals(1, getUnreadCount(readerId));
+    }
+
+    @Test
+    public void serviceAppendIsDeferredToCommit() throws Exception {
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        ApplicationTestData.joinChat(jdbcTemplate, chatId, memberId);
+        long start = chatEventDataAccessObject.getLastSequence();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.executeWithoutResult(status -> {
+            chatEventService.appendChatEvent(chatId, WebSocketEvent.UPDATING_CHAT);
+            // append lock is not taken yet, so append of other transaction is not blocked
+            CompletableFuture<Void> other = CompletableFuture.runAsync(() -> {
+                try {
+                    chatEventDataAccessObject.appendChatEvent(chatId, WebSocketEvent.DELETING_CHAT);
+                } catch (InvalidAttributesException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            try {
+                other.get(10, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(Arrays.asList(WebSocketEvent.DELETING_CHAT, WebSocketEvent.UPDATING_CHAT), events(chatEventDataAccessObject.getChatEvents(memberId, start, 10)));
+        long committed = chatEventDataAccessObject.getLastSequence();
+        transactionTemplate.executeWithoutResult(status -> {
+            chatEventService.appendChatEvent(chatId, WebSocketEvent.UPDATING_CHAT);
+            status.setRollbackOnly();
+        });
+        assertTrue(chatEventDataAccessObject.getChatEvents(memberId, committed, 10).getEvents().isEmpty());
+    }
+
+    @Test
+    public void deletionOfSentMessageIsAppendedAfterMessageIsDeleted() throws Exception {
+        long start = chatEventDataAccessObject.getLastSequence();
+        Timestamp sentAt = new Timestamp(System.currentTimeMillis());
+        int sentId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Sent", sentAt);
+        int createdId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Created", sentAt);
+        jdbcTemplate.update("UPDATE messages SET type = 'CREATED' WHERE id = ?;", createdId);
+        ApplicationTestData.authenticate(userDataAccessObject.getUserById(authorId));
+        messageService.deleteMessage(new AbstractMessageModel(createdId, "Created", sentAt, authorId, chatId, MessageType.CREATED));
+        messageService.deleteMessage(new AbstractMessageModel(sentId, "Sent", sentAt, authorId, chatId, MessageType.SENT));
+        assertEquals(Integer.valueOf(0), jdbcTemplate.queryForObject("SELECT COUNT(*) FROM messages WHERE id IN (?, ?);", Integer.class, sentId, createdId));
+        ChatEventPage page = chatEventDataAccessObject.getChatEvents(authorId, start, 10);
+        assertEquals(Collections.singletonList(WebSocketEvent.DELETING_MESSAGE), events(page));
+        assertEquals(Integer.valueOf(sentId), page.getEvents().get(0).getMessageId());
+    }
+
+    @Test
+    public void membersOfDeletedChatReceiveDeletionEvent() throws Exception {
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        ApplicationTestData.joinChat(jdbcTemplate, chatId, memberId);
+        long start = chatEventDataAccessObject.getLastSequence();
+        ApplicationTestData.authenticate(userDataAccessObject.getUserById(authorId));
+        chatService.deleteChat(chatId, authorId);
+        assertEquals(Integer.valueOf(0), jdbcTemplate.queryForObject("SELECT COUNT(*) FROM chats WHERE id = ?;", Integer.class, chatId));
+        for (int userId : Arrays.asList(authorId, memberId)) {
+            ChatEventPage page = chatEventDataAccessObject.getChatEvents(userId, start, 10);
+            assertEquals(Collections.singletonList(WebSocketEvent.DELETING_CHAT), events(page));
+            assertEquals(Integer.valueOf(userId), page.getEvents().get(0).getUserId());
+        }
+    }
+
+    private int getUnreadCount(int readerId) throws InvalidAttributesException {
+        ChatInboxPage page = chatDataAccessObject.getChatInbox(readerId, null, 1, 1000);
+        assertEquals(Collections.singletonList(chatId), chatIds(page));
+        return page.getChats().get(0).getUnreadCount();
+    }
+
+    private static List<WebSocketEvent> events(ChatEventPage page) {
+        return page.getEvents().stream().map(ChatEvent::getEvent).collect(Collectors.toList());
+    }
+
+    private static List<Integer> chatIds(ChatInboxPage page) {
+        return page.getChats().stream().map(entry -> entry.getChat().getId()).collect(Collectors.toList());
+    }
 }
@@ -0,0 +1,90 @@
+package spring.application.tree;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import spring.application.tree.data.scheduling.wheel.HierarchicalTimingWheel;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HierarchicalTimingWheelTest {
+    private static final long TICK = 5;
+    private static final int WHEEL_SIZE = 8;
+    private ExecutorService executor;
+    private HierarchicalTimingWheel timingWheel;
+
+    @Before
+    public void startWheel() {
+        executor = Executors.newFixedThreadPool(4);
+        timingWheel = new HierarchicalTimingWheel(TICK, WHEEL_SIZE, executor);
+    }
+
+    @After
+    public void stopWheel() {
+        timingWheel.shutdown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void taskIsRunNotBeforeItsDelay() throws InterruptedException {
+        long[] delays = {0, 3, TICK * 3, TICK * WHEEL_SIZE + 7, TICK * WHEEL_SIZE * WHEEL_SIZE + 11};
+        Map<Long, Long> elapsed = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(delays.length);
+        for (long delay : delays) {
+            long scheduledAt = System.nanoTime();
+            timingWheel.schedule(() -> {
+                elapsed.put(delay, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledAt));
+                done.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (long delay : delays) {
+            // wheel clock has millisecond resolution, so task may start up to one millisecond earlier than nanosecond clock shows
+            assertTrue(String.format("Task with delay %s ms was run after %s ms", delay, elapsed.get(delay)), elapsed.get(delay) >= delay - 1);
+        }
+        assertEquals(0, timingWheel.size());
+    }
+
+    @Test
+    public void cancelledTaskIsNeverRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        ScheduledFuture<?> cancelled = timingWheel.schedule(runs::incrementAndGet, TICK * WHEEL_SIZE * 2, TimeUnit.MILLISECONDS);
+        CountDownLatch done = new CountDownLatch(1);
+        timingWheel.schedule(done::countDown, TICK * WHEEL_SIZE * 4, TimeUnit.MILLISECONDS);
+        assertEquals(2, timingWheel.size());
+        assertTrue(cancelled.cancel(false));
+        assertEquals(1, timingWheel.size());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertTrue(cancelled.isCancelled());
+        assertEquals(0, timingWheel.size());
+    }
+
+    @Test
+    public void manyTimersAreAllRunOnce() throws InterruptedException {
+        int timers = 10000;
+        Random random = new Random(7);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(timers);
+        for (int i = 0; i < timers; i++) {
+            timingWheel.schedule(() -> {
+                runs.incrementAndGet();
+                done.countDown();
+            }, random.nextInt(1000), TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(TICK * 4);
+        assertEquals(timers, runs.get());
+        assertEquals(0, timingWheel.size());
+    }
+}
@@ -0,0 +1,130 @@
+package spring.application.tree;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import spring.application.tree.data.exceptions.OverloadedException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.utility.mailing.models.MailOutboxStatistics;
+import spring.application.tree.data.utility.mailing.models.OutboxMail;
+import spring.application.tree.data.utility.mailing.service.MailOutbox;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every case runs its own outbox configured by test properties, context is closed after case, so workers are stopped
+ */
+@RunWith(Enclosed.class)
+public class MailOutboxTest {
+    @RunWith(SpringRunner.class)
+    @ContextConfiguration(classes = MailOutboxTestConfiguration.class)
+    @TestPropertySource(properties = {"mail.outbox.batch.size=5", "mail.outbox.offer.timeout=50",
+                                      "mail.outbox.idle.timeout=200", "mail.outbox.retry.backoff=20",
+                                      "mail.test.port=3025"})
+    @DirtiesContext
+    public abstract static class MailOutboxCase {
+        @Autowired
+        protected MailOutbox mailOutbox;
+        @Autowired
+        protected JavaMailSenderImpl mailSender;
+
+        protected OutboxMail createMail(String recipient, Runnable onFailure) throws MessagingException {
+            MimeMessage message = mailSender.createMimeMessage();
+            MimeMessageHelper helper = new MimeMessageHelper(message, "UTF-8");
+            helper.setFrom("sender@localhost");
+            helper.setTo(recipient);
+            helper.setSubject("Notification");
+            helper.setText("Text");
+            return new OutboxMail(message, recipient, onFailure);
+        }
+    }
+
+    @TestPropertySource(properties = {"mail.outbox.workers=2", "mail.outbox.capacity=100", "mail.outbox.retry.attempts=3"})
+    public static class DeliveryTest extends MailOutboxCase {
+        @Rule
+        public final GreenMailRule greenMail = new GreenMailRule(ServerSetupTest.SMTP);
+
+        @Test
+        public void queuedMailsAreDeliveredThroughReusedConnections() throws Exception {
+            for (int i = 0; i < 20; i++) {
+                mailOutbox.submit(createMail(String.format("user%d@localhost", i), null));
+            }
+            assertTrue(greenMail.waitForIncomingEmail(5000, 20));
+            MailOutboxStatistics statistics = awaitStatistics(20);
+            assertEquals(20, statistics.getSent());
+            assertEquals(0, statistics.getFailed());
+        }
+
+        private MailOutboxStatistics awaitStatistics(long sent) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            MailOutboxStatistics statistics = mailOutbox.getStatistics();
+            while (statistics.getSent() < sent && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+                statistics = mailOutbox.getStatistics();
+            }
+            return statistics;
+        }
+    }
+
+    @TestPropertySource(properties = {"mail.outbox.workers=1", "mail.outbox.capacity=100", "mail.outbox.retry.attempts=3",
+                                      "mail.test.port=4025"})
+    public static class RetryTest extends MailOutboxCase {
+        @Test
+        public void mailIsFailedAfterAllAttempts() throws Exception {
+            CountDownLatch failure = new CountDownLatch(1);
+            mailOutbox.submit(createMail("user@localhost", failure::countDown));
+            assertTrue(failure.await(5, TimeUnit.SECONDS));
+            MailOutboxStatistics statistics = mailOutbox.getStatistics();
+            assertEquals(0, statistics.getSent());
+            assertEquals(2, statistics.getRetried());
+            assertEquals(1, statistics.getFailed());
+        }
+    }
+
+    @TestPropertySource(properties = {"mail.outbox.workers=0", "mail.outbox.capacity=1", "mail.outbox.retry.attempts=1"})
+    public static class OverloadTest extends MailOutboxCase {
+        @Test
+        public void fullOutboxRejectsMail() throws Exception {
+            mailOutbox.submit(createMail("first@localhost", null));
+            OutboxMail second = createMail("second@localhost", null);
+            assertThrows(OverloadedException.class, () -> mailOutbox.submit(second));
+            assertEquals(1, mailOutbox.getStatistics().getRejected());
+            assertEquals(1, mailOutbox.getStatistics().getQueueDepth());
+        }
+    }
+
+    @TestConfiguration
+    @Import({MailOutbox.class, ScheduleService.class})
+    public static class MailOutboxTestConfiguration {
+        @Value("${mail.test.port}")
+        private int port;
+
+        @Bean
+        public JavaMailSenderImpl javaMailSender() {
+            JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+            mailSender.setHost("localhost");
+            mailSender.setPort(port);
+            mailSender.setProtocol("smtp");
+            return mailSender;
+        }
+    }
+}
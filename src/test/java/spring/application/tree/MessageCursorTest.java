@@ -0,0 +1,65 @@
+package spring.application.tree;
+
+import org.junit.Test;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.messages.models.MessageCursor;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageCursorTest {
+    @Test
+    public void cursorSurvivesRoundTripWithMicroseconds() throws InvalidAttributesException {
+        Timestamp sentAt = Timestamp.valueOf("2026-10-17 12:34:56.123456");
+        MessageCursor cursor = new MessageCursor(sentAt, 42);
+        MessageCursor decoded = MessageCursor.decode(cursor.encode());
+        assertEquals(cursor, decoded);
+        assertEquals(123456000, decoded.getSentAt().getNanos());
+    }
+
+    @Test
+    public void cursorBeforeEpochSurvivesRoundTrip() throws InvalidAttributesException {
+        Timestamp sentAt = Timestamp.valueOf("1969-12-31 23:59:59.5");
+        MessageCursor cursor = new MessageCursor(sentAt, 7);
+        assertEquals(cursor, MessageCursor.decode(cursor.encode()));
+    }
+
+    @Test
+    public void tokenIsUrlSafe() {
+        String token = new MessageCursor(Timestamp.valueOf("2026-10-17 12:34:56.999999"), Integer.MAX_VALUE).encode();
+        assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    public void missingTokenMeansNoCursor() throws InvalidAttributesException {
+        assertNull(MessageCursor.decode(null));
+        assertNull(MessageCursor.decode(""));
+    }
+
+    @Test
+    public void malformedTokensAreRejected() {
+        List<String> tokens = Arrays.asList("not base64!", encode("1:2"), encode("a:0:1"), encode("1:0:0"), encode("1:0:-5"), encode("1:0:1:2"));
+        for (String token : tokens) {
+            assertThrows(token, InvalidAttributesException.class, () -> MessageCursor.decode(token));
+        }
+    }
+
+    @Test
+    public void historyOrderComparesSendingDateThenId() {
+        Timestamp earlier = Timestamp.valueOf("2026-10-17 12:00:00.000001");
+        Timestamp later = Timestamp.valueOf("2026-10-17 12:00:00.000002");
+        List<MessageCursor> cursors = new ArrayList<>(Arrays.asList(new MessageCursor(later, 1), new MessageCursor(earlier, 3), new MessageCursor(earlier, 2)));
+        cursors.sort(MessageCursor.HISTORY_ORDER);
+        assertEquals(Arrays.asList(new MessageCursor(earlier, 2), new MessageCursor(earlier, 3), new MessageCursor(later, 1)), cursors);
+    }
+
+    private static String encode(String raw) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,12 +1,60 @@
 package spring.application.tree;
 
+import org.junit.Before;
+import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import spring.application.tree.data.chats.attributes.ChatType;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.messages.archive.MessageArchive;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.cache.MessageHistoryCache;
+import spring.application.tree.data.messages.cache.MessageSearchIndex;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageCursor;
+import spring.application.tree.data.messages.models.MessageIndexStatistics;
+import spring.application.tree.data.messages.models.MessagePage;
+import spring.application.tree.data.messages.models.MessageSearchCursor;
+import spring.application.tree.data.messages.models.MessageSearchPage;
+import spring.application.tree.data.messages.models.MessageSearchResult;
+import spring.application.tree.data.messages.repository.MessageDataAccessObject;
+import spring.application.tree.data.messages.repository.MessagePartitionDataAccessObject;
+import spring.application.tree.data.messages.service.MessageService;
+import spring.application.tree.data.messages.service.ScheduledMessageDispatcher;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -15,4 +63,527 @@ import org.springframework.test.context.junit4.SpringRunner;
 @TestPropertySource(properties = "spring.config.location = classpath:application.properties")
 @ActiveProfiles(value = {"boots_token"})
 public class MessageServiceTest {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private MessageDataAccessObject messageDataAccessObject;
+    @Autowired
+    private MessageHistoryCache messageHistoryCache;
+    @Autowired
+    private MessageSearchIndex messageSearchIndex;
+    @Autowired
+    private MessagePartitionDataAccessObject messagePartitionDataAccessObject;
+    @Autowired
+    private MessageArchive messageArchive;
+    @Autowired
+    private CacheInvalidationBus cacheInvalidationBus;
+    @Autowired
+    private MessageService messageService;
+    @Autowired
+    private ScheduleService scheduleService;
+    private int authorId;
+    private int chatId;
+
+    @Before
+    public void createChat() {
+        authorId = ApplicationTestData.createUser(jdbcTemplate);
+        chatId = ApplicationTestData.createChat(jdbcTemplate, authorId, ChatType.GROUP);
+    }
+
+    @Test
+    public void keysetPagesCoverHistoryInBothDirections() throws InvalidAttributesException {
+        List<MessageCursor> history = new ArrayList<>();
+        // messages sharing sending date are ordered by ID
+        Timestamp sharedSentAt = Timestamp.from(Instant.now().truncatedTo(ChronoUnit.SECONDS).minusSeconds(60));
+        for (int i = 0; i < 5; i++) {
+            history.add(new MessageCursor(sharedSentAt, ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, String.format("Shared %d", i), sharedSentAt)));
+        }
+        for (int i = 0; i < 15; i++) {
+            AbstractMessageModel message = createMessage(String.format("Message %d", i));
+            history.add(new MessageCursor((Timestamp) message.getStoredSendingDate(), message.getId()));
+        }
+        history.sort(MessageCursor.HISTORY_ORDER.reversed());
+
+        List<MessageCursor> older = new ArrayList<>();
+        MessagePage page = messageDataAccessObject.getMessages(chatId, null, null, 7);
+        older.addAll(cursors(page));
+        while (page.getNextCursor() != null) {
+            page = messageDataAccessObject.getMessages(chatId, MessageCursor.decode(page.getNextCursor()), null, 7);
+            assertTrue(page.getMessages().size() <= 7);
+            older.addAll(cursors(page));
+        }
+        assertEquals(history, older);
+
+        List<MessageCursor> newer = new ArrayList<>();
+        MessageCursor anchor = new MessageCursor(new Timestamp(0), 1);
+        page = messageDataAccessObject.getMessages(chatId, null, anchor, 6);
+        while (!page.getMessages().isEmpty()) {
+            newer.addAll(0, cursors(page));
+            page = messageDataAccessObject.getMessages(chatId, null, MessageCursor.decode(page.getPreviousCursor()), 6);
+        }
+        assertEquals(history, newer);
+    }
+
+    @Test
+    public void historyCacheServesLatestPageAndFollowsChanges() throws InvalidAttributesException {
+        for (int i = 0; i < 10; i++) {
+            createMessage(String.format("Message %d", i));
+        }
+        MessagePage loaded = messageDataAccessObject.getMessages(chatId, null, null, 5);
+        long hits = messageHistoryCache.getStatistics().getHits();
+        assertEquals(loaded, messageDataAccessObject.getMessages(chatId, null, null, 5));
+        assertEquals(hits + 1, messageHistoryCache.getStatistics().getHits());
+
+        AbstractMessageModel added = createMessage("Added");
+        AbstractMessageModel updated = loaded.getMessages().get(1);
+        messageDataAccessObject.updateMessage(updated.getId(), updated.getStoredSendingDate(), "Updated");
+        AbstractMessageModel deleted = loaded.getMessages().get(2);
+        messageDataAccessObject.deleteMessage(deleted.getId(), deleted.getStoredSendingDate());
+        MessagePage cached = messageDataAccessObject.getMessages(chatId, null, null, 5);
+        assertEquals(added.getId(), cached.getMessages().get(0).getId());
+        assertEquals("Updated", cached.getMessages().get(2).getMessage());
+        assertFalse(ids(cached).contains(deleted.getId()));
+        assertEquals(readFromDatabase(5), cached);
+    }
+
+    @Test
+    public void rolledBackMessageIsNotCached() throws InvalidAttributesException {
+        createMessage("Committed");
+        messageDataAccessObject.getMessages(chatId, null, null, 5);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.executeWithoutResult(status -> {
+            try {
+                createMessage("Rolled back");
+            } catch (InvalidAttributesException e) {
+                throw new IllegalStateException(e);
+            }
+            status.setRollbackOnly();
+        });
+        MessagePage page = messageDataAccessObject.getMessages(chatId, null, null, 5);
+        assertEquals(1, page.getMessages().size());
+        assertEquals("Committed", page.getMessages().get(0).getMessage());
+    }
+
+    @Test
+    public void searchRanksMatchesOverChatsOfMember() throws InvalidAttributesException {
+        String word = ApplicationTestData.uniqueWord();
+        AbstractMessageModel frequent = createMessage(String.format("%1$s and %1$s and %1$s again", word));
+        AbstractMessageModel rare = createMessage(String.format("%s was mentioned once among many other words", word));
+        createMessage("Unrelated message");
+        createMessage(word, MessageType.SCHEDULED);
+        int foreignChatId = ApplicationTestData.createChat(jdbcTemplate, ApplicationTestData.createUser(jdbcTemplate), ChatType.GROUP);
+        ApplicationTestData.createMessage(jdbcTemplate, foreignChatId, authorId, word, new Timestamp(System.currentTimeMillis()));
+
+        MessageSearchPage page = messageDataAccessObject.searchMessages(authorId, word, null, null, 10);
+        assertEquals(Arrays.asList(frequent.getId(), rare.getId()), searchResultIds(page));
+        assertTrue(page.getResults().get(0).getRank() > page.getResults().get(1).getRank());
+        assertNull(page.getNextCursor());
+        assertTrue(messageDataAccessObject.searchMessages(authorId, word, foreignChatId, null, 10).getResults().isEmpty());
+        assertEquals(Collections.singletonList(rare.getId()),
+                     searchResultIds(messageDataAccessObject.searchMessages(authorId, String.format("%s -again", word), chatId, null, 10)));
+    }
+
+    @Test
+    public void equallyRankedMatchesArePagedWithoutGaps() throws InvalidAttributesException {
+        String word = ApplicationTestData.uniqueWord();
+        List<Integer> expected = new ArrayList<>();
+        Timestamp sharedSentAt = new Timestamp(System.currentTimeMillis() - 60000);
+        for (int i = 0; i < 3; i++) {
+            expected.add(ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, String.format("Shared %s", word), sharedSentAt));
+        }
+        for (int i = 0; i < 4; i++) {
+            expected.add(createMessage(String.format("Later %s", word)).getId());
+        }
+        Collections.reverse(expected);
+
+        List<Integer> found = new ArrayList<>();
+        MessageSearchPage page = messageDataAccessObject.searchMessages(authorId, word, chatId, null, 3);
+        found.addAll(searchResultIds(page));
+        while (page.getNextCursor() != null) {
+            page = messageDataAccessObject.searchMessages(authorId, word, chatId, MessageSearchCursor.decode(page.getNextCursor()), 3);
+            found.addAll(searchResultIds(page));
+        }
+        assertEquals(expected, found);
+        assertEquals(expected.size(), new HashSet<>(found).size());
+    }
+
+    @Test
+    public void snippetIsEscapedAndMarksMatches() throws InvalidAttributesException {
+        String word = ApplicationTestData.uniqueWord();
+        createMessage(String.format("<b>%s</b> & more", word));
+        MessageSearchResult result = messageDataAccessObject.searchMessages(authorId, word, chatId, null, 1).getResults().get(0);
+        String snippet = result.getSnippet();
+        assertTrue(snippet, snippet.contains(String.format("<mark>%s</mark>&lt;/b&gt; &amp; more", word)));
+        assertFalse(snippet, snippet.contains("<b>") || snippet.contains("</b>"));
+    }
+
+    @Test
+    public void chatSearchMatchesLastTermAsPrefix() throws InvalidAttributesException {
+        AbstractMessageModel hello = createMessage("Hello world");
+        AbstractMessageModel help = createMessage("Help me, World!");
+        createMessage("Yellow submarine");
+        createMessage("Hello scheduled world", MessageType.SCHEDULED);
+        assertEquals(Arrays.asList(help.getId(), hello.getId()), messageIds(messageDataAccessObject.findChatMessages(chatId, "hel", 10)));
+        assertEquals(Collections.singletonList(hello.getId()), messageIds(messageDataAccessObject.findChatMessages(chatId, "WORLD hello", 10)));
+        assertEquals(Arrays.asList(help.getId(), hello.getId()), messageIds(messageDataAccessObject.findChatMessages(chatId, "wor", 10)));
+        assertTrue(messageDataAccessObject.findChatMessages(chatId, "hel ", 10).isEmpty());
+        assertEquals(Collections.singletonList(help.getId()), messageIds(messageDataAccessObject.findChatMessages(chatId, "hel", 1)));
+        assertTrue(messageDataAccessObject.findChatMessages(chatId, "  ", 10).isEmpty());
+    }
+
+    @Test
+    public void persistedScheduledMessageIsSentByNodeStartedAfterItBecameDue() throws InvalidAttributesException, InterruptedException {
+        AbstractMessageModel message = createMessage("Scheduled before restart", MessageType.SCHEDULED);
+        // fire date passed while no node was running, message is known to database only
+        messageDataAccessObject.setMessageFireDate(message.getId(), message.getStoredSendingDate(), Timestamp.from(Instant.now().minusSeconds(3600)));
+        ScheduledMessageDispatcher dispatcher = new ScheduledMessageDispatcher(messageDataAccessObject, messageService, scheduleService);
+        ReflectionTestUtils.setField(dispatcher, "batchSize", 500);
+        ReflectionTestUtils.setField(dispatcher, "lease", 60);
+        ReflectionTestUtils.setField(dispatcher, "maxAttempts", 5);
+        ReflectionTestUtils.invokeMethod(dispatcher, "dispatchDueMessages");
+        // message claimed by running dispatcher first is sent by it
+        long deadline = System.currentTimeMillis() + 5000;
+        String type;
+        while (!"SENT".equals(type = jdbcTemplate.queryForObject("SELECT type FROM messages WHERE id = ?;", String.class, message.getId()))
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("SENT", type);
+        assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM messages WHERE id = ?;", Integer.class, message.getId()));
+    }
+
+    @Test
+    public void chatSearchIndexFollowsChanges() throws InvalidAttributesException {
+        AbstractMessageModel first = createMessage("First note");
+        AbstractMessageModel second = createMessage("Second note");
+        assertEquals(Arrays.asList(second.getId(), first.getId()), messageIds(messageDataAccessObject.findChatMessages(chatId, "note", 10)));
+        long hits = messageSearchIndex.getStatistics().getHits();
+
+        AbstractMessageModel third = createMessage("Third note");
+        messageDataAccessObject.updateMessage(first.getId(), first.getStoredSendingDate(), "First memo");
+        messageDataAccessObject.deleteMessage(second.getId(), second.getStoredSendingDate());
+        assertEquals(Collections.singletonList(third.getId()), messageIds(messageDataAccessObject.findChatMessages(chatId, "note", 10)));
+        assertEquals(Collections.singletonList(first.getId()), messageIds(messageDataAccessObject.findChatMessages(chatId, "memo", 10)));
+        messageDataAccessObject.updateMessageType(third.getId(), third.getStoredSendingDate(), MessageType.SCHEDULED);
+        assertTrue(messageDataAccessObject.findChatMessages(chatId, "note", 10).isEmpty());
+        assertEquals(hits + 3, messageSearchIndex.getStatistics().getHits());
+    }
+
+    @Test
+    public void chatsAreSearchedAndChangedConcurrently() throws Exception {
+        List<CompletableFuture<Void>> writers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            int writerChatId = ApplicationTestData.createChat(jdbcTemplate, authorId, ChatType.GROUP);
+            writers.add(CompletableFuture.runAsync(() -> {
+                try {
+                    List<Integer> sent = new ArrayList<>();
+                    for (int j = 0; j < 20; j++) {
+                        sent.add(0, messageDataAccessObject.addMessage(new AbstractMessageModel(0, String.format("Concurrent note %d", j), null,
+                                                                                               authorId, writerChatId, MessageType.SENT)));
+                        assertEquals(sent, messageIds(messageDataAccessObject.findChatMessages(writerChatId, "concurrent not", 100)));
+                    }
+                } catch (InvalidAttributesException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<Void> writer : writers) {
+            writer.get(30, TimeUnit.SECONDS);
+        }
+        MessageIndexStatistics statistics = messageSearchIndex.getStatistics();
+        assertTrue(statistics.getUsedMemory() > 0 && statistics.getUsedMemory() <= statistics.getMemoryBudget());
+    }
+
+    @Test
+    public void chatSearchIndexDropsChatChangedOnOtherNode() throws InvalidAttributesException {
+        createMessage("Local note");
+        assertEquals(1, messageDataAccessObject.findChatMessages(chatId, "note", 10).size());
+        // other node changes chat by its own index, this node learns about it from invalidation bus only
+        int remoteId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Remote note", new Timestamp(System.currentTimeMillis()));
+        assertEquals(1, messageDataAccessObject.findChatMessages(chatId, "note", 10).size());
+        cacheInvalidationBus.deliver("message.search", String.format("chat:%d", chatId));
+        assertEquals(remoteId, messageDataAccessObject.findChatMessages(chatId, "note", 10).get(0).getId());
+        jdbcTemplate.update("UPDATE messages SET message = ? WHERE id = ?;", "Remote memo", remoteId);
+        cacheInvalidationBus.deliver("message.search", String.format("message:%d", remoteId));
+        assertEquals(Collections.singletonList(remoteId), messageIds(messageDataAccessObject.findChatMessages(chatId, "memo", 10)));
+    }
+
+    @Test
+    public void partitionsAreKeptAheadOfCurrentMonth() {
+        YearMonth currentMonth = YearMonth.now(ZoneOffset.UTC);
+        List<YearMonth> partitions = messagePartitionDataAccessObject.getPartitions();
+        for (int i = 0; i <= 3; i++) {
+            assertTrue(partitions.toString(), partitions.contains(currentMonth.plusMonths(i)));
+        }
+        List<YearMonth> sorted = new ArrayList<>(partitions);
+        Collections.sort(sorted);
+        assertEquals(sorted, partitions);
+    }
+
+    @Test
+    public void partitionIsDroppedOnlyWhenEmpty() throws InvalidAttributesException {
+        YearMonth month = YearMonth.of(1901, 1);
+        dropPartition(month);
+        messagePartitionDataAccessObject.createPartition(month);
+        messagePartitionDataAccessObject.createPartition(month);
+        assertTrue(messagePartitionDataAccessObject.getPartitions().contains(month));
+        Timestamp sentAt = startOf(month);
+        int oldId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Old", sentAt);
+        AbstractMessageModel recent = createMessage("Recent");
+        assertEquals("Old", messageDataAccessObject.getMessage(oldId, sentAt).getMessage());
+        assertEquals("Old", messageDataAccessObject.getMessage(oldId).getMessage());
+        // wrong sending date falls back to lookup over every partition
+        assertEquals("Old", messageDataAccessObject.getMessage(oldId, new Timestamp(System.currentTimeMillis())).getMessage());
+        // latest page is completed from partitions older than recent months
+        assertEquals(Arrays.asList(recent.getId(), oldId), ids(readFromDatabase(5)));
+
+        assertFalse(messagePartitionDataAccessObject.dropPartitionIfEmpty(month));
+        assertTrue(messagePartitionDataAccessObject.getPartitions().contains(month));
+        messageDataAccessObject.deleteMessage(oldId, sentAt);
+        assertTrue(messagePartitionDataAccessObject.dropPartitionIfEmpty(month));
+        assertFalse(messagePartitionDataAccessObject.getPartitions().contains(month));
+    }
+
+    @Test
+    public void messageOutsideOfPartitionsIsRejected() {
+        YearMonth month = YearMonth.of(1900, 1);
+        dropPartition(month);
+        assertThrows(DataAccessException.class, () -> ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Lost", startOf(month)));
+    }
+
+    @Test
+    public void detachedPartitionKeepsMessagesWithoutReferences() throws InvalidAttributesException {
+        YearMonth month = YearMonth.of(1901, 2);
+        dropPartition(month);
+        messagePartitionDataAccessObject.createPartition(month);
+        int messageId = ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, "Detached", startOf(month));
+        messagePartitionDataAccessObject.detachPartition(month);
+        assertFalse(messagePartitionDataAccessObject.getPartitions().contains(month));
+        assertNull(messageDataAccessObject.getMessage(messageId, startOf(month)));
+        assertEquals("Detached", jdbcTemplate.queryForObject("SELECT message FROM messages_1901_02 WHERE id = ?;", String.class, messageId));
+        assertEquals(Integer.valueOf(0), jdbcTemplate.queryForObject("SELECT COUNT(*) FROM pg_constraint WHERE conrelid = 'messages_1901_02'::regclass AND contype = 'f';", Integer.class));
+        jdbcTemplate.update("DELETE FROM users_to_chats WHERE chat_id = ?;", chatId);
+        assertEquals(1, jdbcTemplate.update("DELETE FROM chats WHERE id = ?;", chatId));
+        dropPartition(month);
+    }
+
+    @Test
+    public void detachingWaitsForLockOfMessagesForLimitedTime() throws Exception {
+        YearMonth month = YearMonth.of(1901, 5);
+        dropPartition(month);
+        messagePartitionDataAccessObject.createPartition(month);
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch detached = new CountDownLatch(1);
+        CompletableFuture<Void> reader = CompletableFuture.runAsync(() -> new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            jdbcTemplate.execute("LOCK TABLE messages IN ACCESS SHARE MODE;");
+            locked.countDown();
+            try {
+                detached.await(20, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        try {
+            assertTrue(locked.await(10, TimeUnit.SECONDS));
+            assertThrows(DataAccessException.class, () -> messagePartitionDataAccessObject.detachPartition(month));
+            assertTrue(messagePartitionDataAccessObject.getPartitions().contains(month));
+        } finally {
+            detached.countDown();
+            reader.get(10, TimeUnit.SECONDS);
+            dropPartition(month);
+        }
+    }
+
+    @Test
+    public void archivedHistoryIsMergedWithStoredMessages() throws Exception {
+        YearMonth month = YearMonth.of(1901, 3);
+        dropPartition(month);
+        messagePartitionDataAccessObject.createPartition(month);
+        List<MessageCursor> history = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Timestamp sentAt = Timestamp.from(startOf(month).toInstant().plusSeconds(i / 2 * 60L).plusNanos(123000));
+            history.add(new MessageCursor(sentAt, ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, String.format("Old %d", i), sentAt)));
+        }
+        for (int i = 0; i < 2; i++) {
+            AbstractMessageModel message = createMessage(String.format("Recent %d", i));
+            history.add(new MessageCursor((Timestamp) message.getStoredSendingDate(), message.getId()));
+        }
+        history.sort(MessageCursor.HISTORY_ORDER.reversed());
+        Timestamp cutoff = Timestamp.from(Instant.now().minus(1, ChronoUnit.DAYS));
+        try {
+            assertEquals(4, archiveBatch(cutoff, 4, false));
+            // batch archived, but not deleted from database, is served once and archived again without duplicates
+            assertEquals(2, archiveBatch(cutoff, 10, true));
+            assertEquals(history, readHistoryBackwards(3));
+            List<MessageCursor> chronological = new ArrayList<>(history);
+            Collections.reverse(chronological);
+            assertEquals(chronological, export());
+            assertEquals(2, archiveBatch(cutoff, 10, false));
+            assertEquals(0, archiveBatch(cutoff, 10, false));
+            assertEquals(Integer.valueOf(2), jdbcTemplate.queryForObject("SELECT COUNT(*) FROM messages WHERE chat_id = ?;", Integer.class, chatId));
+            assertEquals(history.get(2), messageArchive.getNewestCursor(chatId));
+
+            assertEquals(history, readHistoryBackwards(3));
+            assertEquals(history.subList(0, 5), cursors(readFromDatabase(5)));
+            assertEquals(chronological, export());
+            assertTrue(messagePartitionDataAccessObject.dropPartitionIfEmpty(month));
+        } finally {
+            messageArchive.removeChat(chatId);
+            dropPartition(month);
+        }
+        assertFalse(messageArchive.isArchived(chatId));
+    }
+
+    @Test
+    public void archivingIsLockedByOneNodeAtATime() throws Exception {
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch checked = new CountDownLatch(1);
+        CompletableFuture<Boolean> otherNode = CompletableFuture.supplyAsync(() -> new TransactionTemplate(transactionManager).execute(status -> {
+            boolean acquired = messageDataAccessObject.tryLockArchiving();
+            locked.countDown();
+            try {
+                checked.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return acquired;
+        }));
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        try {
+            assertEquals(Boolean.FALSE, transactionTemplate.execute(status -> messageDataAccessObject.tryLockArchiving()));
+        } finally {
+            checked.countDown();
+        }
+        assertTrue(otherNode.get(10, TimeUnit.SECONDS));
+        assertEquals(Boolean.TRUE, transactionTemplate.execute(status -> messageDataAccessObject.tryLockArchiving()));
+    }
+
+    @Test
+    public void archiveChangedByOtherNodeIsReloaded() throws Exception {
+        YearMonth month = YearMonth.of(1901, 4);
+        dropPartition(month);
+        messagePartitionDataAccessObject.createPartition(month);
+        for (int i = 0; i < 3; i++) {
+            ApplicationTestData.createMessage(jdbcTemplate, chatId, authorId, String.format("Old %d", i), Timestamp.from(startOf(month).toInstant().plusSeconds(i)));
+        }
+        createMessage("Recent");
+        try {
+            assertEquals(3, archiveBatch(Timestamp.from(Instant.now().minus(1, ChronoUnit.DAYS)), 10, false));
+            assertTrue(messageArchive.isArchived(chatId));
+            // chat directory removed from shared storage by other node
+            Path chatDirectory = Paths.get(ApplicationTestContextInitializer.MESSAGE_ARCHIVE_DIRECTORY, Integer.toString(chatId));
+            try (Stream<Path> files = Files.list(chatDirectory)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(chatDirectory);
+            assertTrue(messageArchive.isArchived(chatId));
+            cacheInvalidationBus.deliver("message.archive", Integer.toString(chatId));
+            assertFalse(messageArchive.isArchived(chatId));
+            assertEquals(1, messageDataAccessObject.getMessages(chatId, null, null, 10).getMessages().size());
+        } finally {
+            messageArchive.removeChat(chatId);
+            dropPartition(month);
+        }
+    }
+
+    private List<MessageCursor> export() {
+        List<MessageCursor> exported = new ArrayList<>();
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            try {
+                messageDataAccessObject.streamMessages(chatId, 2, message ->
+                        exported.add(new MessageCursor((Timestamp) message.getStoredSendingDate(), message.getId())));
+            } catch (InvalidAttributesException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        return exported;
+    }
+
+    /**
+     * Follows batch of archiver, interrupted batch is written to archive, but its transaction is rolled back
+     */
+    private int archiveBatch(Timestamp cutoff, int batchSize, boolean interrupted) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        int[] archived = {0};
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                List<AbstractMessageModel> messages = new ArrayList<>();
+                List<MessageCursor> cursors = new ArrayList<>();
+                try {
+                    assertTrue(messageDataAccessObject.tryLockArchiving());
+                    messageDataAccessObject.lockArchivableMessages(chatId, cutoff, batchSize, messages, cursors);
+                    if (!messages.isEmpty()) {
+                        messageArchive.append(chatId, messages, cursors);
+                        messageDataAccessObject.deleteArchivedMessages(chatId, cutoff, cursors.stream().map(MessageCursor::getId).collect(Collectors.toList()));
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                archived[0] = messages.size();
+                if (interrupted) {
+                    throw new UnsupportedOperationException("Archiving is interrupted");
+                }
+            });
+        } catch (UnsupportedOperationException e) {
+            assertTrue(interrupted);
+        }
+        return archived[0];
+    }
+
+    private List<MessageCursor> readHistoryBackwards(int pageSize) throws InvalidAttributesException {
+        List<MessageCursor> history = new ArrayList<>();
+        MessagePage page = messageDataAccessObject.getMessages(chatId, null, null, pageSize);
+        history.addAll(cursors(page));
+        while (page.getNextCursor() != null) {
+            page = messageDataAccessObject.getMessages(chatId, MessageCursor.decode(page.getNextCursor()), null, pageSize);
+            history.addAll(cursors(page));
+        }
+        return history;
+    }
+
+    private void dropPartition(YearMonth month) {
+        jdbcTemplate.execute(String.format("DROP TABLE IF EXISTS messages_%04d_%02d;", month.getYear(), month.getMonthValue()));
+    }
+
+    private static Timestamp startOf(YearMonth month) {
+        return Timestamp.from(month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).plusSeconds(3600));
+    }
+
+    private AbstractMessageModel createMessage(String text) throws InvalidAttributesException {
+        return createMessage(text, MessageType.SENT);
+    }
+
+    private AbstractMessageModel createMessage(String text, MessageType messageType) throws InvalidAttributesException {
+        AbstractMessageModel message = new AbstractMessageModel(0, text, null, authorId, chatId, messageType);
+        message.setId(messageDataAccessObject.addMessage(message));
+        return message;
+    }
+
+    private MessagePage readFromDatabase(int limit) throws InvalidAttributesException {
+        messageHistoryCache.removeChat(chatId);
+        return messageDataAccessObject.getMessages(chatId, null, null, limit);
+    }
+
+    private static List<MessageCursor> cursors(MessagePage page) {
+        return page.getMessages().stream()
+                   .map(message -> new MessageCursor((Timestamp) message.getStoredSendingDate(), message.getId()))
+                   .collect(Collectors.toList());
+    }
+
+    private static List<Integer> messageIds(List<AbstractMessageModel> messages) {
+        return messages.stream().map(AbstractMessageModel::getId).collect(Collectors.toList());
+    }
+
+    private static List<Integer> searchResultIds(MessageSearchPage page) {
+        return page.getResults().stream().map(result -> result.getMessage().getId()).collect(Collectors.toList());
+    }
+
+    private static List<Integer> ids(MessagePage page) {
+        return page.getMessages().stream().map(AbstractMessageModel::getId).collect(Collectors.toList());
+    }
 }
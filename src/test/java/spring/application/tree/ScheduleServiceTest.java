@@ -1,12 +1,23 @@
 package spring.application.tree;
 
+import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -15,4 +26,30 @@ import org.springframework.test.context.junit4.SpringRunner;
 @TestPropertySource(properties = "spring.config.location = classpath:application.properties")
 @ActiveProfiles(value = {"boots_token"})
 public class ScheduleServiceTest {
+    @Autowired
+    private ScheduleService scheduleService;
+
+    @Test
+    public void oneTimeTaskIsRunByTimingWheel() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        ScheduledFuture<?> task = scheduleService.scheduleOnceFireTask(done::countDown, 50, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // latch is released by the task itself, the future completes right after it
+        task.get(5, TimeUnit.SECONDS);
+        assertTrue(task.isDone());
+    }
+
+    @Test
+    public void cancelledOneTimeTaskIsNotRun() throws Exception {
+        AtomicBoolean run = new AtomicBoolean();
+        ScheduledFuture<?> task = scheduleService.scheduleOnceFireTask(() -> run.set(true), 100, TimeUnit.MILLISECONDS);
+        assertTrue(task.cancel(false));
+        Thread.sleep(300);
+        assertFalse(run.get());
+    }
+
+    @Test(expected = InvalidAttributesException.class)
+    public void negativeDelayIsRejected() throws Exception {
+        scheduleService.scheduleOnceFireTask(() -> { }, -1, TimeUnit.MILLISECONDS);
+    }
 }
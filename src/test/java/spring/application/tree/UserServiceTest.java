@@ -1,12 +1,42 @@
 package spring.application.tree;
 
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import spring.application.tree.data.exceptions.InvalidAttributesException;
+import spring.application.tree.data.users.cache.UserDetailsCache;
+import spring.application.tree.data.users.models.AbstractUserModel;
+import spring.application.tree.data.users.repository.UserActivityTimeBuffer;
+import spring.application.tree.data.users.repository.UserDataAccessObject;
+import spring.application.tree.data.users.security.token.AuthorizationTokenUtility;
+import spring.application.tree.data.users.security.token.TokenRevocationStore;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+import spring.application.tree.web.configuration.filters.AuthorizationTokenRequestFilter;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.*;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -15,4 +45,208 @@ import org.springframework.test.context.junit4.SpringRunner;
 @TestPropertySource(properties = "spring.config.location = classpath:application.properties")
 @ActiveProfiles(value = {"boots_token"})
 public class UserServiceTest {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private UserDetailsService userDetailsService;
+    @Autowired
+    private AuthorizationTokenUtility authorizationTokenUtility;
+    @Autowired
+    private TokenRevocationStore tokenRevocationStore;
+    @Autowired
+    private UserDataAccessObject userDataAccessObject;
+    @Autowired
+    private UserDetailsCache userDetailsCache;
+    @Autowired
+    private CacheInvalidationBus cacheInvalidationBus;
+    @Autowired
+    private AuthorizationTokenRequestFilter authorizationTokenRequestFilter;
+    @Autowired
+    private UserActivityTimeBuffer userActivityTimeBuffer;
+    private int userId;
+    private String username;
+
+    @Before
+    public void createUser() {
+        userId = ApplicationTestData.createUser(jdbcTemplate);
+        username = ApplicationTestData.getUsername(jdbcTemplate, userId);
+    }
+
+    @After
+    public void clearAuthentication() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void verifiedTokenClaimsAreTakenFromCache() {
+        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+        MockHttpServletRequest request = request("agent", "10.0.0.1");
+        String token = authorizationTokenUtility.generateToken(userDetails, request);
+        Claims claims = authorizationTokenUtility.getAllClaimsFromToken(token);
+        assertSame(claims, authorizationTokenUtility.getAllClaimsFromToken(token));
+        assertEquals(username, authorizationTokenUtility.getUsernameFromToken(token));
+        assertTrue(authorizationTokenUtility.validateToken(token, claims, userDetails, request));
+    }
+
+    @Test
+    public void cachedClaimsAreBoundToTheRequestTheyWereIssuedFor() {
+        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+        String token = authorizationTokenUtility.generateToken(userDetails, request("agent", "10.0.0.1"));
+        authorizationTokenUtility.getAllClaimsFromToken(token);
+        assertFalse(authorizationTokenUtility.validateToken(token, userDetails, request("other agent", "10.0.0.1")));
+        assertFalse(authorizationTokenUtility.validateToken(token, userDetails, request("agent", "10.0.0.2")));
+    }
+
+    @Test
+    public void tamperedTokenIsNotServedFromCache() {
+        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+        String token = authorizationTokenUtility.generateToken(userDetails, request("agent", "10.0.0.1"));
+        authorizationTokenUtility.getAllClaimsFromToken(token);
+        String[] parts = token.split("\\.");
+        String tampered = String.format("%s.%s.%s", parts[0], parts[1], new StringBuilder(parts[2]).reverse());
+        assertThrows(JwtException.class, () -> authorizationTokenUtility.getAllClaimsFromToken(tampered));
+    }
+
+    @Test
+    public void revokedTokenIsRejectedWhileOtherTokensOfUserStayValid() {
+        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+        MockHttpServletRequest request = request("agent", "10.0.0.1");
+        MockHttpServletRequest otherRequest = request("agent", "10.0.0.2");
+        String token = authorizationTokenUtility.generateToken(userDetails, request);
+        String otherToken = authorizationTokenUtility.generateToken(userDetails, otherRequest);
+        assertTrue(authorizationTokenUtility.validateToken(token, userDetails, request));
+        authorizationTokenUtility.blacklistToken(token);
+        assertTrue(tokenRevocationStore.isRevoked(token));
+        assertFalse(authorizationTokenUtility.validateToken(token, userDetails, request));
+        assertFalse(tokenRevocationStore.isRevoked(otherToken));
+        assertTrue(authorizationTokenUtility.validateToken(otherToken, userDetails, otherRequest));
+    }
+
+    @Test
+    public void verifiedTokensCacheStaysWithinItsSize() {
+        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+        int cacheSize = (int) ReflectionTestUtils.getField(authorizationTokenUtility, "verifiedTokensCacheSize");
+        Map<?, ?> verifiedTokens = (Map<?, ?>) ReflectionTestUtils.getField(authorizationTokenUtility, "verifiedTokens");
+        ReflectionTestUtils.setField(authorizationTokenUtility, "verifiedTokensCacheSize", 2);
+        try {
+            for (int i = 0; i < 5; i++) {
+                MockHttpServletRequest request = request("agent", String.format("10.0.1.%d", i));
+                String token = authorizationTokenUtility.generateToken(userDetails, request);
+                assertTrue(authorizationTokenUtility.validateToken(token, userDetails, request));
+                assertTrue(verifiedTokens.size() <= 2);
+            }
+        } finally {
+            ReflectionTestUtils.setField(authorizationTokenUtility, "verifiedTokensCacheSize", cacheSize);
+        }
+    }
+
+    @Test
+    public void filterAuthenticatesByTokenDigestAndRejectsRevokedToken() throws Exception {
+        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+        MockHttpServletRequest request = request("agent", "10.0.0.1");
+        String token = authorizationTokenUtility.generateToken(userDetails, request);
+        request.addHeader("Authorization", String.format("Bearer %s", token));
+        authorizationTokenRequestFilter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        assertNotNull(authentication);
+        assertEquals(username, ((UserDetails) authentication.getPrincipal()).getUsername());
+
+        SecurityContextHolder.clearContext();
+        authorizationTokenUtility.blacklistToken(token);
+        assertFalse(authorizationTokenUtility.validateTokenByDigest(TokenRevocationStore.digest(token),
+                                                                    authorizationTokenUtility.getAllClaimsFromToken(token), userDetails, request));
+        MockHttpServletRequest revokedRequest = request("agent", "10.0.0.1");
+        revokedRequest.addHeader("Authorization", String.format("Bearer %s", token));
+        authorizationTokenRequestFilter.doFilter(revokedRequest, new MockHttpServletResponse(), new MockFilterChain());
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+    }
+
+    @Test
+    public void revokedTokensAreKeptByDigest() {
+        String token = ApplicationTestData.uniqueName();
+        int revokedTokens = tokenRevocationStore.size();
+        tokenRevocationStore.revoke(token, new Date(System.currentTimeMillis() + 60000));
+        tokenRevocationStore.revoke(token, new Date(System.currentTimeMillis() + 60000));
+        assertEquals(revokedTokens + 1, tokenRevocationStore.size());
+        assertTrue(tokenRevocationStore.isRevoked(token));
+        assertFalse(tokenRevocationStore.isRevoked(token + "x"));
+        assertFalse(TokenRevocationStore.digest(token).contains(token));
+    }
+
+    @Test
+    public void userDetailsAreCachedByLogin() {
+        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+        assertSame(userDetails, userDetailsService.loadUserByUsername(username));
+        String email = String.format("%s@localhost", username);
+        UserDetails userDetailsByEmail = userDetailsService.loadUserByUsername(email);
+        assertNotSame(userDetails, userDetailsByEmail);
+        assertSame(userDetailsByEmail, userDetailsService.loadUserByUsername(email));
+    }
+
+    @Test
+    public void changedUserIsInvalidatedUnderEveryLogin() throws InvalidAttributesException {
+        String email = String.format("%s@localhost", username);
+        assertTrue(userDetailsService.loadUserByUsername(username).isEnabled());
+        assertTrue(userDetailsService.loadUserByUsername(email).isEnabled());
+        userDataAccessObject.disableUser(email);
+        assertNull(userDetailsCache.getUser(username));
+        assertNull(userDetailsCache.getUser(email));
+        assertFalse(userDetailsService.loadUserByUsername(username).isEnabled());
+        userDataAccessObject.enableUser(email);
+        assertTrue(userDetailsService.loadUserByUsername(username).isEnabled());
+    }
+
+    @Test
+    public void invalidationFromAnotherNodeRemovesUser() {
+        String email = String.format("%s@localhost", username);
+        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+        userDetailsService.loadUserByUsername(email);
+        cacheInvalidationBus.deliver("user.details", String.format("id:%d", userId));
+        assertNull(userDetailsCache.getUser(username));
+        assertNull(userDetailsCache.getUser(email));
+        userDetails = userDetailsService.loadUserByUsername(username);
+        cacheInvalidationBus.deliver("user.details", String.format("login:%s", email));
+        assertNull(userDetailsCache.getUser(username));
+        assertNotSame(userDetails, userDetailsService.loadUserByUsername(username));
+    }
+
+    @Test
+    public void bufferedLoginAndLogoutTimesAreWrittenByFlush() throws InvalidAttributesException {
+        jdbcTemplate.update("UPDATE users SET login_time = to_timestamp(0), logout_time = to_timestamp(0) WHERE id = ?;", userId);
+        userDetailsService.loadUserByUsername(username);
+        long start = System.currentTimeMillis() / 1000 * 1000;
+        userDataAccessObject.updateUserLoginTime(username);
+        userDataAccessObject.updateUserLoginTime(username);
+        userDataAccessObject.updateUserLogoutTime(username);
+        userActivityTimeBuffer.flush();
+        Timestamp loginTime = jdbcTemplate.queryForObject("SELECT login_time FROM users WHERE id = ?;", Timestamp.class, userId);
+        Timestamp logoutTime = jdbcTemplate.queryForObject("SELECT logout_time FROM users WHERE id = ?;", Timestamp.class, userId);
+        assertTrue(loginTime.getTime() >= start);
+        assertFalse(logoutTime.before(loginTime));
+        assertNull(userDetailsCache.getUser(username));
+        // flushed user is written once, the next login changes login time only
+        jdbcTemplate.update("UPDATE users SET logout_time = to_timestamp(0) WHERE id = ?;", userId);
+        userDataAccessObject.updateUserLoginTime(username);
+        userActivityTimeBuffer.flush();
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT logout_time FROM users WHERE id = ?;", Timestamp.class, userId).getTime());
+        assertFalse(jdbcTemplate.queryForObject("SELECT login_time FROM users WHERE id = ?;", Timestamp.class, userId).before(loginTime));
+    }
+
+    @Test
+    public void userLoadedBeforeInvalidationIsNotCached() {
+        AbstractUserModel user = (AbstractUserModel) userDetailsService.loadUserByUsername(username);
+        long generation = userDetailsCache.getGeneration();
+        userDetailsCache.invalidateUser(username);
+        userDetailsCache.putUser(username, user, generation);
+        assertNull(userDetailsCache.getUser(username));
+        userDetailsCache.putUser(username, user, userDetailsCache.getGeneration());
+        assertSame(user, userDetailsCache.getUser(username));
+    }
+
+    private static MockHttpServletRequest request(String userAgent, String address) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("User-Agent", userAgent);
+        request.setRemoteAddr(address);
+        return request;
+    }
 }
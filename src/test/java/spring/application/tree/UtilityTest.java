@@ -1,12 +1,72 @@
 package spring.application.tree;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import spring.application.tree.data.chats.attributes.ChatType;
+import spring.application.tree.data.exceptions.ExceptionTrace;
+import spring.application.tree.data.exceptions.NotAllowedException;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.scheduling.service.ScheduleService;
+import spring.application.tree.data.users.attributes.Role;
+import spring.application.tree.data.users.attributes.Status;
+import spring.application.tree.data.users.models.AbstractUserModel;
+import spring.application.tree.data.users.repository.UserDataAccessObject;
+import spring.application.tree.data.users.service.UserService;
+import spring.application.tree.data.utility.cache.CacheInvalidationBus;
+import spring.application.tree.data.utility.mailing.models.ActionType;
+import spring.application.tree.data.utility.mailing.models.BulkMailMessageModel;
+import spring.application.tree.data.utility.mailing.models.MailTemplate;
+import spring.application.tree.data.utility.mailing.models.MailType;
+import spring.application.tree.data.utility.mailing.models.OutboxMail;
+import spring.application.tree.data.utility.mailing.models.RecipientQuery;
+import spring.application.tree.data.utility.mailing.service.BulkMailService;
+import spring.application.tree.data.utility.mailing.service.MailOutbox;
+import spring.application.tree.data.utility.mailing.service.MailService;
+import spring.application.tree.data.utility.tasks.storage.ConfirmationAction;
+import spring.application.tree.data.utility.tasks.storage.ConfirmationResult;
+import spring.application.tree.data.utility.tasks.storage.JdbcConfirmationStore;
+import spring.application.tree.web.webscoket.fanout.PostgresWebSocketFanOut;
+import spring.application.tree.web.webscoket.fanout.WebSocketFanOutMetrics;
+import spring.application.tree.web.webscoket.models.WebSocketEvent;
+import spring.application.tree.web.webscoket.service.WebSocketService;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -15,4 +75,315 @@ import org.springframework.test.context.junit4.SpringRunner;
 @TestPropertySource(properties = "spring.config.location = classpath:application.properties")
 @ActiveProfiles(value = {"boots_token"})
 public class UtilityTest {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private ScheduleService scheduleService;
+    @Autowired
+    private DataSource dataSource;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private UserDataAccessObject userDataAccessObject;
+    @Autowired
+    private MailService mailService;
+    @Autowired
+    private JavaMailSender javaMailSender;
+    /**
+     * Two stores over the same database stand for two nodes, each of them has its own records in memory
+     */
+    private JdbcConfirmationStore firstNode;
+    private JdbcConfirmationStore secondNode;
+    private String email;
+    private final List<PostgresWebSocketFanOut> fanOutNodes = new ArrayList<>();
+    private BulkMailService bulkMailService;
+    /**
+     * Mails queued by bulk mailing, outbox of test sends nothing
+     */
+    private final BlockingQueue<OutboxMail> bulkMails = new LinkedBlockingQueue<>();
+
+    @Before
+    public void createNodes() {
+        firstNode = new JdbcConfirmationStore(scheduleService, jdbcTemplate);
+        secondNode = new JdbcConfirmationStore(scheduleService, jdbcTemplate);
+        email = String.format("%s@localhost", ApplicationTestData.uniqueName());
+    }
+
+    @After
+    public void stopFanOutNodes() {
+        for (PostgresWebSocketFanOut node : fanOutNodes) {
+            ReflectionTestUtils.invokeMethod(node, "stopListening");
+        }
+    }
+
+    @After
+    public void stopBulkMailing() {
+        if (bulkMailService != null) {
+            ReflectionTestUtils.invokeMethod(bulkMailService, "stopBulkMailing");
+        }
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void codeIssuedOnOneNodeIsCompletedOnAnotherOnce() {
+        firstNode.putCode(email, "123456", ActionType.SIGN_UP, System.currentTimeMillis() + 60000);
+        assertEquals("123456", secondNode.getRecord(email).getCode());
+        assertEquals(ConfirmationResult.MISMATCH, secondNode.complete(email, "654321", ActionType.SIGN_UP));
+        assertEquals(ConfirmationResult.MISMATCH, secondNode.complete(email, "123456", ActionType.CHANGE_EMAIL));
+        assertEquals(ConfirmationResult.COMPLETED, secondNode.complete(email, "123456", ActionType.SIGN_UP));
+        assertEquals(ConfirmationResult.MISSING, firstNode.complete(email, "123456", ActionType.SIGN_UP));
+        assertNull(firstNode.getRecord(email));
+    }
+
+    @Test
+    public void reissuedCodeReplacesPreviousOne() {
+        firstNode.putCode(email, "123456", ActionType.SIGN_UP, System.currentTimeMillis() + 60000);
+        secondNode.putCode(email, "654321", ActionType.RESTORE_PASSWORD, System.currentTimeMillis() + 60000);
+        assertEquals(ConfirmationResult.MISMATCH, firstNode.complete(email, "123456", ActionType.SIGN_UP));
+        assertEquals(ConfirmationResult.COMPLETED, firstNode.complete(email, "654321", ActionType.RESTORE_PASSWORD));
+    }
+
+    @Test
+    public void expiredCodeIsNotCompleted() {
+        firstNode.putCode(email, "123456", ActionType.SIGN_UP, System.currentTimeMillis() - 1000);
+        assertEquals(ConfirmationResult.EXPIRED, secondNode.complete(email, "123456", ActionType.SIGN_UP));
+        assertEquals(ConfirmationResult.MISSING, firstNode.complete(email, "123456", ActionType.SIGN_UP));
+    }
+
+    @Test
+    public void pendingCodeIsNotRemovedAsExpired() {
+        firstNode.putCode(email, "123456", ActionType.SIGN_UP, System.currentTimeMillis() + 60000);
+        assertFalse(secondNode.removeExpiredConfirmation(email));
+        assertEquals(ConfirmationResult.COMPLETED, secondNode.complete(email, "123456", ActionType.SIGN_UP));
+        assertTrue(firstNode.removeExpiredConfirmation(email));
+    }
+
+    @Test
+    public void concurrentCompletionSucceedsOnOneNodeOnly() throws InterruptedException, ExecutionException, TimeoutException {
+        firstNode.putCode(email, "123456", ActionType.SIGN_UP, System.currentTimeMillis() + 60000);
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<ConfirmationResult>> completions = new ArrayList<>();
+        for (JdbcConfirmationStore node : new JdbcConfirmationStore[]{firstNode, secondNode, firstNode, secondNode}) {
+            completions.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return node.complete(email, "123456", ActionType.SIGN_UP);
+            }));
+        }
+        start.countDown();
+        int completed = 0;
+        for (CompletableFuture<ConfirmationResult> completion : completions) {
+            ConfirmationResult result = completion.get(10, TimeUnit.SECONDS);
+            if (result == ConfirmationResult.COMPLETED) {
+                completed++;
+            } else {
+                assertEquals(ConfirmationResult.MISSING, result);
+            }
+        }
+        assertEquals(1, completed);
+    }
+
+    @Test
+    public void successActionIsTakenOnAnotherNodeOnce() {
+        ConfirmationAction action = new ConfirmationAction(ActionType.CHANGE_EMAIL, email, "new@localhost", "/profile",
+                                                           System.currentTimeMillis() + 60000);
+        firstNode.putSuccessAction(email, action);
+        assertEquals(action, secondNode.takeSuccessAction(email));
+        assertNull(firstNode.takeSuccessAction(email));
+        assertNull(secondNode.takeSuccessAction(email));
+    }
+
+    @Test
+    public void removedOrExpiredSuccessActionIsNotTaken() {
+        firstNode.putSuccessAction(email, new ConfirmationAction(ActionType.SIGN_UP, email, null, "/", System.currentTimeMillis() + 60000));
+        secondNode.removeSuccessAction(email);
+        assertNull(firstNode.takeSuccessAction(email));
+        firstNode.putSuccessAction(email, new ConfirmationAction(ActionType.SIGN_UP, email, null, "/", System.currentTimeMillis() - 1000));
+        assertNull(secondNode.takeSuccessAction(email));
+    }
+
+    @Test
+    public void fanOutMessageIsDeliveredOnEveryNodeAfterCommit() throws InterruptedException {
+        String channel = ApplicationTestData.uniqueName();
+        BlockingQueue<String> firstNodeMessages = new LinkedBlockingQueue<>();
+        BlockingQueue<String> secondNodeMessages = new LinkedBlockingQueue<>();
+        PostgresWebSocketFanOut firstFanOut = startFanOutNode(channel, firstNodeMessages);
+        startFanOutNode(channel, secondNodeMessages);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            firstFanOut.publish("/topic/test", "committed".getBytes(StandardCharsets.UTF_8));
+            assertTrue(firstNodeMessages.isEmpty());
+        });
+        assertEquals("committed", firstNodeMessages.poll());
+        assertEquals("committed", secondNodeMessages.poll(5, TimeUnit.SECONDS));
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            firstFanOut.publish("/topic/test", "rolled back".getBytes(StandardCharsets.UTF_8));
+            status.setRollbackOnly();
+        });
+        firstFanOut.publish("/topic/test", "without transaction".getBytes(StandardCharsets.UTF_8));
+        assertEquals("without transaction", firstNodeMessages.poll());
+        assertEquals("without transaction", secondNodeMessages.poll(5, TimeUnit.SECONDS));
+        assertNull(firstNodeMessages.poll(500, TimeUnit.MILLISECONDS));
+        assertTrue(secondNodeMessages.isEmpty());
+    }
+
+    @Test
+    public void oversizedFanOutMessageIsPassedThroughTable() throws InterruptedException {
+        String channel = ApplicationTestData.uniqueName();
+        BlockingQueue<String> firstNodeMessages = new LinkedBlockingQueue<>();
+        BlockingQueue<String> secondNodeMessages = new LinkedBlockingQueue<>();
+        PostgresWebSocketFanOut firstFanOut = startFanOutNode(channel, firstNodeMessages);
+        startFanOutNode(channel, secondNodeMessages);
+        String payload = channel + String.join("", Collections.nCopies(2000, " payload"));
+        firstFanOut.publish("/topic/test", payload.getBytes(StandardCharsets.UTF_8));
+        assertEquals(payload, firstNodeMessages.poll());
+        assertEquals(payload, secondNodeMessages.poll(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(1), jdbcTemplate.queryForObject("SELECT COUNT(*) FROM fan_out_payloads WHERE payload = ?;", Integer.class, payload));
+    }
+
+    @Test
+    public void webSocketMessageIsSerializedOnceForEveryNode() throws Exception {
+        String channel = ApplicationTestData.uniqueName();
+        BlockingQueue<String> firstNodeMessages = new LinkedBlockingQueue<>();
+        BlockingQueue<String> secondNodeMessages = new LinkedBlockingQueue<>();
+        PostgresWebSocketFanOut firstFanOut = startFanOutNode(channel, firstNodeMessages);
+        startFanOutNode(channel, secondNodeMessages);
+        WebSocketService webSocketService = new WebSocketService(new SimpMessagingTemplate((message, timeout) -> true), firstFanOut);
+        ReflectionTestUtils.setField(webSocketService, "timeout", "1000");
+        ReflectionTestUtils.invokeMethod(webSocketService, "setup");
+        AbstractMessageModel message = new AbstractMessageModel(1, "Across nodes", new Timestamp(0), 2, 3, MessageType.SENT);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            try {
+                webSocketService.sendMessageAfterCommit(message, "/topic/chat", WebSocketEvent.SENDING_MESSAGE);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException(e);
+            }
+            assertTrue(firstNodeMessages.isEmpty());
+        });
+        String delivered = firstNodeMessages.poll();
+        assertNotNull(delivered);
+        assertTrue(delivered.contains("Across nodes") && delivered.contains(WebSocketEvent.SENDING_MESSAGE.name()));
+        assertEquals(delivered, secondNodeMessages.poll(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Node has its own broker, metrics and invalidation bus, so nodes share database only
+     */
+    private PostgresWebSocketFanOut startFanOutNode(String channel, BlockingQueue<String> messages) throws InterruptedException {
+        SimpMessagingTemplate messagingTemplate = new SimpMessagingTemplate((message, timeout) ->
+                messages.add(new String((byte[]) message.getPayload(), StandardCharsets.UTF_8)));
+        PostgresWebSocketFanOut fanOut = new PostgresWebSocketFanOut(messagingTemplate, new WebSocketFanOutMetrics(), jdbcTemplate, dataSource,
+                                                                     transactionManager, new CacheInvalidationBus(), scheduleService);
+        ReflectionTestUtils.setField(fanOut, "channel", channel);
+        ReflectionTestUtils.setField(fanOut, "deduplicationSize", 100);
+        ReflectionTestUtils.setField(fanOut, "pollTimeout", 100);
+        ReflectionTestUtils.setField(fanOut, "payloadRetention", 60);
+        ReflectionTestUtils.invokeMethod(fanOut, "startListening");
+        fanOutNodes.add(fanOut);
+        int listeners = fanOutNodes.size();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listeners > jdbcTemplate.queryForObject("SELECT COUNT(*) FROM pg_stat_activity WHERE query LIKE ?;", Integer.class,
+                                                       String.format("LISTEN %s%%", channel))) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return fanOut;
+    }
+
+    @Test
+    public void chatMembersAreMailedByAdministratorWhoDoesNotOwnChat() throws Exception {
+        int ownerId = ApplicationTestData.createUser(jdbcTemplate);
+        int memberId = ApplicationTestData.createUser(jdbcTemplate);
+        int disabledMemberId = ApplicationTestData.createUser(jdbcTemplate, Role.ROLE_USER, Status.DISABLED);
+        int chatId = ApplicationTestData.createChat(jdbcTemplate, ownerId, ChatType.GROUP, memberId, disabledMemberId);
+        int administratorId = ApplicationTestData.createUser(jdbcTemplate, Role.ROLE_ADMIN, Status.ENABLED);
+        ApplicationTestData.authenticate(userDataAccessObject.getUserById(administratorId));
+        startBulkMailing();
+        bulkMailService.sendBulkMessage(new BulkMailMessageModel(RecipientQuery.CHAT_MEMBERS, chatId, "Hello, {username}", "Sent to {email}", MailType.PLAIN));
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            OutboxMail mail = bulkMails.poll(5, TimeUnit.SECONDS);
+            assertNotNull(mail);
+            String username = mail.getRecipient().substring(0, mail.getRecipient().indexOf('@'));
+            assertEquals(String.format("Hello, %s", username), mail.getMessage().getSubject());
+            assertEquals(String.format("Sent to %s", mail.getRecipient()), mail.getMessage().getContent());
+            recipients.add(mail.getRecipient());
+        }
+        assertEquals(Arrays.asList(String.format("%s@localhost", ApplicationTestData.getUsername(jdbcTemplate, ownerId)),
+                                   String.format("%s@localhost", ApplicationTestData.getUsername(jdbcTemplate, memberId))), recipients);
+        assertNull(bulkMails.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void bulkMailingIsRejectedWithoutAuthenticationOrForAllUsersWhenDisabled() throws Exception {
+        startBulkMailing();
+        BulkMailMessageModel allUsers = new BulkMailMessageModel(RecipientQuery.ENABLED_USERS, null, "Subject", "Text", MailType.PLAIN);
+        assertThrows(NotAllowedException.class, () -> bulkMailService.sendBulkMessage(allUsers));
+        ApplicationTestData.authenticate(userDataAccessObject.getUserById(ApplicationTestData.createUser(jdbcTemplate, Role.ROLE_ADMIN, Status.ENABLED)));
+        assertThrows(NotAllowedException.class, () -> bulkMailService.sendBulkMessage(allUsers));
+        assertNull(bulkMails.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void mailTemplateEscapesOnlyPlaceholderValuesOfHtmlMail() {
+        AbstractUserModel recipient = new AbstractUserModel();
+        recipient.setUsername("<b>Tom & Jerry</b>");
+        recipient.setEmail("tom@localhost");
+        assertEquals("<p>&lt;b&gt;Tom &amp; Jerry&lt;/b&gt; tom@localhost</p>", new MailTemplate("<p>{username} {email}</p>", true).render(recipient));
+        assertEquals("<p><b>Tom & Jerry</b></p>", new MailTemplate("<p>{username}</p>", false).render(recipient));
+        recipient.setEmail(null);
+        assertEquals("Mail: ", new MailTemplate("Mail: {email}", true).render(recipient));
+    }
+
+    @Test
+    public void mailTemplateLeavesUnknownPlaceholdersAsTheyAre() {
+        AbstractUserModel recipient = new AbstractUserModel();
+        recipient.setUsername("tom");
+        recipient.setEmail("tom@localhost");
+        assertEquals("{name} {tom} tom{email {}", new MailTemplate("{name} {{username}} {username}{email {}", false).render(recipient));
+        assertEquals("{", new MailTemplate("{", false).render(recipient));
+        assertEquals("tomtom@localhost", new MailTemplate("{username}{email}", false).render(recipient));
+    }
+
+    @Test
+    public void exceptionsAreStacklessUnlessTracesDebugIsEnabled() {
+        boolean debug = ExceptionTrace.isDebug();
+        try {
+            ExceptionTrace.setDebug(false);
+            NotAllowedException stackless = new NotAllowedException("Not allowed", ExceptionTrace.caller(), LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+            assertNull(stackless.getTrace());
+            assertEquals(0, stackless.getStackTrace().length);
+
+            ExceptionTrace.setDebug(true);
+            NotAllowedException traced = new NotAllowedException("Not allowed", ExceptionTrace.caller(), LocalDateTime.now(), HttpStatus.NOT_ACCEPTABLE);
+            assertNotNull(traced.getTrace());
+            assertTrue(traced.getTrace(), traced.getTrace().contains("exceptionsAreStacklessUnlessTracesDebugIsEnabled"));
+            assertTrue(traced.getStackTrace().length > 0);
+            assertEquals("exceptionsAreStacklessUnlessTracesDebugIsEnabled", traced.getStackTrace()[0].getMethodName());
+        } finally {
+            ExceptionTrace.setDebug(debug);
+        }
+    }
+
+    /**
+     * Service is created with outbox which only collects mails, pages of one recipient cover paging of recipients
+     */
+    private void startBulkMailing() {
+        MailOutbox mailOutbox = new MailOutbox(javaMailSender, scheduleService) {
+            @Override
+            public void put(OutboxMail mail) {
+                bulkMails.add(mail);
+            }
+        };
+        bulkMailService = new BulkMailService(userService, mailService, mailOutbox, transactionManager);
+        ReflectionTestUtils.setField(bulkMailService, "rate", 1000);
+        ReflectionTestUtils.setField(bulkMailService, "pageSize", 1);
+        ReflectionTestUtils.setField(bulkMailService, "queueCapacity", 1);
+        ReflectionTestUtils.setField(bulkMailService, "allUsersEnabled", false);
+        ReflectionTestUtils.invokeMethod(bulkMailService, "initializeBulkMailing");
+    }
 }
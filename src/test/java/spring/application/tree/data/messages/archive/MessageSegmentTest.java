@@ -0,0 +1,190 @@
+package spring.application.tree.data.messages.archive;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import spring.application.tree.data.messages.attributes.MessageType;
+import spring.application.tree.data.messages.models.AbstractMessageModel;
+import spring.application.tree.data.messages.models.MessageCursor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageSegmentTest {
+    private static final int CHAT_ID = 17;
+    private static final YearMonth MONTH = YearMonth.of(2026, 3);
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void messagesSurviveRoundTripThroughBlocks() throws IOException {
+        MessageSegment segment = MessageSegment.create(folder.getRoot().toPath(), MONTH);
+        List<AbstractMessageModel> messages = createMessages(1, 25);
+        segment.append(messages, cursors(messages), 10);
+        assertEquals(3, segment.getBlocks().size());
+        assertEquals(messages, readAll(segment));
+        MessageSegment.Block last = segment.getBlocks().get(2);
+        assertEquals(5, last.count);
+        assertEquals(21, last.firstId);
+        assertEquals(25, last.lastId);
+        assertEquals(MessageSegment.toMicros((Timestamp) messages.get(24).getStoredSendingDate()), last.lastMicros);
+        List<String> problems = new ArrayList<>();
+        assertEquals(25, segment.verify(CHAT_ID, new HashSet<>(), problems::add));
+        assertTrue(problems.toString(), problems.isEmpty());
+    }
+
+    @Test
+    public void reopenedSegmentKeepsItsBlocks() throws IOException {
+        Path chatDirectory = folder.getRoot().toPath();
+        MessageSegment segment = MessageSegment.create(chatDirectory, MONTH);
+        List<AbstractMessageModel> messages = createMessages(1, 12);
+        segment.append(messages.subList(0, 7), cursors(messages.subList(0, 7)), 4);
+        segment.append(messages.subList(7, 12), cursors(messages.subList(7, 12)), 4);
+        MessageSegment reopened = MessageSegment.create(chatDirectory, MONTH);
+        assertEquals(MONTH, reopened.getMonth());
+        assertEquals(4, reopened.getBlocks().size());
+        assertEquals(messages, readAll(reopened));
+    }
+
+    @Test
+    public void partialIndexEntryIsSkippedOnOpenAndOverwrittenByAppend() throws IOException {
+        Path chatDirectory = folder.getRoot().toPath();
+        MessageSegment segment = MessageSegment.create(chatDirectory, MONTH);
+        List<AbstractMessageModel> messages = createMessages(1, 10);
+        segment.append(messages, cursors(messages), 5);
+        Path indexPath = indexPath(chatDirectory);
+        long indexSize = Files.size(indexPath);
+        // append interrupted after block was written, but before its index entry was complete
+        appendBytes(MessageSegment.segmentPath(chatDirectory, MONTH), new byte[64]);
+        appendBytes(indexPath, new byte[20]);
+        MessageSegment reopened = MessageSegment.open(MessageSegment.segmentPath(chatDirectory, MONTH));
+        assertEquals(2, reopened.getBlocks().size());
+        assertEquals(indexSize + 20, Files.size(indexPath));
+        List<String> problems = new ArrayList<>();
+        assertEquals(10, reopened.verify(CHAT_ID, new HashSet<>(), problems::add));
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0), problems.get(0).contains("20 bytes after the last complete block"));
+        List<AbstractMessageModel> appended = createMessages(11, 3);
+        reopened.append(appended, cursors(appended), 5);
+        assertEquals(indexSize + 44, Files.size(indexPath));
+        List<AbstractMessageModel> expected = new ArrayList<>(messages);
+        expected.addAll(appended);
+        MessageSegment appendedSegment = MessageSegment.open(MessageSegment.segmentPath(chatDirectory, MONTH));
+        assertEquals(expected, readAll(appendedSegment));
+        problems.clear();
+        assertEquals(13, appendedSegment.verify(CHAT_ID, new HashSet<>(), problems::add));
+        assertTrue(problems.toString(), problems.isEmpty());
+    }
+
+    @Test
+    public void indexEntryPointingPastSegmentIsSkippedOnOpen() throws IOException {
+        Path chatDirectory = folder.getRoot().toPath();
+        Path segmentPath = MessageSegment.segmentPath(chatDirectory, MONTH);
+        MessageSegment segment = MessageSegment.create(chatDirectory, MONTH);
+        List<AbstractMessageModel> messages = createMessages(1, 6);
+        segment.append(messages, cursors(messages), 3);
+        MessageSegment.Block last = segment.getBlocks().get(1);
+        // segment lost its last block, while index entry of it was kept
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.WRITE)) {
+            channel.truncate(last.offset + last.length - 1);
+        }
+        long indexSize = Files.size(indexPath(chatDirectory));
+        MessageSegment reopened = MessageSegment.open(segmentPath);
+        assertEquals(1, reopened.getBlocks().size());
+        assertEquals(messages.subList(0, 3), readAll(reopened));
+        assertEquals(indexSize, Files.size(indexPath(chatDirectory)));
+        assertEquals(44, reopened.getTrailingIndexBytes());
+    }
+
+    @Test
+    public void interruptedCreationIsReplaced() throws IOException {
+        Path chatDirectory = folder.getRoot().toPath();
+        Files.write(MessageSegment.segmentPath(chatDirectory, MONTH), new byte[]{1, 2, 3});
+        MessageSegment segment = MessageSegment.create(chatDirectory, MONTH);
+        assertTrue(segment.getBlocks().isEmpty());
+        List<AbstractMessageModel> messages = createMessages(1, 2);
+        segment.append(messages, cursors(messages), 5);
+        assertEquals(messages, readAll(MessageSegment.open(MessageSegment.segmentPath(chatDirectory, MONTH))));
+    }
+
+    @Test
+    public void corruptedBlockIsReportedByVerification() throws IOException {
+        Path chatDirectory = folder.getRoot().toPath();
+        MessageSegment segment = MessageSegment.create(chatDirectory, MONTH);
+        List<AbstractMessageModel> messages = createMessages(1, 8);
+        segment.append(messages, cursors(messages), 4);
+        MessageSegment.Block corrupted = segment.getBlocks().get(1);
+        try (FileChannel channel = FileChannel.open(MessageSegment.segmentPath(chatDirectory, MONTH), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, corrupted.offset + 2);
+            value.flip();
+            ByteBuffer flipped = ByteBuffer.wrap(new byte[]{(byte) ~value.get()});
+            channel.write(flipped, corrupted.offset + 2);
+        }
+        List<String> problems = new ArrayList<>();
+        long verified = MessageSegment.open(MessageSegment.segmentPath(chatDirectory, MONTH)).verify(CHAT_ID, new HashSet<>(), problems::add);
+        assertEquals(4, verified);
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0), problems.get(0).contains("checksum mismatch"));
+    }
+
+    @Test
+    public void microsecondsSurviveConversion() {
+        Timestamp[] timestamps = {Timestamp.valueOf("2026-03-01 00:00:00.000001"), Timestamp.valueOf("1969-12-31 23:59:59.999999"),
+                                  Timestamp.from(Instant.ofEpochSecond(-1, 500000000))};
+        for (Timestamp timestamp : timestamps) {
+            assertEquals(timestamp, MessageSegment.fromMicros(MessageSegment.toMicros(timestamp)));
+        }
+    }
+
+    /**
+     * Messages are sent in order within segment month, several share sending date, so ID decides their order
+     */
+    private static List<AbstractMessageModel> createMessages(int firstId, int count) {
+        Instant monthStart = MONTH.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC);
+        List<AbstractMessageModel> messages = new ArrayList<>();
+        for (int id = firstId; id < firstId + count; id++) {
+            Timestamp sentAt = Timestamp.from(monthStart.plusSeconds(id / 2 * 3600L).plusNanos(123456000L));
+            String text = id % 3 == 0 ? String.format("Привет, 世界 %d 😀", id) : String.format("Message %d", id);
+            messages.add(new AbstractMessageModel(id, text, sentAt, id % 4 + 1, CHAT_ID, id % 5 == 0 ? MessageType.SENT : MessageType.CREATED));
+        }
+        return messages;
+    }
+
+    private static List<MessageCursor> cursors(List<AbstractMessageModel> messages) {
+        List<MessageCursor> cursors = new ArrayList<>();
+        for (AbstractMessageModel message : messages) {
+            cursors.add(new MessageCursor((Timestamp) message.getStoredSendingDate(), message.getId()));
+        }
+        return cursors;
+    }
+
+    private static List<AbstractMessageModel> readAll(MessageSegment segment) throws IOException {
+        List<AbstractMessageModel> messages = new ArrayList<>();
+        for (MessageSegment.Block block : segment.getBlocks()) {
+            segment.read(block, messages, new ArrayList<>(), CHAT_ID);
+        }
+        return messages;
+    }
+
+    private static Path indexPath(Path chatDirectory) {
+        return chatDirectory.resolve(String.format("%04d_%02d%s", MONTH.getYear(), MONTH.getMonthValue(), MessageSegment.INDEX_EXTENSION));
+    }
+
+    private static void appendBytes(Path path, byte[] bytes) throws IOException {
+        Files.write(path, bytes, StandardOpenOption.APPEND);
+    }
+}